@@ -109,9 +109,9 @@ public interface AmazonS3Manager {
 	 *            - Additional metadata instructing Amazon S3 how to handle the
 	 *            uploaded data (e.g. custom user metadata, hooks for specifying
 	 *            content type, etc.).
-	 * @return TRUE if successful, otherwise FASLE
+	 * @return The ETag of the uploaded object if successful, otherwise null
 	 */
-    boolean uploadEntity(String bucketName, String keyName, InputStream inputStream, ObjectMetadata metadata);
+    String uploadEntity(String bucketName, String keyName, InputStream inputStream, ObjectMetadata metadata);
 
     /**
      * Deletes the specified object in the specified bucket. Once deleted, the
@@ -136,6 +136,17 @@ public interface AmazonS3Manager {
      */
     boolean deleteEntities(String bucketName);
     
+    /**
+     * Deletes the objects for the given keys in a single bucket from S3, up
+     * to 1000 keys per request
+     * 
+     * @param bucketName
+     *              - The name of an existing bucket
+     * @param keyNames
+     *              - The keys of the objects to delete
+     */
+    boolean deleteEntities(String bucketName, List<String> keyNames);
+    
     boolean publicEntity(String bucketName, String keyName);
     
     /**
@@ -154,8 +165,9 @@ public interface AmazonS3Manager {
      * @param destinationKeyName
      *            - The key in the destination bucket under which the new object
      *            will be created
+     * @return The ETag of the new object if successful, otherwise null
      */
-    boolean copyEntity(String sourceBucketName, String sourceKeyName, String destinationBucketName, 
+    String copyEntity(String sourceBucketName, String sourceKeyName, String destinationBucketName, 
             String destinationKeyName);
 
     boolean isPublicEntity(String bucketName, String keyName);
@@ -181,6 +193,24 @@ public interface AmazonS3Manager {
      */
     InputStream downloadEntity(String bucketName, String keyName);
     
+    /**
+     * Gets a byte range of the object stored in Amazon S3 under the specified
+     * bucket and key, only the bytes of the range are transferred. The stream
+     * must be closed as soon as possible, like the stream of the whole object
+     * 
+     * @param bucketName
+     *              - The name of the bucket containing the desired object
+     * @param keyName
+     *              - The key under which the desired object is stored
+     * @param start
+     *              - The position of the first byte of the range
+     * @param end
+     *              - The position of the last byte of the range, inclusive as
+     *              in HTTP byte ranges
+     * @return The bytes of the range, null if they could not be read
+     */
+    InputStream downloadEntity(String bucketName, String keyName, long start, long end);
+    
     S3Object findEntityByUniqueKey(String bucketName, String keyName);
     
     /**
@@ -202,6 +232,9 @@ public interface AmazonS3Manager {
 	 * @param prefixKey
 	 * 
 	 * @return a list of S3 objects
+	 * @throws com.amazonaws.AmazonClientException
+	 *             if the objects could not be listed, rather than returning
+	 *             only part of them
 	 */
     List<S3ObjectSummary> findEntityByPrefixKey(String bucketName, String prefixKey);
 }
@@ -17,6 +17,7 @@
 package io.milton.s3;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -54,9 +55,32 @@ import com.amazonaws.services.s3.model.S3ObjectSummary;
 public class AmazonS3ManagerImpl implements AmazonS3Manager {
 
     private static final Logger LOG = LoggerFactory.getLogger(AmazonS3ManagerImpl.class);
+    
+    /**
+     * Maximum number of keys of a multiple objects delete request
+     */
+    private static final int MAX_DELETE_KEYS = 1000;
 
     // Amazon S3 Client
     private final AmazonS3 amazonS3Client;
+    
+    /**
+     * Uploads the large streams in parts, null to upload every stream with a
+     * single PUT
+     */
+    private volatile MultipartUploader multipartUploader;
+    
+    /**
+     * Downloads the large objects in parallel parts, null to download every
+     * object with a single GET
+     */
+    private volatile ParallelDownloader parallelDownloader;
+    
+    /**
+     * Copies the large objects in parallel parts, null to copy every object
+     * with a single copy request
+     */
+    private volatile MultipartCopier multipartCopier;
 
     /**
      * You can choose the geographical region where Amazon S3 will store the
@@ -75,6 +99,92 @@ public class AmazonS3ManagerImpl implements AmazonS3Manager {
         amazonS3Client.setRegion(region);
     }
 
+    /**
+     * Upload the streams larger than one part, or of unknown length, in parts
+     * sent in parallel. Every stream is uploaded with a single PUT otherwise,
+     * which limits objects to 5 GB
+     * 
+     * @param partSize
+     *            - the size in bytes of the parts, at least 5 MB
+     * @param maxParallelParts
+     *            - the maximum number of parts uploaded at the same time, 0
+     *            to upload every stream with a single PUT. Twice as many
+     *            parts are held in memory at most, and a single upload holds
+     *            one more than that number
+     */
+    public void setMultipartUpload(int partSize, int maxParallelParts) {
+        if (maxParallelParts > 0 && partSize < MultipartUploader.MIN_PART_SIZE) {
+            throw new IllegalArgumentException("Part size must be at least " + MultipartUploader.MIN_PART_SIZE 
+                    + " bytes: " + partSize);
+        }
+        MultipartUploader oldUploader = multipartUploader;
+        multipartUploader = maxParallelParts > 0 
+                ? new MultipartUploader(amazonS3Client, partSize, maxParallelParts) : null;
+        if (oldUploader != null) {
+            oldUploader.shutdown();
+        }
+    }
+    
+    /**
+     * Download the objects of at least the given size as parts requested in
+     * parallel, as a single GET is much slower than the network. The parts
+     * are read ahead of the client only up to the number of parallel parts,
+     * and the downloads beyond the buffers of all the downloading parts are
+     * read with a single request for the rest of the object
+     * 
+     * @param minSize
+     *            - the size in bytes of the smallest object downloaded in
+     *            parts
+     * @param partSize
+     *            - the size in bytes of the parts
+     * @param maxParallelParts
+     *            - the maximum number of parts of a download downloaded at
+     *            the same time, 0 to download every object with a single GET
+     * @param maxDownloadingParts
+     *            - the maximum number of parts of all the downloads
+     *            downloaded at the same time. Twice as many parts are held in
+     *            memory at most
+     */
+    public void setParallelDownload(long minSize, int partSize, int maxParallelParts, int maxDownloadingParts) {
+        if (maxParallelParts > 0 && (partSize <= 0 || maxDownloadingParts <= 0)) {
+            throw new IllegalArgumentException("Part size and number of downloading parts must be positive: " 
+                    + partSize + ", " + maxDownloadingParts);
+        }
+        ParallelDownloader oldDownloader = parallelDownloader;
+        parallelDownloader = maxParallelParts > 0 
+                ? new ParallelDownloader(amazonS3Client, partSize, maxParallelParts, maxDownloadingParts, 
+                        minSize) : null;
+        if (oldDownloader != null) {
+            oldDownloader.shutdown();
+        }
+    }
+    
+    /**
+     * Copy the objects of at least the given size as parts copied in
+     * parallel. A single copy request is limited to objects of 5 GB
+     * 
+     * @param minSize
+     *            - the size in bytes of the smallest object copied in parts,
+     *            at most 5 GB
+     * @param partSize
+     *            - the size in bytes of the parts, at least 5 MB
+     * @param maxParallelParts
+     *            - the maximum number of parts of a copy copied at the same
+     *            time, 0 to copy every object with a single copy request
+     */
+    public void setMultipartCopy(long minSize, long partSize, int maxParallelParts) {
+        if (maxParallelParts > 0 && partSize < MultipartUploader.MIN_PART_SIZE) {
+            throw new IllegalArgumentException("Part size must be at least " + MultipartUploader.MIN_PART_SIZE 
+                    + " bytes: " + partSize);
+        }
+        MultipartCopier oldCopier = multipartCopier;
+        multipartCopier = maxParallelParts > 0 
+                ? new MultipartCopier(amazonS3Client, partSize, maxParallelParts, minSize) : null;
+        if (oldCopier != null) {
+            oldCopier.shutdown();
+        }
+    }
+    
     @Override
     public boolean isRootBucket(String bucketName) {
         LOG.info("Checks if the specified bucket " + bucketName + " exists or not");
@@ -171,24 +281,39 @@ public class AmazonS3ManagerImpl implements AmazonS3Manager {
     }
 
     @Override
-    public boolean uploadEntity(String bucketName, String keyName, InputStream inputStream, ObjectMetadata metadata) {
+    public String uploadEntity(String bucketName, String keyName, InputStream inputStream, ObjectMetadata metadata) {
         LOG.info("Uploads the specified input stream "
                 + inputStream
                 + " and object metadata to Amazon S3 under the specified bucket "
                 + bucketName + " and key name " + keyName);
 
+        MultipartUploader multipartUploader = this.multipartUploader;
+        if (multipartUploader != null && (metadata.getContentLength() <= 0 
+                || metadata.getContentLength() > multipartUploader.getPartSize())) {
+            try {
+                return multipartUploader.upload(bucketName, keyName, inputStream, metadata);
+            } catch (IOException ioe) {
+                LOG.warn("Could not read the content of " + keyName + ": " + ioe.getMessage());
+            } catch (AmazonServiceException ase) {
+                LOG.warn(ase.getMessage(), ase);
+            } catch (AmazonClientException ace) {
+                LOG.warn(ace.getMessage(), ace);
+            }
+            return null;
+        }
+        
         try {
         	PutObjectResult putObjectResult = amazonS3Client.putObject(bucketName, keyName, inputStream, metadata);
         	if (putObjectResult != null) {
         		LOG.info("Upload the specified input stream " + inputStream + " state: " + putObjectResult);
-        		return true;
+        		return putObjectResult.getETag();
         	}
         } catch (AmazonServiceException ase) {
             LOG.warn(ase.getMessage(), ase);
         } catch (AmazonClientException ace) {
             LOG.warn(ace.getMessage(), ace);
         }
-        return false;
+        return null;
     }
 
     @Override
@@ -237,6 +362,32 @@ public class AmazonS3ManagerImpl implements AmazonS3Manager {
 		return false;
 	}
 
+    @Override
+    public boolean deleteEntities(String bucketName, List<String> keyNames) {
+        LOG.info("Deletes " + keyNames.size() + " objects in a bucket " + bucketName + " from Amazon S3");
+        
+        try {
+            // Amazon S3 deletes up to 1000 objects per request
+            for (int i = 0; i < keyNames.size(); i += MAX_DELETE_KEYS) {
+                List<KeyVersion> keyVersions = new ArrayList<KeyVersion>();
+                for (String keyName : keyNames.subList(i, Math.min(i + MAX_DELETE_KEYS, keyNames.size()))) {
+                    keyVersions.add(new KeyVersion(keyName));
+                }
+                
+                DeleteObjectsRequest deleteObjectsRequest = new DeleteObjectsRequest(bucketName)
+                    .withKeys(keyVersions);
+                DeleteObjectsResult deleteObjectsResult = amazonS3Client.deleteObjects(deleteObjectsRequest);
+                LOG.info("Successfully deleted " + deleteObjectsResult.getDeletedObjects().size() + " items");
+            }
+            return true;
+        } catch (AmazonServiceException ase) {
+            LOG.warn(ase.getMessage(), ase);
+        } catch (AmazonClientException ace) {
+            LOG.warn(ace.getMessage(), ace);
+        }
+        return false;
+    }
+
     @Override
     public boolean publicEntity(String bucketName, String keyName) {
         LOG.info("Sets the CannedAccessControlList for the specified object "
@@ -255,7 +406,7 @@ public class AmazonS3ManagerImpl implements AmazonS3Manager {
     }
     
     @Override
-    public boolean copyEntity(String sourceBucketName, String sourceKeyName, String destinationBucketName,
+    public String copyEntity(String sourceBucketName, String sourceKeyName, String destinationBucketName,
             String destinationKeyName) {
         
         // If target bucket name is null or empty, that mean copy inside current
@@ -270,20 +421,26 @@ public class AmazonS3ManagerImpl implements AmazonS3Manager {
                 + " with specified key " + destinationKeyName + " in Amazon S3");
         
         try {
+            MultipartCopier multipartCopier = this.multipartCopier;
+            if (multipartCopier != null) {
+                return multipartCopier.copy(sourceBucketName, sourceKeyName, destinationBucketName, 
+                        destinationKeyName);
+            }
+            
             CopyObjectRequest copyObjectRequest = new CopyObjectRequest(sourceBucketName, sourceKeyName, 
                     destinationBucketName, destinationKeyName);
             CopyObjectResult copyObjectResult = amazonS3Client.copyObject(copyObjectRequest);
             if (copyObjectResult != null) {
                 LOG.info("A CopyObjectResult object containing the information returned by Amazon S3 about the newly created object: "
                         + copyObjectResult);
-                return true;
+                return copyObjectResult.getETag();
             }
         } catch (AmazonServiceException ase) {
             LOG.warn(ase.getMessage(), ase);
         } catch (AmazonClientException ace) {
             LOG.warn(ace.getMessage(), ace);
         }
-        return false;
+        return null;
     }
 
     @Override
@@ -333,6 +490,11 @@ public class AmazonS3ManagerImpl implements AmazonS3Manager {
         LOG.info("Gets the object stored in Amazon S3 under the specified bucket "
                 + bucketName + " and key " + keyName);
         try {
+            ParallelDownloader parallelDownloader = this.parallelDownloader;
+            if (parallelDownloader != null) {
+                return parallelDownloader.download(bucketName, keyName);
+            }
+            
         	S3Object s3Object = amazonS3Client.getObject(bucketName, keyName);
         	if (s3Object != null) {
         	    return s3Object.getObjectContent();
@@ -345,6 +507,24 @@ public class AmazonS3ManagerImpl implements AmazonS3Manager {
         return null;
     }
     
+    @Override
+    public InputStream downloadEntity(String bucketName, String keyName, long start, long end) {
+        LOG.info("Gets the bytes " + start + "-" + end + " of the object stored in Amazon S3 under the "
+                + "specified bucket " + bucketName + " and key " + keyName);
+        try {
+            S3Object s3Object = amazonS3Client.getObject(new GetObjectRequest(bucketName, keyName)
+                    .withRange(start, end));
+            if (s3Object != null) {
+                return s3Object.getObjectContent();
+            }
+        } catch (AmazonServiceException ase) {
+            LOG.warn(ase.getMessage(), ase);
+        } catch (AmazonClientException ace) {
+            LOG.warn(ace.getMessage(), ace);
+        }
+        return null;
+    }
+    
     @Override
 	public S3Object findEntityByUniqueKey(String bucketName, String keyName) {
     	if (StringUtils.isEmpty(keyName)) {
@@ -421,12 +601,14 @@ public class AmazonS3ManagerImpl implements AmazonS3Manager {
 					+ "which means your request made it "
 					+ "to Amazon S3, but was rejected with an error response "
 					+ "for some reason.", ase);
+			throw ase;
 		} catch (AmazonClientException ace) {
 			LOG.error("Caught an AmazonClientException, "
 					+ "which means the client encountered "
 					+ "an internal error while trying to communicate"
 					+ " with S3, "
 					+ "such as not being able to access the network.", ace);
+			throw ace;
 		}
         
 		return objectSummaries;
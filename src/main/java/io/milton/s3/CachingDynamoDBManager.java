@@ -0,0 +1,458 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3;
+
+import io.milton.s3.cache.Generations;
+import io.milton.s3.cache.LruCache;
+import io.milton.s3.changelog.Change;
+import io.milton.s3.changelog.ChangeListener;
+import io.milton.s3.db.TableSchema;
+import io.milton.s3.model.Entity;
+import io.milton.s3.model.Folder;
+import io.milton.s3.util.DaemonThreadFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+
+/**
+ * Keeps the entities read from or written to Amazon DynamoDB in memory, keyed
+ * by their unique UUID, so the entities resolved again within the same or the
+ * next requests are not read again. Writes through this manager update or
+ * invalidate the cached entities. Changes made by other nodes invalidate the
+ * cached entities once they arrive through the change log this manager is
+ * subscribed to; otherwise the time to live bounds how long they go
+ * unnoticed.
+ * 
+ * Entities still read shortly before they expire can be reloaded in the
+ * background, and expired entities can be served for a bounded time while
+ * Amazon DynamoDB fails, e.g. when the reads are throttled.
+ * 
+ * The cache keeps its own copies of the entities and hands out copies, so the
+ * callers can change the entities they get without changing the cache. An
+ * entity read while it was invalidated is not cached.
+ */
+public class CachingDynamoDBManager implements DynamoDBManager, ChangeListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CachingDynamoDBManager.class);
+    
+    /**
+     * Maximum number of entities waiting to be reloaded, further reloads are
+     * dropped
+     */
+    private static final int REFRESH_QUEUE_SIZE = 100;
+    
+    /**
+     * Number of counters the invalidations of the entities are counted by
+     */
+    private static final int GENERATIONS_SIZE = 1024;
+    
+    private final DynamoDBManager dynamoDBManager;
+    
+    /**
+     * Entities keyed by table name and unique UUID
+     */
+    private final LruCache<String, Entity> entityCache;
+    
+    /**
+     * Root folder of every table
+     */
+    private final ConcurrentMap<String, Folder> rootFolders = new ConcurrentHashMap<String, Folder>();
+    
+    /**
+     * Invalidations of the cached entities, keyed like the entities
+     */
+    private final Generations generations = new Generations(GENERATIONS_SIZE);
+    
+    /**
+     * Reloads the entities about to expire, null if they are not reloaded
+     */
+    private volatile ThreadPoolExecutor refreshExecutor;
+    
+    /**
+     * @param dynamoDBManager
+     *            - the manager reading and writing the entities
+     * @param maxEntities
+     *            - the maximum number of entities kept in memory
+     * @param ttlMillis
+     *            - the time in milliseconds an entity is kept in memory
+     */
+    public CachingDynamoDBManager(DynamoDBManager dynamoDBManager, int maxEntities, long ttlMillis) {
+        this(dynamoDBManager, maxEntities, ttlMillis, 0, 0);
+    }
+    
+    /**
+     * @param dynamoDBManager
+     *            - the manager reading and writing the entities
+     * @param maxEntities
+     *            - the maximum number of entities kept in memory
+     * @param ttlMillis
+     *            - the time in milliseconds an entity is kept in memory
+     * @param refreshAheadMillis
+     *            - the time in milliseconds before expiring from which an
+     *            entity read is reloaded in the background, see
+     *            {@link #setRefreshThreads(int)}
+     * @param maxStaleMillis
+     *            - the time in milliseconds after expiring an entity is still
+     *            served when it cannot be read again, 0 to fail instead
+     */
+    public CachingDynamoDBManager(DynamoDBManager dynamoDBManager, int maxEntities, long ttlMillis, 
+            long refreshAheadMillis, long maxStaleMillis) {
+        this.dynamoDBManager = dynamoDBManager;
+        this.entityCache = new LruCache<String, Entity>(maxEntities, ttlMillis, refreshAheadMillis, 
+                maxStaleMillis);
+    }
+    
+    /**
+     * Reload the entities about to expire in the background
+     * 
+     * @param maxThreads
+     *            - the maximum number of entities reloaded at the same time, 0
+     *            to let the entities expire
+     */
+    public void setRefreshThreads(int maxThreads) {
+        ThreadPoolExecutor oldExecutor = refreshExecutor;
+        if (maxThreads > 0) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS, 
+                    new LinkedBlockingQueue<Runnable>(REFRESH_QUEUE_SIZE), 
+                    new DaemonThreadFactory("entity-refresh"));
+            executor.allowCoreThreadTimeOut(true);
+            refreshExecutor = executor;
+        } else {
+            refreshExecutor = null;
+        }
+        if (oldExecutor != null) {
+            oldExecutor.shutdown();
+        }
+    }
+    
+    /**
+     * @return the entity cache, e.g. to read its hit, miss and eviction counts
+     */
+    public LruCache<String, Entity> getEntityCache() {
+        return entityCache;
+    }
+    
+    @Override
+    public void onChange(Change change) {
+        if (change.getType() == Change.Type.DELETE_TABLE) {
+            invalidateAll(change.getTableName());
+        } else {
+            invalidate(change.getTableName(), change.getUniqueId());
+        }
+    }
+    
+    @Override
+    public boolean createTable(String tableName) {
+        return dynamoDBManager.createTable(tableName);
+    }
+    
+    @Override
+    public boolean createTable(String tableName, TableSchema tableSchema) {
+        return dynamoDBManager.createTable(tableName, tableSchema);
+    }
+    
+    @Override
+    public boolean deleteTable(String tableName) {
+        invalidateAll(tableName);
+        return dynamoDBManager.deleteTable(tableName);
+    }
+    
+    @Override
+    public boolean isExistEntity(String tableName, String entityName, Folder parent) {
+        return dynamoDBManager.isExistEntity(tableName, entityName, parent);
+    }
+    
+    @Override
+    public Entity findEntityByName(String tableName, String entityName, Folder parent) {
+        // The key is not known before reading, any invalidation meanwhile
+        // keeps the entity out of the cache
+        long generation = generations.get();
+        Entity entity = dynamoDBManager.findEntityByName(tableName, entityName, parent);
+        if (entity != null && generation == generations.get()) {
+            entityCache.put(getCacheKey(tableName, entity.getId().toString()), entity.copy());
+        }
+        return entity;
+    }
+    
+    @Override
+    public boolean putEntity(String tableName, Entity entity) {
+        String cacheKey = getCacheKey(tableName, entity.getId().toString());
+        long generation = generations.get(cacheKey);
+        boolean isPut = dynamoDBManager.putEntity(tableName, entity);
+        if (isPut && generation == generations.get(cacheKey)) {
+            entityCache.put(cacheKey, entity.copy());
+        } else {
+            invalidate(tableName, entity.getId().toString());
+        }
+        return isPut;
+    }
+    
+    @Override
+    public Folder findRootFolder(String tableName) {
+        Folder rootFolder = rootFolders.get(tableName);
+        if (rootFolder != null) {
+            return rootFolder.copy();
+        }
+        
+        long generation = generations.get();
+        rootFolder = dynamoDBManager.findRootFolder(tableName);
+        if (rootFolder != null && generation == generations.get()) {
+            rootFolders.put(tableName, rootFolder.copy());
+        }
+        return rootFolder;
+    }
+    
+    @Override
+    public Entity findEntityByUniqueId(String tableName, Entity entity) {
+        if (entity == null) {
+            return null;
+        }
+        
+        return findEntity(tableName, entity.getId().toString(), entity.getParent(), entity);
+    }
+    
+    @Override
+    public Entity findEntityByUniqueId(String tableName, String uniqueId, Folder parent) {
+        return findEntity(tableName, uniqueId, parent, null);
+    }
+    
+    @Override
+    public List<Entity> findEntityByUniqueIds(String tableName, List<String> uniqueIds, Folder parent) {
+        List<Entity> entities = new ArrayList<Entity>(uniqueIds.size());
+        List<String> missingIds = new ArrayList<String>();
+        long generation = generations.get();
+        for (String uniqueId : uniqueIds) {
+            Entity cachedEntity = getCachedEntity(getCacheKey(tableName, uniqueId), parent);
+            if (cachedEntity != null) {
+                entities.add(cachedEntity);
+            } else {
+                missingIds.add(uniqueId);
+            }
+        }
+        
+        if (!missingIds.isEmpty()) {
+            List<Entity> foundEntities = dynamoDBManager.findEntityByUniqueIds(tableName, missingIds, parent);
+            cacheEntities(tableName, foundEntities, generation);
+            entities.addAll(foundEntities);
+        }
+        return entities;
+    }
+    
+    @Override
+    public List<Entity> findEntityByParent(String tableName, Folder parent) {
+        long generation = generations.get();
+        List<Entity> entities = dynamoDBManager.findEntityByParent(tableName, parent);
+        cacheEntities(tableName, entities, generation);
+        return entities;
+    }
+    
+    @Override
+    public List<Entity> findEntityByParentAndType(String tableName, Folder parent, boolean isDirectory) {
+        long generation = generations.get();
+        List<Entity> entities = dynamoDBManager.findEntityByParentAndType(tableName, parent, isDirectory);
+        cacheEntities(tableName, entities, generation);
+        return entities;
+    }
+    
+    @Override
+    public boolean scanEntities(String tableName, EntityConsumer consumer) {
+        // The scanned entities only carry the UUID of their parent, they are
+        // not cached
+        return dynamoDBManager.scanEntities(tableName, consumer);
+    }
+    
+    @Override
+    public boolean updateEntityByUniqueId(String tableName, Entity entity, Folder newParent, 
+            String newEntityName, boolean isRenamingAction) {
+        try {
+            return dynamoDBManager.updateEntityByUniqueId(tableName, entity, newParent, newEntityName, 
+                    isRenamingAction);
+        } finally {
+            invalidate(tableName, entity.getId().toString());
+        }
+    }
+    
+    @Override
+    public boolean deleteEntityByUniqueId(String tableName, String uniqueId) {
+        try {
+            return dynamoDBManager.deleteEntityByUniqueId(tableName, uniqueId);
+        } finally {
+            invalidate(tableName, uniqueId);
+        }
+    }
+    
+    /**
+     * Get the entity from the cache, or read and cache it. The last known
+     * entity is served while it cannot be read
+     * 
+     * @param entity
+     *            - the entity to read again, null to read it by unique UUID
+     *            and parent
+     */
+    private Entity findEntity(String tableName, String uniqueId, Folder parent, Entity entity) {
+        String cacheKey = getCacheKey(tableName, uniqueId);
+        Entity cachedEntity = getCachedEntity(cacheKey, parent);
+        if (cachedEntity != null) {
+            if (entityCache.claimRefresh(cacheKey)) {
+                refresh(tableName, uniqueId, parent, entity);
+            }
+            return cachedEntity;
+        }
+        
+        long generation = generations.get(cacheKey);
+        Entity foundEntity;
+        try {
+            foundEntity = load(tableName, uniqueId, parent, entity);
+        } catch (AmazonClientException ace) {
+            Entity staleEntity = entityCache.getStale(cacheKey);
+            if (staleEntity == null || !isSameParent(staleEntity, parent)) {
+                throw ace;
+            }
+            LOG.warn("Serving stale entity " + cacheKey + ": " + ace.getMessage());
+            return withParent(staleEntity.copy(), parent);
+        }
+        if (foundEntity != null && generation == generations.get(cacheKey)) {
+            entityCache.put(cacheKey, foundEntity.copy());
+        }
+        return foundEntity;
+    }
+    
+    private Entity load(String tableName, String uniqueId, Folder parent, Entity entity) {
+        if (entity != null) {
+            return dynamoDBManager.findEntityByUniqueId(tableName, entity);
+        }
+        return dynamoDBManager.findEntityByUniqueId(tableName, uniqueId, parent);
+    }
+    
+    /**
+     * @return a copy of the cached entity bound to the given parent, null if
+     *         it is not cached or it was cached with another parent, i.e. it
+     *         was moved
+     */
+    private Entity getCachedEntity(String cacheKey, Folder parent) {
+        Entity cachedEntity = entityCache.get(cacheKey);
+        if (cachedEntity == null) {
+            return null;
+        }
+        
+        if (!isSameParent(cachedEntity, parent)) {
+            LOG.info("Entity " + cacheKey + " was cached with another parent");
+            entityCache.remove(cacheKey);
+            return null;
+        }
+        return withParent(cachedEntity.copy(), parent);
+    }
+    
+    /**
+     * Bind a served copy to the parent of the caller, as the uncached reads
+     * do. The cached parent may have been renamed since, or be a stub
+     * without a name
+     */
+    private static Entity withParent(Entity entity, Folder parent) {
+        if (parent != null) {
+            entity.setParent(parent);
+        }
+        return entity;
+    }
+    
+    /**
+     * Reload an entity about to expire in the background, the cached entity is
+     * served meanwhile. The reloaded entity is dropped if the entity was
+     * invalidated meanwhile
+     */
+    private void refresh(final String tableName, final String uniqueId, final Folder parent, 
+            final Entity entity) {
+        ThreadPoolExecutor refreshExecutor = this.refreshExecutor;
+        if (refreshExecutor == null) {
+            return;
+        }
+        
+        try {
+            refreshExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        String cacheKey = getCacheKey(tableName, uniqueId);
+                        long generation = generations.get(cacheKey);
+                        Entity foundEntity = load(tableName, uniqueId, parent, entity);
+                        if (foundEntity != null && generation == generations.get(cacheKey)) {
+                            entityCache.replace(cacheKey, foundEntity);
+                        }
+                    } catch (RuntimeException e) {
+                        LOG.warn("Could not refresh entity " + uniqueId + ": " + e.getMessage());
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The entity expires as usual
+        }
+    }
+    
+    /**
+     * @return false if the entity was cached with another parent than the
+     *         given one
+     */
+    private static boolean isSameParent(Entity cachedEntity, Folder parent) {
+        Folder cachedParent = cachedEntity.getParent();
+        return parent == null || cachedParent == null || parent.getId().equals(cachedParent.getId());
+    }
+    
+    /**
+     * Cache the entities read in one go, unless any entity was invalidated
+     * while they were read
+     */
+    private void cacheEntities(String tableName, List<Entity> entities, long generation) {
+        if (entities == null || generation != generations.get()) {
+            return;
+        }
+        for (Entity entity : entities) {
+            entityCache.put(getCacheKey(tableName, entity.getId().toString()), entity.copy());
+        }
+    }
+    
+    private void invalidate(String tableName, String uniqueId) {
+        String cacheKey = getCacheKey(tableName, uniqueId);
+        generations.increment(cacheKey);
+        entityCache.remove(cacheKey);
+        
+        Folder rootFolder = rootFolders.get(tableName);
+        if (rootFolder != null && rootFolder.getId().toString().equals(uniqueId)) {
+            rootFolders.remove(tableName);
+        }
+    }
+    
+    private void invalidateAll(String tableName) {
+        generations.incrementAll();
+        rootFolders.remove(tableName);
+        entityCache.clear();
+    }
+    
+    private static String getCacheKey(String tableName, String uniqueId) {
+        return tableName + '/' + uniqueId;
+    }
+}
@@ -16,6 +16,7 @@
  */
 package io.milton.s3;
 
+import io.milton.s3.db.TableSchema;
 import io.milton.s3.model.Entity;
 import io.milton.s3.model.Folder;
 
@@ -30,6 +31,16 @@ public interface DynamoDBManager {
      *              - the storage database name
      */
 	boolean createTable(String tableName);
+	
+	/**
+	 * Create storage database in Amazon DynamoDB with the given key layout
+	 * 
+	 * @param tableName
+	 *              - the storage database name
+	 * @param tableSchema
+	 *              - the key layout of the table
+	 */
+	boolean createTable(String tableName, TableSchema tableSchema);
     
     /**
      * Delete storage database in Amazon DynamoDB for the given table name
@@ -41,6 +52,8 @@ public interface DynamoDBManager {
     
     boolean isExistEntity(String tableName, String entityName, Folder parent);
     
+    Entity findEntityByName(String tableName, String entityName, Folder parent);
+    
     boolean putEntity(String tableName, Entity entity);
     
     Folder findRootFolder(String tableName);
@@ -49,10 +62,36 @@ public interface DynamoDBManager {
     
     Entity findEntityByUniqueId(String tableName, String uniqueId, Folder parent);
     
+    /**
+     * Find the entities for many unique UUIDs of the same parent at once, with
+     * a handful of batched requests instead of one request per entity
+     * 
+     * @param tableName
+     *              - the storage database name
+     * @param uniqueIds
+     *              - the unique UUIDs of the entities
+     * @param parent
+     *              - the parent folder of the entities
+     * @return the entities found, in no particular order
+     */
+    List<Entity> findEntityByUniqueIds(String tableName, List<String> uniqueIds, Folder parent);
+    
     List<Entity> findEntityByParent(String tableName, Folder parent);
     
     List<Entity> findEntityByParentAndType(String tableName, Folder parent, boolean isDirectory);
     
+    /**
+     * Walk all the entities of the table with a parallel scan. The parent of
+     * the given entities only carries its UUID.
+     * 
+     * @param tableName
+     *              - the storage database name
+     * @param consumer
+     *              - receives the entities, called from several threads at once
+     * @return TRUE if all the entities were walked, otherwise FALSE
+     */
+    boolean scanEntities(String tableName, EntityConsumer consumer);
+    
     boolean updateEntityByUniqueId(String tableName, Entity entity, Folder newParent, 
             String newEntityName, boolean isRenamingAction);
     
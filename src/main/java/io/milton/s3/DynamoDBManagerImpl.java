@@ -16,21 +16,35 @@
  */
 package io.milton.s3;
 
+import io.milton.s3.changelog.Change;
+import io.milton.s3.changelog.ChangeLog;
 import io.milton.s3.db.DynamoDBService;
 import io.milton.s3.db.DynamoDBServiceImpl;
+import io.milton.s3.db.ItemConsumer;
+import io.milton.s3.db.ItemMigrator;
+import io.milton.s3.db.TableSchema;
 import io.milton.s3.db.mapper.DynamoDBEntityMapper;
+import io.milton.s3.db.mapper.ItemLoader;
 import io.milton.s3.model.Entity;
 import io.milton.s3.model.Folder;
 import io.milton.s3.util.AttributeKey;
 import io.milton.s3.util.DateUtils;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.amazonaws.regions.Region;
 import com.amazonaws.services.dynamodbv2.model.AttributeAction;
@@ -39,16 +53,52 @@ import com.amazonaws.services.dynamodbv2.model.AttributeValueUpdate;
 import com.amazonaws.services.dynamodbv2.model.ComparisonOperator;
 import com.amazonaws.services.dynamodbv2.model.Condition;
 import com.amazonaws.services.dynamodbv2.model.DeleteItemResult;
+import com.amazonaws.services.dynamodbv2.model.ExpectedAttributeValue;
 import com.amazonaws.services.dynamodbv2.model.PutItemResult;
-import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
 
 public class DynamoDBManagerImpl implements DynamoDBManager {
 	
+	private static final Logger LOG = LoggerFactory.getLogger(DynamoDBManagerImpl.class);
+	
+	/**
+	 * Number of times a lookup through the UniqueId index is made before the
+	 * item is taken as missing
+	 */
+	private static final int INDEX_LOOKUP_ATTEMPTS = 3;
+	
+	/**
+	 * Time in milliseconds to wait before the next lookup through the UniqueId
+	 * index, multiplied by the number of the attempt
+	 */
+	private static final long INDEX_RETRY_DELAY = 100;
+	
 	/**
      * Amazon DynamoDB Storage Service
      */
     private final DynamoDBService dynamoDBService;
     
+    /**
+     * Tables whose ParentId index was found ACTIVE. Tables created before the
+     * index existed are scanned until DynamoDB has finished backfilling it
+     */
+    private final Set<String> indexedTables = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    
+    /**
+     * Key layout of every table, detected on first use
+     */
+    private final ConcurrentMap<String, TableSchema> tableSchemas = new ConcurrentHashMap<String, TableSchema>();
+    
+    /**
+     * Rewrites the items of existing tables to the compact encoding, null to
+     * leave them as they are
+     */
+    private ItemMigrator itemMigrator;
+    
+    /**
+     * Receives every change of the items, null if no other node caches them
+     */
+    private ChangeLog changeLog;
+    
     /**
      * Initialize Amazon DynamoDB environment for the given tableName
      * 
@@ -63,58 +113,105 @@ public class DynamoDBManagerImpl implements DynamoDBManager {
 	}
 	
 	/**
-	 * Create table for the given tableName in the Amazon DynamoDB
+	 * Initialize Amazon DynamoDB environment with a configured service, e.g.
+	 * one writing the items in batches
+	 * 
+	 * @param dynamoDBService
+	 *            - Amazon DynamoDB Storage Service
+	 */
+	public DynamoDBManagerImpl(DynamoDBService dynamoDBService) {
+	    this.dynamoDBService = dynamoDBService;
+	}
+	
+	/**
+	 * Migrate the items of the existing tables to the compact encoding in the
+	 * background, when the tables are opened with createTable
+	 * 
+	 * @param itemMigrator
+	 *            - the item migrator, null to leave the items as they are
+	 */
+	public void setItemMigrator(ItemMigrator itemMigrator) {
+	    this.itemMigrator = itemMigrator;
+	}
+	
+	/**
+	 * Publish every put, update and delete to the given change log, so the
+	 * other nodes invalidate their caches
 	 * 
-	 * @param tableName
-	 *             - Table name
+	 * @param changeLog
+	 *            - the change log, null to not publish the changes
 	 */
+	public void setChangeLog(ChangeLog changeLog) {
+	    this.changeLog = changeLog;
+	}
+	
 	@Override
 	public boolean createTable(String tableName) {
+	    return createTable(tableName, TableSchema.UNIQUE_ID);
+	}
+	
+	@Override
+	public boolean createTable(String tableName, TableSchema tableSchema) {
 		boolean isTableExist = dynamoDBService.isTableExist(tableName);
 	    if (!isTableExist) {
             // Create table if it's not exist & describe the table for the given
             // table after created
-            return dynamoDBService.createTable(tableName);
+            return dynamoDBService.createTable(tableName, tableSchema);
         }
+	    
+	    // Migrate the table created by an older version, lookups keep scanning
+	    // the table until the new index is ready
+	    if (getTableSchema(tableName) == TableSchema.UNIQUE_ID
+	            && !dynamoDBService.isIndexExist(tableName, AttributeKey.PARENT_INDEX)) {
+	        dynamoDBService.createParentIndex(tableName);
+	    }
+	    
+	    if (itemMigrator != null) {
+	        itemMigrator.migrate(tableName);
+	    }
 	    return isTableExist;
 	}
 	
 	@Override
     public boolean deleteTable(String tableName) {
-        return dynamoDBService.deleteTable(tableName);
+	    indexedTables.remove(tableName);
+	    tableSchemas.remove(tableName);
+	    boolean isDeleted = dynamoDBService.deleteTable(tableName);
+	    publish(new Change(Change.Type.DELETE_TABLE, tableName, null, null, null, null));
+        return isDeleted;
     }
 	
 	@Override
     public boolean isExistEntity(String tableName, String entityName, Folder parent) {
-        if (StringUtils.isEmpty(entityName)) {
-            return false;
-        }
-        
-        Map<String, Condition> conditions = new HashMap<String, Condition>();
-        String parentId = AttributeKey.NOT_EXIST;
-        if (parent != null) {
-            parentId = parent.getId().toString();
-        }
-        
-        // Search entity by parent unique UUID
-        Condition parentUniqueId = new Condition().withComparisonOperator(ComparisonOperator.EQ)
-                .withAttributeValueList(new AttributeValue().withS(parentId));
-        conditions.put(AttributeKey.PARENT_UUID, parentUniqueId);
-        
-        // Search entity by name
-        Condition entityKeyName = new Condition().withComparisonOperator(ComparisonOperator.EQ)
-                .withAttributeValueList(new AttributeValue().withS(entityName));
-        conditions.put(AttributeKey.ENTITY_NAME, entityKeyName);
-        
-        List<Map<String, AttributeValue>> items = dynamoDBService.getItem(tableName, conditions);
-        List<Entity> children = DynamoDBEntityMapper.convertItemsToEntities(parent, items);
-        if (children == null || children.isEmpty()) {
-            return false;
-        }
-        
-        return true;
+	    if (StringUtils.isEmpty(entityName)) {
+	        return false;
+	    }
+	    
+	    // Only the key attributes are read to check the entity exists
+	    return !findItemByName(tableName, entityName, parent, DynamoDBEntityMapper.KEY_ATTRIBUTES).isEmpty();
     }
 	
+	/**
+	 * The findEntityByName method resolves a child of the given folder by its
+	 * name. With a table keyed by parent and name this is a single GetItem.
+	 * Only the id, name and type of the entity are read, the other attributes
+	 * are loaded when accessed.
+	 * 
+	 * @param entityName
+	 * @param parent
+	 * @return Entity or null if the folder has no child with the given name
+	 */
+	@Override
+	public Entity findEntityByName(String tableName, String entityName, Folder parent) {
+	    if (StringUtils.isEmpty(entityName)) {
+            return null;
+        }
+	    
+	    Map<String, AttributeValue> item = findItemByName(tableName, entityName, parent, 
+	            DynamoDBEntityMapper.SUMMARY_ATTRIBUTES);
+	    return DynamoDBEntityMapper.convertItemToEntity(parent, item, newItemLoader(tableName));
+	}
+	
 	/**
 	 * The putEntity method stores an item in a table
 	 * 
@@ -126,6 +223,8 @@ public class DynamoDBManagerImpl implements DynamoDBManager {
 		Map<String, AttributeValue> newItem = dynamoDBService.newItem(entity);
 		PutItemResult putItemResult = dynamoDBService.putItem(tableName, newItem);
 		if (putItemResult != null) {
+		    publish(new Change(Change.Type.PUT, tableName, entity.getId().toString(), 
+		            getString(newItem, AttributeKey.PARENT_UUID), null, entity.getName()));
 		    return true;
 		}
 		
@@ -145,13 +244,14 @@ public class DynamoDBManagerImpl implements DynamoDBManager {
         Map<String, Condition> conditions = new HashMap<String, Condition>();
         conditions.put(AttributeKey.PARENT_UUID, condition);
 
-        List<Map<String, AttributeValue>> items = dynamoDBService.getItem(tableName, conditions);
-        List<Entity> children = DynamoDBEntityMapper.convertItemsToEntities(null, items);
-        if (children == null || children.isEmpty()) {
+        // The whole item is read, as the dates of the root folder are needed by
+        // nearly every request and a projection would cost another GetItem
+        Iterator<Map<String, AttributeValue>> items = findItemByParentIndex(tableName, conditions, null, null);
+        if (!items.hasNext()) {
             return null;
         }
 
-        return (Folder) children.get(0);
+        return (Folder) DynamoDBEntityMapper.convertItemToEntity(null, items.next());
 	}
 	
 	/**
@@ -167,9 +267,7 @@ public class DynamoDBManagerImpl implements DynamoDBManager {
 		    return null;
 		}
 		
-		HashMap<String, AttributeValue> primaryKey = new HashMap<String, AttributeValue> ();
-		primaryKey.put(AttributeKey.UUID, new AttributeValue().withS(entity.getId().toString()));
-		Map<String, AttributeValue> items = dynamoDBService.getItem(tableName, primaryKey);
+		Map<String, AttributeValue> items = getItemOfEntity(tableName, entity, null);
 		return DynamoDBEntityMapper.convertItemToEntity(entity.getParent(), items);
 	}
 	
@@ -189,12 +287,53 @@ public class DynamoDBManagerImpl implements DynamoDBManager {
 		    return null;
 		}
 		
-		HashMap<String, AttributeValue> primaryKey = new HashMap<String, AttributeValue> ();
-		primaryKey.put(AttributeKey.UUID, new AttributeValue().withS(uniqueId));
-		Map<String, AttributeValue> items = dynamoDBService.getItem(tableName, primaryKey);
+		Map<String, AttributeValue> items = getItemByUniqueId(tableName, uniqueId, null);
+		if (parent == null && !items.isEmpty()) {
+		    // Keep track of the parent, even if the caller does not know it
+		    parent = DynamoDBEntityMapper.convertItemToParent(items);
+		}
 		return DynamoDBEntityMapper.convertItemToEntity(parent, items);
 	}
 	
+	@Override
+	public List<Entity> findEntityByUniqueIds(String tableName, List<String> uniqueIds, Folder parent) {
+	    if (uniqueIds == null || uniqueIds.isEmpty()) {
+	        return Collections.emptyList();
+	    }
+	    
+	    if (getTableSchema(tableName) == TableSchema.PARENT_NAME) {
+	        // Items are not keyed by UUID, but a single query on the parent
+	        // returns all of its files
+	        Set<String> uniqueIdSet = new HashSet<String>(uniqueIds);
+	        List<Entity> entities = new ArrayList<Entity>();
+	        if (parent != null) {
+	            for (Entity entity : findEntityByParentAndType(tableName, parent, false)) {
+	                if (uniqueIdSet.contains(entity.getId().toString())) {
+	                    entities.add(entity);
+	                }
+	            }
+	        } else {
+	            for (String uniqueId : uniqueIds) {
+	                Entity entity = findEntityByUniqueId(tableName, uniqueId, null);
+	                if (entity != null) {
+	                    entities.add(entity);
+	                }
+	            }
+	        }
+	        return entities;
+	    }
+	    
+	    List<Map<String, AttributeValue>> primaryKeys = new ArrayList<Map<String, AttributeValue>>();
+	    for (String uniqueId : uniqueIds) {
+	        Map<String, AttributeValue> primaryKey = new HashMap<String, AttributeValue>();
+	        primaryKey.put(AttributeKey.UUID, new AttributeValue().withS(uniqueId));
+	        primaryKeys.add(primaryKey);
+	    }
+	    
+	    List<Map<String, AttributeValue>> items = dynamoDBService.batchGetItem(tableName, primaryKeys);
+	    return DynamoDBEntityMapper.toList(DynamoDBEntityMapper.convertItemsToEntities(parent, items.iterator()));
+	}
+	
 	/**
 	 * The findEntityByParent method enables you to retrieve multiple items
 	 * from one table.
@@ -213,13 +352,8 @@ public class DynamoDBManagerImpl implements DynamoDBManager {
         Map<String, Condition> conditions = new HashMap<String, Condition>();
         conditions.put(AttributeKey.PARENT_UUID, condition);
         
-        List<Map<String, AttributeValue>> items = dynamoDBService.getItem(tableName, conditions);
-        List<Entity> children = DynamoDBEntityMapper.convertItemsToEntities(parent, items);
-        if (children == null || children.isEmpty()) {
-            return Collections.emptyList();
-        }
-        
-        return children;
+        Iterator<Map<String, AttributeValue>> items = findItemByParentIndex(tableName, conditions, null, null);
+        return DynamoDBEntityMapper.toList(DynamoDBEntityMapper.convertItemsToEntities(parent, items));
 	}
 	
 	/**
@@ -241,19 +375,34 @@ public class DynamoDBManagerImpl implements DynamoDBManager {
 	            .withAttributeValueList(new AttributeValue().withS(parent.getId().toString()));
         conditions.put(AttributeKey.PARENT_UUID, parentUniqueId);
         
-        Condition entityType = new Condition().withComparisonOperator(ComparisonOperator.EQ.toString())
-                .withAttributeValueList(new AttributeValue().withN(Integer.toString(isDirectory ? 1 : 0)));
-        conditions.put(AttributeKey.IS_DIRECTORY, entityType);
-	    
-        List<Map<String, AttributeValue>> items = dynamoDBService.getItem(tableName, conditions);
-        List<Entity> children = DynamoDBEntityMapper.convertItemsToEntities(parent, items);
-        if (children == null || children.isEmpty()) {
-            return Collections.emptyList();
+        // Entity type is not part of the index key and is stored differently by
+        // each item encoding, filter it after reading. A query filter is applied
+        // after the items are read, so it would not save read capacity either
+        Iterator<Map<String, AttributeValue>> items = findItemByParentIndex(tableName, conditions, null, null);
+        List<Entity> entities = new ArrayList<Entity>();
+        while (items.hasNext()) {
+            Map<String, AttributeValue> item = items.next();
+            if (DynamoDBEntityMapper.isDirectory(item) == isDirectory) {
+                entities.add(DynamoDBEntityMapper.convertItemToEntity(parent, item));
+            }
         }
-        
-        return children;
+        return entities;
     }
 	
+	@Override
+	public boolean scanEntities(String tableName, final EntityConsumer consumer) {
+	    final ItemLoader itemLoader = newItemLoader(tableName);
+	    long count = dynamoDBService.scanItem(tableName, null, DynamoDBEntityMapper.SUMMARY_ATTRIBUTES, 
+	            new ItemConsumer() {
+	        @Override
+	        public void consume(Map<String, AttributeValue> item) {
+	            Folder parent = DynamoDBEntityMapper.convertItemToParent(item);
+	            consumer.consume(DynamoDBEntityMapper.convertItemToEntity(parent, item, itemLoader));
+	        }
+	    });
+	    return count >= 0;
+	}
+	
 	/**
 	 * Move or rename entity to other folder
 	 * 
@@ -270,27 +419,7 @@ public class DynamoDBManagerImpl implements DynamoDBManager {
 	@Override
 	public boolean updateEntityByUniqueId(String tableName, Entity entity, Folder newParent, 
 	        String newEntityName, boolean isRenamingAction) {
-		HashMap<String, AttributeValue> primaryKey = new HashMap<String, AttributeValue>();
-        primaryKey.put(AttributeKey.UUID, new AttributeValue().withS(entity.getId().toString()));
-        
-        Map<String, AttributeValueUpdate> updateItems = new HashMap<String, AttributeValueUpdate>();
-        updateItems.put(AttributeKey.ENTITY_NAME, new AttributeValueUpdate()
-        	.withAction(AttributeAction.PUT).withValue(new AttributeValue().withS(newEntityName)));
-        updateItems.put(AttributeKey.MODIFIED_DATE, new AttributeValueUpdate()
-    		.withAction(AttributeAction.PUT).withValue(new AttributeValue().withS(DateUtils.dateToString(new Date()))));
-        
-        if (!isRenamingAction) {
-        	updateItems.put(AttributeKey.PARENT_UUID, new AttributeValueUpdate()
-    			.withAction(AttributeAction.PUT).withValue(new AttributeValue()
-    			.withS(newParent.getId().toString())));
-        }
-        
-        UpdateItemResult updateStatus = dynamoDBService.updateItem(tableName, primaryKey, updateItems);
-        if (updateStatus != null) {
-            return true;
-        }
-        
-		return false;
+	    return moveItem(tableName, entity, newParent, newEntityName, isRenamingAction);
 	}
 	
 	/**
@@ -305,14 +434,367 @@ public class DynamoDBManagerImpl implements DynamoDBManager {
 		    return false;
 		}
 		
+		if (getTableSchema(tableName) == TableSchema.PARENT_NAME) {
+		    return deleteItemByParentName(tableName, uniqueId);
+		}
+		
+		Map<String, AttributeValue> item = null;
+		if (changeLog != null) {
+		    // The other nodes need the parent to invalidate its listing
+		    item = getItemByUniqueId(tableName, uniqueId, DynamoDBEntityMapper.KEY_ATTRIBUTES);
+		    if (item.isEmpty()) {
+		        return false;
+		    }
+		}
 		HashMap<String, AttributeValue> primaryKey = new HashMap<String, AttributeValue> ();
 		primaryKey.put(AttributeKey.UUID, new AttributeValue().withS(uniqueId));
 		DeleteItemResult deleteItemResult = dynamoDBService.deleteItem(tableName, primaryKey);
 		if (deleteItemResult != null) {
+		    if (item != null) {
+		        publishDelete(tableName, uniqueId, item);
+		    }
 		    return true;
 		}
 		
 		return false;
 	}
+	
+	/**
+	 * Delete an item of a table keyed by parent and name. The key found
+	 * through the UniqueId index may be out of date, so the item is only
+	 * deleted if it still has the UUID, and looked up again otherwise
+	 */
+	private boolean deleteItemByParentName(String tableName, String uniqueId) {
+	    for (int attempt = 1; ; attempt++) {
+	        Map<String, AttributeValue> item = getItemByUniqueId(tableName, uniqueId, 
+	                DynamoDBEntityMapper.KEY_ATTRIBUTES);
+	        if (item.isEmpty()) {
+	            return false;
+	        }
+	        if (dynamoDBService.deleteItem(tableName, newParentNameKey(item), 
+	                expectUniqueId(uniqueId)) != null) {
+	            publishDelete(tableName, uniqueId, item);
+	            return true;
+	        }
+	        if (attempt >= INDEX_LOOKUP_ATTEMPTS || !pause(attempt)) {
+	            return false;
+	        }
+	    }
+	}
+	
+	private void publishDelete(String tableName, String uniqueId, Map<String, AttributeValue> item) {
+	    publish(new Change(Change.Type.DELETE, tableName, uniqueId, 
+	            getString(item, AttributeKey.PARENT_UUID), null, getString(item, AttributeKey.ENTITY_NAME)));
+	}
+	
+	/**
+	 * Query the ParentId index for the given key conditions, or the table
+	 * itself if it is keyed by parent and name. Falls back to a scan if the
+	 * index is not ready yet, e.g. while a table created by an older version is
+	 * being migrated
+	 * 
+	 * @param keyConditions
+	 *             - conditions on ParentId and optionally EntityName
+	 * @param queryFilter
+	 *             - conditions on non-key attributes, can be null
+	 * @return a lazy iterator over the matched items
+	 */
+	private Iterator<Map<String, AttributeValue>> findItemByParentIndex(String tableName,
+	        Map<String, Condition> keyConditions, Map<String, Condition> queryFilter, 
+	        List<String> attributesToGet) {
+	    if (getTableSchema(tableName) == TableSchema.PARENT_NAME) {
+	        // The table itself is keyed by parent and name
+	        return dynamoDBService.queryItem(tableName, null, keyConditions, queryFilter, attributesToGet);
+	    }
+	    
+	    if (!indexedTables.contains(tableName)) {
+	        if (!dynamoDBService.isIndexActive(tableName, AttributeKey.PARENT_INDEX)) {
+	            Map<String, Condition> conditions = new HashMap<String, Condition>(keyConditions);
+	            if (queryFilter != null) {
+	                conditions.putAll(queryFilter);
+	            }
+	            return dynamoDBService.scanItem(tableName, conditions, attributesToGet);
+	        }
+	        indexedTables.add(tableName);
+	    }
+	    
+	    return dynamoDBService.queryItem(tableName, AttributeKey.PARENT_INDEX, keyConditions, queryFilter,
+	            attributesToGet);
+	}
+	
+	/**
+	 * Retrieves an item by its unique UUID, through the UniqueId index if the
+	 * table is keyed by parent and name. The index is only eventually
+	 * consistent: an item created just before may not be found yet, and an item
+	 * renamed or moved just before may still be found under its old parent and
+	 * name. Lookups which find nothing are retried a few times, and the items
+	 * are only deleted or replaced under the found key if it still holds the
+	 * UUID. Prefer {@link #getItemOfEntity(String, Entity, List)} when the
+	 * parent and name are known.
+	 * 
+	 * @param attributesToGet
+	 *             - the attributes to read, null to read the whole item
+	 * @return the item or an empty map if it does not exist
+	 */
+	private Map<String, AttributeValue> getItemByUniqueId(String tableName, String uniqueId, 
+	        List<String> attributesToGet) {
+	    if (getTableSchema(tableName) != TableSchema.PARENT_NAME) {
+	        HashMap<String, AttributeValue> primaryKey = new HashMap<String, AttributeValue>();
+	        primaryKey.put(AttributeKey.UUID, new AttributeValue().withS(uniqueId));
+	        return dynamoDBService.getItem(tableName, primaryKey, attributesToGet);
+	    }
+	    
+	    Map<String, Condition> keyConditions = new HashMap<String, Condition>();
+	    keyConditions.put(AttributeKey.UUID, new Condition().withComparisonOperator(ComparisonOperator.EQ)
+	            .withAttributeValueList(new AttributeValue().withS(uniqueId)));
+	    for (int attempt = 1; ; attempt++) {
+	        Iterator<Map<String, AttributeValue>> items = dynamoDBService.queryItem(tableName, 
+	                AttributeKey.UUID_INDEX, keyConditions, null, attributesToGet);
+	        if (items.hasNext()) {
+	            return items.next();
+	        }
+	        if (attempt >= INDEX_LOOKUP_ATTEMPTS || !pause(attempt)) {
+	            return Collections.emptyMap();
+	        }
+	    }
+	}
+	
+	/**
+	 * Retrieves the item of the given entity. If the table is keyed by parent
+	 * and name, the item is read with a strongly consistent read under the
+	 * parent and name of the entity, and only looked up through the UniqueId
+	 * index if it was renamed or moved meanwhile
+	 * 
+	 * @param attributesToGet
+	 *             - the attributes to read, null to read the whole item
+	 * @return the item or an empty map if it does not exist
+	 */
+	private Map<String, AttributeValue> getItemOfEntity(String tableName, Entity entity, 
+	        List<String> attributesToGet) {
+	    String uniqueId = entity.getId().toString();
+	    if (getTableSchema(tableName) == TableSchema.PARENT_NAME && entity.getName() != null) {
+	        HashMap<String, AttributeValue> primaryKey = new HashMap<String, AttributeValue>();
+	        primaryKey.put(AttributeKey.PARENT_UUID, new AttributeValue().withS(getParentId(entity.getParent())));
+	        primaryKey.put(AttributeKey.ENTITY_NAME, new AttributeValue().withS(entity.getName()));
+	        Map<String, AttributeValue> item = dynamoDBService.getItem(tableName, primaryKey, attributesToGet, true);
+	        if (uniqueId.equals(getString(item, AttributeKey.UUID))) {
+	            return item;
+	        }
+	    }
+	    return getItemByUniqueId(tableName, uniqueId, attributesToGet);
+	}
+	
+	/**
+	 * Retrieves the child of the given folder with the given name
+	 * 
+	 * @param attributesToGet
+	 *             - the attributes to read, null to read the whole item
+	 * @return the item or an empty map if it does not exist
+	 */
+	private Map<String, AttributeValue> findItemByName(String tableName, String entityName, Folder parent,
+	        List<String> attributesToGet) {
+	    String parentId = getParentId(parent);
+	    
+	    if (getTableSchema(tableName) == TableSchema.PARENT_NAME) {
+	        HashMap<String, AttributeValue> primaryKey = new HashMap<String, AttributeValue>();
+	        primaryKey.put(AttributeKey.PARENT_UUID, new AttributeValue().withS(parentId));
+	        primaryKey.put(AttributeKey.ENTITY_NAME, new AttributeValue().withS(entityName));
+	        return dynamoDBService.getItem(tableName, primaryKey, attributesToGet);
+	    }
+	    
+	    Map<String, Condition> conditions = new HashMap<String, Condition>();
+	    
+	    // Search entity by parent unique UUID
+	    Condition parentUniqueId = new Condition().withComparisonOperator(ComparisonOperator.EQ)
+	            .withAttributeValueList(new AttributeValue().withS(parentId));
+	    conditions.put(AttributeKey.PARENT_UUID, parentUniqueId);
+	    
+	    // Search entity by name
+	    Condition entityKeyName = new Condition().withComparisonOperator(ComparisonOperator.EQ)
+	            .withAttributeValueList(new AttributeValue().withS(entityName));
+	    conditions.put(AttributeKey.ENTITY_NAME, entityKeyName);
+	    
+	    // Only the first page is read if the entity exists
+	    Iterator<Map<String, AttributeValue>> items = findItemByParentIndex(tableName, conditions, null, 
+	            attributesToGet);
+	    if (!items.hasNext()) {
+	        return Collections.emptyMap();
+	    }
+	    return items.next();
+	}
+	
+	/**
+	 * Loads the whole items of the entities read with a projection
+	 */
+	private ItemLoader newItemLoader(final String tableName) {
+	    return new ItemLoader() {
+	        @Override
+	        public Map<String, AttributeValue> loadItem(String uniqueId) {
+	            return getItemByUniqueId(tableName, uniqueId, null);
+	        }
+	    };
+	}
+	
+	/**
+	 * Rename or move an entity. In a table keyed by UUID only the name, parent
+	 * and modified date of the item are updated, if no other rename or move
+	 * came first. In a table keyed by parent and name the primary key changes,
+	 * so the item is written under the new key before the old item is deleted.
+	 * The old item is only deleted if it was not modified meanwhile, otherwise
+	 * the new item is deleted again and the move fails
+	 */
+	private boolean moveItem(String tableName, Entity entity, Folder newParent, 
+	        String newEntityName, boolean isRenamingAction) {
+	    Map<String, AttributeValue> item = getItemOfEntity(tableName, entity, null);
+	    if (item.isEmpty()) {
+	        return false;
+	    }
+	    
+	    Folder parent = isRenamingAction ? DynamoDBEntityMapper.convertItemToParent(item) : newParent;
+	    Date modifiedDate = new Date();
+	    boolean isMoved;
+	    Map<String, AttributeValue> newItem;
+	    if (getTableSchema(tableName) != TableSchema.PARENT_NAME) {
+	        newItem = new HashMap<String, AttributeValue>();
+	        newItem.put(AttributeKey.ENTITY_NAME, new AttributeValue().withS(newEntityName));
+	        newItem.put(AttributeKey.PARENT_UUID, new AttributeValue().withS(getParentId(parent)));
+	        if (DynamoDBEntityMapper.getItemVersion(item) == DynamoDBEntityMapper.ITEM_VERSION_1) {
+	            newItem.put(AttributeKey.MODIFIED_DATE, new AttributeValue()
+	                    .withS(DateUtils.dateToString(modifiedDate)));
+	        } else {
+	            newItem.put(AttributeKey.MODIFIED, new AttributeValue()
+	                    .withN(Long.toString(modifiedDate.getTime())));
+	        }
+	        
+	        Map<String, AttributeValueUpdate> updateItems = new HashMap<String, AttributeValueUpdate>();
+	        for (Map.Entry<String, AttributeValue> attribute : newItem.entrySet()) {
+	            updateItems.put(attribute.getKey(), new AttributeValueUpdate()
+	                    .withAction(AttributeAction.PUT).withValue(attribute.getValue()));
+	        }
+	        
+	        // Another rename or move came first
+	        Map<String, ExpectedAttributeValue> expected = new HashMap<String, ExpectedAttributeValue>();
+	        expected.put(AttributeKey.ENTITY_NAME, new ExpectedAttributeValue(item.get(AttributeKey.ENTITY_NAME)));
+	        expected.put(AttributeKey.PARENT_UUID, new ExpectedAttributeValue(item.get(AttributeKey.PARENT_UUID)));
+	        HashMap<String, AttributeValue> primaryKey = new HashMap<String, AttributeValue>();
+	        primaryKey.put(AttributeKey.UUID, item.get(AttributeKey.UUID));
+	        isMoved = dynamoDBService.updateItem(tableName, primaryKey, updateItems, expected) != null;
+	    } else {
+	        Entity movedEntity = DynamoDBEntityMapper.convertItemToEntity(parent, item);
+	        movedEntity.setName(newEntityName);
+	        movedEntity.setModifiedDate(modifiedDate);
+	        newItem = dynamoDBService.newItem(movedEntity);
+	        isMoved = moveItemByParentName(tableName, item, newItem);
+	    }
+	    
+	    if (isMoved) {
+	        publish(new Change(Change.Type.UPDATE, tableName, entity.getId().toString(), 
+	                getString(newItem, AttributeKey.PARENT_UUID), getString(item, AttributeKey.PARENT_UUID), 
+	                newEntityName));
+	    }
+	    return isMoved;
+	}
+	
+	/**
+	 * Replace the item in a table keyed by parent and name, where the new item
+	 * may have another primary key
+	 */
+	private boolean moveItemByParentName(String tableName, Map<String, AttributeValue> item, 
+	        Map<String, AttributeValue> newItem) {
+	    String uniqueId = getString(item, AttributeKey.UUID);
+	    HashMap<String, AttributeValue> oldPrimaryKey = newParentNameKey(item);
+	    HashMap<String, AttributeValue> newPrimaryKey = newParentNameKey(newItem);
+	    if (oldPrimaryKey.equals(newPrimaryKey)) {
+	        // Same primary key, the item is replaced if it was not modified
+	        return dynamoDBService.putItem(tableName, newItem, expectUnchanged(item)) != null;
+	    }
+	    
+	    // Do not replace another entity under the new key
+	    Map<String, ExpectedAttributeValue> isNewKeyFree = new HashMap<String, ExpectedAttributeValue>();
+	    isNewKeyFree.put(AttributeKey.UUID, new ExpectedAttributeValue(false));
+	    if (dynamoDBService.putItem(tableName, newItem, isNewKeyFree) == null) {
+	        return false;
+	    }
+	    if (dynamoDBService.deleteItem(tableName, oldPrimaryKey, expectUnchanged(item)) != null) {
+	        return true;
+	    }
+	    
+	    // The old item was modified, deleted or could not be deleted, so the
+	    // entity must not stay under both keys
+	    if (dynamoDBService.deleteItem(tableName, newPrimaryKey, expectUniqueId(uniqueId)) == null) {
+	        LOG.error("Could not roll back the move of " + uniqueId + " in " + tableName + ", it is stored under " 
+	                + oldPrimaryKey + " and " + newPrimaryKey);
+	    }
+	    return false;
+	}
+	
+	private void publish(Change change) {
+	    ChangeLog changeLog = this.changeLog;
+	    if (changeLog != null) {
+	        changeLog.publish(change);
+	    }
+	}
+	
+	/**
+	 * Wait before the next lookup through the UniqueId index
+	 * 
+	 * @return false if interrupted
+	 */
+	private static boolean pause(int attempt) {
+	    try {
+	        Thread.sleep(INDEX_RETRY_DELAY * attempt);
+	        return true;
+	    } catch (InterruptedException ie) {
+	        Thread.currentThread().interrupt();
+	        return false;
+	    }
+	}
+	
+	/**
+	 * @return the expected values of an item which has neither moved nor been
+	 *         modified since it was read
+	 */
+	private static Map<String, ExpectedAttributeValue> expectUnchanged(Map<String, AttributeValue> item) {
+	    Map<String, ExpectedAttributeValue> expected = expectUniqueId(getString(item, AttributeKey.UUID));
+	    String modifiedKey = DynamoDBEntityMapper.getItemVersion(item) == DynamoDBEntityMapper.ITEM_VERSION_1 
+	            ? AttributeKey.MODIFIED_DATE : AttributeKey.MODIFIED;
+	    expected.put(modifiedKey, new ExpectedAttributeValue(item.get(modifiedKey)));
+	    return expected;
+	}
+	
+	private static Map<String, ExpectedAttributeValue> expectUniqueId(String uniqueId) {
+	    Map<String, ExpectedAttributeValue> expected = new HashMap<String, ExpectedAttributeValue>();
+	    expected.put(AttributeKey.UUID, new ExpectedAttributeValue(new AttributeValue().withS(uniqueId)));
+	    return expected;
+	}
+	
+	private static String getParentId(Folder parent) {
+	    return parent != null ? parent.getId().toString() : AttributeKey.NOT_EXIST;
+	}
+	
+	private static String getString(Map<String, AttributeValue> item, String attributeName) {
+	    AttributeValue value = item.get(attributeName);
+	    return value != null ? value.getS() : null;
+	}
+	
+	private HashMap<String, AttributeValue> newParentNameKey(Map<String, AttributeValue> item) {
+	    HashMap<String, AttributeValue> primaryKey = new HashMap<String, AttributeValue>();
+	    primaryKey.put(AttributeKey.PARENT_UUID, item.get(AttributeKey.PARENT_UUID));
+	    primaryKey.put(AttributeKey.ENTITY_NAME, item.get(AttributeKey.ENTITY_NAME));
+	    return primaryKey;
+	}
+	
+	private TableSchema getTableSchema(String tableName) {
+	    TableSchema tableSchema = tableSchemas.get(tableName);
+	    if (tableSchema == null) {
+	        tableSchema = dynamoDBService.getTableSchema(tableName);
+	        if (tableSchema == null) {
+	            // The table does not exist (yet), do not remember
+	            return TableSchema.UNIQUE_ID;
+	        }
+	        tableSchemas.put(tableName, tableSchema);
+	    }
+	    return tableSchema;
+	}
 
 }
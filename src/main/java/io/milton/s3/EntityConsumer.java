@@ -0,0 +1,28 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3;
+
+import io.milton.s3.model.Entity;
+
+/**
+ * Receives the entities read by a whole-table walk. Entities are delivered from
+ * several worker threads at once, so implementations must be thread safe.
+ */
+public interface EntityConsumer {
+
+    void consume(Entity entity);
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3;
+
+import io.milton.s3.util.DaemonThreadFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyObjectResult;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+
+/**
+ * Copies large objects inside Amazon S3 as a multipart upload whose parts are
+ * copied from byte ranges of the source, several parts at a time. A single
+ * copy request is limited to objects of 5 GB and copies at the speed of one
+ * connection. Only a window of parts of each copy is submitted at a time, so
+ * one large copy does not queue up its thousands of parts ahead of the
+ * others.
+ * 
+ * Every part must match the ETag of the source when the copy started, and the
+ * multipart upload is aborted if a part cannot be copied.
+ */
+public class MultipartCopier {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MultipartCopier.class);
+    
+    /**
+     * Maximum number of parts of an object, as limited by Amazon S3
+     */
+    private static final int MAX_PARTS = 10000;
+    
+    /**
+     * Number of times a part is copied before the copy is aborted
+     */
+    private static final int MAX_PART_ATTEMPTS = 3;
+    
+    private final AmazonS3 amazonS3Client;
+    
+    private final long partSize;
+    
+    private final int maxParallelParts;
+    
+    private final long minMultipartSize;
+    
+    private final ExecutorService partExecutor;
+    
+    /**
+     * @param amazonS3Client
+     *            - the client copying the parts
+     * @param partSize
+     *            - the size in bytes of every part but the last, at least
+     *            {@link MultipartUploader#MIN_PART_SIZE} for real buckets.
+     *            Larger parts are used for objects of more than 10000 parts
+     * @param maxParallelParts
+     *            - the maximum number of parts of a copy copied at the same
+     *            time, which is also the number of threads copying parts
+     * @param minMultipartSize
+     *            - the size in bytes of the smallest object copied in parts,
+     *            at most 5 GB
+     */
+    public MultipartCopier(AmazonS3 amazonS3Client, long partSize, int maxParallelParts, long minMultipartSize) {
+        this.amazonS3Client = amazonS3Client;
+        this.partSize = partSize;
+        this.maxParallelParts = maxParallelParts;
+        this.minMultipartSize = minMultipartSize;
+        this.partExecutor = Executors.newFixedThreadPool(maxParallelParts, 
+                new DaemonThreadFactory("multipart-copy"));
+    }
+    
+    /**
+     * Copy the source object to the destination key
+     * 
+     * @return the ETag of the new object, null if the source object changed
+     *         before it was copied with a single request
+     * @throws AmazonClientException
+     *             if the object could not be copied
+     */
+    public String copy(String sourceBucketName, String sourceKeyName, String destinationBucketName, 
+            String destinationKeyName) {
+        ObjectMetadata sourceMetadata = amazonS3Client.getObjectMetadata(sourceBucketName, sourceKeyName);
+        long size = sourceMetadata.getContentLength();
+        if (size < minMultipartSize) {
+            CopyObjectResult copyObjectResult = amazonS3Client.copyObject(new CopyObjectRequest(sourceBucketName, 
+                    sourceKeyName, destinationBucketName, destinationKeyName)
+                    .withMatchingETagConstraint(sourceMetadata.getETag()));
+            return copyObjectResult != null ? copyObjectResult.getETag() : null;
+        }
+        
+        long objectPartSize = Math.max(partSize, (size + MAX_PARTS - 1) / MAX_PARTS);
+        int partCount = (int) ((size + objectPartSize - 1) / objectPartSize);
+        String uploadId = amazonS3Client.initiateMultipartUpload(new InitiateMultipartUploadRequest(
+                destinationBucketName, destinationKeyName, newMetadata(sourceMetadata))).getUploadId();
+        LOG.info("Copying " + sourceKeyName + " of " + size + " bytes in " + partCount + " parts");
+        
+        List<PartETag> partETags = new ArrayList<PartETag>(partCount);
+        LinkedList<Future<PartETag>> parts = new LinkedList<Future<PartETag>>();
+        AtomicBoolean isAborted = new AtomicBoolean();
+        boolean isCompleted = false;
+        try {
+            for (int partNumber = 1; partNumber <= partCount; partNumber++) {
+                if (parts.size() == maxParallelParts) {
+                    partETags.add(getPart(parts.removeFirst()));
+                }
+                long firstByte = (partNumber - 1) * objectPartSize;
+                long lastByte = Math.min(firstByte + objectPartSize, size) - 1;
+                CopyPartRequest copyPartRequest = new CopyPartRequest()
+                        .withSourceBucketName(sourceBucketName)
+                        .withSourceKey(sourceKeyName)
+                        .withDestinationBucketName(destinationBucketName)
+                        .withDestinationKey(destinationKeyName)
+                        .withUploadId(uploadId)
+                        .withPartNumber(partNumber)
+                        .withFirstByte(firstByte)
+                        .withLastByte(lastByte)
+                        .withMatchingETagConstraint(sourceMetadata.getETag());
+                parts.add(submitPart(copyPartRequest, isAborted));
+            }
+            while (!parts.isEmpty()) {
+                partETags.add(getPart(parts.removeFirst()));
+            }
+            
+            String eTag = amazonS3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(
+                    destinationBucketName, destinationKeyName, uploadId, partETags)).getETag();
+            isCompleted = true;
+            LOG.info("Copied " + partCount + " parts of " + sourceKeyName + " to " + destinationKeyName);
+            return eTag;
+        } finally {
+            if (!isCompleted) {
+                isAborted.set(true);
+                abort(destinationBucketName, destinationKeyName, uploadId, parts);
+            }
+        }
+    }
+    
+    /**
+     * Stop the threads copying the parts, the copies in progress fail
+     */
+    public void shutdown() {
+        partExecutor.shutdownNow();
+    }
+    
+    private Future<PartETag> submitPart(final CopyPartRequest copyPartRequest, final AtomicBoolean isAborted) {
+        return partExecutor.submit(new Callable<PartETag>() {
+            @Override
+            public PartETag call() {
+                for (int attempt = 1; ; attempt++) {
+                    if (isAborted.get()) {
+                        throw new AmazonClientException("Copy of " + copyPartRequest.getSourceKey() 
+                                + " was aborted");
+                    }
+                    try {
+                        CopyPartResult copyPartResult = amazonS3Client.copyPart(copyPartRequest);
+                        if (copyPartResult == null) {
+                            throw new AmazonClientException("Object " + copyPartRequest.getSourceKey() 
+                                    + " changed during the copy");
+                        }
+                        return copyPartResult.getPartETag();
+                    } catch (AmazonClientException ace) {
+                        if (attempt >= MAX_PART_ATTEMPTS || isAborted.get()) {
+                            throw ace;
+                        }
+                        LOG.warn("Retrying part " + copyPartRequest.getPartNumber() + " of " 
+                                + copyPartRequest.getSourceKey() + ": " + ace.getMessage());
+                    }
+                }
+            }
+        });
+    }
+    
+    /**
+     * Abort the copy once the parts being copied are done, so Amazon S3 drops
+     * all the parts copied
+     */
+    private void abort(String bucketName, String keyName, String uploadId, List<Future<PartETag>> parts) {
+        for (Future<PartETag> part : parts) {
+            try {
+                part.get();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException ee) {
+                // Failed or skipped part
+            }
+        }
+        try {
+            amazonS3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, keyName, uploadId));
+            LOG.warn("Aborted multipart copy to " + keyName + " in " + bucketName);
+        } catch (AmazonClientException ace) {
+            LOG.error("Could not abort multipart copy " + uploadId + " to " + keyName, ace);
+        }
+    }
+    
+    private PartETag getPart(Future<PartETag> part) {
+        try {
+            return part.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new AmazonClientException("Interrupted while copying parts", ie);
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof AmazonClientException) {
+                throw (AmazonClientException) ee.getCause();
+            }
+            throw new AmazonClientException("Could not copy part", ee.getCause());
+        }
+    }
+    
+    /**
+     * The metadata a copy request keeps, the other headers describe the
+     * source object
+     */
+    private static ObjectMetadata newMetadata(ObjectMetadata sourceMetadata) {
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        if (sourceMetadata.getContentType() != null) {
+            objectMetadata.setContentType(sourceMetadata.getContentType());
+        }
+        if (sourceMetadata.getContentEncoding() != null) {
+            objectMetadata.setContentEncoding(sourceMetadata.getContentEncoding());
+        }
+        if (sourceMetadata.getCacheControl() != null) {
+            objectMetadata.setCacheControl(sourceMetadata.getCacheControl());
+        }
+        if (sourceMetadata.getContentDisposition() != null) {
+            objectMetadata.setContentDisposition(sourceMetadata.getContentDisposition());
+        }
+        objectMetadata.setUserMetadata(sourceMetadata.getUserMetadata());
+        return objectMetadata;
+    }
+}
@@ -0,0 +1,435 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3;
+
+import io.milton.s3.util.BufferPool;
+import io.milton.s3.util.DaemonThreadFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+/**
+ * Uploads input streams to Amazon S3 in parts, several parts at a time. The
+ * stream is read part by part into buffers of a pool shared by all uploads,
+ * which bounds the memory held by the parts being uploaded. Every upload
+ * holds a bounded number of buffers, and reuses the buffers of its own sent
+ * parts once it holds as many, so a slow client does not starve the other
+ * uploads. A failed part is sent again from its buffer, and the multipart
+ * upload is aborted if a part cannot be uploaded, so no incomplete parts are
+ * left billed in the bucket.
+ * 
+ * Streams which fit in a single part are uploaded with a single PUT, as are
+ * the streams of known length while all the buffers are in use.
+ */
+public class MultipartUploader {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MultipartUploader.class);
+    
+    /**
+     * Minimum size of every part but the last, as required by Amazon S3
+     */
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+    
+    /**
+     * Maximum number of parts of an object, as limited by Amazon S3
+     */
+    private static final int MAX_PARTS = 10000;
+    
+    /**
+     * Number of times a part is sent before the upload is aborted
+     */
+    private static final int MAX_PART_ATTEMPTS = 3;
+    
+    /**
+     * Maximum size of an object uploaded with a single PUT, as limited by
+     * Amazon S3
+     */
+    private static final long MAX_SINGLE_PUT_SIZE = 5L * 1024L * 1024L * 1024L;
+    
+    private final AmazonS3 amazonS3Client;
+    
+    private final BufferPool bufferPool;
+    
+    /**
+     * Maximum number of buffers held by a single upload
+     */
+    private final int maxUploadBuffers;
+    
+    private final ExecutorService partExecutor;
+    
+    /**
+     * @param amazonS3Client
+     *            - the client uploading the parts
+     * @param partSize
+     *            - the size in bytes of every part but the last, at least
+     *            {@link #MIN_PART_SIZE} for real buckets
+     * @param maxParallelParts
+     *            - the maximum number of parts uploaded at the same time
+     */
+    public MultipartUploader(AmazonS3 amazonS3Client, int partSize, int maxParallelParts) {
+        this.amazonS3Client = amazonS3Client;
+        
+        // One more buffer per thread, so the next parts are read while the
+        // previous ones are sent; a single upload may send as many parts
+        // as there are threads while it reads the next one
+        this.bufferPool = new BufferPool(partSize, maxParallelParts * 2);
+        this.maxUploadBuffers = maxParallelParts + 1;
+        this.partExecutor = Executors.newFixedThreadPool(maxParallelParts, 
+                new DaemonThreadFactory("multipart-upload"));
+    }
+    
+    /**
+     * Upload the stream under the given key. While all the buffers are in
+     * use, a stream of known length up to 5 GB is sent with a single PUT
+     * straight from the stream, and only the other streams wait for a buffer
+     * 
+     * @param metadata
+     *            - the metadata of the object, its content length is only
+     *            used when no buffer is free
+     * @return the ETag of the uploaded object
+     * @throws IOException
+     *             if the stream could not be read
+     * @throws AmazonClientException
+     *             if the object could not be uploaded
+     */
+    public String upload(String bucketName, String keyName, InputStream inputStream, ObjectMetadata metadata) 
+            throws IOException {
+        byte[] firstPart = bufferPool.tryAcquire();
+        if (firstPart == null) {
+            long contentLength = metadata != null ? metadata.getContentLength() : 0;
+            if (contentLength > 0 && contentLength <= MAX_SINGLE_PUT_SIZE) {
+                LOG.info("No part buffer is free, uploading " + keyName + " with a single PUT");
+                return putObject(bucketName, keyName, inputStream, contentLength, metadata);
+            }
+            firstPart = acquireBuffer();
+        }
+        
+        int firstLength;
+        try {
+            firstLength = readFully(inputStream, firstPart);
+        } catch (IOException e) {
+            bufferPool.release(firstPart);
+            throw e;
+        }
+        
+        if (firstLength < firstPart.length) {
+            try {
+                return putObject(bucketName, keyName, new ByteArrayInputStream(firstPart, 0, firstLength), 
+                        firstLength, metadata);
+            } finally {
+                bufferPool.release(firstPart);
+            }
+        }
+        
+        String uploadId;
+        try {
+            uploadId = amazonS3Client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucketName, 
+                    keyName, withoutContentLength(metadata))).getUploadId();
+        } catch (AmazonClientException ace) {
+            bufferPool.release(firstPart);
+            throw ace;
+        }
+        
+        UploadBuffers buffers = new UploadBuffers();
+        List<Future<PartETag>> parts = new ArrayList<Future<PartETag>>();
+        AtomicBoolean isAborted = new AtomicBoolean();
+        boolean isCompleted = false;
+        try {
+            byte[] part = firstPart;
+            int length = firstLength;
+            int sentParts = 0;
+            while (true) {
+                if (parts.size() == MAX_PARTS) {
+                    buffers.release(part);
+                    throw new AmazonClientException("Object " + keyName + " has more than " + MAX_PARTS 
+                            + " parts of " + bufferPool.getBufferSize() + " bytes");
+                }
+                boolean isLastPart = length < part.length;
+                parts.add(submitPart(bucketName, keyName, uploadId, parts.size() + 1, part, length, 
+                        isLastPart, isAborted, buffers));
+                if (isLastPart) {
+                    break;
+                }
+                
+                // Stop reading the stream as soon as a part failed
+                while (sentParts < parts.size() && parts.get(sentParts).isDone()) {
+                    getPart(parts.get(sentParts++));
+                }
+                
+                part = buffers.acquire();
+                try {
+                    length = readFully(inputStream, part);
+                } catch (IOException e) {
+                    buffers.release(part);
+                    throw e;
+                }
+                if (length == 0) {
+                    // The previous part happened to end the stream
+                    buffers.release(part);
+                    break;
+                }
+            }
+            
+            List<PartETag> partETags = new ArrayList<PartETag>(parts.size());
+            for (Future<PartETag> partETag : parts) {
+                partETags.add(getPart(partETag));
+            }
+            CompleteMultipartUploadResult result = amazonS3Client.completeMultipartUpload(
+                    new CompleteMultipartUploadRequest(bucketName, keyName, uploadId, partETags));
+            isCompleted = true;
+            LOG.info("Uploaded " + partETags.size() + " parts of " + keyName + " to " + bucketName);
+            return result.getETag();
+        } finally {
+            if (!isCompleted) {
+                isAborted.set(true);
+                abort(bucketName, keyName, uploadId, parts);
+            }
+            buffers.close();
+        }
+    }
+    
+    /**
+     * Stop the threads uploading the parts, the uploads in progress fail
+     */
+    public void shutdown() {
+        partExecutor.shutdownNow();
+    }
+    
+    public int getPartSize() {
+        return bufferPool.getBufferSize();
+    }
+    
+    /**
+     * @return the number of part buffers not held by any upload
+     */
+    int getAvailableBuffers() {
+        return bufferPool.getAvailableBuffers();
+    }
+    
+    private Future<PartETag> submitPart(final String bucketName, final String keyName, final String uploadId, 
+            final int partNumber, final byte[] part, final int length, final boolean isLastPart, 
+            final AtomicBoolean isAborted, final UploadBuffers buffers) {
+        return partExecutor.submit(new Callable<PartETag>() {
+            @Override
+            public PartETag call() {
+                try {
+                    for (int attempt = 1; ; attempt++) {
+                        if (isAborted.get()) {
+                            // The queued parts still run, to give back their buffers
+                            throw new AmazonClientException("Upload of " + keyName + " was aborted");
+                        }
+                        UploadPartRequest uploadPartRequest = new UploadPartRequest()
+                                .withBucketName(bucketName)
+                                .withKey(keyName)
+                                .withUploadId(uploadId)
+                                .withPartNumber(partNumber)
+                                .withInputStream(new ByteArrayInputStream(part, 0, length))
+                                .withPartSize(length)
+                                .withLastPart(isLastPart);
+                        try {
+                            return amazonS3Client.uploadPart(uploadPartRequest).getPartETag();
+                        } catch (AmazonClientException ace) {
+                            if (attempt >= MAX_PART_ATTEMPTS) {
+                                throw ace;
+                            }
+                            LOG.warn("Retrying part " + partNumber + " of " + keyName + ": " + ace.getMessage());
+                        }
+                    }
+                } finally {
+                    buffers.release(part);
+                }
+            }
+        });
+    }
+    
+    private String putObject(String bucketName, String keyName, InputStream content, long length, 
+            ObjectMetadata metadata) {
+        ObjectMetadata objectMetadata = withoutContentLength(metadata);
+        objectMetadata.setContentLength(length);
+        PutObjectResult putObjectResult = amazonS3Client.putObject(bucketName, keyName, content, 
+                objectMetadata);
+        return putObjectResult != null ? putObjectResult.getETag() : null;
+    }
+    
+    /**
+     * Abort the upload once the parts being sent are done, so Amazon S3 drops
+     * all the parts sent
+     */
+    private void abort(String bucketName, String keyName, String uploadId, List<Future<PartETag>> parts) {
+        for (Future<PartETag> part : parts) {
+            try {
+                part.get();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException ee) {
+                // Failed or skipped part
+            }
+        }
+        try {
+            amazonS3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, keyName, uploadId));
+            LOG.warn("Aborted multipart upload of " + keyName + " to " + bucketName);
+        } catch (AmazonClientException ace) {
+            LOG.error("Could not abort multipart upload " + uploadId + " of " + keyName, ace);
+        }
+    }
+    
+    private PartETag getPart(Future<PartETag> part) {
+        try {
+            return part.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new AmazonClientException("Interrupted while uploading parts", ie);
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof AmazonClientException) {
+                throw (AmazonClientException) ee.getCause();
+            }
+            throw new AmazonClientException("Could not upload part", ee.getCause());
+        }
+    }
+    
+    private byte[] acquireBuffer() {
+        try {
+            return bufferPool.acquire();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new AmazonClientException("Interrupted while waiting for a part buffer", ie);
+        }
+    }
+    
+    /**
+     * The buffers held by a single upload. The buffers of the sent parts are
+     * kept for the next parts, and given back to the pool once the upload is
+     * over
+     */
+    private class UploadBuffers {
+        
+        private final BlockingQueue<byte[]> sentBuffers = new LinkedBlockingQueue<byte[]>();
+        
+        /**
+         * Number of buffers taken from the pool, starting with the one of
+         * the first part
+         */
+        private int heldBuffers = 1;
+        
+        private boolean isClosed;
+        
+        /**
+         * Take the buffer of a sent part, or another buffer of the pool if
+         * this upload may hold more, or wait for one of its parts to be sent
+         * otherwise. Never waits for the other uploads
+         */
+        byte[] acquire() {
+            byte[] buffer = sentBuffers.poll();
+            if (buffer == null && heldBuffers < maxUploadBuffers) {
+                buffer = bufferPool.tryAcquire();
+                if (buffer != null) {
+                    heldBuffers++;
+                }
+            }
+            if (buffer == null) {
+                try {
+                    buffer = sentBuffers.take();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new AmazonClientException("Interrupted while waiting for a part buffer", ie);
+                }
+            }
+            return buffer;
+        }
+        
+        synchronized void release(byte[] buffer) {
+            if (isClosed) {
+                // A part which outlived the upload, e.g. after an interrupt
+                bufferPool.release(buffer);
+            } else {
+                sentBuffers.offer(buffer);
+            }
+        }
+        
+        /**
+         * Give back the buffers to the pool
+         */
+        synchronized void close() {
+            isClosed = true;
+            byte[] buffer;
+            while ((buffer = sentBuffers.poll()) != null) {
+                bufferPool.release(buffer);
+            }
+        }
+    }
+    
+    /**
+     * Copy of the metadata without its content length, which is the length of
+     * each request rather than of the object
+     */
+    private static ObjectMetadata withoutContentLength(ObjectMetadata metadata) {
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        if (metadata != null) {
+            for (Map.Entry<String, Object> header : metadata.getRawMetadata().entrySet()) {
+                if (!"Content-Length".equalsIgnoreCase(header.getKey())) {
+                    objectMetadata.setHeader(header.getKey(), header.getValue());
+                }
+            }
+            objectMetadata.setUserMetadata(metadata.getUserMetadata());
+        }
+        return objectMetadata;
+    }
+    
+    /**
+     * Read until the buffer is full or the stream ends
+     * 
+     * @return the number of bytes read
+     */
+    private static int readFully(InputStream inputStream, byte[] buffer) throws IOException {
+        int length = 0;
+        while (length < buffer.length) {
+            int read = inputStream.read(buffer, length, buffer.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,471 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3;
+
+import io.milton.s3.util.BufferPool;
+import io.milton.s3.util.DaemonThreadFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+
+/**
+ * Downloads large objects from Amazon S3 as several byte ranges at a time,
+ * as a single stream is far slower than the network. The parts are read into
+ * buffers of a pool shared by all downloads and handed to the reader in
+ * order; only a window of parts is read ahead, so a slow reader holds back
+ * its download rather than filling memory. A download never waits for the
+ * buffers held by the others: once the pool is exhausted, the rest of the
+ * object is read with a single request as the reader consumes it.
+ * 
+ * The first part is requested right away, its response tells the size and
+ * ETag of the object. Objects smaller than the threshold are then read with
+ * one more request for the rest. Every further part must match the ETag, so
+ * an object replaced during the download fails the download rather than
+ * mixing two versions.
+ */
+public class ParallelDownloader {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ParallelDownloader.class);
+    
+    /**
+     * Number of times a part is requested before the download fails
+     */
+    private static final int MAX_PART_ATTEMPTS = 3;
+    
+    private static final int REQUESTED_RANGE_NOT_SATISFIABLE = 416;
+    
+    private final AmazonS3 amazonS3Client;
+    
+    private final BufferPool bufferPool;
+    
+    private final ExecutorService partExecutor;
+    
+    private final int maxParallelParts;
+    
+    private final long minParallelSize;
+    
+    /**
+     * @param amazonS3Client
+     *            - the client downloading the parts
+     * @param partSize
+     *            - the size in bytes of every part but the last
+     * @param maxParallelParts
+     *            - the maximum number of parts of a single download
+     *            downloaded at the same time
+     * @param maxDownloadingParts
+     *            - the maximum number of parts of all the downloads
+     *            downloaded at the same time
+     * @param minParallelSize
+     *            - the size in bytes of the smallest object downloaded in
+     *            parallel parts
+     */
+    public ParallelDownloader(AmazonS3 amazonS3Client, int partSize, int maxParallelParts, 
+            int maxDownloadingParts, long minParallelSize) {
+        this.amazonS3Client = amazonS3Client;
+        
+        // One more buffer per thread, so parts are read while the readers
+        // are busy with the previous ones
+        this.bufferPool = new BufferPool(partSize, maxDownloadingParts * 2);
+        this.partExecutor = Executors.newFixedThreadPool(maxDownloadingParts, 
+                new DaemonThreadFactory("parallel-download"));
+        this.maxParallelParts = maxParallelParts;
+        this.minParallelSize = minParallelSize;
+    }
+    
+    /**
+     * Download the object stored under the given key
+     * 
+     * @return the content of the object, null if it does not exist
+     * @throws AmazonClientException
+     *             if the first part could not be downloaded
+     */
+    public InputStream download(final String bucketName, final String keyName) {
+        final int partSize = bufferPool.getBufferSize();
+        S3Object firstPart;
+        try {
+            firstPart = amazonS3Client.getObject(new GetObjectRequest(bucketName, keyName)
+                    .withRange(0, partSize - 1));
+        } catch (AmazonServiceException ase) {
+            if (ase.getStatusCode() != REQUESTED_RANGE_NOT_SATISFIABLE) {
+                throw ase;
+            }
+            // Empty objects have no range
+            firstPart = amazonS3Client.getObject(bucketName, keyName);
+        }
+        if (firstPart == null) {
+            return null;
+        }
+        
+        final long size = firstPart.getObjectMetadata().getInstanceLength();
+        final String eTag = firstPart.getObjectMetadata().getETag();
+        InputStream firstContent = firstPart.getObjectContent();
+        if (size <= partSize) {
+            return firstContent;
+        }
+        if (size < minParallelSize) {
+            // The rest is requested once the first part is read
+            return new SequenceInputStream(firstContent, new LazyRangeInputStream(bucketName, keyName, eTag, 
+                    partSize, size - 1));
+        }
+        
+        LOG.info("Downloading " + keyName + " of " + size + " bytes in parts of " + partSize + " bytes");
+        return new ParallelDownloadStream(bucketName, keyName, eTag, size, firstContent);
+    }
+    
+    /**
+     * Stop the threads downloading the parts, the downloads in progress fail
+     */
+    public void shutdown() {
+        partExecutor.shutdownNow();
+    }
+    
+    public int getPartSize() {
+        return bufferPool.getBufferSize();
+    }
+    
+    /**
+     * @return the content of the range, if the object still has the given
+     *         ETag
+     */
+    private InputStream openRange(String bucketName, String keyName, String eTag, long start, long end) 
+            throws IOException {
+        GetObjectRequest getObjectRequest = new GetObjectRequest(bucketName, keyName).withRange(start, end);
+        if (eTag != null) {
+            getObjectRequest.withMatchingETagConstraint(eTag);
+        }
+        S3Object s3Object = amazonS3Client.getObject(getObjectRequest);
+        if (s3Object == null) {
+            throw new ObjectChangedException("Object " + keyName + " changed during the download");
+        }
+        return s3Object.getObjectContent();
+    }
+    
+    /**
+     * The object no longer has the ETag of the first part, retrying is useless
+     */
+    private static class ObjectChangedException extends IOException {
+        
+        private static final long serialVersionUID = 1L;
+        
+        ObjectChangedException(String message) {
+            super(message);
+        }
+    }
+    
+    /**
+     * Opens a range of the object when it is read first
+     */
+    private class LazyRangeInputStream extends SequenceInputStream {
+        
+        LazyRangeInputStream(final String bucketName, final String keyName, final String eTag, 
+                final long start, final long end) {
+            super(new Enumeration<InputStream>() {
+                private boolean isOpened;
+                
+                @Override
+                public boolean hasMoreElements() {
+                    return !isOpened;
+                }
+                
+                @Override
+                public InputStream nextElement() {
+                    if (isOpened) {
+                        throw new NoSuchElementException();
+                    }
+                    isOpened = true;
+                    try {
+                        return openRange(bucketName, keyName, eTag, start, end);
+                    } catch (IOException e) {
+                        throw new AmazonClientException(e.getMessage(), e);
+                    }
+                }
+            });
+        }
+    }
+    
+    /**
+     * A downloaded part, the buffer goes back to the pool once it is read
+     */
+    private static class Part {
+        
+        final byte[] buffer;
+        
+        final int length;
+        
+        Part(byte[] buffer, int length) {
+            this.buffer = buffer;
+            this.length = length;
+        }
+    }
+    
+    /**
+     * Reads the first part from its response, then the further parts in
+     * order as they are downloaded. Guarded by itself
+     */
+    private class ParallelDownloadStream extends InputStream {
+        
+        private final String bucketName;
+        
+        private final String keyName;
+        
+        private final String eTag;
+        
+        private final long size;
+        
+        private final int partCount;
+        
+        /**
+         * Content read straight from a response: the first part, then the
+         * rest of the object if no buffer was free for the next part
+         */
+        private InputStream streamedContent;
+        
+        /**
+         * Downloaded parts not read yet, by part number
+         */
+        private final Map<Integer, Part> readyParts = new HashMap<Integer, Part>();
+        
+        /**
+         * Number of the next part to download, the first part is number 0
+         */
+        private int nextDownload = 1;
+        
+        /**
+         * Number of the part being read
+         */
+        private int currentPart;
+        
+        private Part current;
+        
+        private int position;
+        
+        private IOException failure;
+        
+        private boolean isClosed;
+        
+        ParallelDownloadStream(String bucketName, String keyName, String eTag, long size, 
+                InputStream firstContent) {
+            this.bucketName = bucketName;
+            this.keyName = keyName;
+            this.eTag = eTag;
+            this.size = size;
+            this.partCount = (int) ((size + bufferPool.getBufferSize() - 1) / bufferPool.getBufferSize());
+            this.streamedContent = firstContent;
+            synchronized (this) {
+                downloadAhead();
+            }
+        }
+        
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int read = read(b, 0, 1);
+            return read > 0 ? b[0] & 0xff : -1;
+        }
+        
+        @Override
+        public synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+            if (isClosed) {
+                throw new IOException("Stream closed");
+            }
+            if (length == 0) {
+                return 0;
+            }
+            
+            while (true) {
+                if (streamedContent != null) {
+                    int read = streamedContent.read(buffer, offset, length);
+                    if (read >= 0) {
+                        return read;
+                    }
+                    streamedContent.close();
+                    streamedContent = null;
+                } else if (current != null && position < current.length) {
+                    int read = Math.min(length, current.length - position);
+                    System.arraycopy(current.buffer, position, buffer, offset, read);
+                    position += read;
+                    return read;
+                }
+                
+                if (current != null) {
+                    bufferPool.release(current.buffer);
+                    current = null;
+                }
+                if (++currentPart >= partCount) {
+                    return -1;
+                }
+                
+                downloadAhead();
+                if (nextDownload <= currentPart) {
+                    // No part is ahead of the reader and the pool is empty
+                    streamRest();
+                    continue;
+                }
+                current = awaitPart(currentPart);
+                position = 0;
+                downloadAhead();
+            }
+        }
+        
+        @Override
+        public synchronized void close() throws IOException {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            
+            // The parts still downloading give back their buffers when done
+            for (Part part : readyParts.values()) {
+                bufferPool.release(part.buffer);
+            }
+            readyParts.clear();
+            if (current != null) {
+                bufferPool.release(current.buffer);
+                current = null;
+            }
+            if (streamedContent != null) {
+                streamedContent.close();
+            }
+        }
+        
+        /**
+         * Read the rest of the object with a single request, from the part
+         * being read
+         */
+        private void streamRest() throws IOException {
+            long start = (long) currentPart * bufferPool.getBufferSize();
+            LOG.info("No part buffer is free, downloading the rest of " + keyName + " from " + start 
+                    + " with a single request");
+            try {
+                streamedContent = openRange(bucketName, keyName, eTag, start, size - 1);
+            } catch (AmazonClientException ace) {
+                throw new IOException("Could not download the rest of " + keyName, ace);
+            }
+            nextDownload = partCount;
+            currentPart = partCount - 1;
+        }
+        
+        private Part awaitPart(int partNumber) throws IOException {
+            while (!readyParts.containsKey(partNumber)) {
+                if (failure != null) {
+                    throw failure;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while downloading " + keyName);
+                }
+            }
+            return readyParts.remove(partNumber);
+        }
+        
+        /**
+         * Start downloading the next parts, up to the window of parts ahead of
+         * the reader, as long as the pool has free buffers
+         */
+        private void downloadAhead() {
+            while (nextDownload < partCount && nextDownload - currentPart <= maxParallelParts) {
+                byte[] buffer = bufferPool.tryAcquire();
+                if (buffer == null) {
+                    return;
+                }
+                
+                final int partNumber = nextDownload++;
+                final byte[] partBuffer = buffer;
+                partExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        download(partNumber, partBuffer);
+                    }
+                });
+            }
+        }
+        
+        private void download(int partNumber, byte[] buffer) {
+            long start = (long) partNumber * buffer.length;
+            int length = (int) Math.min(buffer.length, size - start);
+            IOException partFailure = null;
+            for (int attempt = 1; attempt <= MAX_PART_ATTEMPTS; attempt++) {
+                synchronized (this) {
+                    if (isClosed) {
+                        break;
+                    }
+                }
+                try {
+                    readPart(start, buffer, length);
+                    partFailure = null;
+                    break;
+                } catch (ObjectChangedException oce) {
+                    partFailure = oce;
+                    break;
+                } catch (IOException e) {
+                    partFailure = e;
+                } catch (AmazonClientException ace) {
+                    partFailure = new IOException("Could not download part " + partNumber + " of " + keyName, ace);
+                }
+                LOG.warn("Retrying part " + partNumber + " of " + keyName + ": " + partFailure.getMessage());
+            }
+            
+            synchronized (this) {
+                if (isClosed || partFailure != null) {
+                    bufferPool.release(buffer);
+                    if (partFailure != null && failure == null) {
+                        failure = partFailure;
+                    }
+                } else {
+                    readyParts.put(partNumber, new Part(buffer, length));
+                }
+                notifyAll();
+            }
+        }
+        
+        private void readPart(long start, byte[] buffer, int length) throws IOException {
+            InputStream inputStream = openRange(bucketName, keyName, eTag, start, start + length - 1);
+            try {
+                int read = 0;
+                while (read < length) {
+                    int n = inputStream.read(buffer, read, length - read);
+                    if (n < 0) {
+                        throw new IOException("Part of " + keyName + " ended after " + read + " of " 
+                                + length + " bytes");
+                    }
+                    read += n;
+                }
+            } finally {
+                inputStream.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.cache;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how often keys are accessed, e.g. to know which folders to load
+ * into the caches after a restart. The counts can be saved to and loaded
+ * from a snapshot file, one "count TAB key" line per key. Safe for concurrent
+ * use.
+ */
+public class AccessCounter {
+
+    private static final String CHARSET = "UTF-8";
+    
+    private final int maxKeys;
+    
+    private final ConcurrentMap<String, AtomicLong> counts = new ConcurrentHashMap<String, AtomicLong>();
+    
+    /**
+     * @param maxKeys
+     *            - the maximum number of keys counted, accesses to further
+     *            keys are ignored until {@link #decay()} drops keys
+     */
+    public AccessCounter(int maxKeys) {
+        this.maxKeys = maxKeys;
+    }
+    
+    public void record(String key) {
+        add(key, 1);
+    }
+    
+    public long getCount(String key) {
+        AtomicLong count = counts.get(key);
+        return count != null ? count.get() : 0;
+    }
+    
+    public int size() {
+        return counts.size();
+    }
+    
+    /**
+     * @param n
+     *            - the maximum number of keys
+     * @return the most accessed keys, most accessed first
+     */
+    public List<String> getTopKeys(int n) {
+        List<Map.Entry<String, Long>> entries = getTopEntries(n);
+        List<String> keys = new ArrayList<String>(entries.size());
+        for (Map.Entry<String, Long> entry : entries) {
+            keys.add(entry.getKey());
+        }
+        return keys;
+    }
+    
+    /**
+     * Halve all counts and drop the keys which were not accessed since, so
+     * that the keys no longer accessed make room
+     */
+    public void decay() {
+        Iterator<AtomicLong> iterator = counts.values().iterator();
+        while (iterator.hasNext()) {
+            AtomicLong count = iterator.next();
+            long value;
+            do {
+                value = count.get();
+            } while (!count.compareAndSet(value, value / 2));
+            if (value / 2 == 0) {
+                iterator.remove();
+            }
+        }
+    }
+    
+    /**
+     * Write the counts of the most accessed keys to the file, replacing it
+     * 
+     * @param file
+     *            - the snapshot file
+     * @param n
+     *            - the maximum number of keys written
+     */
+    public void save(File file, int n) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), CHARSET));
+        try {
+            for (Map.Entry<String, Long> entry : getTopEntries(n)) {
+                if (entry.getKey().indexOf('\n') < 0) {
+                    writer.write(entry.getValue() + "\t" + entry.getKey() + "\n");
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        
+        if (!tempFile.renameTo(file)) {
+            // Windows does not rename onto an existing file
+            if (!file.delete() || !tempFile.renameTo(file)) {
+                throw new IOException("Could not replace " + file);
+            }
+        }
+    }
+    
+    /**
+     * Add the counts of the file to the counts
+     * 
+     * @param file
+     *            - the snapshot file
+     */
+    public void load(File file) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(file), CHARSET);
+        try {
+            BufferedReader lines = new BufferedReader(reader);
+            String line;
+            while ((line = lines.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab <= 0) {
+                    continue;
+                }
+                try {
+                    add(line.substring(tab + 1), Long.parseLong(line.substring(0, tab)));
+                } catch (NumberFormatException e) {
+                    // Skip the damaged line
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+    
+    private void add(String key, long delta) {
+        AtomicLong count = counts.get(key);
+        if (count == null) {
+            if (counts.size() >= maxKeys) {
+                return;
+            }
+            AtomicLong newCount = new AtomicLong();
+            count = counts.putIfAbsent(key, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        count.addAndGet(delta);
+    }
+    
+    private List<Map.Entry<String, Long>> getTopEntries(int n) {
+        List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(counts.size());
+        for (Map.Entry<String, AtomicLong> entry : counts.entrySet()) {
+            entries.add(new AbstractMap.SimpleImmutableEntry<String, Long>(entry.getKey(), 
+                    entry.getValue().get()));
+        }
+        Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> entry1, Map.Entry<String, Long> entry2) {
+                return entry2.getValue().compareTo(entry1.getValue());
+            }
+        });
+        return entries.size() > n ? entries.subList(0, n) : entries;
+    }
+}
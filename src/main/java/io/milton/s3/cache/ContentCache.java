@@ -0,0 +1,398 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.cache;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the content of objects in files under a directory, bounded by the
+ * total size of the files. The least recently used content is evicted first.
+ * 
+ * Content is keyed by the object key and a version, e.g. the ETag, and is
+ * only served for the same version. A miss is filled while the object is
+ * streamed to the first client; hits are read through a {@link FileChannel}.
+ * The files are not kept across restarts.
+ */
+public class ContentCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ContentCache.class);
+    
+    private static final String FILE_PREFIX = "content-";
+    
+    private final File directory;
+    
+    private final long maxBytes;
+    
+    /**
+     * Cached content in access order, guarded by itself
+     */
+    private final LinkedHashMap<String, CachedContent> entries = 
+            new LinkedHashMap<String, CachedContent>(16, 0.75f, true);
+    
+    /**
+     * Keys of the content being filled, only one fill per key at a time
+     */
+    private final ConcurrentMap<String, Boolean> fillingKeys = new ConcurrentHashMap<String, Boolean>();
+    
+    private long usedBytes;
+    
+    private final AtomicLong hitCount = new AtomicLong();
+    
+    private final AtomicLong missCount = new AtomicLong();
+    
+    private final AtomicLong evictionCount = new AtomicLong();
+    
+    private static class CachedContent {
+        
+        final String version;
+        
+        final File file;
+        
+        final long length;
+        
+        CachedContent(String version, File file, long length) {
+            this.version = version;
+            this.file = file;
+            this.length = length;
+        }
+    }
+    
+    /**
+     * @param directory
+     *            - the directory the content is kept in, created if it does
+     *            not exist. Content left by a previous run is removed
+     * @param maxBytes
+     *            - the maximum total size of the content in bytes
+     */
+    public ContentCache(File directory, long maxBytes) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Could not create cache directory " + directory);
+        }
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith(FILE_PREFIX)) {
+                    deleteFile(file);
+                }
+            }
+        }
+    }
+    
+    /**
+     * @param key
+     *            - the object key
+     * @param version
+     *            - the version of the object
+     * @return a stream of the cached content, null if the content of this
+     *         version is not cached
+     */
+    public InputStream get(String key, String version) {
+        CachedContent content;
+        synchronized (entries) {
+            content = entries.get(key);
+            if (content != null && !content.version.equals(version)) {
+                // The object changed, the old content is never served again
+                removeEntry(key);
+                content = null;
+            }
+        }
+        if (content == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        
+        try {
+            FileChannel channel = new RandomAccessFile(content.file, "r").getChannel();
+            hitCount.incrementAndGet();
+            return Channels.newInputStream(channel);
+        } catch (FileNotFoundException e) {
+            LOG.warn("Cached content of " + key + " disappeared: " + content.file);
+            invalidate(key);
+            missCount.incrementAndGet();
+            return null;
+        }
+    }
+    
+    /**
+     * Wrap the stream of an object read from Amazon S3, so that the content is
+     * cached while it is read. The content is only cached if the stream is read
+     * to the end and has the given length; the object is served as is if it is
+     * too large or already being filled by another request.
+     * 
+     * @param key
+     *            - the object key
+     * @param version
+     *            - the version of the object
+     * @param length
+     *            - the length of the object in bytes
+     * @param source
+     *            - the stream of the object
+     * @return the stream to serve to the client
+     */
+    public InputStream fill(String key, String version, long length, InputStream source) {
+        if (source == null || length < 0 || length > maxBytes) {
+            return source;
+        }
+        if (fillingKeys.putIfAbsent(key, Boolean.TRUE) != null) {
+            return source;
+        }
+        
+        File file = null;
+        try {
+            file = File.createTempFile(FILE_PREFIX, ".tmp", directory);
+            return new FillingInputStream(source, key, version, length, file, new FileOutputStream(file));
+        } catch (IOException e) {
+            LOG.warn("Could not cache content of " + key + ": " + e.getMessage());
+            fillingKeys.remove(key);
+            if (file != null) {
+                deleteFile(file);
+            }
+            return source;
+        }
+    }
+    
+    /**
+     * Remove the content of the given object
+     */
+    public void invalidate(String key) {
+        synchronized (entries) {
+            removeEntry(key);
+        }
+    }
+    
+    public void clear() {
+        List<File> files = new ArrayList<File>();
+        synchronized (entries) {
+            for (CachedContent content : entries.values()) {
+                files.add(content.file);
+            }
+            entries.clear();
+            usedBytes = 0;
+        }
+        for (File file : files) {
+            deleteFile(file);
+        }
+    }
+    
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+    
+    public long getUsedBytes() {
+        synchronized (entries) {
+            return usedBytes;
+        }
+    }
+    
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+    
+    public long getHitCount() {
+        return hitCount.get();
+    }
+    
+    public long getMissCount() {
+        return missCount.get();
+    }
+    
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+    
+    @Override
+    public String toString() {
+        return "ContentCache [directory=" + directory + ", size=" + size() + ", usedBytes=" + getUsedBytes() 
+                + ", maxBytes=" + maxBytes + ", hits=" + getHitCount() + ", misses=" + getMissCount() 
+                + ", evictions=" + getEvictionCount() + "]";
+    }
+    
+    /**
+     * Add the filled content and evict the least recently used content until
+     * the total size is within bounds
+     */
+    private void addEntry(String key, CachedContent content) {
+        synchronized (entries) {
+            removeEntry(key);
+            entries.put(key, content);
+            usedBytes += content.length;
+            
+            Iterator<Map.Entry<String, CachedContent>> iterator = entries.entrySet().iterator();
+            while (usedBytes > maxBytes && iterator.hasNext()) {
+                CachedContent eldest = iterator.next().getValue();
+                iterator.remove();
+                usedBytes -= eldest.length;
+                evictionCount.incrementAndGet();
+                deleteFile(eldest.file);
+            }
+        }
+    }
+    
+    private void removeEntry(String key) {
+        CachedContent content = entries.remove(key);
+        if (content != null) {
+            usedBytes -= content.length;
+            deleteFile(content.file);
+        }
+    }
+    
+    private static void deleteFile(File file) {
+        // Streams opened by earlier hits keep reading where the file system
+        // allows it, otherwise the file goes when the process exits
+        if (!file.delete() && file.exists()) {
+            file.deleteOnExit();
+        }
+    }
+    
+    /**
+     * Copies the bytes read by the client to the cache file
+     */
+    private class FillingInputStream extends FilterInputStream {
+        
+        private final String key;
+        
+        private final String version;
+        
+        private final long length;
+        
+        private final File file;
+        
+        private OutputStream out;
+        
+        private long count;
+        
+        FillingInputStream(InputStream in, String key, String version, long length, File file, 
+                OutputStream out) {
+            super(in);
+            this.key = key;
+            this.version = version;
+            this.length = length;
+            this.file = file;
+            this.out = out;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b < 0) {
+                finish(true);
+            } else if (out != null) {
+                try {
+                    out.write(b);
+                    count++;
+                } catch (IOException e) {
+                    abandon(e);
+                }
+            }
+            return b;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n < 0) {
+                finish(true);
+            } else if (out != null) {
+                try {
+                    out.write(b, off, n);
+                    count += n;
+                } catch (IOException e) {
+                    abandon(e);
+                }
+            }
+            return n;
+        }
+        
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes are not in the cache file
+            finish(false);
+            return super.skip(n);
+        }
+        
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            try {
+                finish(false);
+            } finally {
+                super.close();
+            }
+        }
+        
+        private void abandon(IOException e) {
+            LOG.warn("Could not cache content of " + key + ": " + e.getMessage());
+            finish(false);
+        }
+        
+        /**
+         * @param isComplete
+         *            - true if the source stream was read to the end
+         */
+        private void finish(boolean isComplete) {
+            if (out == null) {
+                return;
+            }
+            
+            boolean isCached = false;
+            try {
+                out.close();
+                if (isComplete && count == length) {
+                    addEntry(key, new CachedContent(version, file, length));
+                    isCached = true;
+                }
+            } catch (IOException e) {
+                LOG.warn("Could not cache content of " + key + ": " + e.getMessage());
+            } finally {
+                out = null;
+                fillingKeys.remove(key);
+                if (!isCached) {
+                    deleteFile(file);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the invalidations of cached values, so a value read while its key was
+ * invalidated is not cached: the generation of the key is taken before the
+ * value is read, and the value is only cached if the generation did not change
+ * meanwhile. The keys are hashed to a fixed number of counters, so an
+ * invalidation only drops the concurrent reads of the keys sharing its counter.
+ * Safe for concurrent use.
+ */
+public class Generations {
+
+    private final AtomicLongArray counters;
+    
+    /**
+     * Incremented by every invalidation, for the reads whose keys are not
+     * known before reading
+     */
+    private final AtomicLong total = new AtomicLong();
+    
+    /**
+     * @param size
+     *            - the number of counters the keys are hashed to
+     */
+    public Generations(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Size must be at least 1: " + size);
+        }
+        this.counters = new AtomicLongArray(size);
+    }
+    
+    /**
+     * @return the generation of the given key
+     */
+    public long get(Object key) {
+        return counters.get(indexOf(key));
+    }
+    
+    /**
+     * @return the generation of all the keys together, which changes with
+     *         every invalidation
+     */
+    public long get() {
+        return total.get();
+    }
+    
+    /**
+     * Invalidate the given key
+     */
+    public void increment(Object key) {
+        counters.incrementAndGet(indexOf(key));
+        total.incrementAndGet();
+    }
+    
+    /**
+     * Invalidate all the keys
+     */
+    public void incrementAll() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.incrementAndGet(i);
+        }
+        total.incrementAndGet();
+    }
+    
+    private int indexOf(Object key) {
+        int hash = key.hashCode();
+        // Mix the high bits into the low bits the counter is picked by
+        hash ^= (hash >>> 16);
+        return (hash & Integer.MAX_VALUE) % counters.length();
+    }
+}
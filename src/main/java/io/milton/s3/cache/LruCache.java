@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size bounded map which evicts the least recently used entries, and expires
+ * the entries after a time to live. Hits, misses and evictions are counted.
+ * 
+ * Optionally the expired entries are kept for a bounded time, so the last
+ * known value can still be served when it cannot be read again, and the
+ * entries about to expire can be claimed once to be refreshed in the
+ * background.
+ * 
+ * @param <K>
+ *            - the type of the keys
+ * @param <V>
+ *            - the type of the values
+ */
+public class LruCache<K, V> {
+
+    private final int maxSize;
+    
+    private final long ttlNanos;
+    
+    private final long refreshAheadNanos;
+    
+    private final long maxStaleNanos;
+    
+    private final LinkedHashMap<K, CacheEntry<V>> entries;
+    
+    private final AtomicLong hitCount = new AtomicLong();
+    
+    private final AtomicLong missCount = new AtomicLong();
+    
+    private final AtomicLong evictionCount = new AtomicLong();
+    
+    private final AtomicLong staleHitCount = new AtomicLong();
+    
+    /**
+     * Selects the entries removed by {@link LruCache#removeAll(KeyMatcher)}
+     */
+    public interface KeyMatcher<K> {
+        
+        boolean matches(K key);
+    }
+    
+    /**
+     * Selects the entries removed by {@link LruCache#removeAll(EntryMatcher)}
+     */
+    public interface EntryMatcher<K, V> {
+        
+        boolean matches(K key, V value);
+    }
+    
+    private static class CacheEntry<V> {
+        
+        final V value;
+        
+        final long expiresAt;
+        
+        /**
+         * Whether a refresh was claimed, guarded by the entries
+         */
+        boolean isRefreshing;
+        
+        CacheEntry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+    
+    /**
+     * @param maxSize
+     *            - the maximum number of entries
+     * @param ttlMillis
+     *            - the time to live of the entries in milliseconds, 0 for
+     *            entries which never expire
+     */
+    public LruCache(int maxSize, long ttlMillis) {
+        this(maxSize, ttlMillis, 0, 0);
+    }
+    
+    /**
+     * @param maxSize
+     *            - the maximum number of entries
+     * @param ttlMillis
+     *            - the time to live of the entries in milliseconds, 0 for
+     *            entries which never expire
+     * @param refreshAheadMillis
+     *            - the time in milliseconds before expiring from which an
+     *            entry can be claimed to be refreshed, 0 to not refresh
+     * @param maxStaleMillis
+     *            - the time in milliseconds an expired entry is kept to be
+     *            read by {@link #getStale(Object)}, 0 to drop expired entries
+     */
+    public LruCache(final int maxSize, long ttlMillis, long refreshAheadMillis, long maxStaleMillis) {
+        this.maxSize = maxSize;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.refreshAheadNanos = TimeUnit.MILLISECONDS.toNanos(refreshAheadMillis);
+        this.maxStaleNanos = TimeUnit.MILLISECONDS.toNanos(maxStaleMillis);
+        this.entries = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, CacheEntry<V>> eldest) {
+                if (size() > maxSize) {
+                    evictionCount.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+    
+    /**
+     * @return the cached value, null if it is not cached or expired
+     */
+    public V get(K key) {
+        synchronized (entries) {
+            CacheEntry<V> entry = entries.get(key);
+            if (entry != null && isExpired(entry)) {
+                if (!isStale(entry)) {
+                    entries.remove(key);
+                    evictionCount.incrementAndGet();
+                }
+                entry = null;
+            }
+            
+            if (entry == null) {
+                missCount.incrementAndGet();
+                return null;
+            }
+            hitCount.incrementAndGet();
+            return entry.value;
+        }
+    }
+    
+    /**
+     * @return true if an unexpired value is cached for the key. Not counted
+     *         as a hit or miss
+     */
+    public boolean containsKey(K key) {
+        synchronized (entries) {
+            CacheEntry<V> entry = entries.get(key);
+            return entry != null && !isExpired(entry);
+        }
+    }
+    
+    /**
+     * The last known value, e.g. when it cannot be read again. Expired values
+     * are counted as stale hits
+     * 
+     * @return the cached value, even if it expired up to the maximum staleness
+     *         ago, null if there is none
+     */
+    public V getStale(K key) {
+        synchronized (entries) {
+            CacheEntry<V> entry = entries.get(key);
+            if (entry == null || (isExpired(entry) && !isStale(entry))) {
+                return null;
+            }
+            if (isExpired(entry)) {
+                staleHitCount.incrementAndGet();
+            }
+            return entry.value;
+        }
+    }
+    
+    /**
+     * Claim the refresh of an entry about to expire, so it is refreshed once
+     * while it is still served
+     * 
+     * @return true if the entry expires within the refresh ahead time and its
+     *         refresh was not claimed before
+     */
+    public boolean claimRefresh(K key) {
+        if (refreshAheadNanos <= 0) {
+            return false;
+        }
+        synchronized (entries) {
+            CacheEntry<V> entry = entries.get(key);
+            if (entry == null || entry.isRefreshing || isExpired(entry) 
+                    || entry.expiresAt - System.nanoTime() > refreshAheadNanos) {
+                return false;
+            }
+            entry.isRefreshing = true;
+            return true;
+        }
+    }
+    
+    public void put(K key, V value) {
+        synchronized (entries) {
+            entries.put(key, newEntry(value, ttlNanos));
+        }
+    }
+    
+    /**
+     * Put the value with another time to live than the default one, e.g. for
+     * values loaded ahead of the first request
+     * 
+     * @param ttlMillis
+     *            - the time to live of the value in milliseconds, 0 for a
+     *            value which never expires
+     */
+    public void put(K key, V value, long ttlMillis) {
+        synchronized (entries) {
+            entries.put(key, newEntry(value, TimeUnit.MILLISECONDS.toNanos(ttlMillis)));
+        }
+    }
+    
+    /**
+     * Put the value only if the key is still cached, e.g. for a refresh which
+     * must not bring back an entry removed meanwhile
+     * 
+     * @return true if the value is put
+     */
+    public boolean replace(K key, V value) {
+        synchronized (entries) {
+            if (!entries.containsKey(key)) {
+                return false;
+            }
+            entries.put(key, newEntry(value, ttlNanos));
+            return true;
+        }
+    }
+    
+    /**
+     * @return the value which was cached, null if there was none
+     */
+    public V remove(K key) {
+        synchronized (entries) {
+            CacheEntry<V> entry = entries.remove(key);
+            return entry != null ? entry.value : null;
+        }
+    }
+    
+    /**
+     * Remove all the entries whose key matches. This walks all the entries, it
+     * is meant for rare invalidations of many related entries.
+     * 
+     * @return the number of entries removed
+     */
+    public int removeAll(KeyMatcher<K> keyMatcher) {
+        int removed = 0;
+        synchronized (entries) {
+            Iterator<K> keys = entries.keySet().iterator();
+            while (keys.hasNext()) {
+                if (keyMatcher.matches(keys.next())) {
+                    keys.remove();
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+    
+    /**
+     * Remove all the entries whose key and value match. This walks all the
+     * entries, it is meant for rare invalidations of many related entries.
+     * 
+     * @return the number of entries removed
+     */
+    public int removeAll(EntryMatcher<K, V> entryMatcher) {
+        int removed = 0;
+        synchronized (entries) {
+            Iterator<Map.Entry<K, CacheEntry<V>>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<K, CacheEntry<V>> entry = iterator.next();
+                if (entryMatcher.matches(entry.getKey(), entry.getValue().value)) {
+                    iterator.remove();
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+    
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+    
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+    
+    public int getMaxSize() {
+        return maxSize;
+    }
+    
+    public long getHitCount() {
+        return hitCount.get();
+    }
+    
+    public long getMissCount() {
+        return missCount.get();
+    }
+    
+    /**
+     * @return the number of entries evicted because the cache was full or
+     *         because they expired
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+    
+    /**
+     * @return the number of expired values read by
+     *         {@link #getStale(Object)}
+     */
+    public long getStaleHitCount() {
+        return staleHitCount.get();
+    }
+    
+    @Override
+    public String toString() {
+        return "LruCache [size=" + size() + ", maxSize=" + maxSize + ", hits=" + getHitCount() 
+                + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() 
+                + ", staleHits=" + getStaleHitCount() + "]";
+    }
+    
+    private static <V> CacheEntry<V> newEntry(V value, long ttlNanos) {
+        long expiresAt = ttlNanos > 0 ? System.nanoTime() + ttlNanos : Long.MAX_VALUE;
+        return new CacheEntry<V>(value, expiresAt);
+    }
+    
+    private boolean isExpired(CacheEntry<V> entry) {
+        return entry.expiresAt != Long.MAX_VALUE && System.nanoTime() - entry.expiresAt > 0;
+    }
+    
+    /**
+     * @return true if the expired entry is kept to be read stale
+     */
+    private boolean isStale(CacheEntry<V> entry) {
+        return System.nanoTime() - entry.expiresAt <= maxStaleNanos;
+    }
+}
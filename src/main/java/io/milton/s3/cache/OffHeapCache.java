@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Size bounded cache of small byte arrays kept outside of the Java heap, in
+ * direct buffer slabs which are allocated on demand and never released. A
+ * value occupies whole chunks of the slabs, so the heap only holds the index.
+ * 
+ * When the cache is full a new value is only admitted if it was requested
+ * more often than the least recently used value it would evict, so values
+ * requested once do not push out the hot ones. Request frequencies are
+ * estimated by a count-min sketch whose counts are halved periodically.
+ * 
+ * Values are keyed by a key and a version, and only served for the same
+ * version. Safe for concurrent use.
+ */
+public class OffHeapCache {
+
+    private static final int CHUNK_SIZE = 4096;
+    
+    private static final int CHUNKS_PER_SLAB = 256;
+    
+    private final int maxValueSize;
+    
+    private final int maxChunks;
+    
+    private final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+    
+    /**
+     * Stack of the chunks of the allocated slabs which hold no value
+     */
+    private final int[] freeChunks;
+    
+    private int freeChunkCount;
+    
+    private final LinkedHashMap<String, CachedValue> entries = 
+            new LinkedHashMap<String, CachedValue>(16, 0.75f, true);
+    
+    private final FrequencySketch frequencies;
+    
+    private long usedBytes;
+    
+    private long hitCount;
+    
+    private long missCount;
+    
+    private long evictionCount;
+    
+    private long rejectionCount;
+    
+    private static class CachedValue {
+        
+        final String version;
+        
+        final int length;
+        
+        final int[] chunks;
+        
+        CachedValue(String version, int length, int[] chunks) {
+            this.version = version;
+            this.length = length;
+            this.chunks = chunks;
+        }
+    }
+    
+    /**
+     * @param capacity
+     *            - the maximum number of bytes of the slabs
+     * @param maxValueSize
+     *            - the size in bytes of the largest value which is cached
+     */
+    public OffHeapCache(long capacity, int maxValueSize) {
+        long slabSize = (long) CHUNK_SIZE * CHUNKS_PER_SLAB;
+        long slabCount = Math.max(1, capacity / slabSize);
+        if (slabCount * CHUNKS_PER_SLAB > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Capacity is too large: " + capacity);
+        }
+        this.maxChunks = (int) (slabCount * CHUNKS_PER_SLAB);
+        this.maxValueSize = maxValueSize;
+        this.freeChunks = new int[maxChunks];
+        this.frequencies = new FrequencySketch(maxChunks);
+    }
+    
+    /**
+     * @param key
+     *            - the key of the value
+     * @param version
+     *            - the version of the value
+     * @return a copy of the cached value, null if the value of this version is
+     *         not cached
+     */
+    public synchronized byte[] get(String key, String version) {
+        frequencies.increment(key);
+        
+        CachedValue value = entries.get(key);
+        if (value != null && !value.version.equals(version)) {
+            removeEntry(key);
+            value = null;
+        }
+        if (value == null) {
+            missCount++;
+            return null;
+        }
+        
+        hitCount++;
+        byte[] data = new byte[value.length];
+        for (int i = 0, offset = 0; offset < data.length; i++, offset += CHUNK_SIZE) {
+            ByteBuffer slab = getSlab(value.chunks[i]);
+            slab.get(data, offset, Math.min(CHUNK_SIZE, data.length - offset));
+        }
+        return data;
+    }
+    
+    /**
+     * Cache the value, if it is small enough and admitted
+     * 
+     * @param key
+     *            - the key of the value
+     * @param version
+     *            - the version of the value
+     * @param data
+     *            - the value, which is copied
+     * @return true if the value was cached
+     */
+    public synchronized boolean put(String key, String version, byte[] data) {
+        removeEntry(key);
+        if (data.length > maxValueSize) {
+            return false;
+        }
+        
+        int chunkCount = (data.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        if (chunkCount > maxChunks) {
+            return false;
+        }
+        while (freeChunkCount < chunkCount && slabs.size() * CHUNKS_PER_SLAB < maxChunks) {
+            allocateSlab();
+        }
+        
+        boolean isAdmitted = false;
+        Iterator<Map.Entry<String, CachedValue>> iterator = entries.entrySet().iterator();
+        while (freeChunkCount < chunkCount) {
+            Map.Entry<String, CachedValue> eldest = iterator.next();
+            if (!isAdmitted) {
+                // Keep the eldest value if it is requested more often
+                if (frequencies.frequency(key) <= frequencies.frequency(eldest.getKey())) {
+                    rejectionCount++;
+                    return false;
+                }
+                isAdmitted = true;
+            }
+            iterator.remove();
+            release(eldest.getValue());
+            evictionCount++;
+        }
+        
+        int[] chunks = new int[chunkCount];
+        for (int i = 0, offset = 0; i < chunkCount; i++, offset += CHUNK_SIZE) {
+            chunks[i] = freeChunks[--freeChunkCount];
+            ByteBuffer slab = getSlab(chunks[i]);
+            slab.put(data, offset, Math.min(CHUNK_SIZE, data.length - offset));
+        }
+        entries.put(key, new CachedValue(version, data.length, chunks));
+        usedBytes += data.length;
+        return true;
+    }
+    
+    public synchronized void invalidate(String key) {
+        removeEntry(key);
+    }
+    
+    public synchronized void clear() {
+        for (CachedValue value : entries.values()) {
+            release(value);
+        }
+        entries.clear();
+    }
+    
+    public synchronized int size() {
+        return entries.size();
+    }
+    
+    /**
+     * @return the number of bytes of the cached values
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+    
+    /**
+     * @return the number of bytes of the allocated slabs
+     */
+    public synchronized long getAllocatedBytes() {
+        return (long) slabs.size() * CHUNKS_PER_SLAB * CHUNK_SIZE;
+    }
+    
+    public int getMaxValueSize() {
+        return maxValueSize;
+    }
+    
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+    
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+    
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+    
+    /**
+     * @return the number of values which were not admitted
+     */
+    public synchronized long getRejectionCount() {
+        return rejectionCount;
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return "OffHeapCache [size=" + size() + ", usedBytes=" + usedBytes + ", allocatedBytes=" 
+                + getAllocatedBytes() + ", hits=" + hitCount + ", misses=" + missCount + ", evictions=" 
+                + evictionCount + ", rejections=" + rejectionCount + "]";
+    }
+    
+    private void allocateSlab() {
+        int firstChunk = slabs.size() * CHUNKS_PER_SLAB;
+        slabs.add(ByteBuffer.allocateDirect(CHUNKS_PER_SLAB * CHUNK_SIZE));
+        // Hand out the lower chunks first
+        for (int chunk = firstChunk + CHUNKS_PER_SLAB - 1; chunk >= firstChunk; chunk--) {
+            freeChunks[freeChunkCount++] = chunk;
+        }
+    }
+    
+    /**
+     * @return the slab of the chunk, positioned at the start of the chunk
+     */
+    private ByteBuffer getSlab(int chunk) {
+        ByteBuffer slab = slabs.get(chunk / CHUNKS_PER_SLAB);
+        slab.clear();
+        slab.position((chunk % CHUNKS_PER_SLAB) * CHUNK_SIZE);
+        return slab;
+    }
+    
+    private void removeEntry(String key) {
+        CachedValue value = entries.remove(key);
+        if (value != null) {
+            release(value);
+        }
+    }
+    
+    private void release(CachedValue value) {
+        for (int chunk : value.chunks) {
+            freeChunks[freeChunkCount++] = chunk;
+        }
+        usedBytes -= value.length;
+    }
+    
+    /**
+     * Count-min sketch of 4 bit counters, which are halved once the number of
+     * increments reaches ten times the number of entries the cache can hold
+     */
+    private static class FrequencySketch {
+        
+        private static final int HASH_COUNT = 4;
+        
+        private static final int MAX_FREQUENCY = 15;
+        
+        private final long[] table;
+        
+        private final int mask;
+        
+        private final int sampleSize;
+        
+        private int increments;
+        
+        FrequencySketch(int maxEntries) {
+            int counters = Integer.highestOneBit(Math.max(maxEntries, 16) * 2 - 1) * 4;
+            this.table = new long[counters / 16];
+            this.mask = counters - 1;
+            this.sampleSize = 10 * Math.max(maxEntries, 16);
+        }
+        
+        int frequency(String key) {
+            int hash = spread(key.hashCode());
+            int frequency = MAX_FREQUENCY;
+            for (int i = 0; i < HASH_COUNT; i++) {
+                frequency = Math.min(frequency, getCounter(indexOf(hash, i)));
+            }
+            return frequency;
+        }
+        
+        void increment(String key) {
+            int hash = spread(key.hashCode());
+            int frequency = frequency(key);
+            if (frequency == MAX_FREQUENCY) {
+                return;
+            }
+            
+            // Only the smallest counters are incremented
+            for (int i = 0; i < HASH_COUNT; i++) {
+                int index = indexOf(hash, i);
+                if (getCounter(index) == frequency) {
+                    table[index >>> 4] += 1L << ((index & 15) << 2);
+                }
+            }
+            if (++increments >= sampleSize) {
+                reset();
+            }
+        }
+        
+        private void reset() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+            }
+            increments /= 2;
+        }
+        
+        private int getCounter(int index) {
+            return (int) ((table[index >>> 4] >>> ((index & 15) << 2)) & 0xfL);
+        }
+        
+        private int indexOf(int hash, int i) {
+            int h = hash + i * (hash >>> 16 | 1) * 0x9e3779b9;
+            return spread(h) & mask;
+        }
+        
+        private static int spread(int h) {
+            h ^= h >>> 16;
+            h *= 0x45d9f3b;
+            h ^= h >>> 16;
+            return h;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.changelog;
+
+/**
+ * A change of the metadata of a table, published to the other nodes so they
+ * invalidate what they cached of it
+ */
+public class Change {
+
+    public enum Type {
+        
+        /**
+         * An entity was created or replaced
+         */
+        PUT,
+        
+        /**
+         * An entity was renamed or moved
+         */
+        UPDATE,
+        
+        /**
+         * An entity was deleted
+         */
+        DELETE,
+        
+        /**
+         * The whole table was deleted
+         */
+        DELETE_TABLE
+    }
+    
+    private final Type type;
+    
+    private final String tableName;
+    
+    private final String uniqueId;
+    
+    private final String parentId;
+    
+    private final String previousParentId;
+    
+    private final String name;
+    
+    /**
+     * @param type
+     *            - the type of the change
+     * @param tableName
+     *            - the changed table
+     * @param uniqueId
+     *            - the UUID of the changed entity, null for a table change
+     * @param parentId
+     *            - the UUID of the parent of the entity after the change, null
+     *            if not known
+     * @param previousParentId
+     *            - the UUID of the parent before the entity was moved, null if
+     *            it was not moved
+     * @param name
+     *            - the name of the entity after the change, null if not known
+     */
+    public Change(Type type, String tableName, String uniqueId, String parentId, String previousParentId, 
+            String name) {
+        this.type = type;
+        this.tableName = tableName;
+        this.uniqueId = uniqueId;
+        this.parentId = parentId;
+        this.previousParentId = previousParentId;
+        this.name = name;
+    }
+    
+    public Type getType() {
+        return type;
+    }
+    
+    public String getTableName() {
+        return tableName;
+    }
+    
+    public String getUniqueId() {
+        return uniqueId;
+    }
+    
+    public String getParentId() {
+        return parentId;
+    }
+    
+    public String getPreviousParentId() {
+        return previousParentId;
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    @Override
+    public String toString() {
+        return "Change [type=" + type + ", tableName=" + tableName + ", uniqueId=" + uniqueId 
+                + ", parentId=" + parentId + ", previousParentId=" + previousParentId + ", name=" + name + "]";
+    }
+}
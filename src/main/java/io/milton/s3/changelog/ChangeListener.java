@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.changelog;
+
+/**
+ * Receives the changes published to a {@link ChangeLog}
+ */
+public interface ChangeListener {
+
+    /**
+     * Called for every change, possibly from another thread than the one
+     * which published it
+     * 
+     * @param change
+     *            - the change
+     */
+    void onChange(Change change);
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.changelog;
+
+/**
+ * Distributes the metadata changes made by one node to the other nodes, so
+ * that every node can invalidate its local caches
+ */
+public interface ChangeLog {
+
+    /**
+     * Publish a change made by this node
+     * 
+     * @param change
+     *            - the change
+     */
+    void publish(Change change);
+    
+    /**
+     * Receive the changes made by the other nodes
+     * 
+     * @param listener
+     *            - the listener
+     */
+    void subscribe(ChangeListener listener);
+    
+    /**
+     * Stop receiving changes
+     */
+    void shutdown();
+}
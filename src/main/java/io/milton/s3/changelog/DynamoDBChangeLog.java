@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.changelog;
+
+import io.milton.s3.db.DynamoDBService;
+import io.milton.s3.db.TableSchema;
+import io.milton.s3.util.AttributeKey;
+import io.milton.s3.util.DaemonThreadFactory;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ComparisonOperator;
+import com.amazonaws.services.dynamodbv2.model.Condition;
+
+/**
+ * Change log kept in an Amazon DynamoDB table, which every node polls for the
+ * changes made by the other nodes, in the manner of a DynamoDB Streams
+ * consumer.
+ * 
+ * Changes are keyed by the minute they were published in (hash key) and a
+ * sequence made of the publish time, the node and a counter (range key), so a
+ * poll queries the current and previous minute for the sequences after the
+ * last poll. Every poll looks back a few seconds further, as the clocks of the
+ * nodes differ and a Query may not yet see the latest writes; changes seen
+ * before are skipped. Every node deletes the minute shards older than the
+ * retention time, whichever node published them, so the changes of a node
+ * which stopped are deleted too.
+ */
+public class DynamoDBChangeLog implements ChangeLog {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DynamoDBChangeLog.class);
+    
+    private static final long SHARD_MILLIS = 60000;
+    
+    /**
+     * Time in milliseconds every poll looks back before the previous poll
+     */
+    private static final long LOOKBACK_MILLIS = 5000;
+    
+    /**
+     * Time in milliseconds the published changes are kept in the table
+     */
+    private static final long RETENTION_MILLIS = 600000;
+    
+    /**
+     * Age in milliseconds of the oldest shard deleted after startup. Older
+     * changes are only left if all the nodes were stopped for longer
+     */
+    private static final long SWEEP_HORIZON_MILLIS = 24L * 60L * 60000L;
+    
+    /**
+     * Maximum number of expired shards deleted per poll, which spreads the
+     * sweep of the horizon after startup
+     */
+    private static final int MAX_SWEPT_SHARDS = 10;
+    
+    private static final List<String> KEY_ATTRIBUTES = Arrays.asList(AttributeKey.SHARD, AttributeKey.SEQUENCE);
+    
+    private final DynamoDBService dynamoDBService;
+    
+    private final String tableName;
+    
+    private final long pollIntervalMillis;
+    
+    private final String nodeId = UUID.randomUUID().toString();
+    
+    private final AtomicLong counter = new AtomicLong();
+    
+    private final List<ChangeListener> listeners = new CopyOnWriteArrayList<ChangeListener>();
+    
+    /**
+     * Sequences of the changes received within the lookback time, only used by
+     * the polling thread
+     */
+    private final TreeSet<String> receivedSequences = new TreeSet<String>();
+    
+    private final ScheduledExecutorService pollingService = Executors.newSingleThreadScheduledExecutor(
+            new DaemonThreadFactory("dynamodb-changelog"));
+    
+    private long lastPollTime;
+    
+    /**
+     * The last shard deleted by this node, only used by the polling thread
+     */
+    private long sweptShard;
+    
+    /**
+     * @param dynamoDBService
+     *            - the service reading and writing the change log table
+     * @param tableName
+     *            - the name of the change log table, shared by all nodes
+     * @param pollIntervalMillis
+     *            - the time in milliseconds between two polls, which bounds how
+     *            long the changes of other nodes go unnoticed
+     */
+    public DynamoDBChangeLog(DynamoDBService dynamoDBService, String tableName, long pollIntervalMillis) {
+        this.dynamoDBService = dynamoDBService;
+        this.tableName = tableName;
+        this.pollIntervalMillis = pollIntervalMillis;
+        this.lastPollTime = System.currentTimeMillis();
+        this.sweptShard = (lastPollTime - SWEEP_HORIZON_MILLIS) / SHARD_MILLIS;
+    }
+    
+    /**
+     * Create the change log table if it does not exist and start polling it
+     */
+    public void start() {
+        if (!dynamoDBService.isTableExist(tableName)) {
+            dynamoDBService.createTable(tableName, TableSchema.CHANGE_LOG);
+        }
+        
+        pollingService.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    poll();
+                    deleteExpiredChanges(System.currentTimeMillis());
+                } catch (AmazonServiceException ase) {
+                    LOG.error(ase.getMessage(), ase);
+                } catch (AmazonClientException ace) {
+                    LOG.error(ace.getMessage(), ace);
+                } catch (RuntimeException e) {
+                    // Keep polling
+                    LOG.error("Could not poll change log " + tableName, e);
+                }
+            }
+        }, pollIntervalMillis, pollIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    @Override
+    public void publish(Change change) {
+        long now = System.currentTimeMillis();
+        Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
+        item.put(AttributeKey.SHARD, new AttributeValue().withS(getShard(now)));
+        item.put(AttributeKey.SEQUENCE, new AttributeValue().withS(getSequence(now) + '-' + nodeId + '-' 
+                + counter.incrementAndGet()));
+        item.put(AttributeKey.NODE_ID, new AttributeValue().withS(nodeId));
+        item.put(AttributeKey.CHANGE_TYPE, new AttributeValue().withS(change.getType().name()));
+        item.put(AttributeKey.TABLE_NAME, new AttributeValue().withS(change.getTableName()));
+        putString(item, AttributeKey.UUID, change.getUniqueId());
+        putString(item, AttributeKey.PARENT_UUID, change.getParentId());
+        putString(item, AttributeKey.PREVIOUS_PARENT_UUID, change.getPreviousParentId());
+        putString(item, AttributeKey.ENTITY_NAME, change.getName());
+        
+        try {
+            if (dynamoDBService.putItem(tableName, item) != null) {
+                return;
+            }
+        } catch (AmazonServiceException ase) {
+            LOG.error(ase.getMessage(), ase);
+        } catch (AmazonClientException ace) {
+            LOG.error(ace.getMessage(), ace);
+        }
+        LOG.warn("Could not publish " + change + ", other nodes notice it when their caches expire");
+    }
+    
+    @Override
+    public void subscribe(ChangeListener listener) {
+        listeners.add(listener);
+    }
+    
+    @Override
+    public void shutdown() {
+        pollingService.shutdownNow();
+    }
+    
+    public String getNodeId() {
+        return nodeId;
+    }
+    
+    /**
+     * Hand the changes published by the other nodes since the last poll to the
+     * listeners
+     */
+    void poll() {
+        long now = System.currentTimeMillis();
+        long from = lastPollTime - LOOKBACK_MILLIS;
+        String fromSequence = getSequence(from);
+        
+        for (long shard = from / SHARD_MILLIS; shard <= now / SHARD_MILLIS; shard++) {
+            Map<String, Condition> keyConditions = new HashMap<String, Condition>();
+            keyConditions.put(AttributeKey.SHARD, new Condition()
+                .withComparisonOperator(ComparisonOperator.EQ)
+                .withAttributeValueList(new AttributeValue().withS(String.valueOf(shard))));
+            keyConditions.put(AttributeKey.SEQUENCE, new Condition()
+                .withComparisonOperator(ComparisonOperator.GT)
+                .withAttributeValueList(new AttributeValue().withS(fromSequence)));
+            
+            Iterator<Map<String, AttributeValue>> items = dynamoDBService.queryItem(tableName, null, 
+                    keyConditions, null);
+            while (items.hasNext()) {
+                Map<String, AttributeValue> item = items.next();
+                if (nodeId.equals(getString(item, AttributeKey.NODE_ID))
+                        || !receivedSequences.add(getString(item, AttributeKey.SEQUENCE))) {
+                    continue;
+                }
+                deliver(toChange(item));
+            }
+        }
+        
+        // Forget the changes no later poll looks back to
+        receivedSequences.headSet(getSequence(now - LOOKBACK_MILLIS)).clear();
+        lastPollTime = now;
+    }
+    
+    private void deliver(Change change) {
+        for (ChangeListener listener : listeners) {
+            try {
+                listener.onChange(change);
+            } catch (RuntimeException e) {
+                LOG.error("Could not apply " + change, e);
+            }
+        }
+    }
+    
+    /**
+     * Delete the changes of the shards which ended before the retention time,
+     * a few shards at a time. Other nodes may delete the same shards, which
+     * only costs a query of an empty shard
+     */
+    void deleteExpiredChanges(long now) {
+        long expiredShard = (now - RETENTION_MILLIS) / SHARD_MILLIS - 1;
+        for (int i = 0; i < MAX_SWEPT_SHARDS && sweptShard < expiredShard; i++) {
+            if (!deleteShard(sweptShard + 1)) {
+                return;
+            }
+            sweptShard++;
+        }
+    }
+    
+    /**
+     * @return true if all the changes of the shard were deleted
+     */
+    private boolean deleteShard(long shard) {
+        Map<String, Condition> keyConditions = new HashMap<String, Condition>();
+        keyConditions.put(AttributeKey.SHARD, new Condition()
+            .withComparisonOperator(ComparisonOperator.EQ)
+            .withAttributeValueList(new AttributeValue().withS(String.valueOf(shard))));
+        
+        Iterator<Map<String, AttributeValue>> keys = dynamoDBService.queryItem(tableName, null, 
+                keyConditions, null, KEY_ATTRIBUTES);
+        int deleted = 0;
+        while (keys.hasNext()) {
+            HashMap<String, AttributeValue> key = new HashMap<String, AttributeValue>(keys.next());
+            if (dynamoDBService.deleteItem(tableName, key) == null) {
+                LOG.warn("Could not delete the expired changes of shard " + shard + " of " + tableName);
+                return false;
+            }
+            deleted++;
+        }
+        if (deleted > 0) {
+            LOG.info("Deleted " + deleted + " expired changes of shard " + shard + " of " + tableName);
+        }
+        return true;
+    }
+    
+    private static Change toChange(Map<String, AttributeValue> item) {
+        return new Change(Change.Type.valueOf(getString(item, AttributeKey.CHANGE_TYPE)), 
+                getString(item, AttributeKey.TABLE_NAME), getString(item, AttributeKey.UUID), 
+                getString(item, AttributeKey.PARENT_UUID), getString(item, AttributeKey.PREVIOUS_PARENT_UUID), 
+                getString(item, AttributeKey.ENTITY_NAME));
+    }
+    
+    private static String getShard(long timeMillis) {
+        return String.valueOf(timeMillis / SHARD_MILLIS);
+    }
+    
+    /**
+     * @return the time, padded so that sequences sort by time
+     */
+    private static String getSequence(long timeMillis) {
+        return String.format("%013d", timeMillis);
+    }
+    
+    private static void putString(Map<String, AttributeValue> item, String attributeName, String value) {
+        if (value != null) {
+            item.put(attributeName, new AttributeValue().withS(value));
+        }
+    }
+    
+    private static String getString(Map<String, AttributeValue> item, String attributeName) {
+        AttributeValue value = item.get(attributeName);
+        return value != null ? value.getS() : null;
+    }
+}
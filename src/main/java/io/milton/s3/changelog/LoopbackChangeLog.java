@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.changelog;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Change log within a single JVM, which hands every change to all listeners
+ * on the publishing thread. Several managers sharing one instance behave like
+ * nodes sharing a table, e.g. in tests.
+ */
+public class LoopbackChangeLog implements ChangeLog {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LoopbackChangeLog.class);
+    
+    private final List<ChangeListener> listeners = new CopyOnWriteArrayList<ChangeListener>();
+    
+    @Override
+    public void publish(Change change) {
+        for (ChangeListener listener : listeners) {
+            try {
+                listener.onChange(change);
+            } catch (RuntimeException e) {
+                LOG.error("Could not apply " + change, e);
+            }
+        }
+    }
+    
+    @Override
+    public void subscribe(ChangeListener listener) {
+        listeners.add(listener);
+    }
+    
+    @Override
+    public void shutdown() {
+        listeners.clear();
+    }
+}
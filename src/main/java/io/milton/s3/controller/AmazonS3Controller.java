@@ -16,6 +16,7 @@
  */
 package io.milton.s3.controller;
 
+import io.milton.annotations.ChildOf;
 import io.milton.annotations.ChildrenOf;
 import io.milton.annotations.ContentLength;
 import io.milton.annotations.ContentType;
@@ -32,14 +33,30 @@ import io.milton.annotations.PutChild;
 import io.milton.annotations.ResourceController;
 import io.milton.annotations.Root;
 import io.milton.annotations.UniqueId;
+import io.milton.http.HttpManager;
+import io.milton.http.Range;
+import io.milton.http.Response;
+import io.milton.s3.AmazonS3ManagerImpl;
+import io.milton.s3.CachingDynamoDBManager;
+import io.milton.s3.DynamoDBManagerImpl;
+import io.milton.s3.cache.AccessCounter;
+import io.milton.s3.cache.ContentCache;
+import io.milton.s3.cache.OffHeapCache;
+import io.milton.s3.changelog.DynamoDBChangeLog;
+import io.milton.s3.db.DynamoDBServiceImpl;
+import io.milton.s3.db.ItemMigrator;
 import io.milton.s3.model.Entity;
 import io.milton.s3.model.File;
 import io.milton.s3.model.Folder;
 import io.milton.s3.service.AmazonStorageService;
 import io.milton.s3.service.AmazonStorageServiceImpl;
+import io.milton.s3.service.CacheWarmer;
+import io.milton.s3.service.UploadSpooler;
 import io.milton.s3.util.DateUtils;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.text.ParseException;
 import java.util.Collections;
 import java.util.Date;
@@ -62,6 +79,188 @@ public class AmazonS3Controller {
     
     private static final String BUCKET_NAME = "milton-s3-demo";
     
+    /**
+     * Time in milliseconds concurrent metadata writes are collected into one
+     * batch, 0 to write every item on its own
+     */
+    private static final long BATCH_WRITE_WINDOW = 10;
+    
+    /**
+     * System property which, set to true, migrates the items of the existing
+     * tables to the compact encoding. The migration reads the whole table, so
+     * it is meant to be run once, on a single node
+     */
+    private static final String MIGRATE_ITEMS_PROPERTY = "milton.s3.migrateItems";
+    
+    /**
+     * Read capacity units per second the scan of the migration of old items to
+     * the compact encoding may consume
+     */
+    private static final double MIGRATION_READ_CAPACITY = 2;
+    
+    /**
+     * Write capacity units per second the migration of old items to the compact
+     * encoding may consume
+     */
+    private static final double MIGRATION_WRITE_CAPACITY = 2;
+    
+    /**
+     * Maximum number of entities kept in memory
+     */
+    private static final int ENTITY_CACHE_SIZE = 10000;
+    
+    /**
+     * Time in milliseconds an entity is kept in memory, which bounds how long
+     * the changes made by other nodes go unnoticed
+     */
+    private static final long ENTITY_CACHE_TTL = 30000;
+    
+    /**
+     * Time in milliseconds before expiring from which an entity which is still
+     * read is reloaded in the background
+     */
+    private static final long ENTITY_CACHE_REFRESH_AHEAD = 5000;
+    
+    /**
+     * Time in milliseconds after expiring an entity is still served while
+     * Amazon DynamoDB fails, e.g. when the reads are throttled
+     */
+    private static final long ENTITY_CACHE_MAX_STALE = 300000;
+    
+    /**
+     * Maximum number of entities reloaded in the background at the same time
+     */
+    private static final int ENTITY_REFRESH_THREADS = 2;
+    
+    /**
+     * System property which, set to true, publishes the metadata changes to
+     * the other nodes through a change log table. A single node does not need
+     * it, as it invalidates its own caches
+     */
+    private static final String CHANGE_LOG_PROPERTY = "milton.s3.changeLog";
+    
+    /**
+     * Name of the table the nodes publish their metadata changes to
+     */
+    private static final String CHANGE_LOG_TABLE_NAME = BUCKET_NAME + "-changelog";
+    
+    /**
+     * Time in milliseconds between two polls of the change log, which bounds
+     * how long the changes made by other nodes go unnoticed
+     */
+    private static final long CHANGE_LOG_POLL_INTERVAL = 1000;
+    
+    /**
+     * System property naming the directory downloaded file content is cached
+     * in, file content is not cached if it is not set
+     */
+    private static final String CONTENT_CACHE_DIRECTORY_PROPERTY = "milton.s3.contentCacheDir";
+    
+    /**
+     * Maximum total size in bytes of the cached file content
+     */
+    private static final long CONTENT_CACHE_SIZE = 1024L * 1024L * 1024L;
+    
+    /**
+     * Maximum number of bytes of small file content kept in memory outside of
+     * the heap
+     */
+    private static final long SMALL_CONTENT_CACHE_SIZE = 64L * 1024L * 1024L;
+    
+    /**
+     * Size in bytes of the largest file whose content is kept in memory
+     */
+    private static final int SMALL_CONTENT_SIZE = 64 * 1024;
+    
+    /**
+     * Size in bytes of the parts of the uploads larger than one part
+     */
+    private static final int UPLOAD_PART_SIZE = 8 * 1024 * 1024;
+    
+    /**
+     * Maximum number of upload parts sent at the same time
+     */
+    private static final int UPLOAD_PARALLEL_PARTS = 4;
+    
+    /**
+     * Size in bytes of the smallest file downloaded in parallel parts
+     */
+    private static final long PARALLEL_DOWNLOAD_SIZE = 32L * 1024L * 1024L;
+    
+    /**
+     * Size in bytes of the parts of the parallel downloads
+     */
+    private static final int DOWNLOAD_PART_SIZE = 8 * 1024 * 1024;
+    
+    /**
+     * Maximum number of parts of a download requested at the same time
+     */
+    private static final int DOWNLOAD_PARALLEL_PARTS = 4;
+    
+    /**
+     * Maximum number of parts of all the downloads requested at the same time
+     */
+    private static final int DOWNLOADING_PARTS = 16;
+    
+    /**
+     * Size in bytes of the smallest file copied or moved in parallel parts
+     */
+    private static final long MULTIPART_COPY_SIZE = 128L * 1024L * 1024L;
+    
+    /**
+     * Size in bytes of the parts of the multipart copies
+     */
+    private static final long COPY_PART_SIZE = 64L * 1024L * 1024L;
+    
+    /**
+     * Maximum number of parts of a copy copied at the same time
+     */
+    private static final int COPY_PARALLEL_PARTS = 8;
+    
+    /**
+     * Maximum number of bytes held in memory by all the uploads of unknown
+     * length together, the others are spooled to temporary files
+     */
+    private static final long UPLOAD_SPOOL_MEMORY = 32L * 1024L * 1024L;
+    
+    /**
+     * Size in bytes of the largest upload of unknown length held in memory
+     */
+    private static final long UPLOAD_SPOOL_BODY_SIZE = 1024L * 1024L;
+    
+    /**
+     * Maximum number of folder listings loaded in the background at the same
+     * time
+     */
+    private static final int PREFETCH_THREADS = 4;
+    
+    /**
+     * System property naming the file the listing counts are saved to, the
+     * caches are not warmed up after startup if it is not set
+     */
+    private static final String ACCESS_SNAPSHOT_PROPERTY = "milton.s3.accessSnapshot";
+    
+    /**
+     * Maximum number of folders whose listings are counted
+     */
+    private static final int ACCESS_COUNTER_SIZE = 10000;
+    
+    /**
+     * Maximum number of folders whose listings are loaded after startup
+     */
+    private static final int WARM_UP_FOLDERS = 100;
+    
+    /**
+     * Time in milliseconds the listings loaded after startup are kept, which
+     * covers the time until the traffic reaches a new node
+     */
+    private static final long WARM_UP_TTL = 120000;
+    
+    /**
+     * Time in milliseconds between two snapshots of the listing counts
+     */
+    private static final long ACCESS_SNAPSHOT_INTERVAL = 300000;
+    
     private final Region region = Region.getRegion(Regions.US_WEST_2);
     
     private final AmazonStorageService amazonStorageService;
@@ -72,7 +271,46 @@ public class AmazonS3Controller {
 	 * 
 	 */
     public AmazonS3Controller() {
-    	amazonStorageService = new AmazonStorageServiceImpl(region);
+        DynamoDBServiceImpl dynamoDBService = new DynamoDBServiceImpl(region);
+        dynamoDBService.setBatchWriteWindow(BATCH_WRITE_WINDOW);
+        DynamoDBManagerImpl dynamoDBManager = new DynamoDBManagerImpl(dynamoDBService);
+        if (Boolean.getBoolean(MIGRATE_ITEMS_PROPERTY)) {
+            dynamoDBManager.setItemMigrator(new ItemMigrator(dynamoDBService, MIGRATION_READ_CAPACITY, 
+                    MIGRATION_WRITE_CAPACITY));
+        }
+        DynamoDBChangeLog changeLog = null;
+        if (Boolean.getBoolean(CHANGE_LOG_PROPERTY)) {
+            changeLog = new DynamoDBChangeLog(dynamoDBService, CHANGE_LOG_TABLE_NAME, CHANGE_LOG_POLL_INTERVAL);
+            dynamoDBManager.setChangeLog(changeLog);
+        }
+        CachingDynamoDBManager cachingDynamoDBManager = new CachingDynamoDBManager(dynamoDBManager, 
+                ENTITY_CACHE_SIZE, ENTITY_CACHE_TTL, ENTITY_CACHE_REFRESH_AHEAD, ENTITY_CACHE_MAX_STALE);
+        cachingDynamoDBManager.setRefreshThreads(ENTITY_REFRESH_THREADS);
+        AmazonS3ManagerImpl amazonS3Manager = new AmazonS3ManagerImpl(region);
+        amazonS3Manager.setMultipartUpload(UPLOAD_PART_SIZE, UPLOAD_PARALLEL_PARTS);
+        amazonS3Manager.setParallelDownload(PARALLEL_DOWNLOAD_SIZE, DOWNLOAD_PART_SIZE, DOWNLOAD_PARALLEL_PARTS, 
+                DOWNLOADING_PARTS);
+        amazonS3Manager.setMultipartCopy(MULTIPART_COPY_SIZE, COPY_PART_SIZE, COPY_PARALLEL_PARTS);
+        AmazonStorageServiceImpl amazonStorageService = new AmazonStorageServiceImpl(cachingDynamoDBManager, 
+                amazonS3Manager);
+        
+        // Invalidate the caches of this node when other nodes change the metadata
+        if (changeLog != null) {
+            changeLog.subscribe(cachingDynamoDBManager);
+            changeLog.subscribe(amazonStorageService);
+        }
+        
+        String contentCacheDirectory = System.getProperty(CONTENT_CACHE_DIRECTORY_PROPERTY);
+        if (StringUtils.isNotEmpty(contentCacheDirectory)) {
+            amazonStorageService.setContentCache(new ContentCache(new java.io.File(contentCacheDirectory), 
+                    CONTENT_CACHE_SIZE));
+        }
+        amazonStorageService.setSmallContentCache(new OffHeapCache(SMALL_CONTENT_CACHE_SIZE, 
+                SMALL_CONTENT_SIZE));
+        amazonStorageService.setPrefetchThreads(PREFETCH_THREADS);
+        amazonStorageService.setUploadSpooler(new UploadSpooler(null, UPLOAD_SPOOL_MEMORY, 
+                UPLOAD_SPOOL_BODY_SIZE));
+        this.amazonStorageService = amazonStorageService;
     	
     	// Tried to create bucket in Amazon S3
     	Bucket bucket = amazonStorageService.createBucket(BUCKET_NAME);
@@ -81,6 +319,17 @@ public class AmazonS3Controller {
 			throw new RuntimeException("Could not connect to domain"
 					+ BUCKET_NAME + ".s3-" + region.getName() + ".amazonaws.com");
     	}
+    	if (changeLog != null) {
+    	    changeLog.start();
+    	}
+    	
+    	String accessSnapshot = System.getProperty(ACCESS_SNAPSHOT_PROPERTY);
+    	if (StringUtils.isNotEmpty(accessSnapshot)) {
+    	    AccessCounter accessCounter = new AccessCounter(ACCESS_COUNTER_SIZE);
+    	    amazonStorageService.setAccessCounter(accessCounter);
+    	    new CacheWarmer(amazonStorageService, accessCounter, new java.io.File(accessSnapshot))
+    	            .start(BUCKET_NAME, WARM_UP_FOLDERS, WARM_UP_TTL, ACCESS_SNAPSHOT_INTERVAL);
+    	}
     }
     
     /**
@@ -122,6 +371,22 @@ public class AmazonS3Controller {
         return children;
     }
     
+    /**
+     * Get one of my children by its name, so resolving a path does not list
+     * every folder on the way
+     * 
+     * @param parent
+     * @param childName
+     * @return the child or null if there is no child of the given name
+     */
+    @ChildOf
+    public Entity getChild(Folder parent, String childName) {
+        if (parent == null) {
+            return null;
+        }
+        return amazonStorageService.findEntityByName(BUCKET_NAME, parent, childName);
+    }
+    
     @MakeCollection
     public Folder createFolder(Folder parent, String folderName) {
         LOG.info("Creating folder " + folderName + " in " + parent.getName() 
@@ -157,7 +422,8 @@ public class AmazonS3Controller {
         
         // Create a file and store into Amazon Simple Storage Service
         File newFile = parent.addFile(newName);
-        newFile.setSize(contentLength);
+        // The length of chunked uploads is unknown until they are read
+        newFile.setSize(contentLength != null ? contentLength : -1);
         // Get default content type if cannot get via milton
         if (StringUtils.isEmpty(contentType)) {
         	contentType = new MimetypesFileTypeMap(inputStream).getContentType(newName);
@@ -271,6 +537,11 @@ public class AmazonS3Controller {
         return modifiedDate;
     }
     
+    /**
+     * The unique id stays the same while the file exists, as milton keys locks
+     * and sync state on it. The ETag of the content is served by
+     * {@link ContentETagGenerator} instead.
+     */
     @UniqueId
     public String getUniqueId(Entity entity) {
     	String uniqueId = entity.getId().toString();
@@ -279,26 +550,66 @@ public class AmazonS3Controller {
         return uniqueId;
     }
     
+    /**
+     * Milton answers requests with a Range header with partial content and
+     * passes each requested range, so only the bytes of the range are read
+     * from Amazon S3. The content is written rather than returned, as Milton
+     * would apply the range to a returned stream again. A range starting past
+     * the end of the file is answered with 416 Requested Range Not
+     * Satisfiable.
+     */
     @Get
-    public InputStream downloadFile(File file) {
-		String keyName = file.getParent().getId().toString()
-				+ java.io.File.separatorChar + file.getId().toString();
+    public void downloadFile(File file, Range range, OutputStream outputStream) throws IOException {
         LOG.info("Downloading file " + file.toString() + " under folder "
-                + file.getParent().getName() + " in bucket " + BUCKET_NAME);
-        InputStream inputStream = amazonStorageService.downloadEntityByUniqueId(BUCKET_NAME, keyName);
+                + file.getParent().getName() + " in bucket " + BUCKET_NAME
+                + (range != null ? ", range " + range.getStart() + "-" + range.getFinish() : ""));
+        InputStream inputStream;
+        if (range == null) {
+            inputStream = amazonStorageService.downloadEntity(BUCKET_NAME, file);
+        } else {
+            long start;
+            long end = file.getSize() - 1;
+            if (range.getStart() == null) {
+                // Suffix range of the last bytes
+                start = Math.max(0, file.getSize() - range.getFinish());
+            } else {
+                start = range.getStart();
+                if (range.getFinish() != null) {
+                    end = Math.min(end, range.getFinish());
+                }
+            }
+            if (start > end) {
+                LOG.warn("Range " + range.getStart() + "-" + range.getFinish() + " of file " + file.getName() 
+                        + " of " + file.getSize() + " bytes is not satisfiable");
+                Response response = HttpManager.response();
+                response.setStatus(Response.Status.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                response.setNonStandardHeader("Content-Range", "bytes */" + file.getSize());
+                response.setContentLengthHeader(0L);
+                return;
+            }
+            inputStream = amazonStorageService.downloadEntity(BUCKET_NAME, file, start, end);
+        }
         if (inputStream == null) {
         	LOG.error("Could not download file " + file.getName() + " from bucket " + BUCKET_NAME);
         	throw new RuntimeException("Could not download file " + file.getName() 
         			+ " from bucket " + BUCKET_NAME);
         }
-        return inputStream;
+        
+        try {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = inputStream.read(buffer)) >= 0) {
+                outputStream.write(buffer, 0, n);
+            }
+        } finally {
+            inputStream.close();
+        }
     }
     
     @Delete
     public void deleteFileOrFolder(Entity entity) {
         LOG.info("Deleting the entity " + entity.getName() + " in bucket " + BUCKET_NAME);
-        boolean isSuccessful = amazonStorageService.deleteEntityByUniqueId(BUCKET_NAME, 
-                entity.getId().toString());
+        boolean isSuccessful = amazonStorageService.deleteEntity(BUCKET_NAME, entity);
         if (!isSuccessful) {
             LOG.error("Could not delete the entity " + entity.getName() + " in the " + BUCKET_NAME);
             throw new RuntimeException("Could not delete the entity " + entity.getName() + " in the " + BUCKET_NAME);
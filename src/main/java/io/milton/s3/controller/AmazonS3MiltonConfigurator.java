@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.controller;
+
+import io.milton.servlet.DefaultMiltonConfigurator;
+
+/**
+ * Configures milton to serve the ETags of the file content stored in Amazon
+ * S3, see {@link ContentETagGenerator}
+ */
+public class AmazonS3MiltonConfigurator extends DefaultMiltonConfigurator {
+
+    @Override
+    protected void build() {
+        builder.setETagGenerator(new ContentETagGenerator());
+        super.build();
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.controller;
+
+import io.milton.http.annotated.AnnoResource;
+import io.milton.http.http11.DefaultETagGenerator;
+import io.milton.http.http11.ETagGenerator;
+import io.milton.resource.Resource;
+import io.milton.s3.model.File;
+
+/**
+ * Uses the ETag Amazon S3 returned for the content of a file as its HTTP ETag,
+ * so the ETag changes with the content while the unique id of the file stays
+ * the same. If-None-Match requests are then answered from the metadata stored
+ * in Amazon DynamoDB, without asking Amazon S3. The ETag of folders and of the
+ * files stored before ETags were kept is derived from the unique id and the
+ * modified date as usual.
+ */
+public class ContentETagGenerator implements ETagGenerator {
+
+    private final ETagGenerator defaultETagGenerator = new DefaultETagGenerator();
+    
+    @Override
+    public String generateEtag(Resource resource) {
+        if (resource instanceof AnnoResource) {
+            Object source = ((AnnoResource) resource).getSource();
+            if (source instanceof File && ((File) source).getETag() != null) {
+                return ((File) source).getETag();
+            }
+        }
+        return defaultETagGenerator.generateEtag(resource);
+    }
+}
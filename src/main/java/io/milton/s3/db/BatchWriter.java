@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.db;
+
+import io.milton.s3.util.DaemonThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.DeleteRequest;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+
+/**
+ * Group commit of puts and deletes. Writes submitted by concurrent callers
+ * within a short time window are coalesced into BatchWriteItem requests of up
+ * to 25 items. Every caller gets a future which completes once its own item was
+ * written, or fails with the error of its own item.
+ */
+public class BatchWriter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchWriter.class);
+    
+    /**
+     * Maximum number of items of a BatchWriteItem request
+     */
+    private static final int MAX_BATCH_WRITE_ITEMS = 25;
+    
+    /**
+     * Maximum number of attempts to write the items left unprocessed by DynamoDB
+     */
+    private static final int MAX_BATCH_ATTEMPTS = 8;
+    
+    private final AmazonDynamoDB dynamoDBClient;
+    
+    /**
+     * Time to wait for more writes after the first write of a batch
+     */
+    private final long windowMillis;
+    
+    private final BlockingQueue<PendingWrite> pendingWrites = new LinkedBlockingQueue<PendingWrite>();
+    
+    /**
+     * Sends the batches, so a batch can be collected while the previous one is
+     * still in flight
+     */
+    private final ExecutorService senderExecutor;
+    
+    private final Thread collectorThread;
+    
+    private volatile boolean isRunning = true;
+    
+    /**
+     * @param dynamoDBClient
+     *            - The client used to send the batches
+     * @param windowMillis
+     *            - Time to wait for more writes after the first write of a batch
+     * @param senders
+     *            - Number of batches in flight at the same time
+     */
+    public BatchWriter(AmazonDynamoDB dynamoDBClient, long windowMillis, int senders) {
+        this.dynamoDBClient = dynamoDBClient;
+        this.windowMillis = windowMillis;
+        this.senderExecutor = Executors.newFixedThreadPool(senders, new DaemonThreadFactory("dynamodb-batch-writer"));
+        this.collectorThread = new DaemonThreadFactory("dynamodb-batch-collector").newThread(new Runnable() {
+            @Override
+            public void run() {
+                collectBatches();
+            }
+        });
+        this.collectorThread.start();
+    }
+    
+    /**
+     * Put the item with the next batch
+     * 
+     * @return A future completing once the item was written
+     */
+    public Future<Boolean> put(String tableName, Map<String, AttributeValue> item) {
+        return submit(tableName, item, new WriteRequest().withPutRequest(new PutRequest().withItem(item)));
+    }
+    
+    /**
+     * Delete the item with the next batch
+     * 
+     * @return A future completing once the item was deleted
+     */
+    public Future<Boolean> delete(String tableName, Map<String, AttributeValue> primaryKey) {
+        return submit(tableName, primaryKey, new WriteRequest().withDeleteRequest(
+                new DeleteRequest().withKey(primaryKey)));
+    }
+    
+    /**
+     * Stop accepting writes, and write the ones already submitted
+     */
+    public void shutdown() {
+        isRunning = false;
+        collectorThread.interrupt();
+        try {
+            collectorThread.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        senderExecutor.shutdown();
+    }
+    
+    private Future<Boolean> submit(String tableName, Map<String, AttributeValue> key, WriteRequest writeRequest) {
+        PendingWrite pendingWrite = new PendingWrite(tableName, key, writeRequest);
+        if (!isRunning) {
+            pendingWrite.fail(new IllegalStateException("Batch writer was shut down"));
+            return pendingWrite;
+        }
+        pendingWrites.add(pendingWrite);
+        return pendingWrite;
+    }
+    
+    private void collectBatches() {
+        PendingWrite carryOver = null;
+        while (isRunning || carryOver != null || !pendingWrites.isEmpty()) {
+            List<PendingWrite> batch = new ArrayList<PendingWrite>();
+            Set<String> keys = new HashSet<String>();
+            try {
+                PendingWrite first = carryOver != null ? carryOver : pendingWrites.poll(1, TimeUnit.SECONDS);
+                carryOver = null;
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                keys.addAll(first.getIdentities());
+                
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMillis);
+                while (batch.size() < MAX_BATCH_WRITE_ITEMS) {
+                    long remaining = deadline - System.nanoTime();
+                    PendingWrite next = isRunning && remaining > 0 
+                            ? pendingWrites.poll(remaining, TimeUnit.NANOSECONDS) : pendingWrites.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    
+                    // A batch must not write the same item twice, so the second
+                    // write of an item starts the next batch
+                    List<String> identities = next.getIdentities();
+                    if (!Collections.disjoint(keys, identities)) {
+                        carryOver = next;
+                        break;
+                    }
+                    keys.addAll(identities);
+                    batch.add(next);
+                }
+            } catch (InterruptedException ie) {
+                // Shutting down, write what was collected so far
+                LOG.info("Batch writer is shutting down, flushing " + (batch.size() + pendingWrites.size()) 
+                        + " pending writes");
+            }
+            
+            if (!batch.isEmpty()) {
+                final List<PendingWrite> currentBatch = batch;
+                senderExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        writeBatch(currentBatch);
+                    }
+                });
+            }
+        }
+    }
+    
+    private void writeBatch(List<PendingWrite> batch) {
+        Map<String, List<WriteRequest>> requestItems = new HashMap<String, List<WriteRequest>>();
+        for (PendingWrite pendingWrite : batch) {
+            List<WriteRequest> writeRequests = requestItems.get(pendingWrite.tableName);
+            if (writeRequests == null) {
+                writeRequests = new ArrayList<WriteRequest>();
+                requestItems.put(pendingWrite.tableName, writeRequests);
+            }
+            writeRequests.add(pendingWrite.writeRequest);
+        }
+        
+        try {
+            for (int attempt = 0; attempt < MAX_BATCH_ATTEMPTS && !requestItems.isEmpty(); attempt++) {
+                if (attempt > 0) {
+                    Thread.sleep(50L << attempt);
+                }
+                
+                BatchWriteItemResult batchWriteItemResult = dynamoDBClient.batchWriteItem(
+                        new BatchWriteItemRequest().withRequestItems(requestItems));
+                requestItems = batchWriteItemResult.getUnprocessedItems();
+                if (requestItems == null) {
+                    requestItems = new HashMap<String, List<WriteRequest>>();
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            for (PendingWrite pendingWrite : batch) {
+                pendingWrite.fail(ie);
+            }
+            return;
+        } catch (RuntimeException re) {
+            LOG.error("Failed to write batch of " + batch.size() + " items", re);
+            for (PendingWrite pendingWrite : batch) {
+                pendingWrite.fail(re);
+            }
+            return;
+        }
+        
+        // Complete the writes which are not left unprocessed
+        for (PendingWrite pendingWrite : batch) {
+            List<WriteRequest> unprocessed = requestItems.get(pendingWrite.tableName);
+            if (unprocessed != null && unprocessed.contains(pendingWrite.writeRequest)) {
+                pendingWrite.fail(new IllegalStateException("Item was left unprocessed after " 
+                        + MAX_BATCH_ATTEMPTS + " attempts"));
+            } else {
+                pendingWrite.complete();
+            }
+        }
+        LOG.info("Successful by writing batch of " + batch.size() + " items");
+    }
+    
+    /**
+     * A write waiting for its batch, and the future of its caller
+     */
+    private static class PendingWrite implements Future<Boolean> {
+        
+        final String tableName;
+        
+        final Map<String, AttributeValue> key;
+        
+        final WriteRequest writeRequest;
+        
+        private final CountDownLatch done = new CountDownLatch(1);
+        
+        private volatile Throwable failure;
+        
+        PendingWrite(String tableName, Map<String, AttributeValue> key, WriteRequest writeRequest) {
+            this.tableName = tableName;
+            this.key = key;
+            this.writeRequest = writeRequest;
+        }
+        
+        /**
+         * Identifies the written item within a batch, whatever the key layout
+         * of its table is
+         */
+        List<String> getIdentities() {
+            return ItemKeys.identitiesOf(tableName, key);
+        }
+        
+        void complete() {
+            done.countDown();
+        }
+        
+        void fail(Throwable failure) {
+            this.failure = failure;
+            done.countDown();
+        }
+        
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public Boolean get() throws InterruptedException, ExecutionException {
+            done.await();
+            return getResult();
+        }
+
+        @Override
+        public Boolean get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+                TimeoutException {
+            if (!done.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return getResult();
+        }
+        
+        private Boolean getResult() throws ExecutionException {
+            if (failure != null) {
+                throw new ExecutionException(failure);
+            }
+            return Boolean.TRUE;
+        }
+    }
+}
@@ -19,6 +19,7 @@ package io.milton.s3.db;
 import io.milton.s3.model.Entity;
 
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -26,6 +27,7 @@ import com.amazonaws.services.dynamodbv2.model.AttributeValue;
 import com.amazonaws.services.dynamodbv2.model.AttributeValueUpdate;
 import com.amazonaws.services.dynamodbv2.model.Condition;
 import com.amazonaws.services.dynamodbv2.model.DeleteItemResult;
+import com.amazonaws.services.dynamodbv2.model.ExpectedAttributeValue;
 import com.amazonaws.services.dynamodbv2.model.PutItemResult;
 import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
 
@@ -46,6 +48,25 @@ public interface DynamoDBService {
      *            - The name of the table
      */
 	boolean createTable(String tableName);
+	
+	/**
+	 * Adds a new table with the given key layout to your account
+	 * 
+	 * @param tableName
+	 *            - The name of the table
+	 * @param tableSchema
+	 *            - The key layout of the table
+	 */
+	boolean createTable(String tableName, TableSchema tableSchema);
+	
+	/**
+	 * Detects the key layout of an existing table
+	 * 
+	 * @param tableName
+	 *            - The name of the table
+	 * @return The key layout, null if the table does not exist
+	 */
+	TableSchema getTableSchema(String tableName);
 
     /**
      * Deletes a table and all of its items
@@ -61,10 +82,41 @@ public interface DynamoDBService {
     boolean deleteTable(String tableName);
 
     boolean isTableExist(String tableName);
+    
+    /**
+     * Adds the ParentId index to a table which was created before the index
+     * existed. DynamoDB backfills the index in the background, so the index
+     * only can be queried once {@link #isIndexActive(String, String)} returns
+     * true
+     * 
+     * @param tableName
+     *            - The name of the table
+     */
+    boolean createParentIndex(String tableName);
+    
+    boolean isIndexExist(String tableName, String indexName);
+    
+    boolean isIndexActive(String tableName, String indexName);
 
     Map<String, AttributeValue> newItem(Entity entity);
 
     PutItemResult putItem(String tableName, Map<String, AttributeValue> item);
+    
+    /**
+     * Put the item only if the item stored under its primary key has the
+     * expected attribute values
+     * 
+     * @param tableName
+     *            - The name of the table
+     * @param item
+     *            - The new item
+     * @param expected
+     *            - The expected attribute values of the stored item
+     * @return The response from the PutItem service method, null if the stored
+     *         item did not have the expected values or the put failed
+     */
+    PutItemResult putItem(String tableName, Map<String, AttributeValue> item,
+            Map<String, ExpectedAttributeValue> expected);
 
     /**
      * Retrieves a set of Attributes for an item that matches the primary key.
@@ -73,6 +125,9 @@ public interface DynamoDBService {
      * use ConsistentRead . Although this operation might take longer than a
      * standard read, it always returns the last updated value.
      * 
+     * Whether the read is consistent is decided by the read consistency
+     * policy, so items written just before are read back consistently.
+     * 
      * @param tableName
      *            - The name of the table
      * @param primaryKey
@@ -82,9 +137,174 @@ public interface DynamoDBService {
      */
     Map<String, AttributeValue> getItem(String tableName,
             HashMap<String, AttributeValue> primaryKey);
+    
+    /**
+     * Retrieves only the given attributes of an item that matches the primary
+     * key. The read capacity consumed depends on the size of the whole item,
+     * so reading fewer attributes only transfers and parses less data.
+     * 
+     * @param tableName
+     *            - The name of the table
+     * @param primaryKey
+     *            - The primary key of the item
+     * @param attributesToGet
+     *            - The attributes to read, null to read the whole item
+     * @return The attributes of the item, an empty map if it does not exist
+     * @throws com.amazonaws.AmazonClientException
+     *             if the item could not be read, e.g. because the reads are
+     *             throttled
+     */
+    Map<String, AttributeValue> getItem(String tableName,
+            HashMap<String, AttributeValue> primaryKey, List<String> attributesToGet);
+    
+    /**
+     * Retrieves only the given attributes of an item that matches the primary
+     * key, with a strongly consistent read if asked to regardless of the read
+     * consistency policy.
+     * 
+     * @param tableName
+     *            - The name of the table
+     * @param primaryKey
+     *            - The primary key of the item
+     * @param attributesToGet
+     *            - The attributes to read, null to read the whole item
+     * @param isConsistentRead
+     *            - True to read the last written value of the item
+     * @return The attributes of the item, an empty map if it does not exist
+     * @throws com.amazonaws.AmazonClientException
+     *             if the item could not be read
+     */
+    Map<String, AttributeValue> getItem(String tableName,
+            HashMap<String, AttributeValue> primaryKey, List<String> attributesToGet, 
+            boolean isConsistentRead);
 
     List<Map<String, AttributeValue>> getItem(String tableName,
             Map<String, Condition> conditions);
+    
+    /**
+     * Retrieves the items for many primary keys at once. The keys are split
+     * into chunks of 100 keys which are read concurrently with BatchGetItem,
+     * and the keys DynamoDB left unprocessed are retried.
+     * 
+     * @param tableName
+     *            - The name of the table
+     * @param primaryKeys
+     *            - The primary keys of the items
+     * @return The items found, in no particular order
+     * @throws com.amazonaws.AmazonClientException
+     *             if some of the items could not be read, rather than
+     *             returning only part of them
+     */
+    List<Map<String, AttributeValue>> batchGetItem(String tableName,
+            List<Map<String, AttributeValue>> primaryKeys);
+    
+    /**
+     * Scans the whole table for the items matching the given conditions. The
+     * items are read page by page while iterating, so only one page is held in
+     * memory at a time.
+     * 
+     * @param tableName
+     *            - The name of the table
+     * @param conditions
+     *            - The conditions on the item attributes
+     * @return A lazy iterator over the matching items
+     */
+    Iterator<Map<String, AttributeValue>> scanItem(String tableName,
+            Map<String, Condition> conditions);
+    
+    /**
+     * Scans the whole table for the items matching the given conditions, only
+     * reading the given attributes of each item.
+     * 
+     * @param tableName
+     *            - The name of the table
+     * @param conditions
+     *            - The conditions on the item attributes
+     * @param attributesToGet
+     *            - The attributes to read, null to read whole items
+     * @return A lazy iterator over the matching items
+     */
+    Iterator<Map<String, AttributeValue>> scanItem(String tableName,
+            Map<String, Condition> conditions, List<String> attributesToGet);
+    
+    /**
+     * Reads the whole table with a parallel Scan and feeds every matching item
+     * to the consumer. The table is split into segments which are scanned by
+     * several workers at once, within the configured read capacity limit.
+     * 
+     * @param tableName
+     *            - The name of the table
+     * @param conditions
+     *            - The conditions on the item attributes, can be null
+     * @param attributesToGet
+     *            - The attributes to read, null to read whole items
+     * @param consumer
+     *            - Receives the items, called from several threads at once
+     * @return The number of items fed to the consumer, -1 if the scan failed
+     */
+    long scanItem(String tableName, Map<String, Condition> conditions, List<String> attributesToGet,
+            ItemConsumer consumer);
+    
+    /**
+     * Reads the whole table with a parallel Scan within the given read
+     * capacity limit, instead of the configured one.
+     * 
+     * @param tableName
+     *            - The name of the table
+     * @param conditions
+     *            - The conditions on the item attributes, can be null
+     * @param attributesToGet
+     *            - The attributes to read, null to read whole items
+     * @param consumer
+     *            - Receives the items, called from several threads at once
+     * @param readCapacity
+     *            - The read capacity units the scan may consume per second, 0
+     *            for no limit
+     * @return The number of items fed to the consumer, -1 if the scan failed
+     */
+    long scanItem(String tableName, Map<String, Condition> conditions, List<String> attributesToGet,
+            ItemConsumer consumer, double readCapacity);
+    
+    /**
+     * Finds items based on the key values of the given index. A query only
+     * reads the items matching the key conditions, instead of the whole table
+     * as a scan does. The items are read page by page while iterating.
+     * 
+     * @param tableName
+     *            - The name of the table
+     * @param indexName
+     *            - The name of the index to query, null to query the table
+     *            itself
+     * @param keyConditions
+     *            - The conditions on the index key attributes
+     * @param queryFilter
+     *            - The conditions on non-key attributes, evaluated after the
+     *            items were read. Can be null
+     * @return A lazy iterator over the matching items
+     */
+    Iterator<Map<String, AttributeValue>> queryItem(String tableName, String indexName,
+            Map<String, Condition> keyConditions, Map<String, Condition> queryFilter);
+    
+    /**
+     * Finds items based on the key values of the given index, only reading the
+     * given attributes of each item.
+     * 
+     * @param tableName
+     *            - The name of the table
+     * @param indexName
+     *            - The name of the index to query, null to query the table
+     *            itself
+     * @param keyConditions
+     *            - The conditions on the index key attributes
+     * @param queryFilter
+     *            - The conditions on non-key attributes. Can be null
+     * @param attributesToGet
+     *            - The attributes to read, null to read whole items
+     * @return A lazy iterator over the matching items
+     */
+    Iterator<Map<String, AttributeValue>> queryItem(String tableName, String indexName,
+            Map<String, Condition> keyConditions, Map<String, Condition> queryFilter,
+            List<String> attributesToGet);
 
     /**
      * Edits an existing item's attributes. You can perform a conditional update
@@ -102,6 +322,26 @@ public interface DynamoDBService {
     UpdateItemResult updateItem(String tableName,
             HashMap<String, AttributeValue> primaryKey,
             Map<String, AttributeValueUpdate> updateItems);
+    
+    /**
+     * Edits an existing item's attributes only if it has the expected
+     * attribute values
+     * 
+     * @param tableName
+     *            - The name of the table
+     * @param primaryKey
+     *            - The primary key of the item
+     * @param updateItems
+     *            - The new attribute values
+     * @param expected
+     *            - The expected attribute values of the stored item
+     * @return The response from the UpdateItem service method, null if the
+     *         stored item did not have the expected values or the update
+     *         failed
+     */
+    UpdateItemResult updateItem(String tableName,
+            HashMap<String, AttributeValue> primaryKey,
+            Map<String, AttributeValueUpdate> updateItems, Map<String, ExpectedAttributeValue> expected);
 
     /**
      * Deletes a single item in a table by primary key
@@ -117,4 +357,19 @@ public interface DynamoDBService {
      */
     DeleteItemResult deleteItem(String tableName,
             HashMap<String, AttributeValue> primaryKey);
+    
+    /**
+     * Delete the item only if it has the expected attribute values
+     * 
+     * @param tableName
+     *              - The name of the table
+     * @param primaryKey
+     *              - The primary key of the item
+     * @param expected
+     *              - The expected attribute values of the stored item
+     * @return The response from the DeleteItem service method, null if the
+     *         stored item did not have the expected values or the delete failed
+     */
+    DeleteItemResult deleteItem(String tableName,
+            HashMap<String, AttributeValue> primaryKey, Map<String, ExpectedAttributeValue> expected);
 }
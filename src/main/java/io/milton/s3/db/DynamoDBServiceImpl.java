@@ -16,17 +16,22 @@
  */
 package io.milton.s3.db;
 
+import io.milton.s3.db.mapper.DynamoDBEntityMapper;
 import io.milton.s3.model.Entity;
-import io.milton.s3.model.File;
-import io.milton.s3.model.Folder;
 import io.milton.s3.util.AttributeKey;
-import io.milton.s3.util.DateUtils;
+import io.milton.s3.util.DaemonThreadFactory;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,7 +44,11 @@ import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
 import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
 import com.amazonaws.services.dynamodbv2.model.AttributeValueUpdate;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
 import com.amazonaws.services.dynamodbv2.model.Condition;
+import com.amazonaws.services.dynamodbv2.model.CreateGlobalSecondaryIndexAction;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
 import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
 import com.amazonaws.services.dynamodbv2.model.CreateTableResult;
 import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
@@ -47,13 +56,23 @@ import com.amazonaws.services.dynamodbv2.model.DeleteItemResult;
 import com.amazonaws.services.dynamodbv2.model.DeleteTableRequest;
 import com.amazonaws.services.dynamodbv2.model.DeleteTableResult;
 import com.amazonaws.services.dynamodbv2.model.DescribeTableRequest;
+import com.amazonaws.services.dynamodbv2.model.ExpectedAttributeValue;
 import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
 import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndex;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndexDescription;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndexUpdate;
+import com.amazonaws.services.dynamodbv2.model.IndexStatus;
 import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
 import com.amazonaws.services.dynamodbv2.model.KeyType;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.Projection;
+import com.amazonaws.services.dynamodbv2.model.ProjectionType;
 import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughput;
 import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
 import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
 import com.amazonaws.services.dynamodbv2.model.ResourceInUseException;
 import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
 import com.amazonaws.services.dynamodbv2.model.ReturnValue;
@@ -64,12 +83,24 @@ import com.amazonaws.services.dynamodbv2.model.TableDescription;
 import com.amazonaws.services.dynamodbv2.model.TableStatus;
 import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
 import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
+import com.amazonaws.services.dynamodbv2.model.UpdateTableRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateTableResult;
 
 
 public class DynamoDBServiceImpl implements DynamoDBService {
 
     private static final Logger LOG = LoggerFactory.getLogger(DynamoDBServiceImpl.class);
     
+    /**
+     * Maximum number of keys of a BatchGetItem request
+     */
+    private static final int MAX_BATCH_GET_KEYS = 100;
+    
+    /**
+     * Maximum number of attempts to read the keys left unprocessed by DynamoDB
+     */
+    private static final int MAX_BATCH_ATTEMPTS = 8;
+    
     /**
      * Important: Be sure to fill in your AWS access credentials in the
      * AwsCredentials.properties file before you try to run this class.
@@ -78,6 +109,43 @@ public class DynamoDBServiceImpl implements DynamoDBService {
      */
     private final AmazonDynamoDBClient dynamoDBClient;
     
+    /**
+     * The maximum number of items per Scan or Query page, 0 for no limit
+     */
+    private int pageSize;
+    
+    /**
+     * Number of segments scanned in parallel by whole-table scans
+     */
+    private int scanWorkers = Runtime.getRuntime().availableProcessors();
+    
+    /**
+     * Read capacity units whole-table scans may consume per second, 0 for no
+     * limit
+     */
+    private double scanReadCapacity;
+    
+    /**
+     * Decides which reads by primary key have to be strongly consistent
+     */
+    private volatile ReadConsistencyPolicy consistencyPolicy = new ReadConsistencyPolicy(1000);
+    
+    /**
+     * Group commit of puts and deletes, null if every item is written on its own
+     */
+    private volatile BatchWriter batchWriter;
+    
+    /**
+     * Encoding of the items written, items of every version are read
+     */
+    private volatile int itemVersion = DynamoDBEntityMapper.ITEM_VERSION_2;
+    
+    /**
+     * Runs the chunks of batch requests concurrently
+     */
+    private final ExecutorService batchExecutor = Executors.newFixedThreadPool(8,
+            new DaemonThreadFactory("dynamodb-batch"));
+    
     /**
      * The only information needed to create a client are security credentials
      * consisting of the AWS Access Key ID and Secret Access Key. All other
@@ -97,25 +165,81 @@ public class DynamoDBServiceImpl implements DynamoDBService {
     
     @Override
     public boolean createTable(String tableName) {
+        return createTable(tableName, TableSchema.UNIQUE_ID);
+    }
+    
+    @Override
+    public boolean createTable(String tableName, TableSchema tableSchema) {
+        if (tableSchema == TableSchema.CHANGE_LOG) {
+            return createChangeLogTable(tableName);
+        }
+        
         List<AttributeDefinition> attributeDefinitions= new ArrayList<AttributeDefinition>();
         attributeDefinitions.add(new AttributeDefinition().withAttributeName(AttributeKey.UUID)
         		.withAttributeType(ScalarAttributeType.S));
+        attributeDefinitions.addAll(newParentIndexAttributeDefinitions());
         
-        List<KeySchemaElement> keySchemaElement = new ArrayList<KeySchemaElement>();
-        keySchemaElement.add(new KeySchemaElement().withAttributeName(AttributeKey.UUID)
-        		.withKeyType(KeyType.HASH));
-        
-        // Provide the initial provisioned throughput values as Java long data types
-        ProvisionedThroughput provisionedThroughput = new ProvisionedThroughput()
-            .withReadCapacityUnits(10L)
-            .withWriteCapacityUnits(10L);
+        List<KeySchemaElement> keySchemaElement;
+        GlobalSecondaryIndex secondaryIndex;
+        if (tableSchema == TableSchema.PARENT_NAME) {
+            // Key the items by parent and name, and index the unique UUID for
+            // the lookups by UUID
+            keySchemaElement = newParentIndexKeySchema();
+            secondaryIndex = new GlobalSecondaryIndex()
+                .withIndexName(AttributeKey.UUID_INDEX)
+                .withKeySchema(new KeySchemaElement().withAttributeName(AttributeKey.UUID)
+                        .withKeyType(KeyType.HASH))
+                .withProjection(new Projection().withProjectionType(ProjectionType.ALL))
+                .withProvisionedThroughput(newProvisionedThroughput());
+        } else {
+            keySchemaElement = new ArrayList<KeySchemaElement>();
+            keySchemaElement.add(new KeySchemaElement().withAttributeName(AttributeKey.UUID)
+            		.withKeyType(KeyType.HASH));
+            
+            // Index the children of every folder, so listing a folder does not
+            // need to scan the whole table
+            secondaryIndex = new GlobalSecondaryIndex()
+                .withIndexName(AttributeKey.PARENT_INDEX)
+                .withKeySchema(newParentIndexKeySchema())
+                .withProjection(new Projection().withProjectionType(ProjectionType.ALL))
+                .withProvisionedThroughput(newProvisionedThroughput());
+        }
         
         CreateTableRequest createTableRequest = new CreateTableRequest()
             .withTableName(tableName)
             .withAttributeDefinitions(attributeDefinitions)
             .withKeySchema(keySchemaElement)
-            .withProvisionedThroughput(provisionedThroughput);
+            .withGlobalSecondaryIndexes(secondaryIndex)
+            .withProvisionedThroughput(newProvisionedThroughput());
+        return createTable(createTableRequest);
+    }
+    
+    /**
+     * Create the change log table, keyed by Shard (hash) and Sequence (range)
+     */
+    private boolean createChangeLogTable(String tableName) {
+        List<AttributeDefinition> attributeDefinitions = new ArrayList<AttributeDefinition>();
+        attributeDefinitions.add(new AttributeDefinition().withAttributeName(AttributeKey.SHARD)
+                .withAttributeType(ScalarAttributeType.S));
+        attributeDefinitions.add(new AttributeDefinition().withAttributeName(AttributeKey.SEQUENCE)
+                .withAttributeType(ScalarAttributeType.S));
+        
+        List<KeySchemaElement> keySchemaElement = new ArrayList<KeySchemaElement>();
+        keySchemaElement.add(new KeySchemaElement().withAttributeName(AttributeKey.SHARD)
+                .withKeyType(KeyType.HASH));
+        keySchemaElement.add(new KeySchemaElement().withAttributeName(AttributeKey.SEQUENCE)
+                .withKeyType(KeyType.RANGE));
         
+        CreateTableRequest createTableRequest = new CreateTableRequest()
+            .withTableName(tableName)
+            .withAttributeDefinitions(attributeDefinitions)
+            .withKeySchema(keySchemaElement)
+            .withProvisionedThroughput(newProvisionedThroughput());
+        return createTable(createTableRequest);
+    }
+    
+    private boolean createTable(CreateTableRequest createTableRequest) {
+        String tableName = createTableRequest.getTableName();
         try {
             CreateTableResult createdTableDescription = dynamoDBClient.createTable(createTableRequest);
             LOG.info("Creating table description: " + createdTableDescription);
@@ -169,35 +293,75 @@ public class DynamoDBServiceImpl implements DynamoDBService {
     }
     
     @Override
-    public Map<String, AttributeValue> newItem(Entity entity) {
-        Map<String, AttributeValue> newItem = new HashMap<String, AttributeValue>();
-        newItem.put(AttributeKey.UUID, new AttributeValue().withS(entity.getId().toString()));
-        newItem.put(AttributeKey.ENTITY_NAME, new AttributeValue().withS(entity.getName()));
+    public TableSchema getTableSchema(String tableName) {
+        TableDescription tableDescription = describeTable(tableName);
+        if (tableDescription == null) {
+            return null;
+        }
         
-        // Get folder parent UUID
-        String parentUniqueId = AttributeKey.NOT_EXIST;
-        Folder folder = entity.getParent();
-        if (folder != null) {
-        	parentUniqueId = folder.getId().toString();
+        for (KeySchemaElement keySchemaElement : tableDescription.getKeySchema()) {
+            if (KeyType.HASH.toString().equals(keySchemaElement.getKeyType())
+                    && AttributeKey.PARENT_UUID.equals(keySchemaElement.getAttributeName())) {
+                return TableSchema.PARENT_NAME;
+            }
+            if (KeyType.HASH.toString().equals(keySchemaElement.getKeyType())
+                    && AttributeKey.SHARD.equals(keySchemaElement.getAttributeName())) {
+                return TableSchema.CHANGE_LOG;
+            }
         }
+        return TableSchema.UNIQUE_ID;
+    }
+    
+    @Override
+    public boolean createParentIndex(String tableName) {
+        CreateGlobalSecondaryIndexAction createIndexAction = new CreateGlobalSecondaryIndexAction()
+            .withIndexName(AttributeKey.PARENT_INDEX)
+            .withKeySchema(newParentIndexKeySchema())
+            .withProjection(new Projection().withProjectionType(ProjectionType.ALL))
+            .withProvisionedThroughput(newProvisionedThroughput());
         
-        int fileSize = 0;
-        String contentType = AttributeKey.NOT_EXIST;
-        if (entity instanceof File) {
-            fileSize = (int) ((File) entity).getSize();
-            contentType = ((File) entity).getContentType();
+        UpdateTableRequest updateTableRequest = new UpdateTableRequest()
+            .withTableName(tableName)
+            .withAttributeDefinitions(newParentIndexAttributeDefinitions())
+            .withGlobalSecondaryIndexUpdates(new GlobalSecondaryIndexUpdate().withCreate(createIndexAction));
+        
+        try {
+            UpdateTableResult updateTableResult = dynamoDBClient.updateTable(updateTableRequest);
+            LOG.info("Creating index " + AttributeKey.PARENT_INDEX + " for table " + tableName + ": "
+                    + updateTableResult);
+            return true;
+        } catch (ResourceInUseException rie) {
+            LOG.warn("Table " + tableName + " is being updated, could not create index "
+                    + AttributeKey.PARENT_INDEX);
+        } catch (AmazonServiceException ase) {
+            LOG.error(ase.getMessage(), ase);
+        } catch (AmazonClientException ace) {
+            LOG.error(ace.getMessage(), ace);
+        }
+        return false;
+    }
+    
+    @Override
+    public boolean isIndexExist(String tableName, String indexName) {
+        return describeIndex(tableName, indexName) != null;
+    }
+    
+    @Override
+    public boolean isIndexActive(String tableName, String indexName) {
+        GlobalSecondaryIndexDescription indexDescription = describeIndex(tableName, indexName);
+        if (indexDescription == null) {
+            return false;
         }
         
-        newItem.put(AttributeKey.PARENT_UUID, new AttributeValue().withS(parentUniqueId));
-		newItem.put(AttributeKey.IS_DIRECTORY, new AttributeValue()
-				.withN(Integer.toString(entity.isDirectory() ? 1 : 0)));
-        newItem.put(AttributeKey.FILE_SIZE, new AttributeValue().withN(Integer.toString(fileSize)));
-        newItem.put(AttributeKey.CONTENT_TYPE, new AttributeValue().withS(contentType));
-		newItem.put(AttributeKey.CREATED_DATE, new AttributeValue()
-				.withS(DateUtils.dateToString(entity.getCreatedDate())));
-		newItem.put(AttributeKey.MODIFIED_DATE, new AttributeValue()
-				.withS(DateUtils.dateToString(entity.getModifiedDate())));
-        return newItem;
+        // The index could be ACTIVE while DynamoDB is still backfilling it
+        // for the items which already exist in the table
+        return IndexStatus.ACTIVE.toString().equals(indexDescription.getIndexStatus())
+                && !Boolean.TRUE.equals(indexDescription.getBackfilling());
+    }
+    
+    @Override
+    public Map<String, AttributeValue> newItem(Entity entity) {
+        return DynamoDBEntityMapper.convertEntityToItem(entity, itemVersion);
     }
 
     /**
@@ -214,12 +378,21 @@ public class DynamoDBServiceImpl implements DynamoDBService {
     		return null;
     	}
     	
-    	LOG.info("Successfully putted item " + item.toString() + " into " + tableName);
+    	LOG.info("Putting item " + ItemKeys.identitiesOf(tableName, item) + " into " + tableName);
     	
+        if (batchWriter != null) {
+            if (awaitBatchWrite(batchWriter.put(tableName, item), tableName)) {
+                markWritten(tableName, item);
+                return new PutItemResult();
+            }
+            return null;
+        }
+        
         try {
             PutItemRequest putItemRequest = new PutItemRequest(tableName, item);
             PutItemResult putItemResult = dynamoDBClient.putItem(putItemRequest);
 			LOG.info("Putted status: " + putItemResult);
+			markWritten(tableName, item);
             return putItemResult;
         } catch (AmazonServiceException ase) {
             LOG.error("Failed to put given item into the " + tableName, ase);
@@ -229,15 +402,50 @@ public class DynamoDBServiceImpl implements DynamoDBService {
         return null;
     }
     
+    @Override
+    public PutItemResult putItem(String tableName, Map<String, AttributeValue> item,
+            Map<String, ExpectedAttributeValue> expected) {
+        try {
+            // Conditional writes are not supported by BatchWriteItem
+            PutItemRequest putItemRequest = new PutItemRequest(tableName, item).withExpected(expected);
+            PutItemResult putItemResult = dynamoDBClient.putItem(putItemRequest);
+            markWritten(tableName, item);
+            return putItemResult;
+        } catch (ConditionalCheckFailedException ccfe) {
+            LOG.info("Item " + ItemKeys.identitiesOf(tableName, item) + " in " + tableName 
+                    + " does not have the expected values any more");
+        } catch (AmazonServiceException ase) {
+            LOG.error("Failed to put given item into the " + tableName, ase);
+        } catch (AmazonClientException ace) {
+            LOG.error("Failed to put given item into the " + tableName, ace);
+        }
+        return null;
+    }
+    
     @Override
     public Map<String, AttributeValue> getItem(String tableName, HashMap<String, AttributeValue> primaryKey) {
+        return getItem(tableName, primaryKey, null);
+    }
+    
+    @Override
+    public Map<String, AttributeValue> getItem(String tableName, HashMap<String, AttributeValue> primaryKey,
+            List<String> attributesToGet) {
+        return getItem(tableName, primaryKey, attributesToGet, isConsistentRead(tableName, primaryKey));
+    }
+    
+    @Override
+    public Map<String, AttributeValue> getItem(String tableName, HashMap<String, AttributeValue> primaryKey,
+            List<String> attributesToGet, boolean isConsistentRead) {
         LOG.info("Retrieves a set of Attributes for an item that matches the primary key "
                 + primaryKey + " from the table " + tableName);
         
     	try {
     		GetItemRequest getItemRequest = new GetItemRequest().withTableName(tableName)
     				.withKey(primaryKey)
-    				.withConsistentRead(true);
+    				.withConsistentRead(isConsistentRead);
+    		if (attributesToGet != null && !attributesToGet.isEmpty()) {
+    		    getItemRequest.setAttributesToGet(attributesToGet);
+    		}
             GetItemResult getItemResult = dynamoDBClient.getItem(getItemRequest);
             Map<String, AttributeValue> item = getItemResult.getItem();
             if (item == null || item.isEmpty()) {
@@ -246,10 +454,14 @@ public class DynamoDBServiceImpl implements DynamoDBService {
             	return Collections.emptyMap();
             }
             
-			LOG.info("Listing collection from " + tableName + ": " + (item.size() / 8) + " items");
+			LOG.info("Got " + item.size() + " attributes of item " + primaryKey + " from " + tableName);
             return item;
     	} catch (ResourceNotFoundException rnfe) {
     	    LOG.error("Requested resource " + tableName + " not found ", rnfe);
+    	} catch (AmazonClientException ace) {
+    	    // Throttled or unreachable, the item may well exist
+    	    LOG.error("Failed to get item from the " + tableName, ace);
+    	    throw ace;
 		} catch (Exception ex) {
 			LOG.error("Failed to get item into the " + tableName, ex);
 		}
@@ -259,16 +471,215 @@ public class DynamoDBServiceImpl implements DynamoDBService {
     
     @Override
     public List<Map<String, AttributeValue>> getItem(String tableName, Map<String, Condition> conditions) {
-        ScanRequest scanRequest = new ScanRequest(tableName).withScanFilter(conditions);
-        ScanResult scanResult = dynamoDBClient.scan(scanRequest);
-        int count = scanResult.getCount();
-        if (count == 0) {
-        	return Collections.emptyList();
+        List<Map<String, AttributeValue>> items = new ArrayList<Map<String, AttributeValue>>();
+        Iterator<Map<String, AttributeValue>> iterator = scanItem(tableName, conditions);
+        while (iterator.hasNext()) {
+            items.add(iterator.next());
         }
         
 		LOG.info("Successful by getting items from " + tableName
-				+ " based on conditions: " + conditions.toString() + ": " + count + " items");
-        return scanResult.getItems();
+				+ " based on conditions: " + conditions.toString() + ": " + items.size() + " items");
+        return items;
+    }
+    
+    @Override
+    public List<Map<String, AttributeValue>> batchGetItem(final String tableName,
+            List<Map<String, AttributeValue>> primaryKeys) {
+        if (primaryKeys.size() <= MAX_BATCH_GET_KEYS) {
+            return batchGetChunk(tableName, primaryKeys);
+        }
+        
+        List<Future<List<Map<String, AttributeValue>>>> futures = new ArrayList<Future<List<Map<String, AttributeValue>>>>();
+        for (int i = 0; i < primaryKeys.size(); i += MAX_BATCH_GET_KEYS) {
+            final List<Map<String, AttributeValue>> chunk = primaryKeys.subList(i, 
+                    Math.min(i + MAX_BATCH_GET_KEYS, primaryKeys.size()));
+            futures.add(batchExecutor.submit(new Callable<List<Map<String, AttributeValue>>>() {
+                @Override
+                public List<Map<String, AttributeValue>> call() {
+                    return batchGetChunk(tableName, chunk);
+                }
+            }));
+        }
+        
+        List<Map<String, AttributeValue>> items = new ArrayList<Map<String, AttributeValue>>();
+        for (Future<List<Map<String, AttributeValue>>> future : futures) {
+            try {
+                items.addAll(future.get());
+            } catch (InterruptedException ie) {
+                // A partial result would look like deleted items
+                Thread.currentThread().interrupt();
+                throw new AmazonClientException("Interrupted while getting items from " + tableName, ie);
+            } catch (ExecutionException ee) {
+                if (ee.getCause() instanceof AmazonClientException) {
+                    throw (AmazonClientException) ee.getCause();
+                }
+                LOG.error("Failed to get items from " + tableName, ee.getCause());
+                throw new AmazonClientException("Failed to get items from " + tableName, ee.getCause());
+            }
+        }
+        
+        LOG.info("Successful by getting " + items.size() + " of " + primaryKeys.size() 
+                + " items from " + tableName);
+        return items;
+    }
+    
+    @Override
+    public Iterator<Map<String, AttributeValue>> scanItem(String tableName, 
+            Map<String, Condition> conditions) {
+        return scanItem(tableName, conditions, null);
+    }
+    
+    @Override
+    public Iterator<Map<String, AttributeValue>> scanItem(final String tableName, 
+            Map<String, Condition> conditions, List<String> attributesToGet) {
+        final ScanRequest scanRequest = new ScanRequest(tableName).withScanFilter(conditions);
+        if (attributesToGet != null && !attributesToGet.isEmpty()) {
+            scanRequest.setAttributesToGet(attributesToGet);
+        }
+        if (pageSize > 0) {
+            scanRequest.setLimit(pageSize);
+        }
+        
+        return new PagedItemIterator() {
+            @Override
+            protected void fetchPage(Map<String, AttributeValue> exclusiveStartKey) {
+                scanRequest.setExclusiveStartKey(exclusiveStartKey);
+                ScanResult scanResult = dynamoDBClient.scan(scanRequest);
+                LOG.info("Scanned page of " + tableName + ": " + scanResult.getCount() + " of "
+                        + scanResult.getScannedCount() + " items matched");
+                setPage(scanResult.getItems(), scanResult.getLastEvaluatedKey());
+            }
+        };
+    }
+    
+    @Override
+    public long scanItem(String tableName, Map<String, Condition> conditions, List<String> attributesToGet,
+            ItemConsumer consumer) {
+        return scanItem(tableName, conditions, attributesToGet, consumer, scanReadCapacity);
+    }
+    
+    @Override
+    public long scanItem(String tableName, Map<String, Condition> conditions, List<String> attributesToGet,
+            ItemConsumer consumer, double readCapacity) {
+        try {
+            ParallelScanner parallelScanner = new ParallelScanner(dynamoDBClient, scanWorkers, readCapacity);
+            return parallelScanner.scan(tableName, conditions, attributesToGet, consumer);
+        } catch (AmazonServiceException ase) {
+            LOG.error("Failed to scan table " + tableName, ase);
+        } catch (AmazonClientException ace) {
+            LOG.error("Failed to scan table " + tableName, ace);
+        }
+        return -1;
+    }
+    
+    @Override
+    public Iterator<Map<String, AttributeValue>> queryItem(String tableName, String indexName,
+            Map<String, Condition> keyConditions, Map<String, Condition> queryFilter) {
+        return queryItem(tableName, indexName, keyConditions, queryFilter, null);
+    }
+    
+    @Override
+    public Iterator<Map<String, AttributeValue>> queryItem(final String tableName, final String indexName,
+            Map<String, Condition> keyConditions, Map<String, Condition> queryFilter,
+            List<String> attributesToGet) {
+        final QueryRequest queryRequest = new QueryRequest(tableName).withIndexName(indexName)
+                .withKeyConditions(keyConditions);
+        if (queryFilter != null && !queryFilter.isEmpty()) {
+            queryRequest.setQueryFilter(queryFilter);
+        }
+        if (attributesToGet != null && !attributesToGet.isEmpty()) {
+            queryRequest.setAttributesToGet(attributesToGet);
+        }
+        if (pageSize > 0) {
+            queryRequest.setLimit(pageSize);
+        }
+        
+        return new PagedItemIterator() {
+            @Override
+            protected void fetchPage(Map<String, AttributeValue> exclusiveStartKey) {
+                queryRequest.setExclusiveStartKey(exclusiveStartKey);
+                QueryResult queryResult = dynamoDBClient.query(queryRequest);
+                LOG.info("Queried page of " + tableName + " on index " + indexName + ": "
+                        + queryResult.getCount() + " items");
+                setPage(queryResult.getItems(), queryResult.getLastEvaluatedKey());
+            }
+        };
+    }
+    
+    /**
+     * Limit the number of items read per Scan or Query page. By default a page
+     * holds up to 1 MB of items, as limited by DynamoDB.
+     * 
+     * @param pageSize
+     *            - The maximum number of items per page, 0 for no limit
+     */
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+    
+    /**
+     * Set the number of segments whole-table scans read in parallel. Defaults
+     * to the number of available processors.
+     * 
+     * @param scanWorkers
+     *            - The number of worker threads per scan
+     */
+    public void setScanWorkers(int scanWorkers) {
+        this.scanWorkers = scanWorkers;
+    }
+    
+    /**
+     * Limit the read capacity whole-table scans consume, so they leave enough
+     * of the provisioned throughput to the regular traffic.
+     * 
+     * @param scanReadCapacity
+     *            - The read capacity units per second, 0 for no limit
+     */
+    public void setScanReadCapacity(double scanReadCapacity) {
+        this.scanReadCapacity = scanReadCapacity;
+    }
+    
+    /**
+     * Set the encoding of the items written. Nodes of a version which only
+     * reads {@link DynamoDBEntityMapper#ITEM_VERSION_1} items need all the
+     * other nodes to keep writing that version until they are upgraded.
+     * 
+     * @param itemVersion
+     *            - The item encoding, version 2 by default
+     */
+    public void setItemVersion(int itemVersion) {
+        this.itemVersion = itemVersion;
+    }
+    
+    /**
+     * Set the policy deciding which reads by primary key are strongly
+     * consistent. By default reads are eventually consistent, except for the
+     * items written within the last second.
+     * 
+     * @param consistencyPolicy
+     *            - The read consistency policy
+     */
+    public void setConsistencyPolicy(ReadConsistencyPolicy consistencyPolicy) {
+        this.consistencyPolicy = consistencyPolicy;
+    }
+    
+    /**
+     * Coalesce the puts and deletes of concurrent callers into BatchWriteItem
+     * requests. Every caller still waits for its own item, but writes which
+     * arrive within the given window share a single request.
+     * 
+     * @param batchWriteWindow
+     *            - Time in milliseconds to wait for more writes after the
+     *            first write of a batch, 0 to write every item on its own
+     */
+    public synchronized void setBatchWriteWindow(long batchWriteWindow) {
+        if (batchWriter != null) {
+            batchWriter.shutdown();
+            batchWriter = null;
+        }
+        if (batchWriteWindow > 0) {
+            batchWriter = new BatchWriter(dynamoDBClient, batchWriteWindow, 4);
+        }
     }
     
     @Override
@@ -284,20 +695,175 @@ public class DynamoDBServiceImpl implements DynamoDBService {
         
         UpdateItemResult updateItemResult = dynamoDBClient.updateItem(updateItemRequest);
 		LOG.info("Successful by updating item from " + tableName + ": " + updateItemResult); 
+		markWritten(tableName, primaryKey);
         return updateItemResult;
     }
 
+    @Override
+    public UpdateItemResult updateItem(String tableName, HashMap<String, AttributeValue> primaryKey, 
+            Map<String, AttributeValueUpdate> updateItems, Map<String, ExpectedAttributeValue> expected) {
+        try {
+            UpdateItemRequest updateItemRequest = new UpdateItemRequest()
+                .withTableName(tableName)
+                .withKey(primaryKey).withReturnValues(ReturnValue.UPDATED_NEW)
+                .withAttributeUpdates(updateItems)
+                .withExpected(expected);
+            UpdateItemResult updateItemResult = dynamoDBClient.updateItem(updateItemRequest);
+            LOG.info("Successful by updating item from " + tableName + ": " + updateItemResult);
+            markWritten(tableName, primaryKey);
+            return updateItemResult;
+        } catch (ConditionalCheckFailedException ccfe) {
+            LOG.info("Item " + primaryKey + " in " + tableName + " does not have the expected values any more");
+        } catch (AmazonServiceException ase) {
+            LOG.error("Failed to update item in " + tableName, ase);
+        } catch (AmazonClientException ace) {
+            LOG.error("Failed to update item in " + tableName, ace);
+        }
+        return null;
+    }
+
     @Override
     public DeleteItemResult deleteItem(String tableName, HashMap<String, AttributeValue> primaryKey) {
+        if (batchWriter != null) {
+            if (awaitBatchWrite(batchWriter.delete(tableName, primaryKey), tableName)) {
+                markWritten(tableName, primaryKey);
+                return new DeleteItemResult();
+            }
+            return null;
+        }
+        
         DeleteItemRequest deleteItemRequest = new DeleteItemRequest()
             .withTableName(tableName)
             .withKey(primaryKey);
             
         DeleteItemResult deleteItemResult = dynamoDBClient.deleteItem(deleteItemRequest);
         LOG.info("Successful by deleting item in " + tableName);
+        markWritten(tableName, primaryKey);
         return deleteItemResult;
     }
 
+    @Override
+    public DeleteItemResult deleteItem(String tableName, HashMap<String, AttributeValue> primaryKey,
+            Map<String, ExpectedAttributeValue> expected) {
+        try {
+            // Conditional writes are not supported by BatchWriteItem
+            DeleteItemRequest deleteItemRequest = new DeleteItemRequest()
+                .withTableName(tableName)
+                .withKey(primaryKey)
+                .withExpected(expected);
+            DeleteItemResult deleteItemResult = dynamoDBClient.deleteItem(deleteItemRequest);
+            LOG.info("Successful by deleting item in " + tableName);
+            markWritten(tableName, primaryKey);
+            return deleteItemResult;
+        } catch (ConditionalCheckFailedException ccfe) {
+            LOG.info("Item " + primaryKey + " in " + tableName + " does not have the expected values any more");
+        } catch (AmazonServiceException ase) {
+            LOG.error("Failed to delete item in " + tableName, ase);
+        } catch (AmazonClientException ace) {
+            LOG.error("Failed to delete item in " + tableName, ace);
+        }
+        return null;
+    }
+    
+    private void markWritten(String tableName, Map<String, AttributeValue> key) {
+        consistencyPolicy.markWritten(tableName, key);
+    }
+    
+    private boolean isConsistentRead(String tableName, Map<String, AttributeValue> primaryKey) {
+        return consistencyPolicy.isConsistentRead(tableName, primaryKey);
+    }
+    
+    private boolean awaitBatchWrite(Future<Boolean> batchWrite, String tableName) {
+        try {
+            return batchWrite.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted while writing item into the " + tableName);
+        } catch (ExecutionException ee) {
+            LOG.error("Failed to write given item into the " + tableName, ee.getCause());
+        }
+        return false;
+    }
+    
+    /**
+     * Reads up to 100 keys with BatchGetItem. DynamoDB may leave keys
+     * unprocessed when the response is too large or the table is throttled,
+     * these keys are retried with an exponential backoff.
+     */
+    private List<Map<String, AttributeValue>> batchGetChunk(String tableName,
+            List<Map<String, AttributeValue>> primaryKeys) {
+        List<Map<String, AttributeValue>> items = new ArrayList<Map<String, AttributeValue>>();
+        Map<String, KeysAndAttributes> requestItems = new HashMap<String, KeysAndAttributes>();
+        boolean isConsistentRead = false;
+        for (Map<String, AttributeValue> primaryKey : primaryKeys) {
+            if (isConsistentRead(tableName, primaryKey)) {
+                isConsistentRead = true;
+                break;
+            }
+        }
+        requestItems.put(tableName, new KeysAndAttributes().withKeys(primaryKeys)
+                .withConsistentRead(isConsistentRead));
+        
+        try {
+            for (int attempt = 0; attempt < MAX_BATCH_ATTEMPTS; attempt++) {
+                if (attempt > 0) {
+                    Thread.sleep(50L << attempt);
+                }
+                
+                BatchGetItemResult batchGetItemResult = dynamoDBClient.batchGetItem(
+                        new BatchGetItemRequest().withRequestItems(requestItems));
+                List<Map<String, AttributeValue>> responses = batchGetItemResult.getResponses().get(tableName);
+                if (responses != null) {
+                    items.addAll(responses);
+                }
+                
+                requestItems = batchGetItemResult.getUnprocessedKeys();
+                if (requestItems == null || requestItems.isEmpty()) {
+                    return items;
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new AmazonClientException("Interrupted while getting items from " + tableName, ie);
+        } catch (AmazonServiceException ase) {
+            LOG.error("Failed to get items from " + tableName, ase);
+            throw ase;
+        } catch (AmazonClientException ace) {
+            LOG.error("Failed to get items from " + tableName, ace);
+            throw ace;
+        }
+        
+        // Still throttled, the items missing from a partial result would look
+        // deleted
+        throw new AmazonClientException("Could not get " + requestItems.get(tableName).getKeys().size() 
+                + " unprocessed items from " + tableName + " after " + MAX_BATCH_ATTEMPTS + " attempts");
+    }
+    
+    private List<AttributeDefinition> newParentIndexAttributeDefinitions() {
+        List<AttributeDefinition> attributeDefinitions = new ArrayList<AttributeDefinition>();
+        attributeDefinitions.add(new AttributeDefinition().withAttributeName(AttributeKey.PARENT_UUID)
+                .withAttributeType(ScalarAttributeType.S));
+        attributeDefinitions.add(new AttributeDefinition().withAttributeName(AttributeKey.ENTITY_NAME)
+                .withAttributeType(ScalarAttributeType.S));
+        return attributeDefinitions;
+    }
+    
+    private List<KeySchemaElement> newParentIndexKeySchema() {
+        List<KeySchemaElement> keySchemaElement = new ArrayList<KeySchemaElement>();
+        keySchemaElement.add(new KeySchemaElement().withAttributeName(AttributeKey.PARENT_UUID)
+                .withKeyType(KeyType.HASH));
+        keySchemaElement.add(new KeySchemaElement().withAttributeName(AttributeKey.ENTITY_NAME)
+                .withKeyType(KeyType.RANGE));
+        return keySchemaElement;
+    }
+    
+    private ProvisionedThroughput newProvisionedThroughput() {
+        // Provide the initial provisioned throughput values as Java long data types
+        return new ProvisionedThroughput()
+            .withReadCapacityUnits(10L)
+            .withWriteCapacityUnits(10L);
+    }
+    
     private void waitForTableAvailable(String tableName) {
         LOG.info("Waiting for table " + tableName + " to become ACTIVE...");
         
@@ -349,6 +915,20 @@ public class DynamoDBServiceImpl implements DynamoDBService {
         return null;
     }
     
+    private GlobalSecondaryIndexDescription describeIndex(String tableName, String indexName) {
+        TableDescription tableDescription = describeTable(tableName);
+        if (tableDescription == null || tableDescription.getGlobalSecondaryIndexes() == null) {
+            return null;
+        }
+        
+        for (GlobalSecondaryIndexDescription indexDescription : tableDescription.getGlobalSecondaryIndexes()) {
+            if (indexDescription.getIndexName().equals(indexName)) {
+                return indexDescription;
+            }
+        }
+        return null;
+    }
+    
     private void waitForTableDeleted(String tableName) {
         LOG.info("Waiting for table " + tableName + " while status DELETING...");
 
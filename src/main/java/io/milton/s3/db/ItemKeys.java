@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.db;
+
+import io.milton.s3.util.AttributeKey;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+
+/**
+ * Identifies an item regardless of the key layout of its table. An item is
+ * identified both by its unique UUID and by its parent UUID and name, and a
+ * primary key carries the one or the other depending on the {@link TableSchema}.
+ */
+public class ItemKeys {
+
+    /**
+     * @param tableName
+     *            - The name of the table
+     * @param key
+     *            - An item or a primary key
+     * @return The identities of the item the given key refers to
+     */
+    public static List<String> identitiesOf(String tableName, Map<String, AttributeValue> key) {
+        List<String> identities = new ArrayList<String>(2);
+        AttributeValue uniqueId = key.get(AttributeKey.UUID);
+        if (uniqueId != null) {
+            identities.add(tableName + "/" + uniqueId.getS());
+        }
+        
+        AttributeValue parentId = key.get(AttributeKey.PARENT_UUID);
+        AttributeValue entityName = key.get(AttributeKey.ENTITY_NAME);
+        if (parentId != null && entityName != null) {
+            identities.add(tableName + "/" + parentId.getS() + "/" + entityName.getS());
+        }
+        return identities;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.db;
+
+import io.milton.s3.db.mapper.DynamoDBEntityMapper;
+import io.milton.s3.model.Entity;
+import io.milton.s3.util.AttributeKey;
+import io.milton.s3.util.DaemonThreadFactory;
+import io.milton.s3.util.RateLimiter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ComparisonOperator;
+import com.amazonaws.services.dynamodbv2.model.Condition;
+import com.amazonaws.services.dynamodbv2.model.ExpectedAttributeValue;
+
+/**
+ * Rewrites the items stored in the version 1 encoding to the compact version 2
+ * encoding, in the background while the table is in use. The old items are
+ * found with a parallel scan, and every item is only replaced if it was not
+ * modified, moved or deleted since it was scanned.
+ * 
+ * The scan reads the whole table, as its filter on the version attribute does
+ * not reduce the read capacity consumed, so the migration is a one-off job:
+ * both its reads and its writes are throttled, and it is not meant to run on
+ * every startup.
+ */
+public class ItemMigrator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ItemMigrator.class);
+    
+    private final DynamoDBService dynamoDBService;
+    
+    /**
+     * Read capacity units the scan of the table may consume per second, 0 for
+     * no limit
+     */
+    private final double readCapacity;
+    
+    /**
+     * Write capacity units the migration may consume per second, 0 for no
+     * limit
+     */
+    private final double writeCapacity;
+    
+    private final ExecutorService executorService = Executors.newSingleThreadExecutor(
+            new DaemonThreadFactory("dynamodb-migrator"));
+    
+    /**
+     * @param dynamoDBService
+     *            - The service of the migrated tables
+     * @param readCapacity
+     *            - The read capacity units the scan of the table may consume
+     *            per second, 0 for no limit
+     * @param writeCapacity
+     *            - The write capacity units the migration may consume per
+     *            second, 0 for no limit
+     */
+    public ItemMigrator(DynamoDBService dynamoDBService, double readCapacity, double writeCapacity) {
+        this.dynamoDBService = dynamoDBService;
+        this.readCapacity = readCapacity;
+        this.writeCapacity = writeCapacity;
+    }
+    
+    /**
+     * Start migrating the given table in the background. The tables are
+     * migrated one after the other.
+     * 
+     * @param tableName
+     *            - The name of the table
+     * @return The number of items migrated, -1 if the migration failed
+     */
+    public Future<Long> migrate(final String tableName) {
+        return executorService.submit(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return migrateItems(tableName);
+            }
+        });
+    }
+    
+    /**
+     * Migrate the given table
+     * 
+     * @param tableName
+     *            - The name of the table
+     * @return The number of items migrated, -1 if the migration failed
+     */
+    public long migrateItems(final String tableName) {
+        LOG.info("Migrating the items of " + tableName + " to version " + DynamoDBEntityMapper.ITEM_VERSION_2);
+        
+        // Only the items without a version attribute are in the old encoding
+        Map<String, Condition> conditions = new HashMap<String, Condition>();
+        conditions.put(AttributeKey.VERSION, new Condition().withComparisonOperator(ComparisonOperator.NULL));
+        
+        final RateLimiter rateLimiter = writeCapacity > 0 ? new RateLimiter(writeCapacity) : null;
+        final AtomicLong migrated = new AtomicLong();
+        long scanned = dynamoDBService.scanItem(tableName, conditions, null, new ItemConsumer() {
+            @Override
+            public void consume(Map<String, AttributeValue> item) {
+                if (rateLimiter != null) {
+                    try {
+                        rateLimiter.acquire(1);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw new AmazonClientException("Interrupted while migrating table " + tableName, ie);
+                    }
+                }
+                
+                if (migrateItem(tableName, item)) {
+                    migrated.incrementAndGet();
+                }
+            }
+        }, readCapacity);
+        
+        if (scanned < 0) {
+            LOG.error("Failed to migrate the items of " + tableName + " after " + migrated.get() + " items");
+            return -1;
+        }
+        LOG.info("Migrated " + migrated.get() + " of " + scanned + " items of " + tableName);
+        return migrated.get();
+    }
+    
+    public void shutdown() {
+        executorService.shutdownNow();
+    }
+    
+    private boolean migrateItem(String tableName, Map<String, AttributeValue> item) {
+        Entity entity = DynamoDBEntityMapper.convertItemToEntity(
+                DynamoDBEntityMapper.convertItemToParent(item), item);
+        Map<String, AttributeValue> newItem = DynamoDBEntityMapper.convertEntityToItem(entity, 
+                DynamoDBEntityMapper.ITEM_VERSION_2);
+        
+        // Do not overwrite a newer version of the item, nor bring back an item
+        // which was deleted or moved to another key meanwhile
+        Map<String, ExpectedAttributeValue> expected = new HashMap<String, ExpectedAttributeValue>();
+        expected.put(AttributeKey.MODIFIED_DATE, new ExpectedAttributeValue(item.get(AttributeKey.MODIFIED_DATE)));
+        expected.put(AttributeKey.ENTITY_NAME, new ExpectedAttributeValue(item.get(AttributeKey.ENTITY_NAME)));
+        expected.put(AttributeKey.PARENT_UUID, new ExpectedAttributeValue(item.get(AttributeKey.PARENT_UUID)));
+        return dynamoDBService.putItem(tableName, newItem, expected) != null;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.db;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+
+/**
+ * Iterates over the items of a Scan or Query, fetching the next page only when
+ * the current one has been consumed. At most one page of items is held in
+ * memory, and the first items are available before the last page is fetched.
+ */
+public abstract class PagedItemIterator implements Iterator<Map<String, AttributeValue>> {
+
+    private Iterator<Map<String, AttributeValue>> page = Collections.<Map<String, AttributeValue>>emptyList().iterator();
+    
+    private Map<String, AttributeValue> lastEvaluatedKey;
+    
+    private boolean isLastPage;
+    
+    /**
+     * Fetch the page starting after the given key and hand it over with
+     * {@link #setPage(List, Map)}
+     * 
+     * @param exclusiveStartKey
+     *            - The key of the last item of the previous page, null for the
+     *            first page
+     */
+    protected abstract void fetchPage(Map<String, AttributeValue> exclusiveStartKey);
+    
+    protected void setPage(List<Map<String, AttributeValue>> items, Map<String, AttributeValue> lastEvaluatedKey) {
+        this.page = items.iterator();
+        this.lastEvaluatedKey = lastEvaluatedKey;
+        
+        // DynamoDB returns no LastEvaluatedKey once the result set is exhausted
+        this.isLastPage = lastEvaluatedKey == null || lastEvaluatedKey.isEmpty();
+    }
+    
+    @Override
+    public boolean hasNext() {
+        // A page can be empty when the filter matched nothing in it, so keep
+        // fetching until there is an item or no page left
+        while (!page.hasNext() && !isLastPage) {
+            fetchPage(lastEvaluatedKey);
+        }
+        return page.hasNext();
+    }
+
+    @Override
+    public Map<String, AttributeValue> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.next();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Items are read only");
+    }
+}
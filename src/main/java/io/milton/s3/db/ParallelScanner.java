@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.db;
+
+import io.milton.s3.util.DaemonThreadFactory;
+import io.milton.s3.util.RateLimiter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.Condition;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+
+/**
+ * Reads a whole table with a parallel Scan. The table is split into as many
+ * segments as there are workers, and every worker scans its own segment page by
+ * page. The read capacity consumed by all the workers together can be limited,
+ * so a long running job does not starve the regular traffic of the table.
+ */
+public class ParallelScanner {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ParallelScanner.class);
+    
+    private final AmazonDynamoDB dynamoDBClient;
+    
+    /**
+     * Number of segments scanned in parallel
+     */
+    private final int totalSegments;
+    
+    /**
+     * Read capacity units all workers may consume per second, 0 for no limit
+     */
+    private final double readCapacityPerSecond;
+    
+    /**
+     * @param dynamoDBClient
+     *            - The client used by the workers
+     * @param totalSegments
+     *            - The number of segments scanned in parallel
+     * @param readCapacityPerSecond
+     *            - The read capacity units all workers may consume per
+     *            second, 0 for no limit
+     */
+    public ParallelScanner(AmazonDynamoDB dynamoDBClient, int totalSegments, double readCapacityPerSecond) {
+        if (totalSegments < 1) {
+            throw new IllegalArgumentException("Total segments must be at least 1: " + totalSegments);
+        }
+        this.dynamoDBClient = dynamoDBClient;
+        this.totalSegments = totalSegments;
+        this.readCapacityPerSecond = readCapacityPerSecond;
+    }
+    
+    /**
+     * Scans the table and feeds every matching item to the consumer. Returns
+     * once all the segments were scanned; if one worker fails, the others are
+     * stopped and the failure is rethrown.
+     * 
+     * @param tableName
+     *            - The name of the table
+     * @param conditions
+     *            - The conditions on the item attributes, can be null
+     * @param attributesToGet
+     *            - The attributes to read, null to read whole items
+     * @param consumer
+     *            - Receives the items, called from several threads at once
+     * @return The number of items fed to the consumer
+     */
+    public long scan(final String tableName, final Map<String, Condition> conditions, 
+            final List<String> attributesToGet, final ItemConsumer consumer) {
+        final RateLimiter rateLimiter = readCapacityPerSecond > 0 ? new RateLimiter(readCapacityPerSecond) : null;
+        final AtomicLong count = new AtomicLong();
+        
+        ExecutorService executorService = Executors.newFixedThreadPool(totalSegments,
+                new DaemonThreadFactory("dynamodb-scan"));
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        try {
+            for (int segment = 0; segment < totalSegments; segment++) {
+                final int currentSegment = segment;
+                futures.add(executorService.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        scanSegment(tableName, conditions, attributesToGet, currentSegment, rateLimiter, consumer, count);
+                    }
+                }));
+            }
+            
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new AmazonClientException("Interrupted while scanning table " + tableName, ie);
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new AmazonClientException("Failed to scan table " + tableName, cause);
+        } finally {
+            executorService.shutdownNow();
+        }
+        
+        LOG.info("Scanned " + count.get() + " items from " + tableName + " in " + totalSegments + " segments");
+        return count.get();
+    }
+    
+    private void scanSegment(String tableName, Map<String, Condition> conditions, List<String> attributesToGet,
+            int segment, RateLimiter rateLimiter, ItemConsumer consumer, AtomicLong count) {
+        ScanRequest scanRequest = new ScanRequest(tableName)
+            .withScanFilter(conditions)
+            .withSegment(segment)
+            .withTotalSegments(totalSegments)
+            .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+        if (attributesToGet != null && !attributesToGet.isEmpty()) {
+            scanRequest.setAttributesToGet(attributesToGet);
+        }
+        
+        double consumedCapacity = 0;
+        ScanResult scanResult;
+        do {
+            // Pay for the previous page before reading the next one
+            if (rateLimiter != null && consumedCapacity > 0) {
+                try {
+                    rateLimiter.acquire(consumedCapacity);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new AmazonClientException("Interrupted while scanning segment " + segment 
+                            + " of table " + tableName, ie);
+                }
+            }
+            
+            if (Thread.currentThread().isInterrupted()) {
+                throw new AmazonClientException("Interrupted while scanning segment " + segment 
+                        + " of table " + tableName);
+            }
+            
+            scanResult = dynamoDBClient.scan(scanRequest);
+            for (Map<String, AttributeValue> item : scanResult.getItems()) {
+                consumer.consume(item);
+            }
+            count.addAndGet(scanResult.getItems().size());
+            
+            if (scanResult.getConsumedCapacity() != null) {
+                consumedCapacity = scanResult.getConsumedCapacity().getCapacityUnits();
+            }
+            scanRequest.setExclusiveStartKey(scanResult.getLastEvaluatedKey());
+        } while (scanResult.getLastEvaluatedKey() != null);
+        
+        LOG.info("Finished segment " + segment + " of " + totalSegments + " of table " + tableName);
+    }
+}
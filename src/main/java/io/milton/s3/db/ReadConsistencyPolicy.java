@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.db;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+
+/**
+ * Decides whether a read has to be strongly consistent. Reads are eventually
+ * consistent by default, which costs half the read capacity. An item written
+ * within the last moments is read strongly consistent though, so whoever wrote
+ * it reads the own write back instead of a stale copy.
+ * 
+ * Queries on a global secondary index always are eventually consistent, this
+ * policy only applies to reads by primary key.
+ */
+public class ReadConsistencyPolicy {
+
+    /**
+     * Number of write watermarks after which the expired ones are purged
+     */
+    private static final int PURGE_THRESHOLD = 10000;
+    
+    private final boolean isStrongByDefault;
+    
+    /**
+     * Time in milliseconds an item is read strongly consistent after it was
+     * written
+     */
+    private final long writeWindowMillis;
+    
+    /**
+     * Time of the last write of every recently written item
+     */
+    private final ConcurrentMap<String, Long> writeWatermarks = new ConcurrentHashMap<String, Long>();
+    
+    /**
+     * @param writeWindowMillis
+     *            - Time in milliseconds an item is read strongly consistent
+     *            after it was written. DynamoDB usually propagates a write to
+     *            all the replicas within a second
+     */
+    public ReadConsistencyPolicy(long writeWindowMillis) {
+        this(false, writeWindowMillis);
+    }
+    
+    private ReadConsistencyPolicy(boolean isStrongByDefault, long writeWindowMillis) {
+        this.isStrongByDefault = isStrongByDefault;
+        this.writeWindowMillis = writeWindowMillis;
+    }
+    
+    /**
+     * Policy reading every item strongly consistent
+     */
+    public static ReadConsistencyPolicy strong() {
+        return new ReadConsistencyPolicy(true, 0);
+    }
+    
+    /**
+     * Record that the item was just written
+     * 
+     * @param tableName
+     *            - The name of the table
+     * @param key
+     *            - The written item or its primary key
+     */
+    public void markWritten(String tableName, Map<String, AttributeValue> key) {
+        if (isStrongByDefault) {
+            return;
+        }
+        
+        long now = System.currentTimeMillis();
+        for (String identity : ItemKeys.identitiesOf(tableName, key)) {
+            writeWatermarks.put(identity, now);
+        }
+        if (writeWatermarks.size() > PURGE_THRESHOLD) {
+            purgeExpired(now);
+        }
+    }
+    
+    /**
+     * @param tableName
+     *            - The name of the table
+     * @param primaryKey
+     *            - The primary key of the item to read
+     * @return TRUE if the item has to be read strongly consistent, otherwise
+     *         FALSE
+     */
+    public boolean isConsistentRead(String tableName, Map<String, AttributeValue> primaryKey) {
+        if (isStrongByDefault) {
+            return true;
+        }
+        
+        long now = System.currentTimeMillis();
+        for (String identity : ItemKeys.identitiesOf(tableName, primaryKey)) {
+            Long writeWatermark = writeWatermarks.get(identity);
+            if (writeWatermark == null) {
+                continue;
+            }
+            
+            if (now - writeWatermark < writeWindowMillis) {
+                return true;
+            }
+            writeWatermarks.remove(identity, writeWatermark);
+        }
+        return false;
+    }
+    
+    private void purgeExpired(long now) {
+        for (Iterator<Map.Entry<String, Long>> iterator = writeWatermarks.entrySet().iterator(); iterator.hasNext();) {
+            if (now - iterator.next().getValue() >= writeWindowMillis) {
+                iterator.remove();
+            }
+        }
+    }
+}
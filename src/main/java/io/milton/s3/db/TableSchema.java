@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.db;
+
+/**
+ * Key layout of a table, chosen when the table is created
+ */
+public enum TableSchema {
+
+    /**
+     * Items are keyed by their unique UUID. The children of a folder are found
+     * through the ParentId index.
+     */
+    UNIQUE_ID,
+    
+    /**
+     * Items are keyed by the UUID of their parent and their name. A child is
+     * resolved by name with a single GetItem, and a folder is listed sorted by
+     * name with a Query on the table itself. Lookups by unique UUID go through
+     * the UniqueId index.
+     */
+    PARENT_NAME,
+    
+    /**
+     * Items are changes keyed by the minute they were made in and a sequence
+     * within the minute, see {@link io.milton.s3.changelog.DynamoDBChangeLog}
+     */
+    CHANGE_LOG
+}
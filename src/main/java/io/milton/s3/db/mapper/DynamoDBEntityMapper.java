@@ -23,8 +23,11 @@ import io.milton.s3.util.AttributeKey;
 import io.milton.s3.util.DateUtils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -32,41 +35,285 @@ import java.util.UUID;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
 
 public class DynamoDBEntityMapper {
+    
+    /**
+     * Items with string attributes, dates formatted by {@link DateUtils}
+     */
+    public static final int ITEM_VERSION_1 = 1;
+    
+    /**
+     * Items with short attribute names, dates as epoch milliseconds and the
+     * entity type in a flag bitfield
+     */
+    public static final int ITEM_VERSION_2 = 2;
+    
+    /**
+     * The attributes identifying an entity, enough to check it exists
+     */
+    public static final List<String> KEY_ATTRIBUTES = Collections.unmodifiableList(Arrays.asList(
+            AttributeKey.UUID, AttributeKey.PARENT_UUID, AttributeKey.ENTITY_NAME));
+    
+    /**
+     * The attributes needed to resolve an entity by name: its id, name and
+     * type. The dates, size and content type are loaded when accessed, which
+     * costs another read, so only use it where they are seldom needed. It does
+     * not save read capacity, which is charged on the size of the whole item
+     */
+    public static final List<String> SUMMARY_ATTRIBUTES = Collections.unmodifiableList(Arrays.asList(
+            AttributeKey.UUID, AttributeKey.PARENT_UUID, AttributeKey.ENTITY_NAME, AttributeKey.IS_DIRECTORY,
+            AttributeKey.VERSION, AttributeKey.FLAGS));
 
-	public static List<Entity> convertItemsToEntities(Folder parent, List<Map<String, AttributeValue>> items) {
-        if (items.isEmpty()) {
-            Collections.emptyList();
-        }
-        
-        List<Entity> childrens = new ArrayList<Entity>();
-        for (Map<String, AttributeValue> item : items) {
-        	Entity entity = convertItemToEntity(parent, item);
-            childrens.add(entity);
-        }
-        
-        return childrens;
+	/**
+	 * Map the items to entities while iterating, so the items are converted as
+	 * they stream in page by page
+	 * 
+	 * @param parent
+	 *             - parent folder of the entities
+	 * @param items
+	 *             - the items to map
+	 * @return a lazy iterator over the entities
+	 */
+	public static Iterator<Entity> convertItemsToEntities(Folder parent, 
+	        Iterator<Map<String, AttributeValue>> items) {
+	    return convertItemsToEntities(parent, items, null);
+	}
+	
+	/**
+	 * Map the items read with a projection to entities while iterating
+	 * 
+	 * @param parent
+	 *             - parent folder of the entities
+	 * @param items
+	 *             - the items to map
+	 * @param itemLoader
+	 *             - loads the attributes left out by the projection
+	 * @return a lazy iterator over the entities
+	 */
+	public static Iterator<Entity> convertItemsToEntities(final Folder parent, 
+	        final Iterator<Map<String, AttributeValue>> items, final ItemLoader itemLoader) {
+	    return new Iterator<Entity>() {
+	        @Override
+	        public boolean hasNext() {
+	            return items.hasNext();
+	        }
+	        
+	        @Override
+	        public Entity next() {
+	            return convertItemToEntity(parent, items.next(), itemLoader);
+	        }
+	        
+	        @Override
+	        public void remove() {
+	            items.remove();
+	        }
+	    };
     }
+	
+	public static List<Entity> toList(Iterator<Entity> entities) {
+	    if (!entities.hasNext()) {
+	        return Collections.emptyList();
+	    }
+	    
+	    List<Entity> childrens = new ArrayList<Entity>();
+	    while (entities.hasNext()) {
+	        childrens.add(entities.next());
+	    }
+	    return childrens;
+	}
     
 	public static Entity convertItemToEntity(Folder parent, Map<String, AttributeValue> item) {
+	    return convertItemToEntity(parent, item, null);
+	}
+	
+	/**
+	 * Map an item to an entity. An item read with a projection is mapped to a
+	 * partially populated entity, which loads the remaining attributes with the
+	 * given loader on first access.
+	 * 
+	 * @param parent
+	 *             - parent folder of the entity
+	 * @param item
+	 *             - the whole item, or at least its {@link #SUMMARY_ATTRIBUTES}
+	 * @param itemLoader
+	 *             - loads the whole item, can be null for whole items
+	 * @return the entity or null if the item is empty
+	 */
+	public static Entity convertItemToEntity(Folder parent, Map<String, AttributeValue> item, 
+	        ItemLoader itemLoader) {
 	    if (item == null || item.isEmpty()) {
 	        return null;
 	    }
 	    
-    	Date createdDate = DateUtils.dateFromString(item.get(AttributeKey.CREATED_DATE).getS());
-        Date modifiedDate = DateUtils.dateFromString(item.get(AttributeKey.MODIFIED_DATE).getS());
-        
-        String uniqueId = item.get(AttributeKey.UUID).getS();
-        String entityName = item.get(AttributeKey.ENTITY_NAME).getS();
-        if (Integer.valueOf(item.get(AttributeKey.IS_DIRECTORY).getN()) == 1) {
-			Folder folder = new Folder(UUID.fromString(uniqueId), entityName,
-					createdDate, modifiedDate, parent);
-            return folder;
-        } else {
-			File file = new File(UUID.fromString(uniqueId), entityName,
-					createdDate, modifiedDate, parent);
-            file.setContentType(item.get(AttributeKey.CONTENT_TYPE).getS());
-            file.setSize(new Long(item.get(AttributeKey.FILE_SIZE).getN()));
-            return file;
-        }
+	    UUID uniqueId = UUID.fromString(item.get(AttributeKey.UUID).getS());
+	    String entityName = item.get(AttributeKey.ENTITY_NAME).getS();
+	    if (!isWholeItem(item)) {
+	        if (isDirectory(item)) {
+	            return new PartialFolder(uniqueId, entityName, parent, itemLoader);
+	        }
+	        return new PartialFile(uniqueId, entityName, parent, itemLoader);
+	    }
+	    
+	    Date createdDate = getCreatedDate(item);
+	    Date modifiedDate = getModifiedDate(item);
+	    if (isDirectory(item)) {
+	        return new Folder(uniqueId, entityName, createdDate, modifiedDate, parent);
+	    }
+	    
+	    File file = new File(uniqueId, entityName, createdDate, modifiedDate, parent);
+	    file.setContentType(getContentType(item));
+	    file.setSize(getSize(item));
+	    file.setETag(getETag(item));
+	    return file;
     }
+	
+	/**
+	 * Map an entity to an item in the given encoding
+	 * 
+	 * @param entity
+	 *             - the entity to store
+	 * @param itemVersion
+	 *             - {@link #ITEM_VERSION_1} or {@link #ITEM_VERSION_2}
+	 * @return the new item
+	 */
+	public static Map<String, AttributeValue> convertEntityToItem(Entity entity, int itemVersion) {
+	    Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
+	    item.put(AttributeKey.UUID, new AttributeValue().withS(entity.getId().toString()));
+	    item.put(AttributeKey.ENTITY_NAME, new AttributeValue().withS(entity.getName()));
+	    
+	    // Get folder parent UUID
+	    String parentUniqueId = AttributeKey.NOT_EXIST;
+	    Folder folder = entity.getParent();
+	    if (folder != null) {
+	        parentUniqueId = folder.getId().toString();
+	    }
+	    item.put(AttributeKey.PARENT_UUID, new AttributeValue().withS(parentUniqueId));
+	    
+	    long fileSize = 0;
+	    String contentType = null;
+	    String eTag = null;
+	    if (entity instanceof File) {
+	        fileSize = ((File) entity).getSize();
+	        contentType = ((File) entity).getContentType();
+	        eTag = ((File) entity).getETag();
+	    }
+	    
+	    if (itemVersion == ITEM_VERSION_1) {
+	        item.put(AttributeKey.IS_DIRECTORY, new AttributeValue()
+	                .withN(Integer.toString(entity.isDirectory() ? 1 : 0)));
+	        item.put(AttributeKey.FILE_SIZE, new AttributeValue().withN(Integer.toString((int) fileSize)));
+	        item.put(AttributeKey.CONTENT_TYPE, new AttributeValue()
+	                .withS(contentType != null ? contentType : AttributeKey.NOT_EXIST));
+	        item.put(AttributeKey.CREATED_DATE, new AttributeValue()
+	                .withS(DateUtils.dateToString(entity.getCreatedDate())));
+	        item.put(AttributeKey.MODIFIED_DATE, new AttributeValue()
+	                .withS(DateUtils.dateToString(entity.getModifiedDate())));
+	        if (eTag != null) {
+	            item.put(AttributeKey.ETAG, new AttributeValue().withS(eTag));
+	        }
+	        return item;
+	    }
+	    
+	    int flags = 0;
+	    if (entity.isDirectory()) {
+	        flags |= AttributeKey.FLAG_DIRECTORY;
+	    }
+	    item.put(AttributeKey.VERSION, new AttributeValue().withN(Integer.toString(ITEM_VERSION_2)));
+	    item.put(AttributeKey.FLAGS, new AttributeValue().withN(Integer.toString(flags)));
+	    item.put(AttributeKey.CREATED, new AttributeValue().withN(Long.toString(entity.getCreatedDate().getTime())));
+	    item.put(AttributeKey.MODIFIED, new AttributeValue().withN(Long.toString(entity.getModifiedDate().getTime())));
+	    if (!entity.isDirectory()) {
+	        item.put(AttributeKey.SIZE, new AttributeValue().withN(Long.toString(fileSize)));
+	        if (contentType != null) {
+	            item.put(AttributeKey.TYPE, new AttributeValue().withS(contentType));
+	        }
+	        if (eTag != null) {
+	            item.put(AttributeKey.TAG, new AttributeValue().withS(eTag));
+	        }
+	    }
+	    return item;
+	}
+	
+	/**
+	 * @return the encoding of the given item
+	 */
+	public static int getItemVersion(Map<String, AttributeValue> item) {
+	    AttributeValue version = item.get(AttributeKey.VERSION);
+	    if (version == null) {
+	        return ITEM_VERSION_1;
+	    }
+	    return Integer.parseInt(version.getN());
+	}
+	
+	public static boolean isDirectory(Map<String, AttributeValue> item) {
+	    if (getItemVersion(item) == ITEM_VERSION_1) {
+	        return Integer.parseInt(item.get(AttributeKey.IS_DIRECTORY).getN()) == 1;
+	    }
+	    return (Integer.parseInt(item.get(AttributeKey.FLAGS).getN()) & AttributeKey.FLAG_DIRECTORY) != 0;
+	}
+	
+	static boolean isWholeItem(Map<String, AttributeValue> item) {
+	    if (getItemVersion(item) == ITEM_VERSION_1) {
+	        return item.containsKey(AttributeKey.CREATED_DATE);
+	    }
+	    return item.containsKey(AttributeKey.CREATED);
+	}
+	
+	static Date getCreatedDate(Map<String, AttributeValue> item) {
+	    if (getItemVersion(item) == ITEM_VERSION_1) {
+	        return DateUtils.dateFromString(item.get(AttributeKey.CREATED_DATE).getS());
+	    }
+	    return new Date(Long.parseLong(item.get(AttributeKey.CREATED).getN()));
+	}
+	
+	static Date getModifiedDate(Map<String, AttributeValue> item) {
+	    if (getItemVersion(item) == ITEM_VERSION_1) {
+	        return DateUtils.dateFromString(item.get(AttributeKey.MODIFIED_DATE).getS());
+	    }
+	    return new Date(Long.parseLong(item.get(AttributeKey.MODIFIED).getN()));
+	}
+	
+	static String getContentType(Map<String, AttributeValue> item) {
+	    AttributeValue contentType;
+	    if (getItemVersion(item) == ITEM_VERSION_1) {
+	        contentType = item.get(AttributeKey.CONTENT_TYPE);
+	    } else {
+	        contentType = item.get(AttributeKey.TYPE);
+	    }
+	    return contentType != null ? contentType.getS() : null;
+	}
+	
+	static String getETag(Map<String, AttributeValue> item) {
+	    AttributeValue eTag;
+	    if (getItemVersion(item) == ITEM_VERSION_1) {
+	        eTag = item.get(AttributeKey.ETAG);
+	    } else {
+	        eTag = item.get(AttributeKey.TAG);
+	    }
+	    return eTag != null ? eTag.getS() : null;
+	}
+	
+	static long getSize(Map<String, AttributeValue> item) {
+	    AttributeValue size;
+	    if (getItemVersion(item) == ITEM_VERSION_1) {
+	        size = item.get(AttributeKey.FILE_SIZE);
+	    } else {
+	        size = item.get(AttributeKey.SIZE);
+	    }
+	    return size != null ? Long.parseLong(size.getN()) : 0;
+	}
+	
+	/**
+	 * Reference to the parent folder of the item, for the items read without
+	 * walking down from the root folder. The folder only carries its UUID.
+	 * 
+	 * @param item
+	 * @return the parent folder or null for the root folder
+	 */
+	public static Folder convertItemToParent(Map<String, AttributeValue> item) {
+	    String parentId = item.get(AttributeKey.PARENT_UUID).getS();
+	    if (AttributeKey.NOT_EXIST.equals(parentId)) {
+	        return null;
+	    }
+	    return new Folder(UUID.fromString(parentId), null, null, null, null);
+	}
 }
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.db.mapper;
+
+import io.milton.s3.model.File;
+import io.milton.s3.model.Folder;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.UUID;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+
+/**
+ * File read with a projection, the dates, size, content type and ETag are
+ * loaded on first access
+ */
+class PartialFile extends File {
+
+    private final PartialItem partialItem;
+    
+    /**
+     * Whether the loaded attributes were set, guarded by this
+     */
+    private boolean isLoaded;
+    
+    PartialFile(UUID id, String name, Folder parent, ItemLoader itemLoader) {
+        this(id, name, parent, new PartialItem(itemLoader, id));
+    }
+    
+    private PartialFile(UUID id, String name, Folder parent, PartialItem partialItem) {
+        super(id, name, null, null, parent);
+        this.partialItem = partialItem;
+    }
+    
+    @Override
+    public Date getCreatedDate() {
+        load();
+        return super.getCreatedDate();
+    }
+    
+    @Override
+    public Date getModifiedDate() {
+        load();
+        return super.getModifiedDate();
+    }
+    
+    @Override
+    public long getSize() {
+        load();
+        return super.getSize();
+    }
+    
+    @Override
+    public void setSize(long size) {
+        load();
+        super.setSize(size);
+    }
+    
+    @Override
+    public String getContentType() {
+        load();
+        return super.getContentType();
+    }
+    
+    @Override
+    public void setContentType(String contentType) {
+        load();
+        super.setContentType(contentType);
+    }
+    
+    @Override
+    public String getETag() {
+        load();
+        return super.getETag();
+    }
+    
+    @Override
+    public void setETag(String eTag) {
+        load();
+        super.setETag(eTag);
+    }
+    
+    /**
+     * The copy shares the item loaded for this file, so it is read only once
+     */
+    @Override
+    public synchronized File copy() {
+        PartialFile copy = new PartialFile(getId(), getName(), getParent(), partialItem);
+        copy.setCreatedDate(copyDate(super.getCreatedDate()));
+        copy.setModifiedDate(copyDate(super.getModifiedDate()));
+        if (isLoaded) {
+            copy.isLoaded = true;
+            copy.setSize(super.getSize());
+            copy.setContentType(super.getContentType());
+            copy.setETag(super.getETag());
+        }
+        return copy;
+    }
+    
+    @Override
+    public String toString() {
+        // Do not load the remaining attributes just for logging
+        return "Entity [id=" + getId() + ", name=" + getName()
+                + ", createdDate=" + super.getCreatedDate() + ", modifiedDate="
+                + super.getModifiedDate() + ", isDirectory=" + isDirectory()
+                + ", parent=" + getParent() + ", size=" + super.getSize()
+                + ", contentType=" + super.getContentType() + ", eTag=" + super.getETag() + "]";
+    }
+    
+    private synchronized void load() {
+        if (isLoaded) {
+            return;
+        }
+        
+        Map<String, AttributeValue> item = partialItem.load();
+        isLoaded = true;
+        if (item.isEmpty()) {
+            return;
+        }
+        
+        // Keep the values set since the entity was read
+        if (super.getCreatedDate() == null) {
+            setCreatedDate(DynamoDBEntityMapper.getCreatedDate(item));
+        }
+        if (super.getModifiedDate() == null) {
+            setModifiedDate(DynamoDBEntityMapper.getModifiedDate(item));
+        }
+        super.setContentType(DynamoDBEntityMapper.getContentType(item));
+        super.setSize(DynamoDBEntityMapper.getSize(item));
+        super.setETag(DynamoDBEntityMapper.getETag(item));
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.db.mapper;
+
+import io.milton.s3.model.Folder;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.UUID;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+
+/**
+ * Folder read with a projection, the dates are loaded on first access
+ */
+class PartialFolder extends Folder {
+
+    private final PartialItem partialItem;
+    
+    /**
+     * Whether the loaded attributes were set, guarded by this
+     */
+    private boolean isLoaded;
+    
+    PartialFolder(UUID id, String name, Folder parent, ItemLoader itemLoader) {
+        this(id, name, parent, new PartialItem(itemLoader, id));
+    }
+    
+    private PartialFolder(UUID id, String name, Folder parent, PartialItem partialItem) {
+        super(id, name, null, null, parent);
+        this.partialItem = partialItem;
+    }
+    
+    @Override
+    public Date getCreatedDate() {
+        load();
+        return super.getCreatedDate();
+    }
+    
+    @Override
+    public Date getModifiedDate() {
+        load();
+        return super.getModifiedDate();
+    }
+    
+    /**
+     * The copy shares the item loaded for this folder, so it is read only once
+     */
+    @Override
+    public synchronized Folder copy() {
+        PartialFolder copy = new PartialFolder(getId(), getName(), getParent(), partialItem);
+        copy.setCreatedDate(copyDate(super.getCreatedDate()));
+        copy.setModifiedDate(copyDate(super.getModifiedDate()));
+        copy.isLoaded = isLoaded;
+        return copy;
+    }
+    
+    private synchronized void load() {
+        if (isLoaded) {
+            return;
+        }
+        
+        Map<String, AttributeValue> item = partialItem.load();
+        isLoaded = true;
+        if (item.isEmpty()) {
+            return;
+        }
+        
+        // Keep the values set since the entity was read
+        if (super.getCreatedDate() == null) {
+            setCreatedDate(DynamoDBEntityMapper.getCreatedDate(item));
+        }
+        if (super.getModifiedDate() == null) {
+            setModifiedDate(DynamoDBEntityMapper.getModifiedDate(item));
+        }
+    }
+}
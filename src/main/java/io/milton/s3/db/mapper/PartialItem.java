@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.db.mapper;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+
+/**
+ * The remaining attributes of an entity read with a projection. They are loaded
+ * at most once, on first access, and shared by the copies of the entity.
+ */
+class PartialItem {
+
+    private final ItemLoader itemLoader;
+    
+    private final UUID uniqueId;
+    
+    private Map<String, AttributeValue> item;
+    
+    PartialItem(ItemLoader itemLoader, UUID uniqueId) {
+        this.itemLoader = itemLoader;
+        this.uniqueId = uniqueId;
+    }
+    
+    /**
+     * @return the whole item, an empty map if it does not exist any more
+     */
+    synchronized Map<String, AttributeValue> load() {
+        if (item != null) {
+            return item;
+        }
+        
+        if (itemLoader == null) {
+            item = Collections.emptyMap();
+        } else {
+            item = itemLoader.loadItem(uniqueId.toString());
+        }
+        return item;
+    }
+}
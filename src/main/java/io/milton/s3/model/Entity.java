@@ -119,6 +119,20 @@ public class Entity {
         this.parent = parent;
     }
 
+	/**
+	 * @return a copy of the entity, which can be changed without changing this
+	 *         entity. The copy has the same parent
+	 */
+	public Entity copy() {
+	    Entity copy = new Entity(id, name, copyDate(createdDate), copyDate(modifiedDate), parent);
+	    copy.isDirectory = isDirectory;
+	    return copy;
+	}
+	
+	protected static Date copyDate(Date date) {
+	    return date != null ? new Date(date.getTime()) : null;
+	}
+
 	@Override
 	public String toString() {
 		return "Entity [id=" + id + ", name=" + name + ", createdDate="
@@ -24,6 +24,8 @@ public class File extends Entity {
     private long size;
     
     private String contentType;
+    
+    private String eTag;
 
     public File(String fileName, Folder parent) {
         super(fileName, parent);
@@ -52,13 +54,35 @@ public class File extends Entity {
         this.contentType = contentType;
     }
     
+    /**
+     * @return the ETag Amazon S3 returned for the content, null if it is not
+     *         known
+     */
+    public String getETag() {
+        return eTag;
+    }
+    
+    public void setETag(String eTag) {
+        this.eTag = eTag;
+    }
+    
+    @Override
+    public File copy() {
+        File copy = new File(getId(), getName(), copyDate(getCreatedDate()), copyDate(getModifiedDate()), 
+                getParent());
+        copy.size = getSize();
+        copy.contentType = getContentType();
+        copy.eTag = getETag();
+        return copy;
+    }
+    
     @Override
 	public String toString() {
 		return "Entity [id=" + getId() + ", name=" + getName()
 				+ ", createdDate=" + getCreatedDate() + ", modifiedDate="
 				+ getModifiedDate() + ", isDirectory=" + isDirectory()
 				+ ", parent=" + getParent() + ", size=" + getSize()
-				+ ", contentType=" + getContentType() + "]";
+				+ ", contentType=" + getContentType() + ", eTag=" + getETag() + "]";
 	}
     
 }
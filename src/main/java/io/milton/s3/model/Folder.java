@@ -30,6 +30,11 @@ public class Folder extends Entity {
     	super(id, name, createdDate, modifiedDate, parent);
 	}
 
+    @Override
+    public Folder copy() {
+        return new Folder(getId(), getName(), copyDate(getCreatedDate()), copyDate(getModifiedDate()), getParent());
+    }
+
     public File addFile(final String fileName) {
         File file = new File(fileName, this);
         file.setDirectory(false);
@@ -17,6 +17,7 @@
 package io.milton.s3.service;
 
 import io.milton.s3.model.Entity;
+import io.milton.s3.model.File;
 import io.milton.s3.model.Folder;
 
 import java.io.InputStream;
@@ -47,6 +48,20 @@ public interface AmazonStorageService {
     
     Entity findEntityByUniqueId(String bucketName, Entity entity);
     
+    /**
+     * Resolve a child of the given folder by its name, without listing the
+     * folder
+     * 
+     * @param bucketName
+     *              - the bucket name
+     * @param parent
+     *              - the folder
+     * @param name
+     *              - the name of the child
+     * @return the child or null if the folder has no child of the given name
+     */
+    Entity findEntityByName(String bucketName, Folder parent, String name);
+    
     List<Entity> findEntityByParent(String bucketName, Folder parent);
     
     boolean putEntity(String bucketName, Entity entity, InputStream inputStream);
@@ -59,7 +74,50 @@ public interface AmazonStorageService {
     
     boolean deleteEntityByUniqueId(String bucketName, String uniqueId);
     
+    /**
+     * Delete the given file or folder, as deleteEntityByUniqueId does, without
+     * looking up its parent folder first
+     * 
+     * @param bucketName
+     *              - the bucket name
+     * @param entity
+     *              - the file or folder to delete
+     */
+    boolean deleteEntity(String bucketName, Entity entity);
+    
     boolean downloadEntityByUniqueId(String bucketName, String keyNotAvailable, java.io.File destinationFile);
     
     InputStream downloadEntityByUniqueId(String bucketName, String keyName);
+    
+    /**
+     * Get the content of the given file, from the local content cache if it
+     * holds the current version of the file
+     * 
+     * @param bucketName
+     *              - the bucket name
+     * @param file
+     *              - the file to download
+     * @return the content of the file, null if it could not be downloaded
+     */
+    InputStream downloadEntity(String bucketName, File file);
+    
+    /**
+     * Get a byte range of the content of the given file, e.g. for a ranged
+     * GET. The range is read from the local content caches if they hold the
+     * current version of the file, otherwise only the range is read from
+     * Amazon S3
+     * 
+     * @param bucketName
+     *              - the bucket name
+     * @param file
+     *              - the file to download
+     * @param start
+     *              - the position of the first byte
+     * @param end
+     *              - the position of the last byte, inclusive. Ranges past the
+     *              end of the file end with the file
+     * @return the bytes of the range, null if they could not be downloaded or
+     *         if the range starts past the end of the file
+     */
+    InputStream downloadEntity(String bucketName, File file, long start, long end);
 }
@@ -20,25 +20,121 @@ import io.milton.s3.AmazonS3Manager;
 import io.milton.s3.AmazonS3ManagerImpl;
 import io.milton.s3.DynamoDBManager;
 import io.milton.s3.DynamoDBManagerImpl;
+import io.milton.s3.EntityConsumer;
+import io.milton.s3.cache.AccessCounter;
+import io.milton.s3.cache.BloomFilter;
+import io.milton.s3.cache.ContentCache;
+import io.milton.s3.cache.Generations;
+import io.milton.s3.cache.LruCache;
+import io.milton.s3.cache.OffHeapCache;
+import io.milton.s3.changelog.Change;
+import io.milton.s3.changelog.ChangeListener;
 import io.milton.s3.model.Entity;
 import io.milton.s3.model.File;
 import io.milton.s3.model.Folder;
+import io.milton.s3.util.DaemonThreadFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.regions.Region;
 import com.amazonaws.services.s3.model.Bucket;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
 
-public class AmazonStorageServiceImpl implements AmazonStorageService {
+public class AmazonStorageServiceImpl implements AmazonStorageService, ChangeListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AmazonStorageServiceImpl.class);
 	
+    /**
+     * Number of files deleted per request when deleting a bucket
+     */
+    private static final int DELETE_BATCH_SIZE = 1000;
+    
+    /**
+     * Default maximum number of folder listings kept in memory
+     */
+    private static final int LISTING_CACHE_SIZE = 1000;
+    
+    /**
+     * Default time in milliseconds a folder listing is kept in memory. Listings
+     * are invalidated by the writes through this service, the time to live
+     * bounds how long the changes made by other nodes go unnoticed
+     */
+    private static final long LISTING_CACHE_TTL = 5000;
+    
+    /**
+     * Default time in milliseconds before expiring from which a listing which
+     * is still read is reloaded in the background
+     */
+    private static final long LISTING_CACHE_REFRESH_AHEAD = 1000;
+    
+    /**
+     * Default time in milliseconds after expiring a listing or resolved path
+     * is still served while Amazon S3 or Amazon DynamoDB fail
+     */
+    private static final long MAX_STALE = 300000;
+    
+    /**
+     * Default maximum number of resolved paths kept in memory
+     */
+    private static final int PATH_CACHE_SIZE = 10000;
+    
+    /**
+     * Default time in milliseconds a resolved path is kept in memory
+     */
+    private static final long PATH_CACHE_TTL = 10000;
+    
+    /**
+     * Default maximum number of folders whose child names are kept in a Bloom
+     * filter
+     */
+    private static final int NAME_FILTER_CACHE_SIZE = 1000;
+    
+    /**
+     * Default time in milliseconds the child names of a folder are kept, which
+     * bounds how long the children created by other nodes are not found
+     */
+    private static final long NAME_FILTER_CACHE_TTL = 5000;
+    
+    /**
+     * False positive probability of the child name filters
+     */
+    private static final double NAME_FILTER_FPP = 0.01;
+    
+    /**
+     * Maximum number of folder listings waiting to be prefetched, further
+     * prefetches are dropped
+     */
+    private static final int PREFETCH_QUEUE_SIZE = 100;
+    
+    /**
+     * Number of counters the invalidations of the folder listings are counted
+     * by
+     */
+    private static final int LISTING_GENERATIONS_SIZE = 4096;
+    
     /**
      * Amazon DynamoDB Storage
      */
@@ -49,11 +145,326 @@ public class AmazonStorageServiceImpl implements AmazonStorageService {
      */
     private final AmazonS3Manager amazonS3Manager;
     
+    /**
+     * Children of the recently listed folders, keyed by bucket name and folder
+     * UUID
+     */
+    private volatile LruCache<String, List<Entity>> listingCache = new LruCache<String, List<Entity>>(
+            LISTING_CACHE_SIZE, LISTING_CACHE_TTL, LISTING_CACHE_REFRESH_AHEAD, MAX_STALE);
+    
+    /**
+     * Invalidations of the folder listings, keyed like the listings, so a
+     * listing, child names or child read while the folder was changed are not
+     * cached
+     */
+    private final Generations listingGenerations = new Generations(LISTING_GENERATIONS_SIZE);
+    
+    /**
+     * Entities resolved by path, keyed by bucket name and the names of the
+     * entity and its ancestors. The parents of a cached entity are the chain of
+     * its resolved ancestors
+     */
+    private volatile LruCache<String, Entity> pathCache = new LruCache<String, Entity>(
+            PATH_CACHE_SIZE, PATH_CACHE_TTL, 0, MAX_STALE);
+    
+    /**
+     * Names of the children of the recently looked up folders, keyed by bucket
+     * name and folder UUID. Answers that a name definitely does not exist,
+     * e.g. for the ._* and .DS_Store files clients probe for
+     */
+    private volatile LruCache<String, BloomFilter> nameFilterCache = new LruCache<String, BloomFilter>(
+            NAME_FILTER_CACHE_SIZE, NAME_FILTER_CACHE_TTL);
+    
+    /**
+     * Content of the recently downloaded files on local disk, keyed by bucket
+     * name and object key. Disabled unless set
+     */
+    private volatile ContentCache contentCache;
+    
+    /**
+     * Content of the recently downloaded small files in memory outside of the
+     * heap, in front of the content cache. Disabled unless set
+     */
+    private volatile OffHeapCache smallContentCache;
+    
+    /**
+     * Reads the uploads of unknown length to the end before they are sent to
+     * Amazon S3, null to send them as they are read
+     */
+    private volatile UploadSpooler uploadSpooler;
+    
+    /**
+     * Counts the listings of every folder by path, keyed like the path cache.
+     * Null if the listings are not counted
+     */
+    private volatile AccessCounter accessCounter;
+    
+    /**
+     * Loads the listings of the subfolders of every listed folder and the
+     * listings about to expire in the background, null if they are not
+     * prefetched
+     */
+    private volatile ThreadPoolExecutor prefetchExecutor;
+    
+    /**
+     * Listing keys of the folders being prefetched or refreshed
+     */
+    private final ConcurrentMap<String, Boolean> prefetchingKeys = new ConcurrentHashMap<String, Boolean>();
+    
     public AmazonStorageServiceImpl(Region region) {
         dynamoDBManager = new DynamoDBManagerImpl(region);
         amazonS3Manager = new AmazonS3ManagerImpl(region);
     }
     
+    public AmazonStorageServiceImpl(DynamoDBManager dynamoDBManager, AmazonS3Manager amazonS3Manager) {
+        this.dynamoDBManager = dynamoDBManager;
+        this.amazonS3Manager = amazonS3Manager;
+    }
+    
+    /**
+     * Set the size and time to live of the folder listing cache
+     * 
+     * @param maxListings
+     *            - the maximum number of folder listings kept in memory, 0 to
+     *            read every listing from Amazon S3 and Amazon DynamoDB
+     * @param ttlMillis
+     *            - the time in milliseconds a listing is kept in memory
+     */
+    public void setListingCache(int maxListings, long ttlMillis) {
+        setListingCache(maxListings, ttlMillis, 0, 0);
+    }
+    
+    /**
+     * Set the size and time to live of the folder listing cache, and how the
+     * listings are refreshed and kept after expiring
+     * 
+     * @param maxListings
+     *            - the maximum number of folder listings kept in memory, 0 to
+     *            read every listing from Amazon S3 and Amazon DynamoDB
+     * @param ttlMillis
+     *            - the time in milliseconds a listing is kept in memory
+     * @param refreshAheadMillis
+     *            - the time in milliseconds before expiring from which a
+     *            listing read is reloaded in the background, 0 to not reload
+     *            listings before they expire
+     * @param maxStaleMillis
+     *            - the time in milliseconds after expiring a listing is still
+     *            served when it cannot be read again, 0 to fail instead
+     */
+    public void setListingCache(int maxListings, long ttlMillis, long refreshAheadMillis, long maxStaleMillis) {
+        listingCache = maxListings > 0 ? new LruCache<String, List<Entity>>(maxListings, ttlMillis, 
+                refreshAheadMillis, maxStaleMillis) : null;
+    }
+    
+    /**
+     * @return the folder listing cache, null if listings are not cached
+     */
+    public LruCache<String, List<Entity>> getListingCache() {
+        return listingCache;
+    }
+    
+    /**
+     * Set the size and time to live of the path resolution cache
+     * 
+     * @param maxPaths
+     *            - the maximum number of resolved paths kept in memory, 0 to
+     *            resolve every path from Amazon DynamoDB
+     * @param ttlMillis
+     *            - the time in milliseconds a resolved path is kept in memory
+     */
+    public void setPathCache(int maxPaths, long ttlMillis) {
+        setPathCache(maxPaths, ttlMillis, 0);
+    }
+    
+    /**
+     * Set the size and time to live of the path resolution cache, and how long
+     * the resolved paths are kept after expiring
+     * 
+     * @param maxPaths
+     *            - the maximum number of resolved paths kept in memory, 0 to
+     *            resolve every path from Amazon DynamoDB
+     * @param ttlMillis
+     *            - the time in milliseconds a resolved path is kept in memory
+     * @param maxStaleMillis
+     *            - the time in milliseconds after expiring a resolved path is
+     *            still served when it cannot be resolved again, 0 to fail
+     *            instead
+     */
+    public void setPathCache(int maxPaths, long ttlMillis, long maxStaleMillis) {
+        pathCache = maxPaths > 0 ? new LruCache<String, Entity>(maxPaths, ttlMillis, 0, maxStaleMillis) : null;
+    }
+    
+    /**
+     * @return the path resolution cache, null if paths are not cached
+     */
+    public LruCache<String, Entity> getPathCache() {
+        return pathCache;
+    }
+    
+    /**
+     * Set the size and time to live of the negative lookup cache, which keeps
+     * the child names of folders in Bloom filters
+     * 
+     * @param maxFolders
+     *            - the maximum number of folders whose child names are kept, 0
+     *            to look up every name in Amazon DynamoDB
+     * @param ttlMillis
+     *            - the time in milliseconds the child names are kept
+     */
+    public void setNameFilterCache(int maxFolders, long ttlMillis) {
+        nameFilterCache = maxFolders > 0 ? new LruCache<String, BloomFilter>(maxFolders, ttlMillis) : null;
+    }
+    
+    /**
+     * @return the negative lookup cache, null if it is disabled
+     */
+    public LruCache<String, BloomFilter> getNameFilterCache() {
+        return nameFilterCache;
+    }
+    
+    /**
+     * Set the local disk cache of file content served by downloadEntity
+     * 
+     * @param contentCache
+     *            - the content cache, null to download every file from Amazon
+     *            S3
+     */
+    public void setContentCache(ContentCache contentCache) {
+        this.contentCache = contentCache;
+    }
+    
+    /**
+     * @return the content cache, null if file content is not cached
+     */
+    public ContentCache getContentCache() {
+        return contentCache;
+    }
+    
+    /**
+     * Set the in memory cache of the content of small files served by
+     * downloadEntity. Files up to its maximum value size are read whole
+     * 
+     * @param smallContentCache
+     *            - the small file content cache, null to not keep file content
+     *            in memory
+     */
+    public void setSmallContentCache(OffHeapCache smallContentCache) {
+        this.smallContentCache = smallContentCache;
+    }
+    
+    /**
+     * @return the small file content cache, null if it is disabled
+     */
+    public OffHeapCache getSmallContentCache() {
+        return smallContentCache;
+    }
+    
+    /**
+     * Set the spooler of the uploads of unknown length, e.g. chunked PUTs.
+     * Without one their content is sent to Amazon S3 as it is read, and their
+     * size is not known
+     * 
+     * @param uploadSpooler
+     *            - the upload spooler, null to not spool uploads
+     */
+    public void setUploadSpooler(UploadSpooler uploadSpooler) {
+        this.uploadSpooler = uploadSpooler;
+    }
+    
+    public UploadSpooler getUploadSpooler() {
+        return uploadSpooler;
+    }
+    
+    /**
+     * Count the listings of every folder, e.g. to warm up the caches with the
+     * most listed folders after a restart
+     * 
+     * @param accessCounter
+     *            - the access counter, null to not count the listings
+     */
+    public void setAccessCounter(AccessCounter accessCounter) {
+        this.accessCounter = accessCounter;
+    }
+    
+    public AccessCounter getAccessCounter() {
+        return accessCounter;
+    }
+    
+    /**
+     * Load the listings of the subfolders of every listed folder in the
+     * background, as users often open a subfolder next. The same threads
+     * reload the listings about to expire
+     * 
+     * @param maxThreads
+     *            - the maximum number of listings loaded at the same time, 0
+     *            to not prefetch listings
+     */
+    public void setPrefetchThreads(int maxThreads) {
+        ThreadPoolExecutor oldExecutor = prefetchExecutor;
+        if (maxThreads > 0) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS, 
+                    new LinkedBlockingQueue<Runnable>(PREFETCH_QUEUE_SIZE), 
+                    new DaemonThreadFactory("listing-prefetch"));
+            executor.allowCoreThreadTimeOut(true);
+            prefetchExecutor = executor;
+        } else {
+            prefetchExecutor = null;
+        }
+        if (oldExecutor != null) {
+            oldExecutor.shutdown();
+        }
+    }
+    
+    /**
+     * Load the root folder, the listing of the root folder and the listings of
+     * the most listed folders of the bucket into the caches, e.g. right after
+     * startup. The listings are kept for the given time rather than the time
+     * to live of the listing cache, so they are still cached when the first
+     * requests arrive; writes and the change log invalidate them as usual
+     * 
+     * @param bucketName
+     *            - the bucket name
+     * @param maxFolders
+     *            - the maximum number of folders whose listings are loaded
+     * @param ttlMillis
+     *            - the time in milliseconds the loaded listings are kept
+     * @return the number of listings loaded
+     */
+    public int warmUp(String bucketName, int maxFolders, long ttlMillis) {
+        Folder rootFolder = findRootFolder(bucketName);
+        loadListing(bucketName, rootFolder, ttlMillis);
+        int loaded = 1;
+        
+        AccessCounter accessCounter = this.accessCounter;
+        if (accessCounter == null) {
+            return loaded;
+        }
+        
+        String bucketKey = getPathKey(bucketName, "");
+        for (String key : accessCounter.getTopKeys(maxFolders)) {
+            if (loaded >= maxFolders) {
+                break;
+            }
+            if (!key.startsWith(bucketKey) || key.length() == bucketKey.length()) {
+                continue;
+            }
+            
+            // Resolve the folder by path, which also caches its ancestors
+            Entity entity = rootFolder;
+            for (String name : key.substring(bucketKey.length() + 1).split("/")) {
+                entity = findEntityByName(bucketName, (Folder) entity, name);
+                if (!(entity instanceof Folder)) {
+                    break;
+                }
+            }
+            if (entity instanceof Folder) {
+                loadListing(bucketName, (Folder) entity, ttlMillis);
+                loaded++;
+            }
+        }
+        return loaded;
+    }
+    
     @Override
     public Bucket createBucket(String bucketName) {
         Bucket bucket = amazonS3Manager.createBucket(bucketName);
@@ -69,11 +480,46 @@ public class AmazonStorageServiceImpl implements AmazonStorageService {
     }
     
     @Override
-	public void deleteBucket(String bucketName) {
+	public void deleteBucket(final String bucketName) {
+        // Walk all the entities in parallel to delete their files, as the
+        // bucket only can be deleted once it is empty
+        final List<String> keyNames = new ArrayList<String>();
+        boolean isScanned = dynamoDBManager.scanEntities(bucketName, new EntityConsumer() {
+            @Override
+            public void consume(Entity entity) {
+                if (!(entity instanceof File)) {
+                    return;
+                }
+                
+                List<String> batch = null;
+                synchronized (keyNames) {
+                    keyNames.add(getAmazonS3UniqueKey(entity));
+                    if (keyNames.size() >= DELETE_BATCH_SIZE) {
+                        batch = new ArrayList<String>(keyNames);
+                        keyNames.clear();
+                    }
+                }
+                if (batch != null) {
+                    amazonS3Manager.deleteEntities(bucketName, batch);
+                }
+            }
+        });
+        if (!isScanned) {
+            // Dropping the table now would orphan the files not yet deleted
+            LOG.error("Failed to scan the entities of " + bucketName + ", the bucket is not deleted");
+            invalidateBucket(bucketName);
+            return;
+        }
+        if (!keyNames.isEmpty()) {
+            amazonS3Manager.deleteEntities(bucketName, keyNames);
+        }
+        
     	// Deletes the specified bucket in Amazon S3
     	if (amazonS3Manager.deleteBucket(bucketName)) {
     		dynamoDBManager.deleteTable(bucketName);
     	}
+    	
+    	invalidateBucket(bucketName);
 	}
     
     @Override
@@ -99,26 +545,240 @@ public class AmazonStorageServiceImpl implements AmazonStorageService {
         return dynamoDBManager.findEntityByUniqueId(bucketName, entity);
     }
 
+    @Override
+    public Entity findEntityByName(String bucketName, Folder parent, String name) {
+        if (parent == null || StringUtils.isEmpty(name)) {
+            return null;
+        }
+        
+        LruCache<String, Entity> pathCache = this.pathCache;
+        String parentPath = getEntityPath(parent);
+        String cacheKey = null;
+        if (pathCache != null && parentPath != null) {
+            cacheKey = getPathKey(bucketName, parentPath + '/' + name);
+            Entity entity = pathCache.get(cacheKey);
+            if (entity != null) {
+                return entity;
+            }
+        }
+        
+        // Answer the names which definitely do not exist from memory
+        LruCache<String, BloomFilter> nameFilterCache = this.nameFilterCache;
+        BloomFilter nameFilter = null;
+        if (nameFilterCache != null) {
+            nameFilter = nameFilterCache.get(getListingKey(bucketName, parent));
+            if (nameFilter != null && !nameFilter.mightContain(name)) {
+                return null;
+            }
+        }
+        
+        long generation = listingGenerations.get(getListingKey(bucketName, parent));
+        Entity entity;
+        try {
+            entity = dynamoDBManager.findEntityByName(bucketName, name, parent);
+        } catch (AmazonClientException ace) {
+            Entity staleEntity = cacheKey != null ? pathCache.getStale(cacheKey) : null;
+            if (staleEntity == null) {
+                throw ace;
+            }
+            LOG.warn("Serving stale entity " + cacheKey + ": " + ace.getMessage());
+            return staleEntity;
+        }
+        
+        if (entity != null) {
+            if (cacheKey != null && generation == listingGenerations.get(getListingKey(bucketName, parent))) {
+                pathCache.put(cacheKey, entity);
+            }
+        } else if (nameFilterCache != null && nameFilter == null) {
+            // Names which do not exist are probed in bursts, read all the
+            // names of the folder once
+            try {
+                List<Entity> children = dynamoDBManager.findEntityByParent(bucketName, parent);
+                cacheNameFilter(bucketName, parent, children, generation);
+            } catch (AmazonClientException ace) {
+                LOG.warn("Could not read the names of " + parent.getName() + ": " + ace.getMessage());
+            }
+        }
+        return entity;
+    }
+    
     @Override
     public List<Entity> findEntityByParent(String bucketName, Folder parent) {
     	if (parent == null) {
     		return Collections.emptyList();
     	}
     	
+    	AccessCounter accessCounter = this.accessCounter;
+    	String path = accessCounter != null ? getEntityPath(parent) : null;
+    	if (path != null) {
+    	    accessCounter.record(getPathKey(bucketName, path));
+    	}
+    	
+    	List<Entity> children = loadListing(bucketName, parent, 0);
+    	prefetchListings(bucketName, children);
+    	return children;
+    }
+    
+    /**
+     * Get the children of the folder from the listing cache, or read and cache
+     * them. The last known children are served while they cannot be read
+     * 
+     * @param ttlMillis
+     *            - the time in milliseconds a read listing is kept, 0 for the
+     *            time to live of the listing cache
+     */
+    private List<Entity> loadListing(String bucketName, Folder parent, long ttlMillis) {
+    	LruCache<String, List<Entity>> listingCache = this.listingCache;
+    	if (listingCache == null) {
+    	    return listChildren(bucketName, parent);
+    	}
+    	
+    	String cacheKey = getListingKey(bucketName, parent);
+    	List<Entity> children = listingCache.get(cacheKey);
+    	if (children != null) {
+    	    if (listingCache.claimRefresh(cacheKey)) {
+    	        refreshListing(bucketName, parent, cacheKey);
+    	    }
+    	    return children;
+    	}
+    	
+    	long generation = listingGenerations.get(cacheKey);
+    	try {
+    	    children = Collections.unmodifiableList(listChildren(bucketName, parent));
+    	} catch (AmazonClientException ace) {
+    	    List<Entity> staleChildren = listingCache.getStale(cacheKey);
+    	    if (staleChildren == null) {
+    	        throw ace;
+    	    }
+    	    LOG.warn("Serving stale listing of " + parent.getName() + ": " + ace.getMessage());
+    	    return staleChildren;
+    	}
+    	if (generation == listingGenerations.get(cacheKey)) {
+    	    if (ttlMillis > 0) {
+    	        listingCache.put(cacheKey, children, ttlMillis);
+    	    } else {
+    	        listingCache.put(cacheKey, children);
+    	    }
+    	}
+    	cacheNameFilter(bucketName, parent, children, generation);
+    	return children;
+    }
+    
+    /**
+     * Reload a listing about to expire in the background, the cached listing
+     * is served meanwhile. The reloaded listing is dropped if the listing was
+     * invalidated meanwhile
+     */
+    private void refreshListing(final String bucketName, final Folder parent, final String cacheKey) {
+        loadInBackground(cacheKey, new Runnable() {
+            @Override
+            public void run() {
+                LruCache<String, List<Entity>> listingCache = AmazonStorageServiceImpl.this.listingCache;
+                long generation = listingGenerations.get(cacheKey);
+                List<Entity> children = Collections.unmodifiableList(listChildren(bucketName, parent));
+                if (listingCache != null && generation == listingGenerations.get(cacheKey)) {
+                    listingCache.replace(cacheKey, children);
+                }
+                cacheNameFilter(bucketName, parent, children, generation);
+            }
+        });
+    }
+    
+    /**
+     * Load the listings of the subfolders which are not cached in the
+     * background. Prefetches are dropped while the queue is full
+     */
+    private void prefetchListings(final String bucketName, List<Entity> children) {
+        ThreadPoolExecutor prefetchExecutor = this.prefetchExecutor;
+        LruCache<String, List<Entity>> listingCache = this.listingCache;
+        if (prefetchExecutor == null || listingCache == null) {
+            return;
+        }
+        
+        for (Entity child : children) {
+            if (!(child instanceof Folder)) {
+                continue;
+            }
+            
+            final Folder folder = (Folder) child;
+            String cacheKey = getListingKey(bucketName, folder);
+            if (listingCache.containsKey(cacheKey)) {
+                continue;
+            }
+            boolean isQueued = loadInBackground(cacheKey, new Runnable() {
+                @Override
+                public void run() {
+                    loadListing(bucketName, folder, 0);
+                }
+            });
+            if (!isQueued) {
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Run the loader of a listing on the prefetch threads, unless the listing
+     * is being loaded already
+     * 
+     * @return false if the loader was dropped because the queue is full or
+     *         prefetching is disabled
+     */
+    private boolean loadInBackground(final String cacheKey, final Runnable loader) {
+        ThreadPoolExecutor prefetchExecutor = this.prefetchExecutor;
+        if (prefetchExecutor == null) {
+            return false;
+        }
+        if (prefetchingKeys.putIfAbsent(cacheKey, Boolean.TRUE) != null) {
+            return true;
+        }
+        
+        try {
+            prefetchExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        loader.run();
+                    } catch (RuntimeException e) {
+                        LOG.warn("Could not load listing " + cacheKey + ": " + e.getMessage());
+                    } finally {
+                        prefetchingKeys.remove(cacheKey);
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            prefetchingKeys.remove(cacheKey);
+            return false;
+        }
+    }
+    
+    /**
+     * Read the children of the folder from Amazon S3 and Amazon DynamoDB
+     */
+    private List<Entity> listChildren(String bucketName, Folder parent) {
     	// Get all files of current folder have already existing in Amazon S3
     	List<S3ObjectSummary> objectSummaries = amazonS3Manager.findEntityByPrefixKey(bucketName, 
     	        parent.getId().toString());
-    	List<Entity> children = new ArrayList<Entity>();
+    	Map<String, S3ObjectSummary> objectSummaryByUniqueId = new HashMap<String, S3ObjectSummary>();
     	for (S3ObjectSummary objectSummary : objectSummaries) {
     	    String uniqueId = objectSummary.getKey();
     	    
     	    // Search by only unique UUID of entity
     	    uniqueId = uniqueId.substring(uniqueId.indexOf("/") + 1);
-    		File file = (File) dynamoDBManager.findEntityByUniqueId(bucketName, uniqueId, parent);
-    		if (file != null) {
-    		    file.setSize(objectSummary.getSize());
-    		    children.add(file);
-    		}
+    	    objectSummaryByUniqueId.put(uniqueId, objectSummary);
+    	}
+    	
+    	// Get the metadata of all the files with batched requests
+    	List<Entity> children = new ArrayList<Entity>();
+    	List<Entity> files = dynamoDBManager.findEntityByUniqueIds(bucketName, 
+    	        new ArrayList<String>(objectSummaryByUniqueId.keySet()), parent);
+    	for (Entity entity : files) {
+    	    if (entity instanceof File) {
+    	        File file = (File) entity;
+    	        file.setSize(objectSummaryByUniqueId.get(file.getId().toString()).getSize());
+    	        children.add(file);
+    	    }
     	}
     	
     	// Get all folders of current folder have already existing in Amazon DynamoDB
@@ -141,26 +801,79 @@ public class AmazonStorageServiceImpl implements AmazonStorageService {
     	
     	// Only store file in Amazon S3
     	if (entity instanceof File) {
+    	    File file = (File) entity;
     	    String keyName = getAmazonS3UniqueKey(entity);
     	    
 			// Additional metadata instructing Amazon S3 how to handle the
 			// uploaded data (e.g. custom user metadata, hooks for specifying
 			// content type, etc.).
     	    ObjectMetadata metadata = new ObjectMetadata();
-    	    metadata.setContentType(((File) entity).getContentType());
+    	    metadata.setContentType(file.getContentType());
     	    
-    	    // Always set the content length, even if it's already set
-    	    metadata.setContentLength(((File) entity).getSize());
-    	    boolean isUploaded = amazonS3Manager.uploadEntity(bucketName, keyName, inputStream, metadata);
-    	    if (!isUploaded) {
+    	    String eTag;
+    	    UploadSpooler uploadSpooler = this.uploadSpooler;
+    	    if (file.getSize() < 0 && uploadSpooler != null) {
+    	        eTag = uploadSpooled(bucketName, keyName, file, inputStream, metadata, uploadSpooler);
+    	    } else {
+    	        // Always set the content length, even if it's already set
+    	        if (file.getSize() >= 0) {
+    	            metadata.setContentLength(file.getSize());
+    	        }
+    	        eTag = amazonS3Manager.uploadEntity(bucketName, keyName, inputStream, metadata);
+    	    }
+    	    invalidateContent(bucketName, keyName);
+    	    if (eTag == null) {
     	    	return false;
     	    }
+    	    
+    	    // Keep the ETag with the metadata, so conditional requests are
+    	    // answered without asking Amazon S3
+    	    ((File) entity).setETag(eTag);
     	}
     	
     	// Store folder as hierarchy in Amazon DynamoDB
-    	return dynamoDBManager.putEntity(bucketName, entity);
+    	try {
+    	    return dynamoDBManager.putEntity(bucketName, entity);
+    	} finally {
+    	    invalidateListing(bucketName, entity.getParent());
+    	    invalidatePaths(bucketName, entity);
+    	    addName(bucketName, entity.getParent(), entity.getName());
+    	}
 	}
     
+    /**
+     * Read an upload of unknown length to the end, set the size of the file
+     * and send the spooled content
+     * 
+     * @return the ETag of the uploaded object, null if it was not uploaded
+     */
+    private String uploadSpooled(String bucketName, String keyName, File file, InputStream inputStream, 
+            ObjectMetadata metadata, UploadSpooler uploadSpooler) {
+        UploadSpooler.Spool spool;
+        try {
+            spool = uploadSpooler.spool(inputStream);
+        } catch (IOException e) {
+            LOG.warn("Could not read the content of " + file.getName() + ": " + e.getMessage());
+            return null;
+        }
+        
+        try {
+            file.setSize(spool.getLength());
+            metadata.setContentLength(spool.getLength());
+            InputStream spooledStream = spool.openStream();
+            try {
+                return amazonS3Manager.uploadEntity(bucketName, keyName, spooledStream, metadata);
+            } finally {
+                spooledStream.close();
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not read the spooled content of " + file.getName() + ": " + e.getMessage());
+            return null;
+        } finally {
+            spool.close();
+        }
+    }
+    
     @Override
     public boolean copyEntityByUniqueId(String bucketName, Entity entity, Folder newParent, 
             String newBucketName, String newName) {
@@ -169,13 +882,25 @@ public class AmazonStorageServiceImpl implements AmazonStorageService {
                 + java.io.File.separatorChar + entity.getId().toString();
         
         // Copies a source object to a new destination in Amazon S3
-        boolean isSuccessful = amazonS3Manager.copyEntity(bucketName, sourceKeyName, newBucketName, 
+        String eTag = amazonS3Manager.copyEntity(bucketName, sourceKeyName, newBucketName, 
                 targetKeyName);
-        if (isSuccessful) {
+        if (eTag != null) {
+            if (entity instanceof File) {
+                ((File) entity).setETag(eTag);
+            }
+            Folder oldParent = entity.getParent();
+            invalidatePaths(bucketName, entity);
             entity.setParent(newParent);
             entity.setName(newName);
             // Store folder as hierarchy in Amazon DynamoDB
-            return dynamoDBManager.putEntity(bucketName, entity);
+            try {
+                return dynamoDBManager.putEntity(bucketName, entity);
+            } finally {
+                invalidateListing(bucketName, oldParent);
+                invalidateListing(bucketName, newParent);
+                invalidatePaths(bucketName, entity);
+                addName(bucketName, newParent, newName);
+            }
         }
         return false;
     }
@@ -189,19 +914,34 @@ public class AmazonStorageServiceImpl implements AmazonStorageService {
                     + java.io.File.separatorChar + entity.getId().toString();
             
             // We must update entity in S3 because action is moving file
-            boolean isSuccess = amazonS3Manager.copyEntity(bucketName, sourceKeyName, null, 
+            // The copy has the same content, the stored ETag is kept
+            String eTag = amazonS3Manager.copyEntity(bucketName, sourceKeyName, null, 
                     destinationKeyName);
-            if (isSuccess == false) {
+            if (eTag == null) {
                 return false;
             }
             
             // Remove old entity after moved
             amazonS3Manager.deleteEntity(bucketName, sourceKeyName);
+            invalidateContent(bucketName, sourceKeyName);
         }
         
         // Update stored entity in DynamoDB
-        return dynamoDBManager.updateEntityByUniqueId(bucketName, entity, newParent,
-                newEntityName, isRenamingAction);
+        try {
+            return dynamoDBManager.updateEntityByUniqueId(bucketName, entity, newParent,
+                    newEntityName, isRenamingAction);
+        } finally {
+            invalidateListing(bucketName, entity.getParent());
+            if (!isRenamingAction) {
+                invalidateListing(bucketName, newParent);
+            }
+            
+            // The entity and everything below it moved to another path
+            invalidatePaths(bucketName, entity);
+            Folder targetParent = isRenamingAction ? entity.getParent() : newParent;
+            invalidatePath(bucketName, targetParent, newEntityName);
+            addName(bucketName, targetParent, newEntityName);
+        }
     }
     
     @Override
@@ -210,11 +950,39 @@ public class AmazonStorageServiceImpl implements AmazonStorageService {
             return false;
         }
         
-        // Tried to remove file based on unique UUID in Amazon S3
-        if (!amazonS3Manager.deleteEntity(bucketName, uniqueId)) {
+        // Look up the parent folder, which is part of the key in Amazon S3
+        Entity entity = dynamoDBManager.findEntityByUniqueId(bucketName, uniqueId, null);
+        if (entity == null) {
             return false;
         }
-        return dynamoDBManager.deleteEntityByUniqueId(bucketName, uniqueId);
+        return deleteEntity(bucketName, entity);
+    }
+    
+    @Override
+    public boolean deleteEntity(String bucketName, Entity entity) {
+        if (entity == null) {
+            return false;
+        }
+        
+        // Tried to remove file based on unique UUID in Amazon S3
+        if (entity instanceof File) {
+            String keyName = getAmazonS3UniqueKey(entity);
+            if (!amazonS3Manager.deleteEntity(bucketName, keyName)) {
+                return false;
+            }
+            invalidateContent(bucketName, keyName);
+        }
+        
+        try {
+            return dynamoDBManager.deleteEntityByUniqueId(bucketName, entity.getId().toString());
+        } finally {
+            invalidateListing(bucketName, entity.getParent());
+            if (entity instanceof Folder) {
+                invalidateListing(bucketName, (Folder) entity);
+                removeNameFilter(bucketName, entity.getId().toString());
+            }
+            invalidatePaths(bucketName, entity);
+        }
     }
 
 	@Override
@@ -227,7 +995,487 @@ public class AmazonStorageServiceImpl implements AmazonStorageService {
 	public InputStream downloadEntityByUniqueId(String bucketName, String keyName) {
 		return amazonS3Manager.downloadEntity(bucketName, keyName);
 	}
+	
+	@Override
+	public InputStream downloadEntity(String bucketName, File file) {
+	    String keyName = getAmazonS3UniqueKey(file);
+	    OffHeapCache smallContentCache = this.smallContentCache;
+	    if (smallContentCache == null || file.getSize() < 0 
+	            || file.getSize() > smallContentCache.getMaxValueSize()) {
+	        return downloadContent(bucketName, file, keyName);
+	    }
+	    
+	    String cacheKey = getContentKey(bucketName, keyName);
+	    String version = getContentVersion(file);
+	    byte[] content = smallContentCache.get(cacheKey, version);
+	    if (content != null) {
+	        return new ByteArrayInputStream(content);
+	    }
+	    
+	    InputStream inputStream = downloadContent(bucketName, file, keyName);
+	    if (inputStream == null) {
+	        return null;
+	    }
+	    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+	    try {
+	        if (!readAtMost(inputStream, buffer, smallContentCache.getMaxValueSize())) {
+	            // The stored size is wrong, stream the rest instead of reading
+	            // it all into memory
+	            return new SequenceInputStream(new ByteArrayInputStream(buffer.toByteArray()), inputStream);
+	        }
+	    } catch (IOException e) {
+	        LOG.warn("Could not read content: " + e.getMessage(), e);
+	        closeQuietly(inputStream);
+	        return null;
+	    }
+	    closeQuietly(inputStream);
+	    
+	    content = buffer.toByteArray();
+	    if (content.length == file.getSize()) {
+	        smallContentCache.put(cacheKey, version, content);
+	    }
+	    return new ByteArrayInputStream(content);
+	}
+	
+	@Override
+	public InputStream downloadEntity(String bucketName, File file, long start, long end) {
+	    if (file.getSize() >= 0) {
+	        end = Math.min(end, file.getSize() - 1);
+	    }
+	    if (start < 0 || start > end) {
+	        LOG.warn("Range " + start + "-" + end + " of " + file.getName() + " of " + file.getSize() 
+	                + " bytes is not satisfiable");
+	        return null;
+	    }
+	    
+	    // Partial content is never cached, but the whole content cached
+	    // already serves any range
+	    String keyName = getAmazonS3UniqueKey(file);
+	    String cacheKey = getContentKey(bucketName, keyName);
+	    String version = getContentVersion(file);
+	    OffHeapCache smallContentCache = this.smallContentCache;
+	    if (smallContentCache != null && file.getSize() <= smallContentCache.getMaxValueSize()) {
+	        byte[] content = smallContentCache.get(cacheKey, version);
+	        if (content != null && end < content.length) {
+	            return new ByteArrayInputStream(content, (int) start, (int) (end - start + 1));
+	        }
+	    }
+	    ContentCache contentCache = this.contentCache;
+	    if (contentCache != null) {
+	        InputStream inputStream = contentCache.get(cacheKey, version);
+	        if (inputStream != null) {
+	            try {
+	                return new RangeInputStream(inputStream, start, end - start + 1);
+	            } catch (IOException e) {
+	                LOG.warn("Could not read cached content of " + keyName + ": " + e.getMessage());
+	                closeQuietly(inputStream);
+	            }
+	        }
+	    }
+	    return amazonS3Manager.downloadEntity(bucketName, keyName, start, end);
+	}
+	
+	/**
+	 * Download the content of the file through the content cache
+	 */
+	private InputStream downloadContent(String bucketName, File file, String keyName) {
+	    ContentCache contentCache = this.contentCache;
+	    if (contentCache == null) {
+	        return amazonS3Manager.downloadEntity(bucketName, keyName);
+	    }
+	    
+	    String cacheKey = getContentKey(bucketName, keyName);
+	    String version = getContentVersion(file);
+	    InputStream inputStream = contentCache.get(cacheKey, version);
+	    if (inputStream != null) {
+	        return inputStream;
+	    }
+	    
+	    // Cache the content while it is streamed to the client
+	    return contentCache.fill(cacheKey, version, file.getSize(), 
+	            amazonS3Manager.downloadEntity(bucketName, keyName));
+	}
+	
+	/**
+	 * Read the stream to its end, unless it is longer than the given length.
+	 * The stream is not closed
+	 * 
+	 * @return true if the whole content was read, false if more than the
+	 *         given length was read and the stream was not read to its end
+	 */
+	private static boolean readAtMost(InputStream inputStream, ByteArrayOutputStream content, int maxLength) 
+	        throws IOException {
+	    byte[] buffer = new byte[8192];
+	    int n;
+	    while ((n = inputStream.read(buffer, 0, Math.min(buffer.length, maxLength + 1 - content.size()))) >= 0) {
+	        content.write(buffer, 0, n);
+	        if (content.size() > maxLength) {
+	            return false;
+	        }
+	    }
+	    return true;
+	}
+	
+	private static void closeQuietly(InputStream inputStream) {
+	    try {
+	        inputStream.close();
+	    } catch (IOException e) {
+	        LOG.warn(e.getMessage(), e);
+	    }
+	}
+	
+	/**
+	 * Reads a range of the content of a stream
+	 */
+	private static class RangeInputStream extends FilterInputStream {
+	    
+	    private long remaining;
+	    
+	    /**
+	     * @param start
+	     *            - the number of bytes skipped
+	     * @param length
+	     *            - the number of bytes read after them at most
+	     */
+	    RangeInputStream(InputStream inputStream, long start, long length) throws IOException {
+	        super(inputStream);
+	        this.remaining = length;
+	        while (start > 0) {
+	            long skipped = inputStream.skip(start);
+	            if (skipped <= 0) {
+	                if (inputStream.read() < 0) {
+	                    remaining = 0;
+	                    break;
+	                }
+	                skipped = 1;
+	            }
+	            start -= skipped;
+	        }
+	    }
+	    
+	    @Override
+	    public int read() throws IOException {
+	        if (remaining <= 0) {
+	            return -1;
+	        }
+	        int b = super.read();
+	        if (b >= 0) {
+	            remaining--;
+	        }
+	        return b;
+	    }
+	    
+	    @Override
+	    public int read(byte[] buffer, int offset, int length) throws IOException {
+	        if (remaining <= 0) {
+	            return -1;
+	        }
+	        int read = super.read(buffer, offset, (int) Math.min(length, remaining));
+	        if (read > 0) {
+	            remaining -= read;
+	        }
+	        return read;
+	    }
+	    
+	    @Override
+	    public long skip(long n) throws IOException {
+	        long skipped = super.skip(Math.min(n, remaining));
+	        remaining -= skipped;
+	        return skipped;
+	    }
+	    
+	    @Override
+	    public int available() throws IOException {
+	        return (int) Math.min(super.available(), remaining);
+	    }
+	    
+	    @Override
+	    public boolean markSupported() {
+	        return false;
+	    }
+	}
+	
+	private void invalidateContent(String bucketName, String keyName) {
+	    String cacheKey = getContentKey(bucketName, keyName);
+	    ContentCache contentCache = this.contentCache;
+	    if (contentCache != null) {
+	        contentCache.invalidate(cacheKey);
+	    }
+	    OffHeapCache smallContentCache = this.smallContentCache;
+	    if (smallContentCache != null) {
+	        smallContentCache.invalidate(cacheKey);
+	    }
+	}
 
+    /**
+     * Invalidate the cached entities, listings, paths and content affected by
+     * a change another node made
+     */
+    @Override
+    public void onChange(Change change) {
+        String bucketName = change.getTableName();
+        if (change.getType() == Change.Type.DELETE_TABLE) {
+            invalidateBucket(bucketName);
+            return;
+        }
+        
+        String uniqueId = change.getUniqueId();
+        invalidateListing(bucketName, change.getParentId());
+        invalidateListing(bucketName, change.getPreviousParentId());
+        invalidateResolvedPaths(bucketName, change);
+        
+        switch (change.getType()) {
+        case PUT:
+            addName(bucketName, change.getParentId(), change.getName());
+            break;
+        case UPDATE:
+            addName(bucketName, change.getParentId(), change.getName());
+            if (change.getPreviousParentId() != null && !change.getPreviousParentId().equals(change.getParentId())) {
+                invalidateContent(bucketName, change.getPreviousParentId() + java.io.File.separatorChar + uniqueId);
+            }
+            break;
+        case DELETE:
+            // The entity might be a folder
+            invalidateListing(bucketName, uniqueId);
+            removeNameFilter(bucketName, uniqueId);
+            if (change.getParentId() != null) {
+                invalidateContent(bucketName, change.getParentId() + java.io.File.separatorChar + uniqueId);
+            }
+            break;
+        default:
+            break;
+        }
+    }
+    
+    private void invalidateBucket(String bucketName) {
+        listingGenerations.incrementAll();
+        LruCache<String, List<Entity>> listingCache = this.listingCache;
+        if (listingCache != null) {
+            listingCache.clear();
+        }
+        invalidateSubtree(bucketName, "");
+        
+        LruCache<String, BloomFilter> nameFilterCache = this.nameFilterCache;
+        if (nameFilterCache != null) {
+            nameFilterCache.clear();
+        }
+        
+        ContentCache contentCache = this.contentCache;
+        if (contentCache != null) {
+            contentCache.clear();
+        }
+        OffHeapCache smallContentCache = this.smallContentCache;
+        if (smallContentCache != null) {
+            smallContentCache.clear();
+        }
+    }
+    
+    private void invalidateListing(String bucketName, Folder folder) {
+        if (folder != null) {
+            invalidateListing(bucketName, folder.getId().toString());
+        }
+    }
+    
+    private void invalidateListing(String bucketName, String folderId) {
+        if (folderId == null) {
+            return;
+        }
+        String cacheKey = getListingKey(bucketName, folderId);
+        listingGenerations.increment(cacheKey);
+        LruCache<String, List<Entity>> listingCache = this.listingCache;
+        if (listingCache != null) {
+            listingCache.remove(cacheKey);
+        }
+    }
+    
+    /**
+     * Keep the child names of the folder, unless the folder was changed while
+     * they were read
+     */
+    private void cacheNameFilter(String bucketName, Folder folder, List<Entity> children, long generation) {
+        LruCache<String, BloomFilter> nameFilterCache = this.nameFilterCache;
+        if (nameFilterCache == null || children == null) {
+            return;
+        }
+        
+        BloomFilter nameFilter = new BloomFilter(Math.max(2 * children.size(), 64), NAME_FILTER_FPP);
+        for (Entity child : children) {
+            nameFilter.add(child.getName());
+        }
+        String cacheKey = getListingKey(bucketName, folder);
+        if (generation == listingGenerations.get(cacheKey)) {
+            nameFilterCache.put(cacheKey, nameFilter);
+        }
+    }
+    
+    /**
+     * Add the name of a new child to the child names of the folder. Names are
+     * never removed, names of deleted children only cost a lookup
+     */
+    private void addName(String bucketName, Folder folder, String name) {
+        if (folder != null) {
+            addName(bucketName, folder.getId().toString(), name);
+        }
+    }
+    
+    private void addName(String bucketName, String folderId, String name) {
+        LruCache<String, BloomFilter> nameFilterCache = this.nameFilterCache;
+        if (nameFilterCache == null || folderId == null || name == null) {
+            return;
+        }
+        
+        String cacheKey = getListingKey(bucketName, folderId);
+        BloomFilter nameFilter = nameFilterCache.get(cacheKey);
+        if (nameFilter != null) {
+            nameFilter.add(name);
+            if (nameFilter.isSaturated()) {
+                // Too many false positives, read the names again on next miss
+                nameFilterCache.remove(cacheKey);
+            }
+        }
+    }
+    
+    private void removeNameFilter(String bucketName, String folderId) {
+        LruCache<String, BloomFilter> nameFilterCache = this.nameFilterCache;
+        if (nameFilterCache != null) {
+            nameFilterCache.remove(getListingKey(bucketName, folderId));
+        }
+    }
+    
+    /**
+     * Remove the given entity and everything below it from the path cache
+     * 
+     * @param entity
+     *            - the entity, null to remove the whole bucket
+     */
+    private void invalidatePaths(String bucketName, Entity entity) {
+        invalidateSubtree(bucketName, entity != null ? getEntityPath(entity) : "");
+    }
+    
+    /**
+     * Remove the entity of the given name below the parent and everything below
+     * it from the path cache
+     */
+    private void invalidatePath(String bucketName, Folder parent, String name) {
+        if (parent == null) {
+            return;
+        }
+        
+        String parentPath = getEntityPath(parent);
+        invalidateSubtree(bucketName, parentPath != null ? parentPath + '/' + name : null);
+    }
+    
+    /**
+     * @param path
+     *            - the path of the removed subtree, null if it is not known
+     */
+    private void invalidateSubtree(String bucketName, String path) {
+        LruCache<String, Entity> pathCache = this.pathCache;
+        if (pathCache == null) {
+            return;
+        }
+        
+        if (path == null) {
+            // Do not know where the entity was resolved from
+            pathCache.clear();
+            return;
+        }
+        
+        removeSubtree(pathCache, getPathKey(bucketName, path));
+    }
+    
+    /**
+     * Remove the resolved paths of the changed entity and everything below
+     * them, and the path of the entity its change may have replaced
+     */
+    private void invalidateResolvedPaths(String bucketName, final Change change) {
+        LruCache<String, Entity> pathCache = this.pathCache;
+        if (pathCache == null) {
+            return;
+        }
+        
+        final String bucketKey = getPathKey(bucketName, "");
+        final List<String> cacheKeys = new ArrayList<String>();
+        pathCache.removeAll(new LruCache.EntryMatcher<String, Entity>() {
+            @Override
+            public boolean matches(String key, Entity entity) {
+                if (!key.startsWith(bucketKey)) {
+                    return false;
+                }
+                
+                Folder parent = entity.getParent();
+                boolean isMatch = entity.getId().toString().equals(change.getUniqueId())
+                        || (parent != null && parent.getId().toString().equals(change.getParentId())
+                                && entity.getName().equals(change.getName()));
+                if (isMatch) {
+                    cacheKeys.add(key);
+                }
+                return isMatch;
+            }
+        });
+        for (String cacheKey : cacheKeys) {
+            removeSubtree(pathCache, cacheKey);
+        }
+    }
+    
+    private static void removeSubtree(LruCache<String, Entity> pathCache, final String cacheKey) {
+        final String subtreeKey = cacheKey + '/';
+        pathCache.removeAll(new LruCache.KeyMatcher<String>() {
+            @Override
+            public boolean matches(String key) {
+                return key.equals(cacheKey) || key.startsWith(subtreeKey);
+            }
+        });
+    }
+    
+    /**
+     * @return the names of the ancestors and the entity, separated by '/'. An
+     *         empty string for the root folder, null if one of the ancestors was
+     *         not resolved by name
+     */
+    private static String getEntityPath(Entity entity) {
+        if (entity.getParent() == null) {
+            return "";
+        }
+        
+        StringBuilder path = new StringBuilder();
+        for (Entity current = entity; current.getParent() != null; current = current.getParent()) {
+            if (current.getName() == null) {
+                return null;
+            }
+            path.insert(0, current.getName()).insert(0, '/');
+        }
+        return path.toString();
+    }
+    
+    private static String getPathKey(String bucketName, String path) {
+        return bucketName + ':' + path;
+    }
+    
+    private static String getListingKey(String bucketName, Folder folder) {
+        return getListingKey(bucketName, folder.getId().toString());
+    }
+    
+    private static String getListingKey(String bucketName, String folderId) {
+        return bucketName + '/' + folderId;
+    }
+    
+    private static String getContentKey(String bucketName, String keyName) {
+        return bucketName + '/' + keyName;
+    }
+    
+    /**
+     * The ETag of the file, or for the files stored before ETags were kept the
+     * modified date and size stored with every upload
+     */
+    private static String getContentVersion(File file) {
+        if (file.getETag() != null) {
+            return file.getETag();
+        }
+        long modifiedTime = file.getModifiedDate() != null ? file.getModifiedDate().getTime() : 0L;
+        return modifiedTime + "-" + file.getSize();
+    }
+	
 	private String getAmazonS3UniqueKey(Entity entity) {
         String keyName = null;
         if (entity.getParent() == null) {
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.service;
+
+import io.milton.s3.cache.AccessCounter;
+import io.milton.s3.util.DaemonThreadFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+
+/**
+ * Warms up the caches of the storage service after startup with the folders
+ * listed most before the restart, and keeps the listing counts on local disk
+ * so they outlive the process.
+ * 
+ * The counts are saved and halved periodically, so folders which are no
+ * longer listed drop out of the snapshot over time.
+ */
+public class CacheWarmer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CacheWarmer.class);
+    
+    private final AmazonStorageServiceImpl amazonStorageService;
+    
+    private final AccessCounter accessCounter;
+    
+    private final File snapshotFile;
+    
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            new DaemonThreadFactory("cache-warmer"));
+    
+    private volatile int maxFolders;
+    
+    /**
+     * @param amazonStorageService
+     *            - the storage service whose caches are warmed up
+     * @param accessCounter
+     *            - the counter the storage service records the listings in
+     * @param snapshotFile
+     *            - the file the listing counts are saved to
+     */
+    public CacheWarmer(AmazonStorageServiceImpl amazonStorageService, AccessCounter accessCounter, 
+            File snapshotFile) {
+        this.amazonStorageService = amazonStorageService;
+        this.accessCounter = accessCounter;
+        this.snapshotFile = snapshotFile;
+    }
+    
+    /**
+     * Load the saved listing counts, warm up the caches in the background and
+     * start saving the listing counts periodically
+     * 
+     * @param bucketName
+     *            - the bucket name
+     * @param maxFolders
+     *            - the maximum number of folders whose listings are warmed up
+     *            and saved
+     * @param warmUpTtlMillis
+     *            - time in milliseconds the warmed up listings are kept, long
+     *            enough for the traffic to arrive after startup
+     * @param snapshotIntervalMillis
+     *            - time in milliseconds between two snapshots
+     */
+    public void start(final String bucketName, final int maxFolders, final long warmUpTtlMillis, 
+            long snapshotIntervalMillis) {
+        this.maxFolders = maxFolders;
+        if (snapshotFile.isFile()) {
+            try {
+                accessCounter.load(snapshotFile);
+                LOG.info("Loaded " + accessCounter.size() + " listing counts from " + snapshotFile);
+            } catch (IOException e) {
+                LOG.warn("Could not load listing counts from " + snapshotFile + ": " + e.getMessage());
+            }
+        }
+        
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long start = System.currentTimeMillis();
+                    int warmed = amazonStorageService.warmUp(bucketName, maxFolders, warmUpTtlMillis);
+                    LOG.info("Warmed up " + warmed + " folder listings of " + bucketName + " in " 
+                            + (System.currentTimeMillis() - start) + " ms");
+                } catch (AmazonServiceException ase) {
+                    LOG.error(ase.getMessage(), ase);
+                } catch (AmazonClientException ace) {
+                    LOG.error(ace.getMessage(), ace);
+                } catch (RuntimeException e) {
+                    LOG.error("Could not warm up the caches: " + e.getMessage(), e);
+                }
+            }
+        });
+        
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                saveSnapshot();
+                accessCounter.decay();
+            }
+        }, snapshotIntervalMillis, snapshotIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Save the most frequent listing counts to the snapshot file
+     * 
+     * @return true if the snapshot is saved
+     */
+    public boolean saveSnapshot() {
+        try {
+            accessCounter.save(snapshotFile, maxFolders);
+            return true;
+        } catch (IOException e) {
+            LOG.warn("Could not save listing counts to " + snapshotFile + ": " + e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Stop saving the listing counts, after saving them one last time
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+        saveSnapshot();
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.service;
+
+import io.milton.s3.util.BufferPool;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads upload bodies of unknown length, e.g. chunked WebDAV PUTs, to the end
+ * before they are sent to Amazon S3, which needs the length up front. Small
+ * bodies are held in memory, in chunks of a pool shared by all the uploads;
+ * larger bodies, and any body while the pool is used up, go to a temporary
+ * file which is read back through a {@link FileChannel}. The memory used by
+ * the uploads therefore never exceeds the pool, however large or concurrent
+ * they are.
+ */
+public class UploadSpooler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(UploadSpooler.class);
+    
+    private static final int CHUNK_SIZE = 64 * 1024;
+    
+    private static final String FILE_PREFIX = "upload-";
+    
+    private final File directory;
+    
+    private final BufferPool chunkPool;
+    
+    private final long maxMemoryBodySize;
+    
+    /**
+     * @param directory
+     *            - the directory of the temporary files, null for the default
+     *            temporary directory
+     * @param maxMemoryBytes
+     *            - the maximum number of bytes held in memory by all the
+     *            uploads together
+     * @param maxMemoryBodySize
+     *            - the size in bytes of the largest body held in memory
+     */
+    public UploadSpooler(File directory, long maxMemoryBytes, long maxMemoryBodySize) {
+        this.directory = directory;
+        this.chunkPool = new BufferPool(CHUNK_SIZE, (int) Math.max(1, maxMemoryBytes / CHUNK_SIZE));
+        this.maxMemoryBodySize = maxMemoryBodySize;
+    }
+    
+    /**
+     * Read the body to the end. The spool must be closed once its content is
+     * sent
+     * 
+     * @param inputStream
+     *            - the body, not closed
+     * @return the spooled body
+     * @throws IOException
+     *             if the body could not be read or written to a temporary
+     *             file
+     */
+    public Spool spool(InputStream inputStream) throws IOException {
+        Spool spool = new Spool();
+        try {
+            // Fill memory chunks while the body is small and the pool allows
+            while (spool.length + CHUNK_SIZE <= maxMemoryBodySize) {
+                byte[] chunk = chunkPool.tryAcquire();
+                if (chunk == null) {
+                    break;
+                }
+                spool.chunks.add(chunk);
+                int read = readFully(inputStream, chunk);
+                spool.length += read;
+                if (read < chunk.length) {
+                    return spool;
+                }
+            }
+            
+            spool.spillToFile(inputStream);
+            return spool;
+        } catch (IOException e) {
+            spool.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * @return the number of bytes which can be held in memory right now
+     */
+    public long getAvailableMemory() {
+        return (long) chunkPool.getAvailableBuffers() * CHUNK_SIZE;
+    }
+    
+    /**
+     * A body read to the end, in memory or in a temporary file
+     */
+    public class Spool implements Closeable {
+        
+        private final List<byte[]> chunks = new ArrayList<byte[]>();
+        
+        private File file;
+        
+        private long length;
+        
+        private Spool() {
+        }
+        
+        public long getLength() {
+            return length;
+        }
+        
+        /**
+         * @return true if the body went to a temporary file
+         */
+        public boolean isOnDisk() {
+            return file != null;
+        }
+        
+        /**
+         * @return a new stream over the body, to be closed by the caller
+         */
+        public InputStream openStream() throws IOException {
+            if (file != null) {
+                FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+                return Channels.newInputStream(channel);
+            }
+            return new ChunkInputStream(chunks, length);
+        }
+        
+        /**
+         * Give back the memory and delete the temporary file
+         */
+        @Override
+        public void close() {
+            for (byte[] chunk : chunks) {
+                chunkPool.release(chunk);
+            }
+            chunks.clear();
+            if (file != null && !file.delete() && file.exists()) {
+                file.deleteOnExit();
+            }
+        }
+        
+        /**
+         * Write the chunks read so far and the rest of the body to a temporary
+         * file, giving back the chunks
+         */
+        private void spillToFile(InputStream inputStream) throws IOException {
+            file = File.createTempFile(FILE_PREFIX, ".tmp", directory);
+            FileChannel channel = new FileOutputStream(file).getChannel();
+            try {
+                long remaining = length;
+                for (byte[] chunk : chunks) {
+                    int chunkLength = (int) Math.min(chunk.length, remaining);
+                    writeFully(channel, ByteBuffer.wrap(chunk, 0, chunkLength));
+                    remaining -= chunkLength;
+                }
+                
+                byte[] buffer = chunks.isEmpty() ? new byte[CHUNK_SIZE] : chunks.get(0);
+                int read;
+                while ((read = inputStream.read(buffer)) >= 0) {
+                    writeFully(channel, ByteBuffer.wrap(buffer, 0, read));
+                    length += read;
+                }
+            } finally {
+                channel.close();
+                for (byte[] chunk : chunks) {
+                    chunkPool.release(chunk);
+                }
+                chunks.clear();
+            }
+            LOG.info("Spooled upload of " + length + " bytes to " + file);
+        }
+    }
+    
+    /**
+     * Reads the bytes held in the chunks of a spool
+     */
+    private static class ChunkInputStream extends InputStream {
+        
+        private final List<byte[]> chunks;
+        
+        private final long length;
+        
+        private long position;
+        
+        ChunkInputStream(List<byte[]> chunks, long length) {
+            this.chunks = chunks;
+            this.length = length;
+        }
+        
+        @Override
+        public int read() {
+            if (position >= length) {
+                return -1;
+            }
+            byte b = chunks.get((int) (position / CHUNK_SIZE))[(int) (position % CHUNK_SIZE)];
+            position++;
+            return b & 0xff;
+        }
+        
+        @Override
+        public int read(byte[] buffer, int offset, int count) {
+            if (position >= length) {
+                return -1;
+            }
+            int chunkOffset = (int) (position % CHUNK_SIZE);
+            int read = (int) Math.min(Math.min(count, CHUNK_SIZE - chunkOffset), length - position);
+            System.arraycopy(chunks.get((int) (position / CHUNK_SIZE)), chunkOffset, buffer, offset, read);
+            position += read;
+            return read;
+        }
+        
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, length - position);
+        }
+    }
+    
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+    
+    private static int readFully(InputStream inputStream, byte[] buffer) throws IOException {
+        int length = 0;
+        while (length < buffer.length) {
+            int read = inputStream.read(buffer, length, buffer.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+        }
+        return length;
+    }
+}
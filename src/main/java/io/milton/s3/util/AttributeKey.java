@@ -28,4 +28,45 @@ public class AttributeKey {
 	public static final String CONTENT_TYPE = "ContentType";
 	public static final String CREATED_DATE = "CreatedDate";
 	public static final String MODIFIED_DATE = "ModifiedDate";
+	public static final String ETAG = "ETag";
+	
+	/**
+	 * Attribute names of the compact (version 2) item encoding. The key
+	 * attributes above keep their names in both encodings, as the table and its
+	 * indexes are keyed on them
+	 */
+	public static final String VERSION = "v";
+	public static final String FLAGS = "f";
+	public static final String CREATED = "c";
+	public static final String MODIFIED = "m";
+	public static final String SIZE = "s";
+	public static final String TYPE = "t";
+	public static final String TAG = "e";
+	
+	/**
+	 * Bits of the {@link #FLAGS} attribute
+	 */
+	public static final int FLAG_DIRECTORY = 1;
+	
+	/**
+	 * Global secondary index keyed on ParentId (hash) and EntityName (range)
+	 */
+	public static final String PARENT_INDEX = "ParentIdIndex";
+	
+	/**
+	 * Global secondary index keyed on UniqueId, for the tables keyed by
+	 * ParentId and EntityName
+	 */
+	public static final String UUID_INDEX = "UniqueIdIndex";
+	
+	/**
+	 * Attribute names of the change log table, whose items also carry the
+	 * UniqueId, ParentId and EntityName of the changed entity
+	 */
+	public static final String SHARD = "Shard";
+	public static final String SEQUENCE = "Sequence";
+	public static final String NODE_ID = "NodeId";
+	public static final String CHANGE_TYPE = "ChangeType";
+	public static final String TABLE_NAME = "TableName";
+	public static final String PREVIOUS_PARENT_UUID = "PreviousParentId";
 }
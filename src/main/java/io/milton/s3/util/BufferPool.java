@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.util;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Bounded pool of equally sized byte buffers, e.g. for the parts of multipart
+ * uploads. Buffers are allocated on first use and reused afterwards, callers
+ * block while all the buffers are in use, so the memory held by the buffers
+ * never exceeds the maximum number of buffers times the buffer size.
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    
+    private final int maxBuffers;
+    
+    private final Semaphore available;
+    
+    private final LinkedBlockingQueue<byte[]> freeBuffers = new LinkedBlockingQueue<byte[]>();
+    
+    /**
+     * @param bufferSize
+     *            - The size in bytes of every buffer
+     * @param maxBuffers
+     *            - The maximum number of buffers
+     */
+    public BufferPool(int bufferSize, int maxBuffers) {
+        if (bufferSize <= 0 || maxBuffers <= 0) {
+            throw new IllegalArgumentException("Buffer size and number of buffers must be positive: " 
+                    + bufferSize + ", " + maxBuffers);
+        }
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+        this.available = new Semaphore(maxBuffers, true);
+    }
+    
+    /**
+     * Blocks until a buffer is free. The buffer must be released after use
+     * 
+     * @return a buffer of the buffer size, its content is undefined
+     * @throws InterruptedException
+     */
+    public byte[] acquire() throws InterruptedException {
+        available.acquire();
+        byte[] buffer = freeBuffers.poll();
+        return buffer != null ? buffer : new byte[bufferSize];
+    }
+    
+    /**
+     * @return a buffer, or null if all the buffers are in use right now
+     */
+    public byte[] tryAcquire() {
+        if (!available.tryAcquire()) {
+            return null;
+        }
+        byte[] buffer = freeBuffers.poll();
+        return buffer != null ? buffer : new byte[bufferSize];
+    }
+    
+    /**
+     * Give back a buffer acquired from this pool
+     */
+    public void release(byte[] buffer) {
+        freeBuffers.offer(buffer);
+        available.release();
+    }
+    
+    public int getBufferSize() {
+        return bufferSize;
+    }
+    
+    public int getMaxBuffers() {
+        return maxBuffers;
+    }
+    
+    /**
+     * @return the number of buffers which can be acquired without blocking
+     */
+    public int getAvailableBuffers() {
+        return available.availablePermits();
+    }
+}
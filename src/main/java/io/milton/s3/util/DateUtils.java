@@ -21,22 +21,85 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
-public class DateUtils {
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-	public static final DateFormat dateFormat = new SimpleDateFormat("E MMM dd HH:mm:ss Z yyyy");
-	
+/**
+ * Formats and parses the dates stored in the items, e.g.
+ * "Thu Oct 15 09:30:00 +0000 2026". The codec is hand written, so it has no
+ * state shared between threads and it does not allocate parser state per call.
+ * Dates are formatted in UTC; the dates stored before with the offset of the
+ * local time zone are parsed as well.
+ */
+public final class DateUtils {
+    
+    private static final Logger LOG = LoggerFactory.getLogger(DateUtils.class);
+    
+    /**
+     * The pattern of the stored dates, in the terms of SimpleDateFormat
+     */
+    public static final String DATE_PATTERN = "E MMM dd HH:mm:ss Z yyyy";
+    
+    /**
+     * Length of a formatted date with a four digit year
+     */
+    private static final int DATE_LENGTH = 30;
+    
+    private static final String[] DAYS = { "Sun", "Mon", "Tue", "Wed", "Thu", "Fri", "Sat" };
+    
+    private static final String[] MONTHS = { "Jan", "Feb", "Mar", "Apr", "May", "Jun", 
+        "Jul", "Aug", "Sep", "Oct", "Nov", "Dec" };
+    
+    private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+    
+    /**
+     * Days from 0000-03-01 to 1970-01-01 in the proleptic Gregorian calendar
+     */
+    private static final long DAYS_0000_TO_1970 = 719468;
+    
+    private static final long DAYS_PER_ERA = 146097;
+    
+    private static final ThreadLocal<char[]> FORMAT_BUFFER = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[DATE_LENGTH + 8];
+        }
+    };
+    
+    /**
+     * Parses the dates stored with day and month names of another locale
+     */
+    private static final ThreadLocal<DateFormat> LOCALIZED_FORMAT = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            return new SimpleDateFormat(DATE_PATTERN);
+        }
+    };
+    
+    private DateUtils() {
+    }
+    
 	/**
 	 * New date for the given string based on format date
 	 * 
 	 * @param dateString
-	 * @return
+	 * @return the date or null if the string is not a valid date
 	 */
 	public static Date dateFromString(String dateString) {
-    	Date date = null;
-    	try {
-    		date = dateFormat.parse(dateString);
-		} catch (ParseException pe) {}
-    	return date;
+	    if (dateString == null) {
+	        return null;
+	    }
+	    
+	    try {
+	        return new Date(parseMillis(dateString));
+	    } catch (IllegalArgumentException iae) {
+	        try {
+	            return LOCALIZED_FORMAT.get().parse(dateString);
+	        } catch (ParseException pe) {
+	            LOG.warn("Could not parse date " + dateString + ": " + iae.getMessage());
+	            return null;
+	        }
+	    }
     }
 	
 	/**
@@ -46,6 +109,201 @@ public class DateUtils {
 	 * @return
 	 */
 	public static String dateToString(Date date) {
-		return dateFormat.format(date);
+	    if (date == null) {
+	        return null;
+	    }
+	    
+	    char[] buffer = FORMAT_BUFFER.get();
+	    int length = format(date.getTime(), buffer);
+		return new String(buffer, 0, length);
+	}
+	
+	/**
+	 * Append the formatted date to the given builder, without allocating
+	 * 
+	 * @param millis
+	 *            - milliseconds since the epoch
+	 * @param builder
+	 *            - receives the formatted date
+	 */
+	public static void formatMillis(long millis, StringBuilder builder) {
+	    char[] buffer = FORMAT_BUFFER.get();
+	    int length = format(millis, buffer);
+	    builder.append(buffer, 0, length);
+	}
+	
+	/**
+	 * Parse a formatted date
+	 * 
+	 * @param date
+	 *            - the formatted date
+	 * @return milliseconds since the epoch
+	 * @throws IllegalArgumentException
+	 *             if the date is not in the stored format
+	 */
+	public static long parseMillis(CharSequence date) {
+	    int length = date.length();
+	    
+	    // The day of week is redundant
+	    int pos = 0;
+	    while (pos < length && date.charAt(pos) != ' ') {
+	        pos++;
+	    }
+	    pos = expect(date, pos, ' ');
+	    
+	    if (pos + 3 > length) {
+	        throw new IllegalArgumentException("Missing month: " + date);
+	    }
+	    int month = parseMonth(date, pos);
+	    pos = expect(date, pos + 3, ' ');
+	    
+	    int dayEnd = pos;
+	    while (dayEnd < length && date.charAt(dayEnd) != ' ') {
+	        dayEnd++;
+	    }
+	    if (dayEnd == pos || dayEnd - pos > 2) {
+	        throw new IllegalArgumentException("Invalid day of month: " + date);
+	    }
+	    int day = parseNumber(date, pos, dayEnd - pos);
+	    pos = expect(date, dayEnd, ' ');
+	    int hour = parseNumber(date, pos, 2);
+	    pos = expect(date, pos + 2, ':');
+	    int minute = parseNumber(date, pos, 2);
+	    pos = expect(date, pos + 2, ':');
+	    int second = parseNumber(date, pos, 2);
+	    pos = expect(date, pos + 2, ' ');
+	    
+	    if (pos >= length || (date.charAt(pos) != '+' && date.charAt(pos) != '-')) {
+	        throw new IllegalArgumentException("Missing time zone offset: " + date);
+	    }
+	    int offsetSign = date.charAt(pos) == '-' ? -1 : 1;
+	    int offsetHours = parseNumber(date, pos + 1, 2);
+	    int offsetMinutes = parseNumber(date, pos + 3, 2);
+	    pos = expect(date, pos + 5, ' ');
+	    
+	    if (pos >= length || length - pos > 9) {
+	        throw new IllegalArgumentException("Invalid year: " + date);
+	    }
+	    int year = parseNumber(date, pos, length - pos);
+	    
+	    if (day < 1 || day > 31 || hour > 23 || minute > 59 || second > 60 || offsetMinutes > 59) {
+	        throw new IllegalArgumentException("Invalid date: " + date);
+	    }
+	    
+	    long epochSecond = epochDay(year, month, day) * SECONDS_PER_DAY + hour * 3600 + minute * 60 + second
+	            - offsetSign * (offsetHours * 3600 + offsetMinutes * 60);
+	    return epochSecond * 1000;
+	}
+	
+	private static int format(long millis, char[] buffer) {
+	    long epochSecond = floorDiv(millis, 1000);
+	    long epochDay = floorDiv(epochSecond, SECONDS_PER_DAY);
+	    int secondOfDay = (int) (epochSecond - epochDay * SECONDS_PER_DAY);
+	    
+	    // Civil date of the day, see http://howardhinnant.github.io/date_algorithms.html
+	    long z = epochDay + DAYS_0000_TO_1970;
+	    long era = floorDiv(z, DAYS_PER_ERA);
+	    long dayOfEra = z - era * DAYS_PER_ERA;
+	    long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+	    long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+	    long shiftedMonth = (5 * dayOfYear + 2) / 153;
+	    int day = (int) (dayOfYear - (153 * shiftedMonth + 2) / 5 + 1);
+	    int month = (int) (shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9);
+	    long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+	    
+	    int pos = 0;
+	    pos = appendName(buffer, pos, DAYS[(int) floorMod(epochDay + 4, 7)]);
+	    buffer[pos++] = ' ';
+	    pos = appendName(buffer, pos, MONTHS[month - 1]);
+	    buffer[pos++] = ' ';
+	    pos = appendNumber(buffer, pos, day, 2);
+	    buffer[pos++] = ' ';
+	    pos = appendNumber(buffer, pos, secondOfDay / 3600, 2);
+	    buffer[pos++] = ':';
+	    pos = appendNumber(buffer, pos, secondOfDay / 60 % 60, 2);
+	    buffer[pos++] = ':';
+	    pos = appendNumber(buffer, pos, secondOfDay % 60, 2);
+	    buffer[pos++] = ' ';
+	    buffer[pos++] = '+';
+	    pos = appendNumber(buffer, pos, 0, 4);
+	    buffer[pos++] = ' ';
+	    return appendNumber(buffer, pos, year, 4);
+	}
+	
+	private static long epochDay(long year, int month, int day) {
+	    long y = month <= 2 ? year - 1 : year;
+	    long era = floorDiv(y, 400);
+	    long yearOfEra = y - era * 400;
+	    long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+	    long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+	    return era * DAYS_PER_ERA + dayOfEra - DAYS_0000_TO_1970;
+	}
+	
+	private static int parseMonth(CharSequence date, int pos) {
+	    for (int month = 0; month < MONTHS.length; month++) {
+	        String name = MONTHS[month];
+	        if (Character.toLowerCase(date.charAt(pos)) == Character.toLowerCase(name.charAt(0))
+	                && Character.toLowerCase(date.charAt(pos + 1)) == name.charAt(1)
+	                && Character.toLowerCase(date.charAt(pos + 2)) == name.charAt(2)) {
+	            return month + 1;
+	        }
+	    }
+	    throw new IllegalArgumentException("Invalid month: " + date);
+	}
+	
+	private static int parseNumber(CharSequence date, int pos, int digits) {
+	    if (pos + digits > date.length()) {
+	        throw new IllegalArgumentException("Truncated date: " + date);
+	    }
+	    
+	    int number = 0;
+	    for (int i = pos; i < pos + digits; i++) {
+	        char c = date.charAt(i);
+	        if (c < '0' || c > '9') {
+	            throw new IllegalArgumentException("Invalid number at " + i + ": " + date);
+	        }
+	        number = number * 10 + (c - '0');
+	    }
+	    return number;
+	}
+	
+	private static int expect(CharSequence date, int pos, char expected) {
+	    if (pos >= date.length() || date.charAt(pos) != expected) {
+	        throw new IllegalArgumentException("Expected '" + expected + "' at " + pos + ": " + date);
+	    }
+	    return pos + 1;
+	}
+	
+	private static int appendName(char[] buffer, int pos, String name) {
+	    buffer[pos] = name.charAt(0);
+	    buffer[pos + 1] = name.charAt(1);
+	    buffer[pos + 2] = name.charAt(2);
+	    return pos + 3;
+	}
+	
+	private static int appendNumber(char[] buffer, int pos, long number, int minDigits) {
+	    int digits = 1;
+	    for (long n = number / 10; n > 0; n /= 10) {
+	        digits++;
+	    }
+	    digits = Math.max(digits, minDigits);
+	    
+	    for (int i = pos + digits - 1; i >= pos; i--) {
+	        buffer[i] = (char) ('0' + number % 10);
+	        number /= 10;
+	    }
+	    return pos + digits;
+	}
+	
+	private static long floorDiv(long x, long y) {
+	    long quotient = x / y;
+	    if ((x % y != 0) && ((x ^ y) < 0)) {
+	        quotient--;
+	    }
+	    return quotient;
+	}
+	
+	private static long floorMod(long x, long y) {
+	    return x - floorDiv(x, y) * y;
 	}
 }
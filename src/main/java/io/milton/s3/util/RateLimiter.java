@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spreads the consumption of a resource, e.g. DynamoDB capacity units, evenly
+ * over time. Callers pay for what they consumed afterwards, so requests of
+ * unknown cost can be throttled by their actual cost.
+ */
+public class RateLimiter {
+
+    /**
+     * Nanoseconds needed to earn one permit
+     */
+    private final double intervalNanos;
+    
+    /**
+     * The time at which the permits consumed so far are paid off
+     */
+    private long nextFreeNanos;
+    
+    /**
+     * @param permitsPerSecond
+     *            - The number of permits earned per second
+     */
+    public RateLimiter(double permitsPerSecond) {
+        if (permitsPerSecond <= 0) {
+            throw new IllegalArgumentException("Permits per second must be positive: " + permitsPerSecond);
+        }
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / permitsPerSecond;
+        this.nextFreeNanos = System.nanoTime();
+    }
+    
+    /**
+     * Blocks until the permits consumed before are paid off, then records the
+     * given permits as consumed
+     * 
+     * @param permits
+     *            - The number of permits consumed
+     * @throws InterruptedException
+     */
+    public void acquire(double permits) throws InterruptedException {
+        long waitNanos = reserve(permits);
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+    
+    private synchronized long reserve(double permits) {
+        long now = System.nanoTime();
+        if (nextFreeNanos < now) {
+            nextFreeNanos = now;
+        }
+        long waitNanos = nextFreeNanos - now;
+        nextFreeNanos += (long) (permits * intervalNanos);
+        return waitNanos;
+    }
+}
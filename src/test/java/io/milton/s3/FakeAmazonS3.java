@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.CopyObjectResult;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+
+/**
+ * Keeps a single object in memory and only supports the calls of the
+ * uploader, the downloader and the copier. Uploads replace the object,
+ * ranged reads and copies are served from it
+ */
+public class FakeAmazonS3 implements InvocationHandler {
+    
+    public final AmazonS3 client = (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(), 
+            new Class<?>[] { AmazonS3.class }, this);
+    
+    /**
+     * Content of the uploaded parts, by part number
+     */
+    public final Map<Integer, byte[]> parts = new ConcurrentHashMap<Integer, byte[]>();
+    
+    /**
+     * Byte ranges of the copied parts, by part number
+     */
+    public final Map<Integer, long[]> copiedParts = new ConcurrentHashMap<Integer, long[]>();
+    
+    /**
+     * Number of GET requests
+     */
+    public final AtomicInteger requests = new AtomicInteger();
+    
+    /**
+     * Number of times the failing part still fails
+     */
+    public final AtomicInteger failures;
+    
+    private final int failingPart;
+    
+    /**
+     * Content of the object, null until it is uploaded
+     */
+    public volatile byte[] content;
+    
+    public volatile String eTag = "etag";
+    
+    /**
+     * Size of the last copied object, -1 until a copy is completed
+     */
+    public volatile long copiedSize = -1;
+    
+    public volatile boolean isAborted;
+    
+    /**
+     * Holds the uploaded parts back until it is counted down, if set
+     */
+    public volatile CountDownLatch partLatch;
+    
+    public FakeAmazonS3(byte[] content) {
+        this(content, 0, 0);
+    }
+    
+    /**
+     * @param content
+     *            - the content of the object, null for none
+     * @param failingPart
+     *            - the number of the uploaded or copied part which fails
+     * @param failures
+     *            - the number of times it fails
+     */
+    public FakeAmazonS3(byte[] content, int failingPart, int failures) {
+        this.content = content;
+        this.failingPart = failingPart;
+        this.failures = new AtomicInteger(failures);
+    }
+    
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+        String name = method.getName();
+        if (name.equals("getObject") && args[0] instanceof GetObjectRequest) {
+            return getObject((GetObjectRequest) args[0]);
+        } else if (name.equals("getObjectMetadata")) {
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength(content.length);
+            metadata.setHeader("ETag", eTag);
+            return metadata;
+        } else if (name.equals("putObject")) {
+            content = read((InputStream) args[2]);
+            PutObjectResult result = new PutObjectResult();
+            result.setETag("single");
+            return result;
+        } else if (name.equals("copyObject")) {
+            copiedSize = content.length;
+            CopyObjectResult result = new CopyObjectResult();
+            result.setETag("single");
+            return result;
+        } else if (name.equals("initiateMultipartUpload")) {
+            InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+            result.setUploadId("upload");
+            return result;
+        } else if (name.equals("uploadPart")) {
+            UploadPartRequest request = (UploadPartRequest) args[0];
+            if (partLatch != null) {
+                partLatch.await(10, TimeUnit.SECONDS);
+            }
+            failPart(request.getPartNumber());
+            parts.put(request.getPartNumber(), read(request.getInputStream()));
+            UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag("part" + request.getPartNumber());
+            return result;
+        } else if (name.equals("copyPart")) {
+            CopyPartRequest request = (CopyPartRequest) args[0];
+            assertEquals(eTag, request.getMatchingETagConstraints().get(0));
+            failPart(request.getPartNumber());
+            copiedParts.put(request.getPartNumber(), new long[] { request.getFirstByte(), request.getLastByte() });
+            CopyPartResult result = new CopyPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag("part" + request.getPartNumber());
+            return result;
+        } else if (name.equals("completeMultipartUpload")) {
+            CompleteMultipartUploadRequest request = (CompleteMultipartUploadRequest) args[0];
+            if (copiedParts.isEmpty()) {
+                completeUpload(request);
+            } else {
+                completeCopy(request);
+            }
+            CompleteMultipartUploadResult result = new CompleteMultipartUploadResult();
+            result.setETag("multipart");
+            return result;
+        } else if (name.equals("abortMultipartUpload")) {
+            isAborted = true;
+            return null;
+        }
+        throw new UnsupportedOperationException(name);
+    }
+    
+    /**
+     * @return content of the given length, which differs from one byte to the
+     *         next
+     */
+    public static byte[] newContent(int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) (i * 31);
+        }
+        return content;
+    }
+    
+    /**
+     * Read the stream to its end in reads which do not match the part sizes,
+     * and close it
+     */
+    public static byte[] read(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[700];
+        int read;
+        while ((read = inputStream.read(buffer)) >= 0) {
+            output.write(buffer, 0, read);
+        }
+        inputStream.close();
+        return output.toByteArray();
+    }
+    
+    private S3Object getObject(GetObjectRequest request) {
+        requests.incrementAndGet();
+        if (!request.getMatchingETagConstraints().isEmpty() 
+                && !request.getMatchingETagConstraints().contains(eTag)) {
+            return null;
+        }
+        
+        byte[] content = this.content;
+        long[] range = request.getRange();
+        int start = (int) range[0];
+        int end = (int) Math.min(range[1], content.length - 1);
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setHeader("ETag", eTag);
+        metadata.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+        S3Object s3Object = new S3Object();
+        s3Object.setObjectMetadata(metadata);
+        s3Object.setObjectContent(new ByteArrayInputStream(content, start, end - start + 1));
+        return s3Object;
+    }
+    
+    private void failPart(int partNumber) {
+        if (partNumber == failingPart && failures.getAndDecrement() > 0) {
+            throw new AmazonClientException("Part " + failingPart + " failed");
+        }
+    }
+    
+    private void completeUpload(CompleteMultipartUploadRequest request) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        int partNumber = 1;
+        for (PartETag partETag : request.getPartETags()) {
+            assertEquals(partNumber++, partETag.getPartNumber());
+            output.write(parts.get(partETag.getPartNumber()));
+        }
+        content = output.toByteArray();
+    }
+    
+    private void completeCopy(CompleteMultipartUploadRequest request) {
+        long nextByte = 0;
+        int partNumber = 1;
+        for (PartETag partETag : request.getPartETags()) {
+            assertEquals(partNumber++, partETag.getPartNumber());
+            long[] range = copiedParts.get(partETag.getPartNumber());
+            assertEquals(nextByte, range[0]);
+            nextByte = range[1] + 1;
+        }
+        copiedSize = nextByte;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import io.milton.s3.changelog.Change;
+import io.milton.s3.db.FakeDynamoDBService;
+import io.milton.s3.db.TableSchema;
+import io.milton.s3.model.Entity;
+import io.milton.s3.model.File;
+import io.milton.s3.model.Folder;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestCachingDynamoDBManager {
+
+    private static final String TABLE = "bucket";
+    
+    private final Folder root = new Folder("root", null);
+    
+    private final FakeDynamoDBService dynamoDB = new FakeDynamoDBService(TableSchema.UNIQUE_ID);
+    
+    private final DynamoDBManagerImpl dynamoDBManager = new DynamoDBManagerImpl(dynamoDB.service);
+    
+    @Test
+    public void testServesCachedEntity() {
+        File file = root.addFile("a");
+        assertTrue(dynamoDBManager.putEntity(TABLE, file));
+        CachingDynamoDBManager manager = new CachingDynamoDBManager(dynamoDBManager, 100, 60000);
+        
+        int reads = dynamoDB.reads.get();
+        assertEquals("a", manager.findEntityByUniqueId(TABLE, file.getId().toString(), root).getName());
+        assertEquals("a", manager.findEntityByUniqueId(TABLE, file.getId().toString(), root).getName());
+        assertEquals(reads + 1, dynamoDB.reads.get());
+    }
+    
+    @Test
+    public void testKeepsCopiesOfEntities() {
+        CachingDynamoDBManager manager = new CachingDynamoDBManager(dynamoDBManager, 100, 60000);
+        File file = root.addFile("a");
+        file.setSize(42);
+        assertTrue(manager.putEntity(TABLE, file));
+        
+        // Neither the written nor the served entity is the cached one
+        file.setSize(7);
+        File cached = (File) manager.findEntityByUniqueId(TABLE, file.getId().toString(), root);
+        assertEquals(42, cached.getSize());
+        assertNotSame(file, cached);
+        
+        cached.setName("b");
+        assertEquals("a", manager.findEntityByUniqueId(TABLE, file.getId().toString(), root).getName());
+        assertEquals(0, dynamoDB.reads.get());
+    }
+    
+    @Test
+    public void testReadsEntityAgainAfterChange() {
+        File file = root.addFile("a");
+        assertTrue(dynamoDBManager.putEntity(TABLE, file));
+        CachingDynamoDBManager manager = new CachingDynamoDBManager(dynamoDBManager, 100, 60000);
+        manager.findEntityByUniqueId(TABLE, file.getId().toString(), root);
+        
+        // Another node renames the file
+        assertTrue(dynamoDBManager.updateEntityByUniqueId(TABLE, file, root, "b", true));
+        manager.onChange(new Change(Change.Type.PUT, TABLE, file.getId().toString(), 
+                root.getId().toString(), null, "b"));
+        
+        assertEquals("b", manager.findEntityByUniqueId(TABLE, file.getId().toString(), root).getName());
+    }
+    
+    @Test
+    public void testDoesNotCacheEntityChangedWhileRead() {
+        final File file = root.addFile("a");
+        assertTrue(dynamoDBManager.putEntity(TABLE, file));
+        
+        // The change arrives after the entity was read, but before it is cached
+        final CachingDynamoDBManager[] manager = new CachingDynamoDBManager[1];
+        manager[0] = new CachingDynamoDBManager(newManager(new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                Object result = invokeManager(method, args);
+                if (method.getName().startsWith("find")) {
+                    manager[0].onChange(new Change(Change.Type.PUT, TABLE, file.getId().toString(), 
+                            root.getId().toString(), null, "a"));
+                }
+                return result;
+            }
+        }), 100, 60000);
+        
+        int reads = dynamoDB.reads.get();
+        manager[0].findEntityByUniqueId(TABLE, file.getId().toString(), root);
+        manager[0].findEntityByUniqueId(TABLE, file.getId().toString(), root);
+        assertEquals(reads + 2, dynamoDB.reads.get());
+        
+        List<Entity> children = manager[0].findEntityByParent(TABLE, root);
+        assertEquals(1, children.size());
+        manager[0].findEntityByUniqueId(TABLE, file.getId().toString(), root);
+        assertEquals(reads + 4, dynamoDB.reads.get());
+    }
+    
+    @Test
+    public void testCachesEntitiesOfListing() {
+        File file = root.addFile("a");
+        assertTrue(dynamoDBManager.putEntity(TABLE, file));
+        CachingDynamoDBManager manager = new CachingDynamoDBManager(dynamoDBManager, 100, 60000);
+        
+        assertEquals(1, manager.findEntityByParent(TABLE, root).size());
+        int reads = dynamoDB.reads.get();
+        assertEquals("a", manager.findEntityByUniqueId(TABLE, file.getId().toString(), root).getName());
+        assertEquals(reads, dynamoDB.reads.get());
+    }
+    
+    @Test
+    public void testBindsCachedChildrenToRenamedParent() {
+        Folder folder = root.addFolder("docs");
+        File file = folder.addFile("a");
+        assertTrue(dynamoDBManager.putEntity(TABLE, folder));
+        assertTrue(dynamoDBManager.putEntity(TABLE, file));
+        CachingDynamoDBManager manager = new CachingDynamoDBManager(dynamoDBManager, 100, 60000);
+        List<String> uniqueIds = Collections.singletonList(file.getId().toString());
+        manager.findEntityByUniqueIds(TABLE, uniqueIds, folder);
+        
+        assertTrue(manager.updateEntityByUniqueId(TABLE, folder, root, "papers", true));
+        Folder renamed = (Folder) manager.findEntityByUniqueId(TABLE, folder.getId().toString(), root);
+        assertEquals("papers", renamed.getName());
+        
+        int reads = dynamoDB.reads.get();
+        List<Entity> children = manager.findEntityByUniqueIds(TABLE, uniqueIds, renamed);
+        assertEquals(reads, dynamoDB.reads.get());
+        assertEquals(1, children.size());
+        assertSame(renamed, children.get(0).getParent());
+        assertSame(renamed, manager.findEntityByUniqueId(TABLE, file.getId().toString(), renamed).getParent());
+    }
+    
+    @Test
+    public void testDropsEntitiesOfDeletedTable() {
+        File file = root.addFile("a");
+        assertTrue(dynamoDBManager.putEntity(TABLE, file));
+        CachingDynamoDBManager manager = new CachingDynamoDBManager(dynamoDBManager, 100, 60000);
+        manager.findEntityByUniqueId(TABLE, file.getId().toString(), root);
+        
+        manager.onChange(new Change(Change.Type.DELETE_TABLE, TABLE, null, null, null, null));
+        assertEquals(0, manager.getEntityCache().size());
+    }
+    
+    private DynamoDBManager newManager(InvocationHandler handler) {
+        return (DynamoDBManager) Proxy.newProxyInstance(getClass().getClassLoader(), 
+                new Class<?>[] { DynamoDBManager.class }, handler);
+    }
+    
+    private Object invokeManager(Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(dynamoDBManager, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import io.milton.s3.db.FakeDynamoDBService;
+import io.milton.s3.db.TableSchema;
+import io.milton.s3.model.Entity;
+import io.milton.s3.model.File;
+import io.milton.s3.model.Folder;
+import io.milton.s3.util.AttributeKey;
+
+import java.util.Date;
+
+import org.junit.Test;
+
+public class TestDynamoDBManagerImpl {
+
+    private static final String TABLE = "bucket";
+    
+    private final Folder root = new Folder("root", null);
+    
+    @Test
+    public void testFindsEntityBeforeIndexIsUpdated() {
+        FakeDynamoDBService dynamoDB = new FakeDynamoDBService(TableSchema.PARENT_NAME);
+        DynamoDBManagerImpl manager = new DynamoDBManagerImpl(dynamoDB.service);
+        dynamoDB.freezeIndex(Integer.MAX_VALUE);
+        File file = root.addFile("a");
+        assertTrue(manager.putEntity(TABLE, file));
+        
+        // The parent and name are known, the table itself is read
+        assertEquals(file.getId(), manager.findEntityByUniqueId(TABLE, file).getId());
+    }
+    
+    @Test
+    public void testRetriesLookupOfNewEntity() {
+        FakeDynamoDBService dynamoDB = new FakeDynamoDBService(TableSchema.PARENT_NAME);
+        DynamoDBManagerImpl manager = new DynamoDBManagerImpl(dynamoDB.service);
+        dynamoDB.freezeIndex(1);
+        File file = root.addFile("a");
+        assertTrue(manager.putEntity(TABLE, file));
+        
+        Entity entity = manager.findEntityByUniqueId(TABLE, file.getId().toString(), null);
+        assertNotNull(entity);
+        assertEquals("a", entity.getName());
+    }
+    
+    @Test
+    public void testDoesNotDeleteEntityUnderStaleKey() {
+        FakeDynamoDBService dynamoDB = new FakeDynamoDBService(TableSchema.PARENT_NAME);
+        DynamoDBManagerImpl manager = new DynamoDBManagerImpl(dynamoDB.service);
+        File renamed = root.addFile("a");
+        assertTrue(manager.putEntity(TABLE, renamed));
+        
+        // The index still has the renamed file under its old name, which
+        // another file took meanwhile
+        dynamoDB.freezeIndex(1);
+        assertTrue(manager.updateEntityByUniqueId(TABLE, renamed, root, "b", true));
+        File other = root.addFile("a");
+        assertTrue(manager.putEntity(TABLE, other));
+        
+        assertTrue(manager.deleteEntityByUniqueId(TABLE, renamed.getId().toString()));
+        assertNull(dynamoDB.findItem(renamed.getId().toString()));
+        assertNotNull(dynamoDB.findItem(other.getId().toString()));
+    }
+    
+    @Test
+    public void testDoesNotMoveOverAnotherEntity() {
+        FakeDynamoDBService dynamoDB = new FakeDynamoDBService(TableSchema.PARENT_NAME);
+        DynamoDBManagerImpl manager = new DynamoDBManagerImpl(dynamoDB.service);
+        File moved = root.addFile("a");
+        File other = root.addFile("b");
+        assertTrue(manager.putEntity(TABLE, moved));
+        assertTrue(manager.putEntity(TABLE, other));
+        
+        assertFalse(manager.updateEntityByUniqueId(TABLE, moved, root, "b", true));
+        assertEquals("a", dynamoDB.findItem(moved.getId().toString()).get(AttributeKey.ENTITY_NAME).getS());
+        assertNotNull(dynamoDB.findItem(other.getId().toString()));
+    }
+    
+    @Test
+    public void testRenameUpdatesModifiedDate() {
+        FakeDynamoDBService dynamoDB = new FakeDynamoDBService(TableSchema.UNIQUE_ID);
+        DynamoDBManagerImpl manager = new DynamoDBManagerImpl(dynamoDB.service);
+        File file = root.addFile("a");
+        file.setSize(42);
+        file.setModifiedDate(new Date(1000));
+        assertTrue(manager.putEntity(TABLE, file));
+        
+        assertTrue(manager.updateEntityByUniqueId(TABLE, file, root, "b", true));
+        File renamed = (File) manager.findEntityByUniqueId(TABLE, file.getId().toString(), root);
+        assertEquals("b", renamed.getName());
+        assertEquals(42, renamed.getSize());
+        assertTrue(renamed.getModifiedDate().getTime() > 1000);
+    }
+    
+    @Test
+    public void testRollsBackMoveWhenOldItemIsNotDeleted() {
+        FakeDynamoDBService dynamoDB = new FakeDynamoDBService(TableSchema.PARENT_NAME);
+        DynamoDBManagerImpl manager = new DynamoDBManagerImpl(dynamoDB.service);
+        File file = root.addFile("a");
+        assertTrue(manager.putEntity(TABLE, file));
+        
+        dynamoDB.failWrites("deleteItem", 1);
+        assertFalse(manager.updateEntityByUniqueId(TABLE, file, root, "b", true));
+        assertEquals(1, dynamoDB.size());
+        assertEquals("a", dynamoDB.findItem(file.getId().toString()).get(AttributeKey.ENTITY_NAME).getS());
+    }
+    
+    @Test
+    public void testReadsRootFolderOnce() {
+        FakeDynamoDBService dynamoDB = new FakeDynamoDBService(TableSchema.UNIQUE_ID);
+        DynamoDBManagerImpl manager = new DynamoDBManagerImpl(dynamoDB.service);
+        Folder rootFolder = new Folder("/", null);
+        assertTrue(manager.putEntity(TABLE, rootFolder));
+        
+        int reads = dynamoDB.reads.get();
+        Folder found = manager.findRootFolder(TABLE);
+        assertEquals(rootFolder.getId(), found.getId());
+        assertEquals(rootFolder.getModifiedDate(), found.getModifiedDate());
+        assertEquals(reads + 1, dynamoDB.reads.get());
+    }
+}
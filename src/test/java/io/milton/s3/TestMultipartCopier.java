@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import com.amazonaws.AmazonClientException;
+
+public class TestMultipartCopier {
+
+    @Test
+    public void testCopiesParts() {
+        FakeAmazonS3 amazonS3 = new FakeAmazonS3(new byte[2500]);
+        MultipartCopier copier = new MultipartCopier(amazonS3.client, 1024, 2, 2000);
+        
+        assertEquals("multipart", copier.copy("bucket", "source", "bucket", "destination"));
+        assertEquals(3, amazonS3.copiedParts.size());
+        assertEquals(2500, amazonS3.copiedSize);
+        assertFalse(amazonS3.isAborted);
+        copier.shutdown();
+    }
+    
+    @Test
+    public void testCopiesSmallObjectAtOnce() {
+        FakeAmazonS3 amazonS3 = new FakeAmazonS3(new byte[1500]);
+        MultipartCopier copier = new MultipartCopier(amazonS3.client, 1024, 2, 2000);
+        
+        assertEquals("single", copier.copy("bucket", "source", "bucket", "destination"));
+        assertEquals(0, amazonS3.copiedParts.size());
+        copier.shutdown();
+    }
+    
+    @Test
+    public void testGrowsPartsOfLargeObject() {
+        FakeAmazonS3 amazonS3 = new FakeAmazonS3(new byte[1000000]);
+        MultipartCopier copier = new MultipartCopier(amazonS3.client, 10, 4, 0);
+        
+        copier.copy("bucket", "source", "bucket", "destination");
+        assertEquals(10000, amazonS3.copiedParts.size());
+        assertEquals(1000000, amazonS3.copiedSize);
+        copier.shutdown();
+    }
+    
+    @Test
+    public void testRetriesFailedPart() {
+        FakeAmazonS3 amazonS3 = new FakeAmazonS3(new byte[2500], 2, 2);
+        MultipartCopier copier = new MultipartCopier(amazonS3.client, 1024, 2, 0);
+        
+        assertEquals("multipart", copier.copy("bucket", "source", "bucket", "destination"));
+        assertEquals(2500, amazonS3.copiedSize);
+        copier.shutdown();
+    }
+    
+    @Test(timeout = 10000)
+    public void testAbortsFailedCopy() {
+        FakeAmazonS3 amazonS3 = new FakeAmazonS3(new byte[10000], 2, Integer.MAX_VALUE);
+        MultipartCopier copier = new MultipartCopier(amazonS3.client, 1024, 2, 0);
+        
+        try {
+            copier.copy("bucket", "source", "bucket", "destination");
+            fail("Copy should fail");
+        } catch (AmazonClientException ace) {
+            assertTrue(amazonS3.isAborted);
+            assertEquals(-1, amazonS3.copiedSize);
+        }
+        copier.shutdown();
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3;
+
+import static io.milton.s3.FakeAmazonS3.newContent;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+public class TestMultipartUploader {
+
+    @Test
+    public void testUploadsParts() throws IOException {
+        FakeAmazonS3 amazonS3 = new FakeAmazonS3(null);
+        MultipartUploader uploader = new MultipartUploader(amazonS3.client, 1024, 2);
+        byte[] content = newContent(2500);
+        
+        assertEquals("multipart", uploader.upload("bucket", "key", new ByteArrayInputStream(content), 
+                new ObjectMetadata()));
+        assertEquals(3, amazonS3.parts.size());
+        assertArrayEquals(content, amazonS3.content);
+        assertFalse(amazonS3.isAborted);
+        uploader.shutdown();
+    }
+    
+    @Test
+    public void testUploadsSmallStreamAtOnce() throws IOException {
+        FakeAmazonS3 amazonS3 = new FakeAmazonS3(null);
+        MultipartUploader uploader = new MultipartUploader(amazonS3.client, 1024, 2);
+        byte[] content = newContent(100);
+        
+        assertEquals("single", uploader.upload("bucket", "key", new ByteArrayInputStream(content), 
+                new ObjectMetadata()));
+        assertEquals(0, amazonS3.parts.size());
+        assertArrayEquals(content, amazonS3.content);
+        uploader.shutdown();
+    }
+    
+    @Test
+    public void testStreamEndingWithPart() throws IOException {
+        FakeAmazonS3 amazonS3 = new FakeAmazonS3(null);
+        MultipartUploader uploader = new MultipartUploader(amazonS3.client, 1024, 2);
+        byte[] content = newContent(2048);
+        
+        uploader.upload("bucket", "key", new ByteArrayInputStream(content), new ObjectMetadata());
+        assertEquals(2, amazonS3.parts.size());
+        assertArrayEquals(content, amazonS3.content);
+        uploader.shutdown();
+    }
+    
+    @Test
+    public void testRetriesFailedPart() throws IOException {
+        FakeAmazonS3 amazonS3 = new FakeAmazonS3(null, 2, 1);
+        MultipartUploader uploader = new MultipartUploader(amazonS3.client, 1024, 2);
+        byte[] content = newContent(5000);
+        
+        uploader.upload("bucket", "key", new ByteArrayInputStream(content), new ObjectMetadata());
+        assertArrayEquals(content, amazonS3.content);
+        assertFalse(amazonS3.isAborted);
+        uploader.shutdown();
+    }
+    
+    @Test(timeout = 10000)
+    public void testAbortsFailedUpload() throws IOException {
+        FakeAmazonS3 amazonS3 = new FakeAmazonS3(null, 2, Integer.MAX_VALUE);
+        MultipartUploader uploader = new MultipartUploader(amazonS3.client, 1024, 2);
+        
+        try {
+            uploader.upload("bucket", "key", new ByteArrayInputStream(newContent(10000)), new ObjectMetadata());
+            fail("Upload should fail");
+        } catch (AmazonClientException ace) {
+            assertTrue(amazonS3.isAborted);
+            assertEquals(null, amazonS3.content);
+        }
+        
+        // All the buffers were given back, the next upload does not block
+        amazonS3.failures.set(0);
+        byte[] content = newContent(10000);
+        uploader.upload("bucket", "key", new ByteArrayInputStream(content), new ObjectMetadata());
+        assertArrayEquals(content, amazonS3.content);
+        uploader.shutdown();
+    }
+    
+    @Test(timeout = 10000)
+    public void testUploadsAtOnceWhileBuffersAreHeld() throws Exception {
+        final FakeAmazonS3 amazonS3 = new FakeAmazonS3(null);
+        amazonS3.partLatch = new CountDownLatch(1);
+        final MultipartUploader uploader = new MultipartUploader(amazonS3.client, 1024, 1);
+        final byte[] slowContent = newContent(5000);
+        final AtomicInteger slowUploads = new AtomicInteger();
+        Thread slowUpload = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    uploader.upload("bucket", "slow", new ByteArrayInputStream(slowContent), new ObjectMetadata());
+                    slowUploads.incrementAndGet();
+                } catch (IOException e) {
+                    // Fails the assertion below
+                }
+            }
+        };
+        slowUpload.start();
+        
+        // The slow upload holds all the buffers, and waits for its own parts
+        while (uploader.getAvailableBuffers() > 0) {
+            Thread.sleep(10);
+        }
+        byte[] content = newContent(3000);
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(content.length);
+        assertEquals("single", uploader.upload("bucket", "key", new ByteArrayInputStream(content), metadata));
+        assertArrayEquals(content, amazonS3.content);
+        
+        amazonS3.partLatch.countDown();
+        slowUpload.join();
+        assertEquals(1, slowUploads.get());
+        assertArrayEquals(slowContent, amazonS3.content);
+        assertEquals(2, uploader.getAvailableBuffers());
+        uploader.shutdown();
+    }
+}
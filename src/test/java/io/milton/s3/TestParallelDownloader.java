@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3;
+
+import static io.milton.s3.FakeAmazonS3.newContent;
+import static io.milton.s3.FakeAmazonS3.read;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+public class TestParallelDownloader {
+
+    @Test(timeout = 10000)
+    public void testDownloadsParts() throws IOException {
+        byte[] content = newContent(10000);
+        FakeAmazonS3 amazonS3 = new FakeAmazonS3(content);
+        ParallelDownloader downloader = new ParallelDownloader(amazonS3.client, 1024, 2, 2, 0);
+        
+        assertArrayEquals(content, read(downloader.download("bucket", "key")));
+        assertEquals(10, amazonS3.requests.get());
+        downloader.shutdown();
+    }
+    
+    @Test
+    public void testDownloadsSmallObjectWithTwoRequests() throws IOException {
+        byte[] content = newContent(3000);
+        FakeAmazonS3 amazonS3 = new FakeAmazonS3(content);
+        ParallelDownloader downloader = new ParallelDownloader(amazonS3.client, 1024, 2, 2, 4096);
+        
+        assertArrayEquals(content, read(downloader.download("bucket", "key")));
+        assertEquals(2, amazonS3.requests.get());
+        downloader.shutdown();
+    }
+    
+    @Test
+    public void testDownloadsObjectOfOnePart() throws IOException {
+        byte[] content = newContent(500);
+        FakeAmazonS3 amazonS3 = new FakeAmazonS3(content);
+        ParallelDownloader downloader = new ParallelDownloader(amazonS3.client, 1024, 2, 2, 0);
+        
+        assertArrayEquals(content, read(downloader.download("bucket", "key")));
+        assertEquals(1, amazonS3.requests.get());
+        downloader.shutdown();
+    }
+    
+    @Test(timeout = 10000)
+    public void testFailsWhenObjectChanges() throws IOException {
+        FakeAmazonS3 amazonS3 = new FakeAmazonS3(newContent(10000));
+        ParallelDownloader downloader = new ParallelDownloader(amazonS3.client, 1024, 2, 2, 0);
+        
+        InputStream inputStream = downloader.download("bucket", "key");
+        amazonS3.eTag = "changed";
+        try {
+            read(inputStream);
+            fail("Download should fail");
+        } catch (IOException ioe) {
+            inputStream.close();
+        }
+        
+        // All the buffers were given back, the next download does not block
+        byte[] content = newContent(10000);
+        amazonS3.content = content;
+        assertArrayEquals(content, read(downloader.download("bucket", "key")));
+        downloader.shutdown();
+    }
+    
+    @Test(timeout = 10000)
+    public void testClosedDownloadsGiveBackBuffers() throws IOException {
+        byte[] content = newContent(10000);
+        FakeAmazonS3 amazonS3 = new FakeAmazonS3(content);
+        ParallelDownloader downloader = new ParallelDownloader(amazonS3.client, 1024, 2, 2, 0);
+        
+        for (int i = 0; i < 20; i++) {
+            InputStream inputStream = downloader.download("bucket", "key");
+            inputStream.read(new byte[2000]);
+            inputStream.close();
+        }
+        assertArrayEquals(content, read(downloader.download("bucket", "key")));
+        downloader.shutdown();
+    }
+    
+    @Test(timeout = 10000)
+    public void testStreamsRestWhileBuffersAreHeld() throws Exception {
+        byte[] content = newContent(10000);
+        FakeAmazonS3 amazonS3 = new FakeAmazonS3(content);
+        ParallelDownloader downloader = new ParallelDownloader(amazonS3.client, 1024, 2, 1, 0);
+        
+        // The slow reader holds all the buffers with the parts read ahead
+        InputStream slowStream = downloader.download("bucket", "key");
+        while (amazonS3.requests.get() < 3) {
+            Thread.sleep(10);
+        }
+        
+        assertArrayEquals(content, read(downloader.download("bucket", "key")));
+        assertEquals(5, amazonS3.requests.get());
+        assertArrayEquals(content, read(slowStream));
+        downloader.shutdown();
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.cache;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class TestAccessCounter {
+
+    @Test
+    public void testTopKeys() {
+        AccessCounter counter = new AccessCounter(100);
+        for (int i = 0; i < 5; i++) {
+            counter.record("bucket:/documents");
+        }
+        for (int i = 0; i < 3; i++) {
+            counter.record("bucket:/photos");
+        }
+        counter.record("bucket:/music");
+        
+        assertEquals(Arrays.asList("bucket:/documents", "bucket:/photos"), counter.getTopKeys(2));
+        assertEquals(3, counter.getTopKeys(10).size());
+    }
+    
+    @Test
+    public void testMaxKeys() {
+        AccessCounter counter = new AccessCounter(2);
+        counter.record("a");
+        counter.record("b");
+        counter.record("c");
+        counter.record("a");
+        
+        assertEquals(2, counter.size());
+        assertEquals(2, counter.getCount("a"));
+        assertEquals(0, counter.getCount("c"));
+    }
+    
+    @Test
+    public void testDecay() {
+        AccessCounter counter = new AccessCounter(100);
+        for (int i = 0; i < 4; i++) {
+            counter.record("often");
+        }
+        counter.record("once");
+        
+        counter.decay();
+        assertEquals(2, counter.getCount("often"));
+        assertEquals(0, counter.getCount("once"));
+        assertEquals(1, counter.size());
+    }
+    
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        AccessCounter counter = new AccessCounter(100);
+        for (int i = 0; i < 3; i++) {
+            counter.record("bucket:/documents/2014");
+        }
+        counter.record("bucket:/photos");
+        counter.record("bucket:/music");
+        
+        File file = File.createTempFile("access-", ".txt");
+        try {
+            counter.save(file, 2);
+            
+            AccessCounter loaded = new AccessCounter(100);
+            loaded.load(file);
+            assertEquals(2, loaded.size());
+            assertEquals(3, loaded.getCount("bucket:/documents/2014"));
+            assertEquals("bucket:/documents/2014", loaded.getTopKeys(1).get(0));
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestContentCache {
+    
+    private File directory;
+    
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("content-cache", "");
+        directory.delete();
+    }
+    
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testFillsWhileStreaming() throws IOException {
+        ContentCache cache = new ContentCache(directory, 100);
+        assertNull(cache.get("a", "1"));
+        
+        InputStream inputStream = cache.fill("a", "1", 5, new ByteArrayInputStream("hello".getBytes("UTF-8")));
+        assertEquals("hello", read(inputStream));
+        assertEquals(1, cache.size());
+        assertEquals(5, cache.getUsedBytes());
+        
+        assertEquals("hello", read(cache.get("a", "1")));
+        assertNull(cache.get("a", "2"));
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+    
+    @Test
+    public void testDoesNotCachePartialContent() throws IOException {
+        ContentCache cache = new ContentCache(directory, 100);
+        InputStream inputStream = cache.fill("a", "1", 5, new ByteArrayInputStream("hello".getBytes("UTF-8")));
+        assertEquals('h', inputStream.read());
+        inputStream.close();
+        assertNull(cache.get("a", "1"));
+        
+        // Shorter than expected
+        assertEquals("hell", read(cache.fill("a", "1", 5, new ByteArrayInputStream("hell".getBytes("UTF-8")))));
+        assertNull(cache.get("a", "1"));
+        assertEquals(0, directory.listFiles().length);
+    }
+    
+    @Test
+    public void testEvictsLeastRecentlyUsedBytes() throws IOException {
+        ContentCache cache = new ContentCache(directory, 10);
+        read(cache.fill("a", "1", 4, new ByteArrayInputStream("aaaa".getBytes("UTF-8"))));
+        read(cache.fill("b", "1", 4, new ByteArrayInputStream("bbbb".getBytes("UTF-8"))));
+        read(cache.get("a", "1"));
+        read(cache.fill("c", "1", 4, new ByteArrayInputStream("cccc".getBytes("UTF-8"))));
+        
+        assertNull(cache.get("b", "1"));
+        assertNotNull(cache.get("a", "1"));
+        assertEquals(8, cache.getUsedBytes());
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(2, directory.listFiles().length);
+    }
+    
+    private static String read(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[3];
+        int n;
+        while ((n = inputStream.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        inputStream.close();
+        return out.toString("UTF-8");
+    }
+}
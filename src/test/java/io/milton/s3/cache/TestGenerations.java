@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestGenerations {
+
+    @Test
+    public void testIncrementsOnlyCounterOfKey() {
+        Generations generations = new Generations(1024);
+        int unchanged = 0;
+        for (int i = 0; i < 100; i++) {
+            String key = "bucket/" + i;
+            long generation = generations.get(key);
+            long total = generations.get();
+            long other = generations.get("bucket/other");
+            
+            generations.increment(key);
+            assertTrue(generation != generations.get(key));
+            assertTrue(total != generations.get());
+            if (other == generations.get("bucket/other")) {
+                unchanged++;
+            }
+        }
+        
+        // Only the few keys sharing its counter change the other key
+        assertTrue(unchanged > 90);
+    }
+    
+    @Test
+    public void testIncrementsAllCounters() {
+        Generations generations = new Generations(16);
+        long generation = generations.get("a");
+        long total = generations.get();
+        
+        generations.incrementAll();
+        assertEquals(generation + 1, generations.get("a"));
+        assertEquals(total + 1, generations.get());
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNoCounters() {
+        new Generations(0);
+    }
+}
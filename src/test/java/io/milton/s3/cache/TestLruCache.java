@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestLruCache {
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        LruCache<String, Integer> cache = new LruCache<String, Integer>(2, 0);
+        cache.put("a", 1);
+        cache.put("b", 2);
+        assertEquals(Integer.valueOf(1), cache.get("a"));
+        
+        cache.put("c", 3);
+        assertNull(cache.get("b"));
+        assertEquals(Integer.valueOf(1), cache.get("a"));
+        assertEquals(Integer.valueOf(3), cache.get("c"));
+        
+        assertEquals(2, cache.size());
+        assertEquals(3, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getEvictionCount());
+    }
+    
+    @Test
+    public void testExpiresEntries() throws InterruptedException {
+        LruCache<String, Integer> cache = new LruCache<String, Integer>(10, 20);
+        cache.put("a", 1);
+        assertEquals(Integer.valueOf(1), cache.get("a"));
+        
+        Thread.sleep(50);
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+    }
+    
+    @Test
+    public void testExpiresEntriesByOwnTimeToLive() throws InterruptedException {
+        LruCache<String, Integer> cache = new LruCache<String, Integer>(10, 20);
+        cache.put("a", 1, 60000);
+        cache.put("b", 2);
+        
+        Thread.sleep(50);
+        assertEquals(Integer.valueOf(1), cache.get("a"));
+        assertNull(cache.get("b"));
+    }
+    
+    @Test
+    public void testRemove() {
+        LruCache<String, Integer> cache = new LruCache<String, Integer>(10, 0);
+        cache.put("a", 1);
+        assertEquals(Integer.valueOf(1), cache.remove("a"));
+        assertNull(cache.remove("a"));
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.getEvictionCount());
+    }
+    
+    @Test
+    public void testServesStaleEntries() throws InterruptedException {
+        LruCache<String, Integer> cache = new LruCache<String, Integer>(10, 20, 0, 5000);
+        cache.put("a", 1);
+        
+        Thread.sleep(50);
+        assertNull(cache.get("a"));
+        assertFalse(cache.containsKey("a"));
+        assertEquals(Integer.valueOf(1), cache.getStale("a"));
+        assertEquals(1, cache.getStaleHitCount());
+        assertNull(cache.getStale("b"));
+    }
+    
+    @Test
+    public void testDropsTooStaleEntries() throws InterruptedException {
+        LruCache<String, Integer> cache = new LruCache<String, Integer>(10, 20, 0, 20);
+        cache.put("a", 1);
+        
+        Thread.sleep(100);
+        assertNull(cache.getStale("a"));
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+    
+    @Test
+    public void testClaimsRefreshOnce() throws InterruptedException {
+        LruCache<String, Integer> cache = new LruCache<String, Integer>(10, 200, 150, 0);
+        cache.put("a", 1);
+        assertFalse(cache.claimRefresh("a"));
+        
+        Thread.sleep(100);
+        assertTrue(cache.claimRefresh("a"));
+        assertFalse(cache.claimRefresh("a"));
+        
+        assertTrue(cache.replace("a", 2));
+        assertFalse(cache.claimRefresh("a"));
+        assertEquals(Integer.valueOf(2), cache.get("a"));
+        assertFalse(cache.replace("b", 2));
+        assertNull(cache.get("b"));
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class TestOffHeapCache {
+
+    @Test
+    public void testStoresValuesAcrossChunks() {
+        OffHeapCache cache = new OffHeapCache(1024 * 1024, 64 * 1024);
+        byte[] data = new byte[10000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        
+        assertTrue(cache.put("a", "1", data));
+        assertTrue(cache.put("b", "1", new byte[] { 1, 2, 3 }));
+        assertArrayEquals(data, cache.get("a", "1"));
+        assertArrayEquals(new byte[] { 1, 2, 3 }, cache.get("b", "1"));
+        assertEquals(10003, cache.getUsedBytes());
+        
+        assertNull(cache.get("a", "2"));
+        assertEquals(1, cache.size());
+        assertFalse(cache.put("c", "1", new byte[64 * 1024 + 1]));
+    }
+    
+    @Test
+    public void testAdmitsFrequentlyRequestedValues() {
+        // One slab of 256 chunks, which holds sixteen 64 KB values
+        OffHeapCache cache = new OffHeapCache(1024 * 1024, 64 * 1024);
+        byte[] data = new byte[64 * 1024];
+        for (int i = 0; i < 16; i++) {
+            cache.get("hot" + i, "1");
+            cache.get("hot" + i, "1");
+            assertTrue(cache.put("hot" + i, "1", data));
+        }
+        
+        // Requested once, less often than the least recently used value
+        cache.get("cold", "1");
+        assertFalse(cache.put("cold", "1", data));
+        assertEquals(1, cache.getRejectionCount());
+        
+        for (int i = 0; i < 3; i++) {
+            cache.get("warm", "1");
+        }
+        Arrays.fill(data, (byte) 7);
+        assertTrue(cache.put("warm", "1", data));
+        assertEquals(1, cache.getEvictionCount());
+        assertNull(cache.get("hot0", "1"));
+        assertNotNull(cache.get("hot1", "1"));
+        assertArrayEquals(data, cache.get("warm", "1"));
+        assertEquals(1024 * 1024, cache.getAllocatedBytes());
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.changelog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import io.milton.s3.db.DynamoDBService;
+import io.milton.s3.util.AttributeKey;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.Condition;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemResult;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+
+public class TestDynamoDBChangeLog {
+
+    @Test
+    public void testDeliversChangesOfOtherNodes() {
+        DynamoDBService dynamoDBService = newDynamoDBService(new ArrayList<Map<String, AttributeValue>>());
+        DynamoDBChangeLog node1 = new DynamoDBChangeLog(dynamoDBService, "changelog", 1000);
+        DynamoDBChangeLog node2 = new DynamoDBChangeLog(dynamoDBService, "changelog", 1000);
+        List<Change> changes1 = subscribe(node1);
+        List<Change> changes2 = subscribe(node2);
+        
+        node1.publish(new Change(Change.Type.UPDATE, "bucket", "id", "parent", "oldParent", "name"));
+        node1.poll();
+        node2.poll();
+        assertEquals(0, changes1.size());
+        assertEquals(1, changes2.size());
+        
+        Change change = changes2.get(0);
+        assertEquals(Change.Type.UPDATE, change.getType());
+        assertEquals("bucket", change.getTableName());
+        assertEquals("id", change.getUniqueId());
+        assertEquals("parent", change.getParentId());
+        assertEquals("oldParent", change.getPreviousParentId());
+        assertEquals("name", change.getName());
+        
+        // Later polls look back, but do not deliver a change twice
+        node2.publish(new Change(Change.Type.DELETE_TABLE, "bucket", null, null, null, null));
+        node1.poll();
+        node2.poll();
+        assertEquals(1, changes1.size());
+        assertEquals(1, changes2.size());
+        assertNull(changes1.get(0).getUniqueId());
+    }
+    
+    @Test
+    public void testDeletesExpiredChangesOfAnyNode() {
+        List<Map<String, AttributeValue>> items = new ArrayList<Map<String, AttributeValue>>();
+        DynamoDBService dynamoDBService = newDynamoDBService(items);
+        DynamoDBChangeLog stoppedNode = new DynamoDBChangeLog(dynamoDBService, "changelog", 1000);
+        DynamoDBChangeLog node = new DynamoDBChangeLog(dynamoDBService, "changelog", 1000);
+        stoppedNode.publish(new Change(Change.Type.PUT, "bucket", "id", "parent", null, "name"));
+        stoppedNode.publish(new Change(Change.Type.PUT, "bucket", "id2", "parent", null, "name2"));
+        
+        long now = System.currentTimeMillis();
+        node.deleteExpiredChanges(now);
+        assertEquals(2, items.size());
+        
+        // The shard of the changes ended more than ten minutes ago, and the
+        // sweep goes through the day before startup a few shards per poll
+        for (int poll = 0; poll < 24 * 60 / 10 + 1; poll++) {
+            node.deleteExpiredChanges(now + 12 * 60000);
+        }
+        assertEquals(0, items.size());
+    }
+    
+    private static List<Change> subscribe(ChangeLog changeLog) {
+        final List<Change> changes = new ArrayList<Change>();
+        changeLog.subscribe(new ChangeListener() {
+            @Override
+            public void onChange(Change change) {
+                changes.add(change);
+            }
+        });
+        return changes;
+    }
+    
+    /**
+     * @return a service which keeps the items in the given list and only
+     *         supports the calls of the change log
+     */
+    private static DynamoDBService newDynamoDBService(final List<Map<String, AttributeValue>> items) {
+        return (DynamoDBService) Proxy.newProxyInstance(DynamoDBService.class.getClassLoader(), 
+                new Class<?>[] { DynamoDBService.class }, new InvocationHandler() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("putItem")) {
+                    items.add((Map<String, AttributeValue>) args[1]);
+                    return new PutItemResult();
+                }
+                if (method.getName().equals("queryItem")) {
+                    Map<String, Condition> keyConditions = (Map<String, Condition>) args[2];
+                    String shard = keyConditions.get(AttributeKey.SHARD).getAttributeValueList().get(0).getS();
+                    Condition sequence = keyConditions.get(AttributeKey.SEQUENCE);
+                    List<Map<String, AttributeValue>> result = new ArrayList<Map<String, AttributeValue>>();
+                    for (Map<String, AttributeValue> item : items) {
+                        if (item.get(AttributeKey.SHARD).getS().equals(shard) && (sequence == null 
+                                || item.get(AttributeKey.SEQUENCE).getS().compareTo(
+                                        sequence.getAttributeValueList().get(0).getS()) > 0)) {
+                            result.add(item);
+                        }
+                    }
+                    Iterator<Map<String, AttributeValue>> iterator = result.iterator();
+                    return iterator;
+                }
+                if (method.getName().equals("deleteItem")) {
+                    Map<String, AttributeValue> key = (Map<String, AttributeValue>) args[1];
+                    for (Iterator<Map<String, AttributeValue>> iterator = items.iterator(); iterator.hasNext();) {
+                        if (iterator.next().get(AttributeKey.SEQUENCE).equals(key.get(AttributeKey.SEQUENCE))) {
+                            iterator.remove();
+                        }
+                    }
+                    return new DeleteItemResult();
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.db;
+
+import io.milton.s3.db.mapper.DynamoDBEntityMapper;
+import io.milton.s3.model.Entity;
+import io.milton.s3.util.AttributeKey;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.AttributeValueUpdate;
+import com.amazonaws.services.dynamodbv2.model.Condition;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemResult;
+import com.amazonaws.services.dynamodbv2.model.ExpectedAttributeValue;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
+
+/**
+ * Keeps the items of a single table in memory and only supports the calls of
+ * the managers. The UniqueId index can be frozen to serve an older state, as
+ * an eventually consistent index does
+ */
+public class FakeDynamoDBService implements InvocationHandler {
+    
+    public final DynamoDBService service = (DynamoDBService) Proxy.newProxyInstance(
+            DynamoDBService.class.getClassLoader(), new Class<?>[] { DynamoDBService.class }, this);
+    
+    /**
+     * Number of reads of items, queries and scans
+     */
+    public final AtomicInteger reads = new AtomicInteger();
+    
+    /**
+     * Number of puts, updates and deletes, including the failed ones
+     */
+    public final AtomicInteger writes = new AtomicInteger();
+    
+    private final TableSchema tableSchema;
+    
+    /**
+     * Items by primary key, guarded by itself
+     */
+    private final Map<Map<String, AttributeValue>, Map<String, AttributeValue>> items = 
+            new LinkedHashMap<Map<String, AttributeValue>, Map<String, AttributeValue>>();
+    
+    /**
+     * The state of the UniqueId index served instead of the items, null to
+     * serve the items
+     */
+    private List<Map<String, AttributeValue>> frozenIndex;
+    
+    private int frozenQueries;
+    
+    /**
+     * Number of the next writes which fail, by method name
+     */
+    private final Map<String, Integer> failingWrites = new HashMap<String, Integer>();
+    
+    public FakeDynamoDBService(TableSchema tableSchema) {
+        this.tableSchema = tableSchema;
+    }
+    
+    /**
+     * Serve the current items to the next lookups through the UniqueId index
+     * 
+     * @param queries
+     *            - the number of lookups served from the current items
+     */
+    public synchronized void freezeIndex(int queries) {
+        frozenIndex = new ArrayList<Map<String, AttributeValue>>(items.values());
+        frozenQueries = queries;
+    }
+    
+    /**
+     * Fail the next calls of the given write method
+     */
+    public synchronized void failWrites(String methodName, int count) {
+        failingWrites.put(methodName, count);
+    }
+    
+    /**
+     * @return a copy of the item with the given UUID, null if there is none
+     */
+    public synchronized Map<String, AttributeValue> findItem(String uniqueId) {
+        for (Map<String, AttributeValue> item : items.values()) {
+            if (uniqueId.equals(item.get(AttributeKey.UUID).getS())) {
+                return new HashMap<String, AttributeValue>(item);
+            }
+        }
+        return null;
+    }
+    
+    public synchronized int size() {
+        return items.size();
+    }
+    
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized Object invoke(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        if (name.equals("getTableSchema")) {
+            return tableSchema;
+        } else if (name.equals("isIndexActive") || name.equals("isIndexExist")) {
+            return true;
+        } else if (name.equals("newItem")) {
+            return DynamoDBEntityMapper.convertEntityToItem((Entity) args[0], DynamoDBEntityMapper.ITEM_VERSION_2);
+        } else if (name.equals("getItem") && args[1] instanceof HashMap) {
+            reads.incrementAndGet();
+            Map<String, AttributeValue> item = items.get(args[1]);
+            return item != null ? project(item, args.length > 2 ? (List<String>) args[2] : null) 
+                    : Collections.<String, AttributeValue>emptyMap();
+        } else if (name.equals("batchGetItem")) {
+            reads.incrementAndGet();
+            List<Map<String, AttributeValue>> found = new ArrayList<Map<String, AttributeValue>>();
+            for (Map<String, AttributeValue> primaryKey : (List<Map<String, AttributeValue>>) args[1]) {
+                if (items.containsKey(primaryKey)) {
+                    found.add(new HashMap<String, AttributeValue>(items.get(primaryKey)));
+                }
+            }
+            return found;
+        } else if (name.equals("queryItem")) {
+            reads.incrementAndGet();
+            return query((String) args[1], (Map<String, Condition>) args[2], 
+                    args.length > 4 ? (List<String>) args[4] : null).iterator();
+        } else if (name.equals("putItem")) {
+            writes.incrementAndGet();
+            Map<String, AttributeValue> item = (Map<String, AttributeValue>) args[1];
+            Map<String, AttributeValue> primaryKey = keyOf(item);
+            if (isFailing(name) || (args.length > 2 
+                    && !isExpected(items.get(primaryKey), (Map<String, ExpectedAttributeValue>) args[2]))) {
+                return null;
+            }
+            items.put(primaryKey, new HashMap<String, AttributeValue>(item));
+            return new PutItemResult();
+        } else if (name.equals("updateItem")) {
+            writes.incrementAndGet();
+            Map<String, AttributeValue> item = items.get(args[1]);
+            if (isFailing(name) || item == null || (args.length > 3 
+                    && !isExpected(item, (Map<String, ExpectedAttributeValue>) args[3]))) {
+                return null;
+            }
+            for (Map.Entry<String, AttributeValueUpdate> update 
+                    : ((Map<String, AttributeValueUpdate>) args[2]).entrySet()) {
+                item.put(update.getKey(), update.getValue().getValue());
+            }
+            return new UpdateItemResult();
+        } else if (name.equals("deleteItem")) {
+            writes.incrementAndGet();
+            if (isFailing(name) || (args.length > 2 
+                    && !isExpected(items.get(args[1]), (Map<String, ExpectedAttributeValue>) args[2]))) {
+                return null;
+            }
+            items.remove(args[1]);
+            return new DeleteItemResult();
+        }
+        throw new UnsupportedOperationException(name);
+    }
+    
+    private List<Map<String, AttributeValue>> query(String indexName, Map<String, Condition> keyConditions,
+            List<String> attributesToGet) {
+        Iterable<Map<String, AttributeValue>> source = items.values();
+        if (AttributeKey.UUID_INDEX.equals(indexName) && frozenIndex != null) {
+            source = frozenIndex;
+            if (--frozenQueries <= 0) {
+                frozenIndex = null;
+            }
+        }
+        
+        List<Map<String, AttributeValue>> result = new ArrayList<Map<String, AttributeValue>>();
+        for (Map<String, AttributeValue> item : source) {
+            boolean isMatching = true;
+            for (Map.Entry<String, Condition> condition : keyConditions.entrySet()) {
+                isMatching &= condition.getValue().getAttributeValueList().get(0)
+                        .equals(item.get(condition.getKey()));
+            }
+            if (isMatching) {
+                result.add(project(item, attributesToGet));
+            }
+        }
+        return result;
+    }
+    
+    private static Map<String, AttributeValue> project(Map<String, AttributeValue> item, 
+            List<String> attributesToGet) {
+        Map<String, AttributeValue> copy = new HashMap<String, AttributeValue>(item);
+        if (attributesToGet != null && !attributesToGet.isEmpty()) {
+            copy.keySet().retainAll(attributesToGet);
+        }
+        return copy;
+    }
+    
+    private boolean isFailing(String methodName) {
+        Integer count = failingWrites.get(methodName);
+        if (count == null || count <= 0) {
+            return false;
+        }
+        failingWrites.put(methodName, count - 1);
+        return true;
+    }
+    
+    private Map<String, AttributeValue> keyOf(Map<String, AttributeValue> item) {
+        Map<String, AttributeValue> primaryKey = new HashMap<String, AttributeValue>();
+        if (tableSchema == TableSchema.PARENT_NAME) {
+            primaryKey.put(AttributeKey.PARENT_UUID, item.get(AttributeKey.PARENT_UUID));
+            primaryKey.put(AttributeKey.ENTITY_NAME, item.get(AttributeKey.ENTITY_NAME));
+        } else {
+            primaryKey.put(AttributeKey.UUID, item.get(AttributeKey.UUID));
+        }
+        return primaryKey;
+    }
+    
+    private static boolean isExpected(Map<String, AttributeValue> item, 
+            Map<String, ExpectedAttributeValue> expected) {
+        for (Map.Entry<String, ExpectedAttributeValue> entry : expected.entrySet()) {
+            AttributeValue value = item != null ? item.get(entry.getKey()) : null;
+            ExpectedAttributeValue expectedValue = entry.getValue();
+            if (Boolean.FALSE.equals(expectedValue.getExists())) {
+                if (value != null) {
+                    return false;
+                }
+            } else if (!expectedValue.getValue().equals(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import io.milton.s3.util.AttributeKey;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+
+public class TestPagedItemIterator {
+
+    /**
+     * Serves the given pages, keyed by the UUID of the last item of the
+     * previous page like DynamoDB does
+     */
+    static class FakePagedItemIterator extends PagedItemIterator {
+        
+        final List<List<Map<String, AttributeValue>>> pages;
+        
+        int fetchedPages;
+        
+        FakePagedItemIterator(List<List<Map<String, AttributeValue>>> pages) {
+            this.pages = pages;
+        }
+        
+        @Override
+        protected void fetchPage(Map<String, AttributeValue> exclusiveStartKey) {
+            List<Map<String, AttributeValue>> items = pages.get(fetchedPages++);
+            Map<String, AttributeValue> lastEvaluatedKey = null;
+            if (fetchedPages < pages.size()) {
+                lastEvaluatedKey = new HashMap<String, AttributeValue>();
+                lastEvaluatedKey.put(AttributeKey.UUID, new AttributeValue().withS("page-" + fetchedPages));
+            }
+            setPage(items, lastEvaluatedKey);
+        }
+    }
+    
+    @Test
+    public void testIteratesAllPages() {
+        List<List<Map<String, AttributeValue>>> pages = new ArrayList<List<Map<String, AttributeValue>>>();
+        pages.add(newPage(0, 3));
+        pages.add(newPage(3, 2));
+        pages.add(newPage(5, 4));
+        
+        FakePagedItemIterator iterator = new FakePagedItemIterator(pages);
+        int count = 0;
+        while (iterator.hasNext()) {
+            assertEquals(Integer.toString(count), iterator.next().get(AttributeKey.UUID).getS());
+            count++;
+        }
+        
+        assertEquals(9, count);
+        assertEquals(3, iterator.fetchedPages);
+    }
+    
+    @Test
+    public void testFetchesPagesLazily() {
+        List<List<Map<String, AttributeValue>>> pages = new ArrayList<List<Map<String, AttributeValue>>>();
+        pages.add(newPage(0, 2));
+        pages.add(newPage(2, 2));
+        
+        FakePagedItemIterator iterator = new FakePagedItemIterator(pages);
+        assertEquals(0, iterator.fetchedPages);
+        
+        iterator.next();
+        iterator.next();
+        assertEquals(1, iterator.fetchedPages);
+        
+        iterator.next();
+        assertEquals(2, iterator.fetchedPages);
+    }
+    
+    @Test
+    public void testSkipsEmptyPages() {
+        List<List<Map<String, AttributeValue>>> pages = new ArrayList<List<Map<String, AttributeValue>>>();
+        pages.add(Collections.<Map<String, AttributeValue>>emptyList());
+        pages.add(Collections.<Map<String, AttributeValue>>emptyList());
+        pages.add(newPage(0, 1));
+        pages.add(Collections.<Map<String, AttributeValue>>emptyList());
+        
+        FakePagedItemIterator iterator = new FakePagedItemIterator(pages);
+        assertTrue(iterator.hasNext());
+        iterator.next();
+        assertFalse(iterator.hasNext());
+        assertEquals(4, iterator.fetchedPages);
+    }
+    
+    private static List<Map<String, AttributeValue>> newPage(int first, int size) {
+        List<Map<String, AttributeValue>> items = new ArrayList<Map<String, AttributeValue>>();
+        for (int i = first; i < first + size; i++) {
+            Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
+            item.put(AttributeKey.UUID, new AttributeValue().withS(Integer.toString(i)));
+            items.add(item);
+        }
+        return items;
+    }
+}
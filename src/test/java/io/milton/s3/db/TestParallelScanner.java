@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import io.milton.s3.util.AttributeKey;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+
+public class TestParallelScanner {
+
+    /**
+     * Serves a table of numbered items. Every item belongs to the segment of
+     * its number modulo the total segments, and every segment is served in
+     * pages of the given size.
+     */
+    static class FakeDynamoDB implements InvocationHandler {
+        
+        final int itemCount;
+        
+        final int pageSize;
+        
+        final Set<Integer> scannedSegments = Collections.synchronizedSet(new HashSet<Integer>());
+        
+        final AtomicInteger scans = new AtomicInteger();
+        
+        int failingSegment = -1;
+        
+        FakeDynamoDB(int itemCount, int pageSize) {
+            this.itemCount = itemCount;
+            this.pageSize = pageSize;
+        }
+        
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (!method.getName().equals("scan") || !(args[0] instanceof ScanRequest)) {
+                throw new UnsupportedOperationException(method.getName());
+            }
+            scans.incrementAndGet();
+            
+            ScanRequest scanRequest = (ScanRequest) args[0];
+            int segment = scanRequest.getSegment();
+            int totalSegments = scanRequest.getTotalSegments();
+            scannedSegments.add(segment);
+            if (segment == failingSegment) {
+                throw new AmazonClientException("Segment " + segment + " failed");
+            }
+            
+            int start = segment;
+            if (scanRequest.getExclusiveStartKey() != null) {
+                start = Integer.parseInt(scanRequest.getExclusiveStartKey().get(AttributeKey.UUID).getS()) 
+                        + totalSegments;
+            }
+            
+            List<Map<String, AttributeValue>> items = new ArrayList<Map<String, AttributeValue>>();
+            int number = start;
+            for (; number < itemCount && items.size() < pageSize; number += totalSegments) {
+                items.add(newItem(number));
+            }
+            
+            ScanResult scanResult = new ScanResult().withItems(items);
+            if (number < itemCount) {
+                scanResult.setLastEvaluatedKey(newItem(number - totalSegments));
+            }
+            return scanResult;
+        }
+        
+        AmazonDynamoDB newClient() {
+            return (AmazonDynamoDB) Proxy.newProxyInstance(getClass().getClassLoader(), 
+                    new Class<?>[] { AmazonDynamoDB.class }, this);
+        }
+    }
+    
+    /**
+     * Collects the numbers of the consumed items
+     */
+    static class CollectingConsumer implements ItemConsumer {
+        
+        final Set<String> numbers = Collections.synchronizedSet(new HashSet<String>());
+        
+        final AtomicInteger consumed = new AtomicInteger();
+        
+        @Override
+        public void consume(Map<String, AttributeValue> item) {
+            numbers.add(item.get(AttributeKey.UUID).getS());
+            consumed.incrementAndGet();
+        }
+    }
+    
+    @Test
+    public void testScansEverySegment() {
+        FakeDynamoDB fakeDynamoDB = new FakeDynamoDB(103, 10);
+        CollectingConsumer consumer = new CollectingConsumer();
+        
+        long count = new ParallelScanner(fakeDynamoDB.newClient(), 4, 0).scan("table", null, null, consumer);
+        
+        assertEquals(103, count);
+        assertEquals(103, consumer.consumed.get());
+        assertEquals(103, consumer.numbers.size());
+        assertEquals(new HashSet<Integer>(Arrays.asList(0, 1, 2, 3)), fakeDynamoDB.scannedSegments);
+        // 26 items in the largest segment take 3 pages
+        assertTrue(fakeDynamoDB.scans.get() >= 4 * 3);
+    }
+    
+    @Test
+    public void testScansSingleSegment() {
+        FakeDynamoDB fakeDynamoDB = new FakeDynamoDB(25, 10);
+        CollectingConsumer consumer = new CollectingConsumer();
+        
+        long count = new ParallelScanner(fakeDynamoDB.newClient(), 1, 0).scan("table", null, null, consumer);
+        
+        assertEquals(25, count);
+        assertEquals(25, consumer.numbers.size());
+        assertEquals(3, fakeDynamoDB.scans.get());
+    }
+    
+    @Test
+    public void testRethrowsFailureOfSegment() {
+        FakeDynamoDB fakeDynamoDB = new FakeDynamoDB(100, 10);
+        fakeDynamoDB.failingSegment = 2;
+        
+        try {
+            new ParallelScanner(fakeDynamoDB.newClient(), 4, 0).scan("table", null, null, new CollectingConsumer());
+            fail("The failure of segment 2 was not propagated");
+        } catch (AmazonClientException ace) {
+            assertEquals("Segment 2 failed", ace.getMessage());
+        }
+    }
+    
+    @Test
+    public void testRethrowsFailureOfConsumer() {
+        FakeDynamoDB fakeDynamoDB = new FakeDynamoDB(100, 10);
+        
+        try {
+            new ParallelScanner(fakeDynamoDB.newClient(), 4, 0).scan("table", null, null, new ItemConsumer() {
+                @Override
+                public void consume(Map<String, AttributeValue> item) {
+                    throw new IllegalStateException("Rejected " + item.get(AttributeKey.UUID).getS());
+                }
+            });
+            fail("The failure of the consumer was not propagated");
+        } catch (IllegalStateException ise) {
+            assertTrue(ise.getMessage().startsWith("Rejected "));
+        }
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNoSegments() {
+        new ParallelScanner(new FakeDynamoDB(0, 10).newClient(), 0, 0);
+    }
+    
+    private static Map<String, AttributeValue> newItem(int number) {
+        Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
+        item.put(AttributeKey.UUID, new AttributeValue().withS(Integer.toString(number)));
+        return item;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.db.mapper;
+
+import io.milton.s3.model.Entity;
+import io.milton.s3.model.File;
+import io.milton.s3.model.Folder;
+import io.milton.s3.util.AttributeKey;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+
+/**
+ * Cost of mapping one item to an entity, with the SimpleDateFormat based date
+ * parsing used before and with the current codec, for both item encodings.
+ * Run with the test classpath:
+ * 
+ * java -cp target/test-classes:target/classes:... io.milton.s3.db.mapper.DynamoDBEntityMapperBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DynamoDBEntityMapperBenchmark {
+
+    private Folder parent;
+    
+    private Map<String, AttributeValue> item;
+    
+    private Map<String, AttributeValue> compactItem;
+    
+    /**
+     * The shared date format DateUtils used before
+     */
+    private DateFormat dateFormat;
+    
+    @Setup
+    public void setUp() {
+        parent = new Folder("parent", null);
+        File file = parent.addFile("report.pdf");
+        file.setSize(123456);
+        file.setContentType("application/pdf");
+        item = DynamoDBEntityMapper.convertEntityToItem(file, DynamoDBEntityMapper.ITEM_VERSION_1);
+        compactItem = DynamoDBEntityMapper.convertEntityToItem(file, DynamoDBEntityMapper.ITEM_VERSION_2);
+        dateFormat = new SimpleDateFormat("E MMM dd HH:mm:ss Z yyyy");
+    }
+    
+    @Benchmark
+    public Entity mapItemWithSimpleDateFormat() throws ParseException {
+        Date createdDate = dateFormat.parse(item.get(AttributeKey.CREATED_DATE).getS());
+        Date modifiedDate = dateFormat.parse(item.get(AttributeKey.MODIFIED_DATE).getS());
+        File file = new File(UUID.fromString(item.get(AttributeKey.UUID).getS()), 
+                item.get(AttributeKey.ENTITY_NAME).getS(), createdDate, modifiedDate, parent);
+        file.setContentType(item.get(AttributeKey.CONTENT_TYPE).getS());
+        file.setSize(new Long(item.get(AttributeKey.FILE_SIZE).getN()));
+        return file;
+    }
+    
+    @Benchmark
+    public Entity mapItem() {
+        return DynamoDBEntityMapper.convertItemToEntity(parent, item);
+    }
+    
+    @Benchmark
+    public Entity mapCompactItem() {
+        return DynamoDBEntityMapper.convertItemToEntity(parent, compactItem);
+    }
+    
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(DynamoDBEntityMapperBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
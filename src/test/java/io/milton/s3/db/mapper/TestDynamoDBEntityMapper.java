@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.db.mapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import io.milton.s3.model.Entity;
+import io.milton.s3.model.File;
+import io.milton.s3.model.Folder;
+import io.milton.s3.util.AttributeKey;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+
+public class TestDynamoDBEntityMapper {
+
+    @Test
+    public void testReadsCompactItems() {
+        Folder root = new Folder("root", null);
+        File file = root.addFile("report.pdf");
+        file.setSize(5L * 1024 * 1024 * 1024);
+        file.setContentType("application/pdf");
+        file.setCreatedDate(new Date(1000000000123L));
+        file.setModifiedDate(new Date(1400000000456L));
+        file.setETag("d41d8cd98f00b204e9800998ecf8427e");
+        
+        Map<String, AttributeValue> item = DynamoDBEntityMapper.convertEntityToItem(file, 
+                DynamoDBEntityMapper.ITEM_VERSION_2);
+        assertEquals(DynamoDBEntityMapper.ITEM_VERSION_2, DynamoDBEntityMapper.getItemVersion(item));
+        assertFalse(item.containsKey(AttributeKey.CREATED_DATE));
+        
+        File read = (File) DynamoDBEntityMapper.convertItemToEntity(root, item);
+        assertEquals(file, read);
+        assertEquals(file.getSize(), read.getSize());
+        assertEquals("application/pdf", read.getContentType());
+        assertEquals(file.getCreatedDate(), read.getCreatedDate());
+        assertEquals(file.getModifiedDate(), read.getModifiedDate());
+        assertEquals(file.getETag(), read.getETag());
+    }
+    
+    @Test
+    public void testReadsOldItems() {
+        Folder root = new Folder("root", null);
+        Folder folder = root.addFolder("documents");
+        folder.setCreatedDate(new Date(1000000000000L));
+        
+        Map<String, AttributeValue> item = DynamoDBEntityMapper.convertEntityToItem(folder, 
+                DynamoDBEntityMapper.ITEM_VERSION_1);
+        assertEquals(DynamoDBEntityMapper.ITEM_VERSION_1, DynamoDBEntityMapper.getItemVersion(item));
+        
+        Entity read = DynamoDBEntityMapper.convertItemToEntity(root, item);
+        assertTrue(read instanceof Folder);
+        assertEquals(folder, read);
+        assertEquals(folder.getCreatedDate(), read.getCreatedDate());
+    }
+    
+    @Test
+    public void testLoadsPartialEntitiesOnce() {
+        Folder root = new Folder("root", null);
+        File file = root.addFile("notes.txt");
+        file.setContentType("text/plain");
+        final Map<String, AttributeValue> item = DynamoDBEntityMapper.convertEntityToItem(file, 
+                DynamoDBEntityMapper.ITEM_VERSION_2);
+        
+        Map<String, AttributeValue> summary = new HashMap<String, AttributeValue>();
+        for (String attribute : DynamoDBEntityMapper.SUMMARY_ATTRIBUTES) {
+            if (item.containsKey(attribute)) {
+                summary.put(attribute, item.get(attribute));
+            }
+        }
+        
+        final int[] loads = new int[1];
+        File read = (File) DynamoDBEntityMapper.convertItemToEntity(root, summary, new ItemLoader() {
+            @Override
+            public Map<String, AttributeValue> loadItem(String uniqueId) {
+                loads[0]++;
+                return item;
+            }
+        });
+        assertEquals("notes.txt", read.getName());
+        read.toString();
+        assertEquals(0, loads[0]);
+        
+        assertEquals("text/plain", read.getContentType());
+        assertEquals(file.getModifiedDate(), read.getModifiedDate());
+        assertEquals(1, loads[0]);
+    }
+    
+    @Test
+    public void testCopiesOfPartialEntitiesShareLoad() {
+        Folder root = new Folder("root", null);
+        File file = root.addFile("notes.txt");
+        file.setSize(42);
+        final Map<String, AttributeValue> item = DynamoDBEntityMapper.convertEntityToItem(file, 
+                DynamoDBEntityMapper.ITEM_VERSION_2);
+        item.keySet().retainAll(DynamoDBEntityMapper.SUMMARY_ATTRIBUTES);
+        
+        final int[] loads = new int[1];
+        File read = (File) DynamoDBEntityMapper.convertItemToEntity(root, item, new ItemLoader() {
+            @Override
+            public Map<String, AttributeValue> loadItem(String uniqueId) {
+                loads[0]++;
+                return DynamoDBEntityMapper.convertEntityToItem(new File(UUID.fromString(uniqueId), "notes.txt", 
+                        new Date(), new Date(), null), DynamoDBEntityMapper.ITEM_VERSION_2);
+            }
+        });
+        File copy = read.copy();
+        assertEquals(0, loads[0]);
+        
+        copy.setSize(7);
+        assertEquals(7, copy.getSize());
+        assertEquals(0, read.getSize());
+        assertEquals(1, loads[0]);
+        
+        File copyOfLoaded = copy.copy();
+        assertEquals(7, copyOfLoaded.getSize());
+        assertEquals(1, loads[0]);
+    }
+    
+    @Test
+    public void testPartialEntitiesWithoutLoader() {
+        Folder root = new Folder("root", null);
+        Map<String, AttributeValue> item = DynamoDBEntityMapper.convertEntityToItem(root.addFolder("empty"), 
+                DynamoDBEntityMapper.ITEM_VERSION_2);
+        item.remove(AttributeKey.CREATED);
+        item.remove(AttributeKey.MODIFIED);
+        
+        Entity read = DynamoDBEntityMapper.convertItemToEntity(root, item, null);
+        assertTrue(read.isDirectory());
+        assertNull(read.getCreatedDate());
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import io.milton.s3.AmazonS3Manager;
+import io.milton.s3.DynamoDBManager;
+import io.milton.s3.DynamoDBManagerImpl;
+import io.milton.s3.cache.OffHeapCache;
+import io.milton.s3.changelog.Change;
+import io.milton.s3.db.FakeDynamoDBService;
+import io.milton.s3.db.TableSchema;
+import io.milton.s3.model.Entity;
+import io.milton.s3.model.File;
+import io.milton.s3.model.Folder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonClientException;
+
+public class TestAmazonStorageServiceImpl {
+
+    private static final String BUCKET = "bucket";
+    
+    /**
+     * Counts the calls to the wrapped manager by method name, and runs a hook
+     * after a read, e.g. to deliver a change while the read is in flight
+     */
+    class CountingDynamoDBManager implements InvocationHandler {
+        
+        final ConcurrentMap<String, AtomicInteger> calls = new ConcurrentHashMap<String, AtomicInteger>();
+        
+        volatile String hookedMethod;
+        
+        volatile Runnable hook;
+        
+        volatile boolean isFailing;
+        
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (isFailing && name.startsWith("find")) {
+                throw new AmazonClientException("Throttled");
+            }
+            calls(name).incrementAndGet();
+            
+            Object result;
+            try {
+                result = method.invoke(dynamoDBManager, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            
+            Runnable hook = this.hook;
+            if (hook != null && name.equals(hookedMethod)) {
+                this.hook = null;
+                hook.run();
+            }
+            return result;
+        }
+        
+        AtomicInteger calls(String name) {
+            calls.putIfAbsent(name, new AtomicInteger());
+            return calls.get(name);
+        }
+    }
+    
+    private final FakeDynamoDBService dynamoDB = new FakeDynamoDBService(TableSchema.UNIQUE_ID);
+    
+    private final DynamoDBManagerImpl dynamoDBManager = new DynamoDBManagerImpl(dynamoDB.service);
+    
+    private final CountingDynamoDBManager counter = new CountingDynamoDBManager();
+    
+    private final Folder root = new Folder("/", null);
+    
+    /**
+     * Content of the stored objects, keyed by object key
+     */
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<String, byte[]>();
+    
+    private final AtomicInteger downloads = new AtomicInteger();
+    
+    private AmazonStorageServiceImpl storageService;
+    
+    @Before
+    public void setUp() {
+        assertTrue(dynamoDBManager.putEntity(BUCKET, root));
+        
+        // Files are only stored to be downloaded, only folders are listed
+        AmazonS3Manager amazonS3Manager = (AmazonS3Manager) Proxy.newProxyInstance(getClass().getClassLoader(), 
+                new Class<?>[] { AmazonS3Manager.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("findEntityByPrefixKey")) {
+                    return Collections.emptyList();
+                } else if (method.getName().equals("downloadEntity") && args.length == 2) {
+                    downloads.incrementAndGet();
+                    byte[] content = objects.get(args[1]);
+                    return content != null ? new ByteArrayInputStream(content) : null;
+                } else if (method.getName().equals("downloadEntity") && args.length == 4) {
+                    byte[] content = objects.get(args[1]);
+                    int start = ((Long) args[2]).intValue();
+                    int end = Math.min(((Long) args[3]).intValue(), content.length - 1);
+                    return new ByteArrayInputStream(content, start, end - start + 1);
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+        DynamoDBManager countingManager = (DynamoDBManager) Proxy.newProxyInstance(getClass().getClassLoader(), 
+                new Class<?>[] { DynamoDBManager.class }, counter);
+        storageService = new AmazonStorageServiceImpl(countingManager, amazonS3Manager);
+    }
+    
+    @Test
+    public void testServesCachedListing() {
+        Folder folder = createFolder(root, "a");
+        
+        assertEquals(1, storageService.findEntityByParent(BUCKET, root).size());
+        assertEquals(folder.getId(), storageService.findEntityByParent(BUCKET, root).get(0).getId());
+        assertEquals(1, listings());
+    }
+    
+    @Test
+    public void testReadsListingAgainAfterChange() {
+        createFolder(root, "a");
+        storageService.findEntityByParent(BUCKET, root);
+        
+        // Another node creates a folder
+        Folder folder = createFolder(root, "b");
+        storageService.onChange(new Change(Change.Type.PUT, BUCKET, folder.getId().toString(), 
+                root.getId().toString(), null, "b"));
+        
+        assertEquals(2, storageService.findEntityByParent(BUCKET, root).size());
+        assertEquals(2, listings());
+    }
+    
+    @Test
+    public void testKeepsListingsOfOtherFolders() {
+        Folder folder = createFolder(root, "a");
+        storageService.findEntityByParent(BUCKET, root);
+        storageService.findEntityByParent(BUCKET, folder);
+        
+        Folder subfolder = createFolder(folder, "b");
+        storageService.onChange(new Change(Change.Type.PUT, BUCKET, subfolder.getId().toString(), 
+                folder.getId().toString(), null, "b"));
+        
+        storageService.findEntityByParent(BUCKET, root);
+        assertEquals(1, storageService.findEntityByParent(BUCKET, folder).size());
+        assertEquals(3, listings());
+    }
+    
+    @Test
+    public void testDoesNotCacheListingChangedWhileRead() {
+        createFolder(root, "a");
+        final Folder folder = createFolder(root, "b");
+        
+        counter.hookedMethod = "findEntityByParentAndType";
+        counter.hook = new Runnable() {
+            @Override
+            public void run() {
+                storageService.onChange(new Change(Change.Type.DELETE, BUCKET, folder.getId().toString(), 
+                        root.getId().toString(), null, "b"));
+            }
+        };
+        storageService.findEntityByParent(BUCKET, root);
+        storageService.findEntityByParent(BUCKET, root);
+        assertEquals(2, listings());
+    }
+    
+    @Test
+    public void testCachesListingWhileOtherFolderChanges() {
+        final Folder folder = createFolder(root, "a");
+        
+        counter.hookedMethod = "findEntityByParentAndType";
+        counter.hook = new Runnable() {
+            @Override
+            public void run() {
+                storageService.onChange(new Change(Change.Type.PUT, BUCKET, UUID.randomUUID().toString(), 
+                        folder.getId().toString(), null, "b"));
+            }
+        };
+        storageService.findEntityByParent(BUCKET, root);
+        storageService.findEntityByParent(BUCKET, root);
+        assertEquals(1, listings());
+    }
+    
+    @Test
+    public void testServesStaleListing() throws Exception {
+        storageService.setListingCache(100, 1, 0, 60000);
+        createFolder(root, "a");
+        storageService.findEntityByParent(BUCKET, root);
+        Thread.sleep(20);
+        
+        counter.isFailing = true;
+        List<Entity> children = storageService.findEntityByParent(BUCKET, root);
+        assertEquals(1, children.size());
+    }
+    
+    @Test(expected = AmazonClientException.class)
+    public void testFailsWithoutStaleListing() {
+        counter.isFailing = true;
+        storageService.findEntityByParent(BUCKET, root);
+    }
+    
+    @Test
+    public void testServesWarmedListing() throws Exception {
+        storageService.setListingCache(100, 20);
+        createFolder(root, "a");
+        assertEquals(1, storageService.warmUp(BUCKET, 10, 60000));
+        
+        // The first request arrives after the time to live of the listings
+        Thread.sleep(50);
+        assertEquals(1, storageService.findEntityByParent(BUCKET, root).size());
+        assertEquals(1, listings());
+    }
+    
+    @Test
+    public void testServesCachedPath() {
+        Folder folder = createFolder(root, "a");
+        
+        assertEquals(folder.getId(), storageService.findEntityByName(BUCKET, root, "a").getId());
+        assertEquals(folder.getId(), storageService.findEntityByName(BUCKET, root, "a").getId());
+        assertEquals(1, counter.calls("findEntityByName").get());
+    }
+    
+    @Test
+    public void testResolvesPathAgainAfterRename() {
+        Folder folder = createFolder(root, "a");
+        storageService.findEntityByName(BUCKET, root, "a");
+        
+        // Another node renames the folder
+        assertTrue(dynamoDBManager.updateEntityByUniqueId(BUCKET, folder, root, "b", true));
+        storageService.onChange(new Change(Change.Type.UPDATE, BUCKET, folder.getId().toString(), 
+                root.getId().toString(), root.getId().toString(), "b"));
+        
+        assertNull(storageService.findEntityByName(BUCKET, root, "a"));
+        assertEquals(folder.getId(), storageService.findEntityByName(BUCKET, root, "b").getId());
+    }
+    
+    @Test
+    public void testAnswersMissingNamesFromFilter() {
+        createFolder(root, "a");
+        
+        assertNull(storageService.findEntityByName(BUCKET, root, ".DS_Store"));
+        int lookups = counter.calls("findEntityByName").get();
+        assertNull(storageService.findEntityByName(BUCKET, root, "._a"));
+        assertNull(storageService.findEntityByName(BUCKET, root, ".DS_Store"));
+        assertEquals(lookups, counter.calls("findEntityByName").get());
+    }
+    
+    @Test
+    public void testFindsNameAddedByOtherNode() {
+        assertNull(storageService.findEntityByName(BUCKET, root, "a"));
+        
+        Folder folder = createFolder(root, "a");
+        storageService.onChange(new Change(Change.Type.PUT, BUCKET, folder.getId().toString(), 
+                root.getId().toString(), null, "a"));
+        
+        assertNotNull(storageService.findEntityByName(BUCKET, root, "a"));
+    }
+    
+    @Test
+    public void testDropsCachesOfDeletedBucket() {
+        Folder folder = createFolder(root, "a");
+        storageService.findEntityByParent(BUCKET, root);
+        storageService.findEntityByName(BUCKET, root, "a");
+        storageService.findEntityByName(BUCKET, folder, "missing");
+        
+        storageService.onChange(new Change(Change.Type.DELETE_TABLE, BUCKET, null, null, null, null));
+        assertEquals(0, storageService.getListingCache().size());
+        assertEquals(0, storageService.getPathCache().size());
+        assertEquals(0, storageService.getNameFilterCache().size());
+    }
+    
+    @Test
+    public void testCachesSmallContent() throws Exception {
+        storageService.setSmallContentCache(new OffHeapCache(1024 * 1024, 16));
+        File file = storeFile(10, 10);
+        
+        assertEquals(10, read(storageService.downloadEntity(BUCKET, file)).length);
+        assertEquals(10, read(storageService.downloadEntity(BUCKET, file)).length);
+        assertEquals(1, downloads.get());
+    }
+    
+    @Test
+    public void testStreamsContentLargerThanStoredSize() throws Exception {
+        storageService.setSmallContentCache(new OffHeapCache(1024 * 1024, 16));
+        File file = storeFile(10, 100000);
+        
+        byte[] content = read(storageService.downloadEntity(BUCKET, file));
+        assertArrayEquals(objects.get(root.getId() + java.io.File.separator + file.getId()), content);
+        assertEquals(0, storageService.getSmallContentCache().size());
+    }
+    
+    @Test
+    public void testStreamsContentOfUnknownSize() throws Exception {
+        storageService.setSmallContentCache(new OffHeapCache(1024 * 1024, 16));
+        File file = storeFile(-1, 10);
+        
+        assertEquals(10, read(storageService.downloadEntity(BUCKET, file)).length);
+        assertEquals(0, storageService.getSmallContentCache().size());
+    }
+    
+    @Test
+    public void testDownloadsRangeEndingWithFile() throws Exception {
+        File file = storeFile(10, 10);
+        
+        byte[] content = read(storageService.downloadEntity(BUCKET, file, 6, 100));
+        assertEquals(4, content.length);
+        assertEquals(objects.get(root.getId() + java.io.File.separator + file.getId())[6], content[0]);
+    }
+    
+    @Test
+    public void testRejectsRangePastEnd() {
+        File file = storeFile(10, 10);
+        
+        assertNull(storageService.downloadEntity(BUCKET, file, 10, 20));
+        assertNull(storageService.downloadEntity(BUCKET, file, 5, 4));
+    }
+    
+    /**
+     * Store a file whose content may have another size than the stored one
+     */
+    private File storeFile(long size, int contentSize) {
+        File file = root.addFile("file");
+        file.setSize(size);
+        byte[] content = new byte[contentSize];
+        new Random(contentSize).nextBytes(content);
+        objects.put(root.getId() + java.io.File.separator + file.getId(), content);
+        return file;
+    }
+    
+    private static byte[] read(InputStream inputStream) throws IOException {
+        try {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = inputStream.read(buffer)) >= 0) {
+                content.write(buffer, 0, n);
+            }
+            return content.toByteArray();
+        } finally {
+            inputStream.close();
+        }
+    }
+    
+    private Folder createFolder(Folder parent, String name) {
+        Folder folder = parent.addFolder(name);
+        assertTrue(dynamoDBManager.putEntity(BUCKET, folder));
+        return folder;
+    }
+    
+    private int listings() {
+        return counter.calls("findEntityByParentAndType").get();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+public class TestUploadSpooler {
+
+    private static final int MEMORY = 256 * 1024;
+    
+    @Test
+    public void testHoldsSmallBodyInMemory() throws IOException {
+        UploadSpooler spooler = new UploadSpooler(null, MEMORY, 128 * 1024);
+        byte[] content = newContent(100000);
+        
+        UploadSpooler.Spool spool = spooler.spool(new ByteArrayInputStream(content));
+        assertFalse(spool.isOnDisk());
+        assertEquals(content.length, spool.getLength());
+        assertArrayEquals(content, read(spool.openStream()));
+        assertEquals(MEMORY - 2 * 64 * 1024, spooler.getAvailableMemory());
+        
+        spool.close();
+        assertEquals(MEMORY, spooler.getAvailableMemory());
+    }
+    
+    @Test
+    public void testSpoolsLargeBodyToFile() throws IOException {
+        UploadSpooler spooler = new UploadSpooler(null, MEMORY, 128 * 1024);
+        byte[] content = newContent(1000000);
+        
+        UploadSpooler.Spool spool = spooler.spool(new ByteArrayInputStream(content));
+        assertTrue(spool.isOnDisk());
+        assertEquals(content.length, spool.getLength());
+        assertEquals(MEMORY, spooler.getAvailableMemory());
+        assertArrayEquals(content, read(spool.openStream()));
+        spool.close();
+    }
+    
+    @Test
+    public void testSpoolsToFileWhenMemoryIsUsedUp() throws IOException {
+        UploadSpooler spooler = new UploadSpooler(null, MEMORY, MEMORY);
+        UploadSpooler.Spool held = spooler.spool(new ByteArrayInputStream(newContent(MEMORY - 1)));
+        assertFalse(held.isOnDisk());
+        assertEquals(0, spooler.getAvailableMemory());
+        
+        byte[] content = newContent(1000);
+        UploadSpooler.Spool spool = spooler.spool(new ByteArrayInputStream(content));
+        assertTrue(spool.isOnDisk());
+        assertArrayEquals(content, read(spool.openStream()));
+        spool.close();
+        held.close();
+        assertEquals(MEMORY, spooler.getAvailableMemory());
+    }
+    
+    @Test
+    public void testEmptyBody() throws IOException {
+        UploadSpooler spooler = new UploadSpooler(null, MEMORY, MEMORY);
+        UploadSpooler.Spool spool = spooler.spool(new ByteArrayInputStream(new byte[0]));
+        assertEquals(0, spool.getLength());
+        assertEquals(-1, spool.openStream().read());
+        spool.close();
+    }
+    
+    private static byte[] newContent(int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) (i * 7);
+        }
+        return content;
+    }
+    
+    private static byte[] read(InputStream inputStream) throws IOException {
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1000];
+            int read;
+            while ((read = inputStream.read(buffer)) >= 0) {
+                output.write(buffer, 0, read);
+            }
+            return output.toByteArray();
+        } finally {
+            inputStream.close();
+        }
+    }
+}
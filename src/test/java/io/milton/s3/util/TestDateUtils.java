@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+public class TestDateUtils {
+
+    @Test
+    public void testFormatsLikeSimpleDateFormat() {
+        SimpleDateFormat dateFormat = new SimpleDateFormat(DateUtils.DATE_PATTERN, Locale.ENGLISH);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            // Dates between 1900 and 2100
+            Date date = new Date(-2208988800000L + (long) (random.nextDouble() * 6311433600000L));
+            assertEquals(dateFormat.format(date), DateUtils.dateToString(date));
+        }
+    }
+    
+    @Test
+    public void testParsesStoredDatesOfAnyTimeZone() throws Exception {
+        Random random = new Random(7);
+        for (String timeZone : new String[] { "UTC", "America/Los_Angeles", "Asia/Kolkata", "Asia/Ho_Chi_Minh" }) {
+            SimpleDateFormat dateFormat = new SimpleDateFormat(DateUtils.DATE_PATTERN, Locale.ENGLISH);
+            dateFormat.setTimeZone(TimeZone.getTimeZone(timeZone));
+            for (int i = 0; i < 1000; i++) {
+                // Stored dates have a precision of one second
+                long millis = (long) (random.nextDouble() * 4102444800L) * 1000;
+                String stored = dateFormat.format(new Date(millis));
+                assertEquals(stored, millis, DateUtils.parseMillis(stored));
+                assertEquals(stored, dateFormat.parse(stored), DateUtils.dateFromString(stored));
+            }
+        }
+    }
+    
+    @Test
+    public void testRoundTrip() {
+        Date date = new Date(1792056600000L);
+        assertEquals("Thu Oct 15 09:30:00 +0000 2026", DateUtils.dateToString(date));
+        assertEquals(date, DateUtils.dateFromString(DateUtils.dateToString(date)));
+        
+        StringBuilder builder = new StringBuilder("modified ");
+        DateUtils.formatMillis(0, builder);
+        assertEquals("modified Thu Jan 01 00:00:00 +0000 1970", builder.toString());
+    }
+    
+    @Test
+    public void testInvalidDates() {
+        assertNull(DateUtils.dateFromString(null));
+        assertNull(DateUtils.dateFromString(""));
+        assertNull(DateUtils.dateFromString("Thu Foo 15 09:30:00 +0000 2026"));
+        assertNull(DateUtils.dateFromString("Thu Oct 15 09:30"));
+        assertNull(DateUtils.dateToString(null));
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.s3.util;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestRateLimiter {
+
+    @Test
+    public void testDoesNotWaitForFirstPermits() throws Exception {
+        RateLimiter rateLimiter = new RateLimiter(1);
+        long start = System.nanoTime();
+        rateLimiter.acquire(100);
+        assertTrue(elapsedMillis(start) < 50);
+    }
+    
+    @Test
+    public void testSpacesAcquiresByConsumedPermits() throws Exception {
+        // 100 permits per second, so every permit takes 10 ms to pay off
+        RateLimiter rateLimiter = new RateLimiter(100);
+        long start = System.nanoTime();
+        for (int i = 0; i < 6; i++) {
+            rateLimiter.acquire(2);
+        }
+        
+        // The last acquire waits for the 5 previous ones, 2 permits each
+        long elapsed = elapsedMillis(start);
+        assertTrue("Elapsed " + elapsed + " ms", elapsed >= 90);
+        assertTrue("Elapsed " + elapsed + " ms", elapsed < 500);
+    }
+    
+    @Test
+    public void testSharesRateBetweenThreads() throws Exception {
+        final RateLimiter rateLimiter = new RateLimiter(100);
+        Thread[] threads = new Thread[4];
+        long start = System.nanoTime();
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 3; j++) {
+                            rateLimiter.acquire(1);
+                        }
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        
+        // 12 permits at 10 ms each, the last acquire waits for 11 of them
+        long elapsed = elapsedMillis(start);
+        assertTrue("Elapsed " + elapsed + " ms", elapsed >= 100);
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNonPositiveRate() {
+        new RateLimiter(0);
+    }
+    
+    private static long elapsedMillis(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+}